@@ -35,6 +35,10 @@
 package net.semanticmetadata.lire.aggregators;
 
 import net.semanticmetadata.lire.classifiers.Cluster;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureSet;
+
+import java.util.List;
 
 /**
  * This class implements the clusterForFeature method for both BOVW and VLAD
@@ -44,6 +48,43 @@ import net.semanticmetadata.lire.classifiers.Cluster;
  * (c) 2015 by Nektarios Anagnostopoulos
  */
 public abstract class AbstractAggregator implements Aggregator {
+    protected int probes = 0;
+
+    /**
+     * Switches to approximate codeword assignment, see {@link CodewordAssigner}. The codewords are grouped and only
+     * the nearest groups are searched, which is faster for large codebooks, but a feature may end up with a codeword
+     * that is not the nearest one.
+     *
+     * @param probes the number of groups searched per feature, 0 for exact assignment (default).
+     */
+    public void setApproximateAssignment(int probes) {
+        this.probes = probes;
+    }
+
+    /**
+     * Returns the index of the nearest cluster for each feature, computed for all features at once with a
+     * {@link CodewordAssigner}.
+     * @param features the features of an image.
+     * @param clustersArray is the codebook.
+     * @return the index of the cluster for each feature.
+     */
+    protected int[] clustersForFeatures(List<? extends LocalFeature> features, Cluster[] clustersArray) {
+        double[][] vectors = new double[features.size()][];
+        int i = 0;
+        // iterated, the list may be a linked one.
+        for (LocalFeature feature : features) vectors[i++] = feature.getFeatureVector();
+        return CodewordAssigner.forCodebook(clustersArray, probes).assign(vectors);
+    }
+
+    /**
+     * Returns the index of the nearest cluster for each feature of the set.
+     * @param features the features of an image.
+     * @param clustersArray is the codebook.
+     * @return the index of the cluster for each feature.
+     */
+    protected int[] clustersForFeatures(LocalFeatureSet features, Cluster[] clustersArray) {
+        return CodewordAssigner.forCodebook(clustersArray, probes).assign(features.getDescriptors());
+    }
 
     /**
      * Returns the index of the cluster with the min distance between a feature and a codebook.
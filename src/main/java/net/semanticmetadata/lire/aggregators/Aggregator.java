@@ -36,6 +36,7 @@ package net.semanticmetadata.lire.aggregators;
 
 import net.semanticmetadata.lire.classifiers.Cluster;
 import net.semanticmetadata.lire.imageanalysis.features.LocalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureSet;
 
 import java.util.List;
 
@@ -50,6 +51,8 @@ import java.util.List;
 public interface Aggregator {
     String FIELD_NAME_BOVW = "BOVW";
     String FIELD_NAME_VLAD = "VLAD";
+    String FIELD_NAME_COMPACT_VLAD = "CVLAD";
+    String FIELD_NAME_VOCABULARY_TREE = "VTREE";
 
     /**
      * This method is used to create the vector representation of an image using the list of Features and a codebook
@@ -58,6 +61,16 @@ public interface Aggregator {
      */
     void createVectorRepresentation(List<? extends LocalFeature> listOfLocalFeatures, Cluster[] clustersArray);
 
+    /**
+     * Creates the vector representation from the compact form of the local features. The default copies the features
+     * to a list, aggregators override it to work on the descriptor matrix directly.
+     * @param features the local features of the image.
+     * @param clustersArray is the codebook.
+     */
+    default void createVectorRepresentation(LocalFeatureSet features, Cluster[] clustersArray) {
+        createVectorRepresentation(features.toList(), clustersArray);
+    }
+
     /**
      * Returns the vector representation in byte[] format.
      * @return the vector representation as a byte array.
@@ -36,9 +36,9 @@ package net.semanticmetadata.lire.aggregators;
 
 import net.semanticmetadata.lire.classifiers.Cluster;
 import net.semanticmetadata.lire.imageanalysis.features.LocalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureSet;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -48,8 +48,9 @@ import java.util.List;
  * @author Nektarios Anagnostopoulos, nek.anag@gmail.com
  * (c) 2015 by Nektarios Anagnostopoulos
  */
-public class BOVW extends AbstractAggregator {
+public class BOVW extends AbstractAggregator implements SparseAggregator {
     private double[] histogram;
+    private SparseHistogram sparseHistogram;
 
     public BOVW() { }
 
@@ -61,15 +62,18 @@ public class BOVW extends AbstractAggregator {
      */
     @Override
     public void createVectorRepresentation(List<? extends LocalFeature> listOfLocalFeatures, Cluster[] clustersArray) {
-        histogram = new double[clustersArray.length];
-        Arrays.fill(histogram, 0d);
         // find the appropriate cluster for each feature:
-        for (LocalFeature listOfLocalFeature : listOfLocalFeatures) {
-            histogram[clusterForFeature(listOfLocalFeature.getFeatureVector(), clustersArray)]++;
-        }
+        sparseHistogram = SparseHistogram.fromAssignments(clustersForFeatures(listOfLocalFeatures, clustersArray));
+        histogram = sparseHistogram.toDense(clustersArray.length);
 //        quantize(histogram);
     }
 
+    @Override
+    public void createVectorRepresentation(LocalFeatureSet features, Cluster[] clustersArray) {
+        sparseHistogram = SparseHistogram.fromAssignments(clustersForFeatures(features, clustersArray));
+        histogram = sparseHistogram.toDense(clustersArray.length);
+    }
+
     /**
      * Returns the vector representation in byte[] format.
      * @return the vector representation as a byte array.
@@ -80,11 +84,17 @@ public class BOVW extends AbstractAggregator {
     }
 
     /**
-     * Returns the vector representation in string format, according to the {@link BOVW#arrayToVisualWordString(double[])} method.
+     * Returns the vector representation in string format, the hex id of each visual word repeated according to its count.
      * @return the vector representation as string.
      */
     @Override
-    public String getStringVectorRepresentation() { return arrayToVisualWordString(histogram); }
+    public String getStringVectorRepresentation() { return sparseHistogram.toVisualWordString(); }
+
+    /**
+     * Returns the histogram with only the visual words found, for indexing with {@link SparseHistogram#createFields(String)}.
+     * @return the vector representation as sparse histogram.
+     */
+    public SparseHistogram getSparseVectorRepresentation() { return sparseHistogram; }
 
     /**
      * Returns the vector representation in double[] format.
@@ -116,18 +126,4 @@ public class BOVW extends AbstractAggregator {
         }
     }
 
-    private String arrayToVisualWordString(double[] data) {
-        StringBuilder sb = new StringBuilder(1024);     //TODO: are 1024 enough??
-        int visualWordIndex;
-        for (int i = 0; i < data.length; i++) {
-            visualWordIndex = (int) data[i];
-            for (int j = 0; j < visualWordIndex; j++) {
-                // sb.append('v');
-                sb.append(Integer.toHexString(i));
-                sb.append(' ');
-            }
-        }
-        return sb.toString();
-    }
-
-}
\ No newline at end of file
+}
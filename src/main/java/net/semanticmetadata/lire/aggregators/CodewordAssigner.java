@@ -0,0 +1,391 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.aggregators;
+
+import net.semanticmetadata.lire.classifiers.Cluster;
+import net.semanticmetadata.lire.classifiers.FeatureMatrix;
+import net.semanticmetadata.lire.classifiers.KMeans;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+
+/**
+ * Finds the nearest codeword (cluster mean) for the local features of an image. The codebook is packed into one
+ * array along with the squared norms of the means, so the nearest codeword in L2 is the one minimizing
+ * ||c||^2 - 2 x.c, without square roots and subtractions. All features of an image are assigned at once, in blocks of
+ * codewords small enough to stay in the CPU cache, with four codewords computed per pass over a feature.
+ * <p/>
+ * With probes &gt; 0 the assignment is approximate: the codewords are grouped with k-means into about sqrt(k)
+ * groups, each feature is compared to the group centers first and then only to the codewords of the nearest probes
+ * groups.
+ * <p/>
+ * Assigners are cached per codebook, see {@link #forCodebook(Cluster[], int)}. The codebook must not change while
+ * it is used.
+ */
+public class CodewordAssigner {
+    private static final int BLOCK_SIZE = 256; // codewords per block, 256 SIFT codewords take 256 KB.
+    private static final Map<Cluster[], CodewordAssigner[]> cache = new WeakHashMap<Cluster[], CodewordAssigner[]>();
+
+    private final int k, length;
+    private final double[] codewords, norms;
+    private final int probes;
+    // for approximate assignment: the group centers and the codewords of each group.
+    private CodewordAssigner groupAssigner = null;
+    private int[][] groupMembers = null;
+
+    /**
+     * Returns the assigner for a codebook, created on first use.
+     *
+     * @param codebook the codebook.
+     * @param probes   0 for exact assignment, otherwise the number of codeword groups searched per feature.
+     * @return the assigner.
+     */
+    public static CodewordAssigner forCodebook(Cluster[] codebook, int probes) {
+        synchronized (cache) {
+            CodewordAssigner[] assigners = cache.get(codebook);
+            if (assigners != null) {
+                for (CodewordAssigner assigner : assigners) {
+                    if (assigner.probes == probes) return assigner;
+                }
+            }
+            CodewordAssigner assigner = new CodewordAssigner(codebook, probes);
+            if (assigners == null) assigners = new CodewordAssigner[]{assigner};
+            else {
+                assigners = Arrays.copyOf(assigners, assigners.length + 1);
+                assigners[assigners.length - 1] = assigner;
+            }
+            cache.put(codebook, assigners);
+            return assigner;
+        }
+    }
+
+    public CodewordAssigner(Cluster[] codebook) {
+        this(codebook, 0);
+    }
+
+    public CodewordAssigner(Cluster[] codebook, int probes) {
+        this(means(codebook), probes);
+    }
+
+    private CodewordAssigner(double[][] means, int probes) {
+        k = means.length;
+        length = means[0].length;
+        codewords = new double[k * length];
+        norms = new double[k];
+        for (int c = 0; c < k; c++) {
+            System.arraycopy(means[c], 0, codewords, c * length, length);
+            double norm = 0;
+            for (double v : means[c]) norm += v * v;
+            norms[c] = norm;
+        }
+        int numGroups = (int) Math.round(Math.sqrt(k));
+        // with less than 4 groups or as many probes as groups there's nothing to save.
+        if (probes > 0 && numGroups >= 4 && probes < numGroups) {
+            this.probes = probes;
+            createGroups(means, numGroups);
+        } else {
+            this.probes = 0;
+        }
+    }
+
+    /**
+     * @return the number of codewords.
+     */
+    public int size() {
+        return k;
+    }
+
+    public boolean isApproximate() {
+        return probes > 0;
+    }
+
+    /**
+     * Assigns a list of local features to their nearest codewords.
+     *
+     * @param features the features.
+     * @return the index of the codeword for each feature.
+     */
+    public int[] assign(List<double[]> features) {
+        return assign(features.toArray(new double[features.size()][]));
+    }
+
+    /**
+     * Assigns the rows of a matrix, eg. the descriptors of a {@link net.semanticmetadata.lire.imageanalysis.features.LocalFeatureSet},
+     * to their nearest codewords. Exact assignment computes the distances on the float values of the matrix
+     * directly, approximate assignment copies one row at a time to a single buffer.
+     *
+     * @param features the features.
+     * @return the index of the codeword for each row.
+     */
+    public int[] assign(FeatureMatrix features) {
+        int[] result = new int[features.size()];
+        if (result.length == 0) return result;
+        if (features.getDimensions() != length)
+            throw new IllegalArgumentException("Features have " + features.getDimensions() + " dimensions, the codewords " + length);
+        if (probes > 0) {
+            double[] row = new double[length];
+            int[] nearestGroups = new int[probes];
+            double[] groupScores = new double[probes];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = assignApproximately(features.getRow(i, row), nearestGroups, groupScores);
+            }
+        } else {
+            double[] best = new double[result.length];
+            Arrays.fill(best, Double.MAX_VALUE);
+            for (int from = 0; from < k; from += BLOCK_SIZE) {
+                int to = Math.min(k, from + BLOCK_SIZE);
+                for (int i = 0; i < result.length; i++) {
+                    scanBlock(features.getBlock(i), features.getOffset(i), from, to, best, result, i);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Assigns features to their nearest codewords.
+     *
+     * @param features the features.
+     * @return the index of the codeword for each feature.
+     */
+    public int[] assign(double[][] features) {
+        int[] result = new int[features.length];
+        if (probes > 0) {
+            int[] nearestGroups = new int[probes];
+            double[] groupScores = new double[probes];
+            for (int i = 0; i < features.length; i++) {
+                result[i] = assignApproximately(features[i], nearestGroups, groupScores);
+            }
+        } else {
+            double[] best = new double[features.length];
+            Arrays.fill(best, Double.MAX_VALUE);
+            for (int from = 0; from < k; from += BLOCK_SIZE) {
+                int to = Math.min(k, from + BLOCK_SIZE);
+                for (int i = 0; i < features.length; i++) {
+                    scanBlock(features[i], from, to, best, result, i);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Assigns one feature, for many features use {@link #assign(double[][])}.
+     *
+     * @param feature the feature.
+     * @return the index of the nearest codeword.
+     */
+    public int assign(double[] feature) {
+        return assign(new double[][]{feature})[0];
+    }
+
+    /**
+     * Compares the feature to the codewords from to to (exclusive) and updates best[i] and result[i] if a nearer one
+     * is found. On ties the lower index wins.
+     */
+    private void scanBlock(double[] x, int from, int to, double[] best, int[] result, int i) {
+        final double[] cw = codewords;
+        final int len = length;
+        double min = best[i];
+        int arg = result[i];
+        int c = from;
+        // four codewords at a time, each value of the feature is loaded once for all four.
+        for (; c + 3 < to; c += 4) {
+            int o0 = c * len, o1 = o0 + len, o2 = o1 + len, o3 = o2 + len;
+            double d0 = 0, d1 = 0, d2 = 0, d3 = 0, v;
+            for (int j = 0; j < len; j++) {
+                v = x[j];
+                d0 += v * cw[o0 + j];
+                d1 += v * cw[o1 + j];
+                d2 += v * cw[o2 + j];
+                d3 += v * cw[o3 + j];
+            }
+            d0 = norms[c] - 2 * d0;
+            d1 = norms[c + 1] - 2 * d1;
+            d2 = norms[c + 2] - 2 * d2;
+            d3 = norms[c + 3] - 2 * d3;
+            if (d0 < min) {
+                min = d0;
+                arg = c;
+            }
+            if (d1 < min) {
+                min = d1;
+                arg = c + 1;
+            }
+            if (d2 < min) {
+                min = d2;
+                arg = c + 2;
+            }
+            if (d3 < min) {
+                min = d3;
+                arg = c + 3;
+            }
+        }
+        for (; c < to; c++) {
+            double d = 0;
+            for (int j = 0, o = c * len; j < len; j++) d += x[j] * cw[o + j];
+            d = norms[c] - 2 * d;
+            if (d < min) {
+                min = d;
+                arg = c;
+            }
+        }
+        best[i] = min;
+        result[i] = arg;
+    }
+
+    /**
+     * Same as {@link #scanBlock(double[], int, int, double[], int[], int)} for a feature stored at offset x0 in a float
+     * array, eg. a row of a {@link FeatureMatrix}.
+     */
+    private void scanBlock(float[] x, int x0, int from, int to, double[] best, int[] result, int i) {
+        final double[] cw = codewords;
+        final int len = length;
+        double min = best[i];
+        int arg = result[i];
+        int c = from;
+        for (; c + 3 < to; c += 4) {
+            int o0 = c * len, o1 = o0 + len, o2 = o1 + len, o3 = o2 + len;
+            double d0 = 0, d1 = 0, d2 = 0, d3 = 0, v;
+            for (int j = 0; j < len; j++) {
+                v = x[x0 + j];
+                d0 += v * cw[o0 + j];
+                d1 += v * cw[o1 + j];
+                d2 += v * cw[o2 + j];
+                d3 += v * cw[o3 + j];
+            }
+            d0 = norms[c] - 2 * d0;
+            d1 = norms[c + 1] - 2 * d1;
+            d2 = norms[c + 2] - 2 * d2;
+            d3 = norms[c + 3] - 2 * d3;
+            if (d0 < min) {
+                min = d0;
+                arg = c;
+            }
+            if (d1 < min) {
+                min = d1;
+                arg = c + 1;
+            }
+            if (d2 < min) {
+                min = d2;
+                arg = c + 2;
+            }
+            if (d3 < min) {
+                min = d3;
+                arg = c + 3;
+            }
+        }
+        for (; c < to; c++) {
+            double d = 0;
+            for (int j = 0, o = c * len; j < len; j++) d += x[x0 + j] * cw[o + j];
+            d = norms[c] - 2 * d;
+            if (d < min) {
+                min = d;
+                arg = c;
+            }
+        }
+        best[i] = min;
+        result[i] = arg;
+    }
+
+    private double score(double[] x, int c) {
+        double d = 0;
+        for (int j = 0, o = c * length; j < length; j++) d += x[j] * codewords[o + j];
+        return norms[c] - 2 * d;
+    }
+
+    private int assignApproximately(double[] x, int[] nearestGroups, double[] groupScores) {
+        // find the nearest groups by insertion into a small sorted array.
+        Arrays.fill(groupScores, Double.MAX_VALUE);
+        for (int g = 0; g < groupMembers.length; g++) {
+            double s = groupAssigner.score(x, g);
+            if (s < groupScores[probes - 1]) {
+                int p = probes - 1;
+                while (p > 0 && groupScores[p - 1] > s) {
+                    groupScores[p] = groupScores[p - 1];
+                    nearestGroups[p] = nearestGroups[p - 1];
+                    p--;
+                }
+                groupScores[p] = s;
+                nearestGroups[p] = g;
+            }
+        }
+        double min = Double.MAX_VALUE;
+        int arg = 0;
+        for (int p = 0; p < probes; p++) {
+            for (int c : groupMembers[nearestGroups[p]]) {
+                double s = score(x, c);
+                if (s < min || (s == min && c < arg)) {
+                    min = s;
+                    arg = c;
+                }
+            }
+        }
+        return arg;
+    }
+
+    private void createGroups(double[][] means, int numGroups) {
+        KMeans kMeans = new KMeans(numGroups);
+        kMeans.setRandom(new Random(numGroups)); // the same codebook always gives the same groups.
+        FeatureMatrix matrix = new FeatureMatrix(length, k);
+        for (double[] mean : means) matrix.add(mean);
+        kMeans.addFeatures(matrix);
+        kMeans.init(true);
+        double last = Double.MAX_VALUE, stress = kMeans.clusteringStep();
+        for (int step = 1; step < 20 && stress < last; step++) {
+            last = stress;
+            stress = kMeans.clusteringStep();
+        }
+        Cluster[] groups = kMeans.getClusters();
+        groupAssigner = new CodewordAssigner(groups, 0);
+        // every codeword goes to its nearest group.
+        int[] group = groupAssigner.assign(means);
+        int[] sizes = new int[groups.length];
+        for (int g : group) sizes[g]++;
+        groupMembers = new int[groups.length][];
+        for (int g = 0; g < groups.length; g++) groupMembers[g] = new int[sizes[g]];
+        Arrays.fill(sizes, 0);
+        for (int c = 0; c < k; c++) groupMembers[group[c]][sizes[group[c]]++] = c;
+    }
+
+    private static double[][] means(Cluster[] codebook) {
+        double[][] means = new double[codebook.length][];
+        for (int c = 0; c < codebook.length; c++) means[c] = codebook[c].getMean();
+        return means;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+
+package net.semanticmetadata.lire.aggregators;
+
+import net.semanticmetadata.lire.classifiers.Cluster;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureSet;
+import net.semanticmetadata.lire.utils.SerializationUtils;
+
+import java.util.List;
+
+/**
+ * VLAD reduced to a compact code with a {@link VLADProjection}, either the one set for the aggregator or the one
+ * registered for the codebook. The byte representation is the code, the vector representation the projected vector
+ * before encoding.
+ */
+public class CompactVLAD extends VLAD {
+    private VLADProjection projection = null;
+    private double[] projected;
+    private byte[] code;
+
+    public CompactVLAD() { }
+
+    /**
+     * @param projection the projection used for all codebooks, see {@link VLADProjection#readForCodebook(String)}.
+     */
+    public CompactVLAD(VLADProjection projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * Sets the projection used instead of the one registered for the codebook, null to look it up again.
+     */
+    public void setProjection(VLADProjection projection) {
+        this.projection = projection;
+    }
+
+    @Override
+    public void createVectorRepresentation(List<? extends LocalFeature> listOfLocalFeatures, Cluster[] clustersArray) {
+        VLADProjection projection = getProjection(clustersArray);
+        super.createVectorRepresentation(listOfLocalFeatures, clustersArray);
+        projected = projection.project(super.getVectorRepresentation());
+        code = projection.encode(projected);
+    }
+
+    @Override
+    public void createVectorRepresentation(LocalFeatureSet features, Cluster[] clustersArray) {
+        VLADProjection projection = getProjection(clustersArray);
+        super.createVectorRepresentation(features, clustersArray);
+        projected = projection.project(super.getVectorRepresentation());
+        code = projection.encode(projected);
+    }
+
+    private VLADProjection getProjection(Cluster[] clustersArray) {
+        VLADProjection result = (projection != null) ? projection : VLADProjection.forCodebook(clustersArray);
+        if (result == null)
+            throw new IllegalStateException("There is no projection for the codebook of " + clustersArray.length + " clusters, see setProjection(...) and VLADProjection.register(...)");
+        return result;
+    }
+
+    /**
+     * Returns the compact code.
+     * @return the vector representation as a byte array.
+     */
+    @Override
+    public byte[] getByteVectorRepresentation() { return code; }
+
+    @Override
+    public String getStringVectorRepresentation() { return SerializationUtils.toString(projected); }
+
+    /**
+     * Returns the projected vector.
+     * @return the vector representation as a double array.
+     */
+    @Override
+    public double[] getVectorRepresentation() { return projected; }
+
+    @Override
+    public String getFieldName() {
+        return Aggregator.FIELD_NAME_COMPACT_VLAD;
+    }
+}
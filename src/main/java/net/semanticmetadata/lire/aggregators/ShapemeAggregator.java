@@ -25,8 +25,8 @@ public class ShapemeAggregator extends net.semanticmetadata.lire.aggregators.Abs
     public void createVisualWords(List<? extends net.semanticmetadata.lire.imageanalysis.features.LocalFeature> list, net.semanticmetadata.lire.classifiers.Cluster[] clusters) {
         histogram = new int[clusters.length];
         Arrays.fill(histogram, 0);
-        for (net.semanticmetadata.lire.imageanalysis.features.LocalFeature listOfLocalFeature : list) {
-            histogram[clusterForFeature(listOfLocalFeature.getFeatureVector(), clusters)]++;
+        for (int cluster : clustersForFeatures(list, clusters)) {
+            histogram[cluster]++;
         }
     }
 
@@ -35,6 +35,14 @@ public class ShapemeAggregator extends net.semanticmetadata.lire.aggregators.Abs
         createVisualWords(list,clusters);
     }
 
+    @Override
+    public void createVectorRepresentation(net.semanticmetadata.lire.imageanalysis.features.LocalFeatureSet features, net.semanticmetadata.lire.classifiers.Cluster[] clusters) {
+        histogram = new int[clusters.length];
+        for (int cluster : clustersForFeatures(features, clusters)) {
+            histogram[cluster]++;
+        }
+    }
+
     @Override
     public byte[] getByteVectorRepresentation() {
          return net.semanticmetadata.lire.utils.SerializationUtils.toByteArray(histogram);
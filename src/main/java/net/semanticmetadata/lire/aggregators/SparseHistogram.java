@@ -0,0 +1,267 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+
+package net.semanticmetadata.lire.aggregators;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermFrequencyAttribute;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexOptions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A BOVW histogram stored as the visual words present in an image, in ascending order, and their counts. Most words
+ * of a codebook don't appear in an image, so this is much smaller than the dense histogram.
+ * <p/>
+ * For the index each word is a term in hex, like in {@link BOVW#getStringVectorRepresentation()}, but the word is
+ * emitted once with its count as term frequency instead of being repeated, see {@link #createFields(String)}. The
+ * histogram itself is stored in the same field with variable length integers, ie. 2-3 bytes per word.
+ */
+public class SparseHistogram {
+    /**
+     * Terms with frequencies but without positions, custom term frequencies don't work with positions.
+     */
+    public static final FieldType TYPE = new FieldType();
+
+    static {
+        TYPE.setTokenized(true);
+        TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+        TYPE.freeze();
+    }
+
+    private final int[] words, counts;
+
+    /**
+     * @param words  the words in ascending order.
+     * @param counts the count of each word, all greater than 0.
+     */
+    public SparseHistogram(int[] words, int[] counts) {
+        if (words.length != counts.length)
+            throw new IllegalArgumentException("Got " + words.length + " words, but " + counts.length + " counts.");
+        this.words = words;
+        this.counts = counts;
+    }
+
+    /**
+     * Counts the words assigned to the features of an image.
+     *
+     * @param assignments the word of each feature, the array is sorted in place.
+     */
+    public static SparseHistogram fromAssignments(int[] assignments) {
+        Arrays.sort(assignments);
+        int distinct = 0;
+        for (int i = 0; i < assignments.length; i++)
+            if (i == 0 || assignments[i] != assignments[i - 1]) distinct++;
+        int[] words = new int[distinct], counts = new int[distinct];
+        for (int i = 0, w = -1; i < assignments.length; i++) {
+            if (i == 0 || assignments[i] != assignments[i - 1]) words[++w] = assignments[i];
+            counts[w]++;
+        }
+        return new SparseHistogram(words, counts);
+    }
+
+    /**
+     * Reads the histogram from {@link #toByteArray()}.
+     */
+    public static SparseHistogram fromByteArray(byte[] data, int offset, int length) {
+        int[] position = {offset};
+        int end = offset + length;
+        int size = readVInt(data, position);
+        int[] words = new int[size], counts = new int[size];
+        for (int i = 0, word = 0; i < size; i++) {
+            if (position[0] >= end) throw new IllegalArgumentException("The histogram is truncated.");
+            word += readVInt(data, position);
+            words[i] = word;
+            counts[i] = readVInt(data, position);
+        }
+        return new SparseHistogram(words, counts);
+    }
+
+    /**
+     * Reads the histogram from a string of hex words, each one repeated according to its count, as created by
+     * {@link BOVW#getStringVectorRepresentation()} for indexes written before there was a sparse representation.
+     */
+    public static SparseHistogram fromVisualWordString(String visualWords) {
+        String[] tokens = visualWords.trim().split("\\s+");
+        if (tokens.length == 1 && tokens[0].isEmpty()) return new SparseHistogram(new int[0], new int[0]);
+        int[] assignments = new int[tokens.length];
+        for (int i = 0; i < tokens.length; i++) assignments[i] = Integer.parseInt(tokens[i], 16);
+        return fromAssignments(assignments);
+    }
+
+    /**
+     * @return the words in ascending order.
+     */
+    public int[] getWords() {
+        return words;
+    }
+
+    /**
+     * @return the count of each word of {@link #getWords()}.
+     */
+    public int[] getCounts() {
+        return counts;
+    }
+
+    /**
+     * @return the number of distinct words.
+     */
+    public int size() {
+        return words.length;
+    }
+
+    /**
+     * Computes the L2 distance, like the dense histograms are compared, but only over the words present in either.
+     *
+     * @param other the other histogram.
+     * @return the Euclidean distance of the histograms.
+     */
+    public double getDistance(SparseHistogram other) {
+        double sum = 0, d;
+        int i = 0, j = 0;
+        while (i < words.length || j < other.words.length) {
+            if (j >= other.words.length || (i < words.length && words[i] < other.words[j])) {
+                d = counts[i++];
+            } else if (i >= words.length || other.words[j] < words[i]) {
+                d = other.counts[j++];
+            } else {
+                d = counts[i++] - other.counts[j++];
+            }
+            sum += d * d;
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * @param length the size of the codebook.
+     * @return the dense histogram.
+     */
+    public double[] toDense(int length) {
+        double[] histogram = new double[length];
+        for (int i = 0; i < words.length; i++) histogram[words[i]] = counts[i];
+        return histogram;
+    }
+
+    /**
+     * Encodes the number of words, then the difference to the previous word and the count for each word as
+     * variable length integers.
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(2 + words.length * 3);
+        writeVInt(out, words.length);
+        for (int i = 0, previous = 0; i < words.length; i++) {
+            writeVInt(out, words[i] - previous);
+            writeVInt(out, counts[i]);
+            previous = words[i];
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the words in hex, each one repeated according to its count.
+     */
+    public String toVisualWordString() {
+        StringBuilder sb = new StringBuilder(words.length * 4);
+        for (int i = 0; i < words.length; i++) {
+            String word = Integer.toHexString(words[i]);
+            for (int j = 0; j < counts[i]; j++) sb.append(word).append(' ');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Creates the fields for indexing and storing the histogram, both with the same name so
+     * {@link net.semanticmetadata.lire.searchers.VisualWordsImageSearcher} finds the stored histogram of a query
+     * document in the field it searches.
+     *
+     * @param fieldName the name of the field.
+     * @return the indexed field and the stored field.
+     */
+    public Field[] createFields(String fieldName) {
+        return new Field[]{new Field(fieldName, tokenStream(), TYPE), new StoredField(fieldName, toByteArray())};
+    }
+
+    /**
+     * @return a token stream with each word once in hex and its count as term frequency.
+     */
+    public TokenStream tokenStream() {
+        return new TokenStream() {
+            private final CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
+            private final TermFrequencyAttribute frequencyAttribute = addAttribute(TermFrequencyAttribute.class);
+            private int next = 0;
+
+            @Override
+            public boolean incrementToken() {
+                if (next >= words.length) return false;
+                clearAttributes();
+                termAttribute.append(Integer.toHexString(words[next]));
+                frequencyAttribute.setTermFrequency(counts[next]);
+                next++;
+                return true;
+            }
+
+            @Override
+            public void reset() throws IOException {
+                super.reset();
+                next = 0;
+            }
+        };
+    }
+
+    private static void writeVInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVInt(byte[] data, int[] position) {
+        int value = 0, shift = 0;
+        byte b;
+        do {
+            b = data[position[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
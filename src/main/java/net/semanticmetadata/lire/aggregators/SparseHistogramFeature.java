@@ -0,0 +1,86 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+
+package net.semanticmetadata.lire.aggregators;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+
+/**
+ * Wraps the {@link SparseHistogram} stored by {@link VocabularyTreeAggregator}, so it can be compared like the dense
+ * histograms, eg. by the {@link net.semanticmetadata.lire.searchers.GenericFastImageSearcher}.
+ */
+public class SparseHistogramFeature implements LireFeature {
+    private SparseHistogram histogram = null;
+
+    @Override
+    public String getFeatureName() {
+        return "SparseHistogram";
+    }
+
+    @Override
+    public String getFieldName() {
+        return "featSparseHistogram";
+    }
+
+    @Override
+    public byte[] getByteArrayRepresentation() {
+        if (histogram == null) throw new UnsupportedOperationException("You need to set the histogram first.");
+        return histogram.toByteArray();
+    }
+
+    @Override
+    public void setByteArrayRepresentation(byte[] featureData) {
+        setByteArrayRepresentation(featureData, 0, featureData.length);
+    }
+
+    @Override
+    public void setByteArrayRepresentation(byte[] featureData, int offset, int length) {
+        histogram = SparseHistogram.fromByteArray(featureData, offset, length);
+    }
+
+    /**
+     * @return the dense histogram up to the highest word present.
+     */
+    @Override
+    public double[] getFeatureVector() {
+        int[] words = histogram.getWords();
+        return histogram.toDense((words.length > 0) ? words[words.length - 1] + 1 : 0);
+    }
+
+    @Override
+    public double getDistance(LireFeature feature) {
+        return histogram.getDistance(((SparseHistogramFeature) feature).histogram);
+    }
+}
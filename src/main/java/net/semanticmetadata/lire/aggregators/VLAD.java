@@ -36,6 +36,8 @@ package net.semanticmetadata.lire.aggregators;
 
 import net.semanticmetadata.lire.classifiers.Cluster;
 import net.semanticmetadata.lire.imageanalysis.features.LocalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureSet;
+import net.semanticmetadata.lire.classifiers.FeatureMatrix;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 
 import java.util.Arrays;
@@ -63,14 +65,33 @@ public class VLAD extends AbstractAggregator {
     public void createVectorRepresentation(List<? extends LocalFeature> listOfLocalFeatures, Cluster[] clustersArray) {
         vector = new double[clustersArray.length * (clustersArray[0].getMean()).length];
         Arrays.fill(vector, 0d);
-        int clusterIndex;
-        double[] mean;
+        int clusterIndex, f = 0;
+        double[] mean, feature;
+        int[] clusterIndices = clustersForFeatures(listOfLocalFeatures, clustersArray);
         // VLAD - Vector of Locally Aggregated Descriptors
         for (LocalFeature localFeature : listOfLocalFeatures) {
-            clusterIndex = clusterForFeature(localFeature.getFeatureVector(), clustersArray);
+            clusterIndex = clusterIndices[f++];
+            feature = localFeature.getFeatureVector();
             mean = clustersArray[clusterIndex].getMean();
-            for (int i = 0; i < localFeature.getFeatureVector().length; i++) {
-                vector[clusterIndex * localFeature.getFeatureVector().length + i] += (localFeature.getFeatureVector()[i] - mean[i]);
+            for (int i = 0; i < feature.length; i++) {
+                vector[clusterIndex * feature.length + i] += (feature[i] - mean[i]);
+            }
+        }
+        normalize(vector);
+    }
+
+    @Override
+    public void createVectorRepresentation(LocalFeatureSet features, Cluster[] clustersArray) {
+        int length = clustersArray[0].getMean().length;
+        vector = new double[clustersArray.length * length];
+        int[] clusterIndices = clustersForFeatures(features, clustersArray);
+        // the residuals are summed up directly from the descriptor matrix.
+        FeatureMatrix descriptors = features.getDescriptors();
+        for (int f = 0; f < clusterIndices.length; f++) {
+            float[] data = descriptors.getBlock(f);
+            double[] mean = clustersArray[clusterIndices[f]].getMean();
+            for (int i = 0, v = clusterIndices[f] * length, o = descriptors.getOffset(f); i < length; i++) {
+                vector[v + i] += data[o + i] - mean[i];
             }
         }
         normalize(vector);
@@ -0,0 +1,266 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+
+package net.semanticmetadata.lire.aggregators;
+
+import net.semanticmetadata.lire.classifiers.Cluster;
+import net.semanticmetadata.lire.classifiers.FeatureMatrix;
+import net.semanticmetadata.lire.classifiers.PrincipalComponents;
+import net.semanticmetadata.lire.classifiers.ProductQuantizer;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureSet;
+import net.semanticmetadata.lire.utils.SerializationUtils;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+
+/**
+ * Reduces VLAD vectors to compact codes after Jegou and Chum, "Negative evidences and co-occurrences in image
+ * retrieval", ECCV 2012: the k*d dimensional VLAD vector is projected to D' dimensions with a PCA whitening trained on
+ * the VLAD vectors of the images sampled for the codebook, L2 normalized and then stored as
+ * <ul>
+ * <li>{@link Encoding#Float}: D' floats, ie. 4*D' bytes,</li>
+ * <li>{@link Encoding#Binary}: the signs of the D' dimensions, ie. D'/8 bytes, compared with the Hamming distance, or</li>
+ * <li>{@link Encoding#ProductQuantization}: one byte per subspace, see {@link ProductQuantizer}.</li>
+ * </ul>
+ * With D'=256 binary or D'=128 and 32 subspaces an image takes 32 bytes, so millions of images can be searched in
+ * memory with the {@link net.semanticmetadata.lire.searchers.CompactVLADSearcher}.
+ * <p/>
+ * A projection belongs to a codebook and is stored next to it, see {@link #readForCodebook(String)}. It is either set
+ * on the {@link CompactVLAD} aggregator or {@link #register(Cluster[], VLADProjection) registered} for the codebook
+ * before documents are created, for the aggregators created by the document builders.
+ */
+public class VLADProjection {
+    public enum Encoding {Float, Binary, ProductQuantization}
+
+    /**
+     * The extension of the projection file next to the codebook.
+     */
+    public static final String FILE_EXTENSION = ".vlad";
+
+    /**
+     * The maximum number of sample images the projection is trained on, the PCA holds n x k*d doubles.
+     */
+    public static final int MAX_TRAINING_SAMPLES = 2048;
+
+    private static final Map<Cluster[], VLADProjection> projections = Collections.synchronizedMap(new WeakHashMap<Cluster[], VLADProjection>());
+    private final PrincipalComponents pca;
+    private final Encoding encoding;
+    private ProductQuantizer quantizer = null;
+
+    private VLADProjection(PrincipalComponents pca, Encoding encoding) {
+        this.pca = pca;
+        this.encoding = encoding;
+    }
+
+    /**
+     * Trains the projection on the VLAD vectors of up to {@link #MAX_TRAINING_SAMPLES} sample images. With few
+     * sample images, D' is reduced to fewer than the number of images, for binary codes to a multiple of 8 and for
+     * product quantization to a multiple of the number of subspaces.
+     *
+     * @param sampleImages the local features of each sample image, eg. the ones the codebook has been created from.
+     * @param codebook     the codebook.
+     * @param dimensions   D', the number of dimensions after the projection, a multiple of 8 for binary codes.
+     * @param encoding     the way the projected vectors are stored.
+     * @param subspaces    the number of subspaces for {@link Encoding#ProductQuantization}, a divisor of D'.
+     * @return the projection.
+     */
+    public static VLADProjection train(Iterable<LocalFeatureSet> sampleImages, Cluster[] codebook,
+                                       int dimensions, Encoding encoding, int subspaces) {
+        if (encoding == Encoding.Binary && dimensions % 8 != 0)
+            throw new IllegalArgumentException("Binary codes need a multiple of 8 dimensions, got " + dimensions + ".");
+        if (encoding == Encoding.ProductQuantization && (subspaces < 1 || dimensions % subspaces != 0))
+            throw new IllegalArgumentException(dimensions + " dimensions cannot be split into " + subspaces + " subspaces.");
+        // reservoir sampling, so the images are not all kept.
+        FeatureMatrix vectors = new FeatureMatrix();
+        VLAD vlad = new VLAD();
+        Random random = new Random(0);
+        int count = 0;
+        for (LocalFeatureSet features : sampleImages) {
+            if (features.isEmpty()) continue;
+            int r = (count < MAX_TRAINING_SAMPLES) ? count : random.nextInt(count + 1);
+            count++;
+            if (r >= MAX_TRAINING_SAMPLES) continue;
+            vlad.createVectorRepresentation(features, codebook);
+            if (r == vectors.size()) vectors.add(vlad.getVectorRepresentation());
+            else vectors.set(r, vlad.getVectorRepresentation());
+        }
+        // the PCA gives at most min(n - 1, k*d) components, which have to fit the encoding.
+        int step = (encoding == Encoding.Binary) ? 8 : (encoding == Encoding.ProductQuantization) ? subspaces : 1;
+        int components = Math.min(dimensions, Math.min(vectors.size() - 1, vectors.getDimensions())) / step * step;
+        if (components < 1)
+            throw new UnsupportedOperationException("Only " + vectors.size() + " sample images, at least " + (step + 1) + " are needed for " + encoding + " codes with " + dimensions + " dimensions.");
+        if (components < dimensions)
+            System.err.println("Reducing the dimensions of the VLAD projection from " + dimensions + " to " + components + ", as there are only " + vectors.size() + " sample images of " + vectors.getDimensions() + " dimensions.");
+        PrincipalComponents pca = new PrincipalComponents(components);
+        pca.train(vectors);
+        VLADProjection projection = new VLADProjection(pca, encoding);
+        if (encoding == Encoding.ProductQuantization) {
+            FeatureMatrix projected = new FeatureMatrix(pca.getNumComponents(), vectors.size());
+            double[] row = null;
+            for (int i = 0; i < vectors.size(); i++) {
+                row = vectors.getRow(i, row);
+                projected.add(projection.project(row));
+            }
+            projection.quantizer = new ProductQuantizer(subspaces);
+            projection.quantizer.train(projected);
+        }
+        return projection;
+    }
+
+    /**
+     * Sets the projection used by {@link CompactVLAD} for a codebook, the codebook is referenced weakly.
+     */
+    public static void register(Cluster[] codebook, VLADProjection projection) {
+        projections.put(codebook, projection);
+    }
+
+    /**
+     * @return the projection registered for the codebook or null.
+     */
+    public static VLADProjection forCodebook(Cluster[] codebook) {
+        return projections.get(codebook);
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return D', the number of dimensions after the projection.
+     */
+    public int getDimensions() {
+        return pca.getNumComponents();
+    }
+
+    /**
+     * @return the length of the codes created by {@link #encode(double[])}.
+     */
+    public int getCodeLength() {
+        switch (encoding) {
+            case Binary:
+                return getDimensions() / 8;
+            case ProductQuantization:
+                return quantizer.getCodeLength();
+            default:
+                return getDimensions() * 4;
+        }
+    }
+
+    /**
+     * @return the quantizer for {@link Encoding#ProductQuantization}, null otherwise.
+     */
+    public ProductQuantizer getQuantizer() {
+        return quantizer;
+    }
+
+    /**
+     * Projects and whitens a VLAD vector and normalizes the result to unit length.
+     *
+     * @param vlad the VLAD vector.
+     * @return the D' dimensional vector.
+     */
+    public double[] project(double[] vlad) {
+        double[] result = pca.project(vlad);
+        double sum = 0;
+        for (double v : result) sum += v * v;
+        if (sum > 0) {
+            sum = Math.sqrt(sum);
+            for (int i = 0; i < result.length; i++) result[i] /= sum;
+        }
+        return result;
+    }
+
+    /**
+     * @param projected a vector returned by {@link #project(double[])}.
+     * @return the compact code.
+     */
+    public byte[] encode(double[] projected) {
+        switch (encoding) {
+            case Binary:
+                byte[] bits = new byte[projected.length / 8];
+                for (int i = 0; i < projected.length; i++) {
+                    if (projected[i] > 0) bits[i >> 3] |= 1 << (i & 7);
+                }
+                return bits;
+            case ProductQuantization:
+                return quantizer.encode(projected);
+            default:
+                float[] floats = new float[projected.length];
+                for (int i = 0; i < floats.length; i++) floats[i] = (float) projected[i];
+                return SerializationUtils.toByteArray(floats);
+        }
+    }
+
+    /**
+     * Writes the projection to be read with {@link #read(String)}.
+     */
+    public void write(String path) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        try {
+            out.writeUTF(encoding.name());
+            pca.write(out);
+            if (quantizer != null) quantizer.write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the projection trained for a codebook, which the {@link net.semanticmetadata.lire.indexers.parallel.ParallelIndexer}
+     * writes to the codebook file name with the extension ".vlad".
+     *
+     * @param codebookFile the file of the codebook.
+     * @return the projection or null if there is none.
+     */
+    public static VLADProjection readForCodebook(String codebookFile) throws IOException {
+        File file = new File(codebookFile + FILE_EXTENSION);
+        return file.exists() ? read(file.getPath()) : null;
+    }
+
+    public static VLADProjection read(String path) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        try {
+            Encoding encoding = Encoding.valueOf(in.readUTF());
+            VLADProjection projection = new VLADProjection(PrincipalComponents.read(in), encoding);
+            if (encoding == Encoding.ProductQuantization) projection.quantizer = ProductQuantizer.read(in);
+            return projection;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+
+package net.semanticmetadata.lire.aggregators;
+
+import net.semanticmetadata.lire.classifiers.Cluster;
+import net.semanticmetadata.lire.classifiers.VocabularyTree;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureSet;
+
+import java.util.List;
+
+/**
+ * BOVW histograms over the words of a {@link VocabularyTree}. With up to a million words the histograms are kept
+ * sparse, ie. as the words found in the image and their counts. They are indexed like the ones of {@link BOVW} and
+ * searched with the {@link net.semanticmetadata.lire.searchers.VisualWordsImageSearcher}:
+ * <pre>
+ * VocabularyTreeAggregator aggregator = new VocabularyTreeAggregator(VocabularyTree.read("surf.vtree"));
+ * aggregator.createVectorRepresentation(features);
+ * for (Field f : aggregator.getSparseVectorRepresentation().createFields("SURF" + aggregator.getFieldName())) document.add(f);
+ * ...
+ * new VisualWordsImageSearcher(100, "SURF" + Aggregator.FIELD_NAME_VOCABULARY_TREE).search(document, reader);
+ * </pre>
+ * Created with the default constructor, eg. by the document builders, the aggregator uses the tree registered for the
+ * codebook, see {@link VocabularyTree#register(Cluster[], VocabularyTree)}.
+ */
+public class VocabularyTreeAggregator extends AbstractAggregator implements SparseAggregator {
+    private final VocabularyTree fixedTree;
+    private VocabularyTree tree;
+    private SparseHistogram histogram = new SparseHistogram(new int[0], new int[0]);
+
+    public VocabularyTreeAggregator() {
+        this(null);
+    }
+
+    /**
+     * @param tree the tree used for all codebooks.
+     */
+    public VocabularyTreeAggregator(VocabularyTree tree) {
+        this.fixedTree = tree;
+        this.tree = tree;
+    }
+
+    /**
+     * Quantizes the features with the tree, the codebook only selects the registered tree.
+     */
+    @Override
+    public void createVectorRepresentation(List<? extends LocalFeature> listOfLocalFeatures, Cluster[] clustersArray) {
+        tree = getTree(clustersArray);
+        createVectorRepresentation(listOfLocalFeatures);
+    }
+
+    public void createVectorRepresentation(List<? extends LocalFeature> listOfLocalFeatures) {
+        if (tree == null) throw new IllegalStateException("No vocabulary tree set.");
+        int[] quantized = new int[listOfLocalFeatures.size()];
+        int i = 0;
+        // iterated, the list may be a linked one.
+        for (LocalFeature feature : listOfLocalFeatures) quantized[i++] = tree.quantize(feature.getFeatureVector());
+        histogram = SparseHistogram.fromAssignments(quantized);
+    }
+
+    /**
+     * Quantizes the features with the tree, the codebook only selects the registered tree.
+     */
+    @Override
+    public void createVectorRepresentation(LocalFeatureSet features, Cluster[] clustersArray) {
+        tree = getTree(clustersArray);
+        int[] quantized = new int[features.size()];
+        double[] descriptor = null;
+        for (int i = 0; i < quantized.length; i++) {
+            descriptor = features.getDescriptor(i, descriptor);
+            quantized[i] = tree.quantize(descriptor);
+        }
+        histogram = SparseHistogram.fromAssignments(quantized);
+    }
+
+    private VocabularyTree getTree(Cluster[] clustersArray) {
+        VocabularyTree result = (fixedTree != null) ? fixedTree : VocabularyTree.forCodebook(clustersArray);
+        if (result == null)
+            throw new IllegalStateException("There is no vocabulary tree for the codebook of " + clustersArray.length + " clusters, see VocabularyTree.register(...)");
+        return result;
+    }
+
+    /**
+     * @return the words found in the image and their counts.
+     */
+    public SparseHistogram getSparseVectorRepresentation() {
+        return histogram;
+    }
+
+    /**
+     * Returns the sparse histogram, see {@link SparseHistogram#toByteArray()}.
+     * @return the vector representation as a byte array.
+     */
+    @Override
+    public byte[] getByteVectorRepresentation() {
+        return histogram.toByteArray();
+    }
+
+    /**
+     * Returns the words in hex, each one repeated according to its count, like {@link BOVW}.
+     * @return the vector representation as string.
+     */
+    @Override
+    public String getStringVectorRepresentation() {
+        return histogram.toVisualWordString();
+    }
+
+    /**
+     * Returns the dense histogram with one entry per word of the tree. Mind that this takes 8 MB for a million
+     * words, use {@link #getSparseVectorRepresentation()} where possible.
+     * @return the vector representation as a double array.
+     */
+    @Override
+    public double[] getVectorRepresentation() {
+        return histogram.toDense(tree.getNumWords());
+    }
+
+    @Override
+    public String getFieldName() {
+        return Aggregator.FIELD_NAME_VOCABULARY_TREE;
+    }
+}
@@ -36,9 +36,11 @@ package net.semanticmetadata.lire.builders;
 
 import net.semanticmetadata.lire.aggregators.AbstractAggregator;
 import net.semanticmetadata.lire.aggregators.BOVW;
+import net.semanticmetadata.lire.aggregators.SparseAggregator;
 import net.semanticmetadata.lire.classifiers.Cluster;
 import net.semanticmetadata.lire.imageanalysis.features.LocalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureExtractor;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureSet;
 import net.semanticmetadata.lire.indexers.parallel.ExtractorItem;
 import net.semanticmetadata.lire.utils.ImageUtils;
 import org.apache.lucene.document.*;
@@ -65,6 +67,16 @@ public abstract class AbstractLocalDocumentBuilder implements DocumentBuilder {
     protected boolean docsCreated = false;
 
 
+    /**
+     * Switches the aggregator to approximate codeword assignment, see
+     * {@link AbstractAggregator#setApproximateAssignment(int)}.
+     *
+     * @param probes the number of codeword groups searched per feature, 0 for exact assignment (default).
+     */
+    public void setApproximateAssignment(int probes) {
+        aggregator.setApproximateAssignment(probes);
+    }
+
     /**
      * Images are resized so as not to exceed the {@link DocumentBuilder#MAX_IMAGE_DIMENSION}, after that
      * features are extracted using the given localFeatureExtractor.
@@ -94,7 +106,7 @@ public abstract class AbstractLocalDocumentBuilder implements DocumentBuilder {
     private Field[] getLocalDescriptorFields(BufferedImage image, ExtractorItem extractorItem, LinkedList<Cluster[]> listOfCodebooks) {
         LocalFeatureExtractor localFeatureExtractor = extractLocalFeatures(image, (LocalFeatureExtractor) extractorItem.getExtractorInstance());
 
-        return createLocalDescriptorFields(localFeatureExtractor.getFeatures(), extractorItem, listOfCodebooks);
+        return createLocalDescriptorFields(localFeatureExtractor.getFeatureSet(), extractorItem, listOfCodebooks);
     }
 
     /**
@@ -105,16 +117,43 @@ public abstract class AbstractLocalDocumentBuilder implements DocumentBuilder {
      * @return Lucene Fields with the vector representation of the list of local features.
      */
     public Field[] createLocalDescriptorFields(List<? extends LocalFeature> listOfLocalFeatures, ExtractorItem extractorItem, LinkedList<Cluster[]> listOfCodebooks){
-        Field[] result = new Field[listOfCodebooks.size() * 2];
-        int count = 0;
+        LinkedList<Field> result = new LinkedList<Field>();
         for (Cluster[] codebook : listOfCodebooks) {
             aggregator.createVectorRepresentation(listOfLocalFeatures, codebook);
-            result[count] = new StoredField(fieldNamesDictionary.get(extractorItem).get(codebook.length)[0], aggregator.getByteVectorRepresentation());
-            result[count + 1] = new TextField(fieldNamesDictionary.get(extractorItem).get(codebook.length)[1], aggregator.getStringVectorRepresentation(), Field.Store.YES);
-            count += 2;
+            addVectorFields(result, fieldNamesDictionary.get(extractorItem).get(codebook.length));
+        }
+
+        return result.toArray(new Field[result.size()]);
+    }
+
+    /**
+     * Creates the Lucene Fields with the vector representation of the local features of an image.
+     * @param features the local features.
+     * @param extractorItem is the extractor that was used to extract the features.
+     * @param listOfCodebooks is the list which can contain one or more codebooks to be used for the aggregation of the local features.
+     * @return Lucene Fields with the vector representation of the local features.
+     */
+    public Field[] createLocalDescriptorFields(LocalFeatureSet features, ExtractorItem extractorItem, LinkedList<Cluster[]> listOfCodebooks){
+        LinkedList<Field> result = new LinkedList<Field>();
+        for (Cluster[] codebook : listOfCodebooks) {
+            aggregator.createVectorRepresentation(features, codebook);
+            addVectorFields(result, fieldNamesDictionary.get(extractorItem).get(codebook.length));
         }
 
-        return result;
+        return result.toArray(new Field[result.size()]);
+    }
+
+    /**
+     * Adds the fields of the vector representation the aggregator has just created.
+     */
+    private void addVectorFields(LinkedList<Field> result, String[] fieldNames) {
+        result.add(new StoredField(fieldNames[0], aggregator.getByteVectorRepresentation()));
+        if (aggregator instanceof SparseAggregator) {
+            // each visual word once with its count, and the sparse histogram stored for the query.
+            Collections.addAll(result, ((SparseAggregator) aggregator).getSparseVectorRepresentation().createFields(fieldNames[1]));
+        } else {
+            result.add(new TextField(fieldNames[1], aggregator.getStringVectorRepresentation(), Field.Store.YES));
+        }
     }
 
     /**
@@ -41,6 +41,7 @@
 
 package net.semanticmetadata.lire.builders;
 
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 
@@ -90,6 +91,8 @@ public interface DocumentBuilder {
     String HASH_FIELD_SUFFIX = "_hash";
 
     String FIELD_NAME_IDENTIFIER = "ImageIdentifier";
+    // modification time, size and path of the image file, used for incremental indexing.
+    String FIELD_NAME_FILE_STAMP = "ImageFileStamp";
 
     String FIELD_NAME_AUTOCOLORCORRELOGRAM = "ACC";
     String FIELD_NAME_BINARY_PATTERNS_PYRAMID ="BPP";
@@ -139,6 +142,17 @@ public interface DocumentBuilder {
      */
     Field[] createDescriptorFields(BufferedImage image);
 
+    /**
+     * Creates the feature fields from an image context, so builders working on the same image share its converted
+     * versions. By default the original image of the context is analyzed.
+     *
+     * @param context the context of the image to analyze.
+     * @return the fields resulting from the analysis.
+     */
+    default Field[] createDescriptorFields(ImageContext context) {
+        return createDescriptorFields(context.getImage());
+    }
+
     /**
      * Creates a new Lucene document from a BufferedImage. The identifier can be used like an id
      * (e.g. the file hashFunctionsFileName or the url of the image)
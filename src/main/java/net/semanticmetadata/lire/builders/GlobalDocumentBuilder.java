@@ -35,8 +35,11 @@
 package net.semanticmetadata.lire.builders;
 
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.indexers.hashing.BitSampling;
 import net.semanticmetadata.lire.indexers.hashing.LocalitySensitiveHashing;
+import net.semanticmetadata.lire.indexers.hashing.BitSamplingHashFamily;
+import net.semanticmetadata.lire.indexers.hashing.LshHashFamily;
 import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
 import net.semanticmetadata.lire.indexers.parallel.ExtractorItem;
 import net.semanticmetadata.lire.utils.ImageUtils;
@@ -65,6 +68,9 @@ public class GlobalDocumentBuilder implements DocumentBuilder {
 
     private HashingMode hashingMode = HashingMode.BitSampling;
     private boolean hashingEnabled = false;
+    // hash functions of this builder, if null the static ones of BitSampling and LocalitySensitiveHashing are used.
+    private BitSamplingHashFamily bitSamplingHashFamily = null;
+    private LshHashFamily lshHashFamily = null;
 
     private HashMap<ExtractorItem, String[]> extractorItems = new HashMap<ExtractorItem, String[]>(10);
     private boolean docsCreated = false;
@@ -169,11 +175,30 @@ public class GlobalDocumentBuilder implements DocumentBuilder {
         extractorItems.put(extractorItem, new String[]{fieldName, fieldName + DocumentBuilder.HASH_FIELD_SUFFIX});
     }
 
+    /**
+     * Sets the hash functions used by this builder for {@link HashingMode#BitSampling}. Searchers have to use the
+     * same ones, see {@link net.semanticmetadata.lire.searchers.BitSamplingImageSearcher}.
+     *
+     * @param bitSamplingHashFamily the hash functions, null for the static ones of {@link BitSampling}.
+     */
+    public void setBitSamplingHashFamily(BitSamplingHashFamily bitSamplingHashFamily) {
+        this.bitSamplingHashFamily = bitSamplingHashFamily;
+    }
+
+    /**
+     * Sets the hash functions used by this builder for {@link HashingMode#LSH}.
+     *
+     * @param lshHashFamily the hash functions, null for the static ones of {@link LocalitySensitiveHashing}.
+     */
+    public void setLshHashFamily(LshHashFamily lshHashFamily) {
+        this.lshHashFamily = lshHashFamily;
+    }
+
     private static void testHashes() {
 //        Let's try to read the hash functions right here and we don't have to care about it right now.
         try {
-            BitSampling.readHashFunctions();
-//            LocalitySensitiveHashing.readHashFunctions();
+            BitSampling.getHashFamily();
+//            LocalitySensitiveHashing.getHashFamily();
         } catch (Exception e) {
             System.err.println("Could not read BitSampling hashes from file when first creating a GlobalDocumentBuilder instance.");
             e.printStackTrace();
@@ -200,21 +225,35 @@ public class GlobalDocumentBuilder implements DocumentBuilder {
         return globalFeature;
     }
 
+    /**
+     * Extracts the global feature from the scaled version of the image context, see
+     * {@link DocumentBuilder#MAX_IMAGE_DIMENSION}.
+     *
+     * @param context       the context of the image.
+     * @param globalFeature selected global feature.
+     * @return the extracted global feature.
+     */
+    public GlobalFeature extractGlobalFeature(ImageContext context, GlobalFeature globalFeature) {
+        assert (context != null);
+        globalFeature.extract(context.scaledTo(DocumentBuilder.MAX_IMAGE_DIMENSION));
+        return globalFeature;
+    }
+
     /**
      * Extracts the global feature and returns the Lucene Fields for the selected image.
      *
-     * @param image         is the selected image.
+     * @param context       is the context of the selected image.
      * @param extractorItem is the extractor to be used to extract the features.
      * @return Lucene Fields.
      */
-    private Field[] getGlobalDescriptorFields(BufferedImage image, ExtractorItem extractorItem) {
+    private Field[] getGlobalDescriptorFields(ImageContext context, ExtractorItem extractorItem) {
         Field[] result;
 //        if (hashingEnabled) result = new Field[2];
 //        else result = new Field[1];
         Field hash = null;
         Field vector = null;
 
-        GlobalFeature globalFeature = extractGlobalFeature(image, (GlobalFeature) extractorItem.getExtractorInstance());
+        GlobalFeature globalFeature = extractGlobalFeature(context, (GlobalFeature) extractorItem.getExtractorInstance());
 
         if (!useDocValues) {
             // TODO: Stored field is compressed and upon search decompression takes a lot of time (> 50% with a small index with 50k images). Find something else ...
@@ -231,10 +270,10 @@ public class GlobalDocumentBuilder implements DocumentBuilder {
             if (globalFeature.getFeatureVector().length <= 3100) {
                 int[] hashes;
                 if (hashingMode == HashingMode.BitSampling) {
-                    hashes = BitSampling.generateHashes(globalFeature.getFeatureVector());
+                    hashes = (bitSamplingHashFamily != null) ? bitSamplingHashFamily.generateHashes(globalFeature.getFeatureVector()) : BitSampling.generateHashes(globalFeature.getFeatureVector());
                     hash = new TextField(extractorItems.get(extractorItem)[1], SerializationUtils.arrayToString(hashes), Field.Store.YES);
                 } else if (hashingMode == HashingMode.LSH) {
-                    hashes = LocalitySensitiveHashing.generateHashes(globalFeature.getFeatureVector());
+                    hashes = (lshHashFamily != null) ? lshHashFamily.generateHashes(globalFeature.getFeatureVector()) : LocalitySensitiveHashing.generateHashes(globalFeature.getFeatureVector());
                     hash = new TextField(extractorItems.get(extractorItem)[1], SerializationUtils.arrayToString(hashes), Field.Store.YES);
                 } else if (hashingMode == HashingMode.MetricSpaces) {
                     if (MetricSpaces.supportsFeature(globalFeature)) {
@@ -257,12 +296,23 @@ public class GlobalDocumentBuilder implements DocumentBuilder {
      */
     @Override
     public Field[] createDescriptorFields(BufferedImage image) {
+        return createDescriptorFields(new ImageContext(image));
+    }
+
+    /**
+     * All extractors share the context, so the image is scaled and converted once.
+     *
+     * @param context the context of the image to analyze.
+     * @return Lucene Fields.
+     */
+    @Override
+    public Field[] createDescriptorFields(ImageContext context) {
         docsCreated = true;
         LinkedList<Field> resultList = new LinkedList<Field>();
         Field[] fields;
         if (extractorItems.size() > 0) {
             for (Map.Entry<ExtractorItem, String[]> extractorItemEntry : extractorItems.entrySet()) {
-                fields = getGlobalDescriptorFields(image, extractorItemEntry.getKey());
+                fields = getGlobalDescriptorFields(context, extractorItemEntry.getKey());
 
                 Collections.addAll(resultList, fields);
             }
@@ -163,6 +163,18 @@ public class Cluster implements Comparable<Object> {
         for (AtomicDouble ad : newmean) ad.addAndGet(feat[i++]);
     }
 
+    /**
+     * Sets the members of the current step at once, used instead of {@link #assignMember(double[])} when the sums
+     * have been computed elsewhere.
+     *
+     * @param count the number of members.
+     * @param sums  the sum of the members' vectors.
+     */
+    void setMembers(int count, double[] sums) {
+        size.set(count);
+        for (int i = 0; i < newmean.length; i++) newmean[i].set(sums[i]);
+    }
+
     public void move() {
         double lsize=size.get();
         stress=0d;
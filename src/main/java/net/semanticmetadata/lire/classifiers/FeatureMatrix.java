@@ -0,0 +1,221 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.classifiers;
+
+import java.util.Arrays;
+
+/**
+ * Feature vectors of the same length stored row by row in float arrays. Compared to a list of double arrays this
+ * takes less than half of the memory, as there are no per vector object headers and SIFT and SURF descriptors don't
+ * need more than float precision, and the vectors are scanned in memory order. The rows are kept in blocks of up to
+ * 4M values, so the number of rows is only limited by the heap. A row is accessed by its block and its offset in the
+ * block, eg. for the distance to a center:
+ * <pre>
+ * float[] data = matrix.getBlock(row);
+ * for (int i = 0, offset = matrix.getOffset(row); i &lt; matrix.getDimensions(); i++) sum += data[offset + i] ...
+ * </pre>
+ */
+public class FeatureMatrix {
+    private static final int BLOCK_SIZE = 1 << 22; // values per block, ie. 16 MB.
+    private float[][] blocks = new float[0][];
+    private int dimensions = -1;
+    private int blockRows = 0;
+    private int rows = 0;
+
+    public FeatureMatrix() {
+    }
+
+    /**
+     * @param dimensions the length of the vectors.
+     * @param capacity   the number of vectors to reserve memory for.
+     */
+    public FeatureMatrix(int dimensions, int capacity) {
+        setDimensions(dimensions);
+        int numBlocks = (capacity + blockRows - 1) / blockRows;
+        blocks = new float[numBlocks][];
+        for (int b = 0; b < numBlocks; b++) {
+            blocks[b] = new float[Math.min(blockRows, capacity - b * blockRows) * dimensions];
+        }
+    }
+
+    /**
+     * Appends a vector, the first one added sets the number of dimensions.
+     *
+     * @param feature the vector.
+     * @return the row of the vector.
+     */
+    public int add(double[] feature) {
+        int row = appendRow(feature.length);
+        float[] data = blocks[row / blockRows];
+        for (int i = 0, offset = getOffset(row); i < dimensions; i++) data[offset + i] = (float) feature[i];
+        return row;
+    }
+
+    /**
+     * Appends a vector, the first one added sets the number of dimensions.
+     *
+     * @param feature the vector.
+     * @return the row of the vector.
+     */
+    public int add(float[] feature) {
+        int row = appendRow(feature.length);
+        System.arraycopy(feature, 0, blocks[row / blockRows], getOffset(row), dimensions);
+        return row;
+    }
+
+    /**
+     * Overwrites a row.
+     */
+    public void set(int row, double[] feature) {
+        if (row >= rows) throw new IndexOutOfBoundsException("Row " + row + " of " + rows);
+        if (feature.length != dimensions)
+            throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + feature.length + ".");
+        float[] data = blocks[row / blockRows];
+        for (int i = 0, offset = getOffset(row); i < dimensions; i++) data[offset + i] = (float) feature[i];
+    }
+
+    /**
+     * Copies a row into a double array.
+     *
+     * @param row    the row.
+     * @param target the array to copy to, a new one is created if it is null.
+     * @return the target array.
+     */
+    public double[] getRow(int row, double[] target) {
+        if (row >= rows) throw new IndexOutOfBoundsException("Row " + row + " of " + rows);
+        if (target == null) target = new double[dimensions];
+        float[] data = blocks[row / blockRows];
+        for (int i = 0, offset = getOffset(row); i < dimensions; i++) target[i] = data[offset + i];
+        return target;
+    }
+
+    /**
+     * @return the block holding the row, it may be longer than the rows stored in it.
+     */
+    public float[] getBlock(int row) {
+        return blocks[row / blockRows];
+    }
+
+    /**
+     * @return the index of the first value of the row in its block, see {@link #getBlock(int)}.
+     */
+    public int getOffset(int row) {
+        return (row % blockRows) * dimensions;
+    }
+
+    public int size() {
+        return rows;
+    }
+
+    /**
+     * @return the length of the vectors, -1 if nothing has been added yet.
+     */
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Removes all rows, the memory is kept.
+     */
+    public void clear() {
+        rows = 0;
+    }
+
+    /**
+     * Releases memory not used by rows.
+     */
+    public void trimToSize() {
+        if (dimensions <= 0) return;
+        int numBlocks = (rows + blockRows - 1) / blockRows;
+        if (numBlocks < blocks.length) blocks = Arrays.copyOf(blocks, numBlocks);
+        if (numBlocks > 0) {
+            int used = (rows - (numBlocks - 1) * blockRows) * dimensions;
+            float[] last = blocks[numBlocks - 1];
+            if (last.length > used) blocks[numBlocks - 1] = Arrays.copyOf(last, used);
+        }
+    }
+
+    /**
+     * @return the squared L2 distance of a row to a vector.
+     */
+    public double squaredDistance(int row, double[] vector) {
+        final float[] values = blocks[row / blockRows];
+        final int length = dimensions, offset = getOffset(row);
+        double sum = 0, d;
+        for (int i = 0; i < length; i++) {
+            d = values[offset + i] - vector[i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    /**
+     * Adds a row to the vector, eg. for summing up the members of a cluster.
+     *
+     * @param row    the row.
+     * @param sums   the vector to add to.
+     * @param offset the index in sums where the row starts.
+     */
+    public void addTo(int row, double[] sums, int offset) {
+        final float[] values = blocks[row / blockRows];
+        for (int i = 0, rowOffset = getOffset(row); i < dimensions; i++) sums[offset + i] += values[rowOffset + i];
+    }
+
+    private void setDimensions(int dimensions) {
+        if (dimensions < 1) throw new IllegalArgumentException("Vectors need at least one dimension.");
+        this.dimensions = dimensions;
+        this.blockRows = Math.max(1, BLOCK_SIZE / dimensions);
+    }
+
+    /**
+     * Makes room for one more row and returns its index. Only the last block grows, the ones before are full.
+     */
+    private int appendRow(int length) {
+        if (dimensions < 0) setDimensions(length);
+        if (length != dimensions)
+            throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + length + ".");
+        if (rows == Integer.MAX_VALUE) throw new IllegalStateException("Too many features for one matrix.");
+        int block = rows / blockRows, needed = (rows % blockRows + 1) * dimensions;
+        if (block >= blocks.length) {
+            blocks = Arrays.copyOf(blocks, block + 1);
+            // the first block starts small, eg. for the features of a single image.
+            blocks[block] = new float[(block == 0) ? Math.min(blockRows, 16) * dimensions : blockRows * dimensions];
+        } else if (needed > blocks[block].length) {
+            int capacity = Math.max(needed, blocks[block].length + (blocks[block].length >> 1));
+            blocks[block] = Arrays.copyOf(blocks[block], Math.min(blockRows * dimensions, capacity));
+        }
+        return rows++;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.classifiers;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Keeps feature vectors in a file instead of the heap, so clustering can run over more local features than fit into
+ * memory. The vectors are stored with float precision, which is the precision of SIFT and SURF descriptors anyway.
+ * Each call to {@link #iterator()} reads the file again from the start, so it can be passed to
+ * {@link MiniBatchKMeans#cluster(Iterable)} for several scans.
+ */
+public class FeatureSpillFile implements Iterable<double[]>, Closeable {
+    private final File file;
+    private DataOutputStream out;
+    private int size = 0;
+
+    /**
+     * Creates a temporary file, which is deleted on {@link #close()}.
+     */
+    public FeatureSpillFile() throws IOException {
+        this(File.createTempFile("lire-features", ".bin"));
+        file.deleteOnExit();
+    }
+
+    /**
+     * @param file the file to write to, it is overwritten and deleted on {@link #close()}.
+     */
+    public FeatureSpillFile(File file) throws IOException {
+        this.file = file;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    }
+
+    public synchronized void add(double[] feature) throws IOException {
+        if (out == null) throw new IllegalStateException("The spill file has been closed.");
+        out.writeInt(feature.length);
+        for (double v : feature) out.writeFloat((float) v);
+        size++;
+    }
+
+    /**
+     * @return the number of features written.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Iterates the features written so far. The vectors returned are new arrays, they may be kept.
+     */
+    @Override
+    public synchronized Iterator<double[]> iterator() {
+        if (out == null) throw new IllegalStateException("The spill file has been closed.");
+        final int count = size;
+        final DataInputStream in;
+        try {
+            out.flush();
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Iterator<double[]>() {
+            int read = 0;
+
+            public boolean hasNext() {
+                if (read < count) return true;
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing left to read.
+                }
+                return false;
+            }
+
+            public double[] next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                try {
+                    double[] feature = new double[in.readInt()];
+                    for (int i = 0; i < feature.length; i++) feature[i] = in.readFloat();
+                    read++;
+                    return feature;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Closes and deletes the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+            file.delete();
+        }
+    }
+}
@@ -40,10 +40,10 @@ package net.semanticmetadata.lire.classifiers;
 
 import net.semanticmetadata.lire.utils.StatsUtils;
 
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by Mathias on 23/09/2008.
@@ -53,10 +53,39 @@ import java.util.Set;
  * @author Lazaros Tsochatzidis, ltsochat@ee.duth.gr
  */
 public class KMeans {
+    /**
+     * The algorithm for assigning the features to clusters. All of them produce the same clusters, Hamerly and Elkan
+     * keep bounds on the distances of each feature to the centers and use the triangle inequality to skip distance
+     * computations that cannot change the assignment:
+     * <ul>
+     * <li>Lloyd computes all distances in each step.</li>
+     * <li>Hamerly keeps one lower bound per feature and needs 8 bytes per feature, it's best for features with many
+     * dimensions and large numbers of clusters.</li>
+     * <li>Elkan keeps one lower bound per feature and cluster plus the distances in between the centers, it skips
+     * the most distance computations, but needs numClusters * 8 bytes per feature.</li>
+     * </ul>
+     */
+    public enum Algorithm {Lloyd, Hamerly, Elkan}
+
+    // relative slack on the bounds, so rounding errors cannot lead to skipping the nearest center.
+    private static final double EPSILON = 1e-10;
+
     protected int countAllFeatures = 0, numClusters = 512;
     protected int length;
-    protected ArrayList<double[]> features = new ArrayList<double[]>();
+    protected FeatureMatrix features = new FeatureMatrix();
     protected Cluster[] clusters = null;
+    protected Algorithm algorithm = Algorithm.Lloyd;
+    protected Random random = new Random();
+    // the cluster of each feature and the bounds of Hamerly's and Elkan's algorithm.
+    protected int[] assignments = null;
+    private double[] upperBounds, lowerBounds;
+    // the centers of the last step, their movement and the distances in between the centers.
+    private double[][] lastMeans;
+    private double[] drift, halfMinCenterDistance, centerDistances;
+    private double maxDrift, secondMaxDrift;
+    private int maxDriftCluster;
+    private boolean boundsValid = false, firstStep = true;
+    private final AtomicLong distanceCount = new AtomicLong(0);
 //    protected HashMap<double[], Integer> featureIndex = null;
 
 
@@ -64,6 +93,34 @@ public class KMeans {
         this.numClusters = numClusters;
     }
 
+    public KMeans(int numClusters, Algorithm algorithm) {
+        this.numClusters = numClusters;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * @param random the source of randomness for the k-means++ seeding and refilling empty clusters.
+     */
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public void setAlgorithm(Algorithm algorithm) {
+        this.algorithm = algorithm;
+        boundsValid = false;
+    }
+
+    /**
+     * @return the number of distances in between features and centers computed in the assignment steps so far.
+     */
+    public long getDistanceCount() {
+        return distanceCount.get();
+    }
+
     public void addFeature(double[] feature) {
         if (!hasNaNs(feature)) {
             features.add(feature);
@@ -71,6 +128,20 @@ public class KMeans {
         }
     }
 
+    /**
+     * Adds all rows of a matrix, eg. the features of one image. Rows with NaN values are skipped.
+     */
+    public void addFeatures(FeatureMatrix matrix) {
+        float[] row = new float[matrix.getDimensions()];
+        for (int n = 0; n < matrix.size(); n++) {
+            System.arraycopy(matrix.getBlock(n), matrix.getOffset(n), row, 0, row.length);
+            if (!hasNaNs(row)) {
+                features.add(row);
+                countAllFeatures++;
+            }
+        }
+    }
+
     public void init(){
         this.init(false);
     }
@@ -82,37 +153,35 @@ public class KMeans {
                     ". Please adapt your data and either use images with more local features or more images for creating the visual vocabulary.");
         }
         if (features.size() < numClusters + 1) {
-            System.err.println("CRITICAL: The number of features is smaller than the number of clusters. This cannot work as there has to be at least one " +
-                    "feature per cluster. Aborting process now.");
-            System.out.println("features: " + features.size());
-            System.out.println("clusters: " + numClusters);
-            System.exit(1);
+            throw new UnsupportedOperationException("The number of features, " + features.size() + ", is not larger than the number of clusters, " +
+                    numClusters + ". This cannot work as there has to be at least one feature per cluster.");
         }
         // find first clusters:
         clusters = new Cluster[numClusters];
+        assignments = null;
+        boundsValid = false;
         if (kmeansPlusPlus) {
             double[] descriptor;
             int choose;
-            Random random = new Random();
             double[] distToClosestCentroid = new double[features.size()];
             for (int i = 0; i < clusters.length; i++) {
                 choose = selectNextMedian(features,i,random,distToClosestCentroid);
-                descriptor = features.get(choose);
+                descriptor = features.getRow(choose, null);
                 clusters[i] = new Cluster(new double[descriptor.length]);
                 System.arraycopy(descriptor, 0, clusters[i].mean, 0, descriptor.length);
             }
-            length = features.get(0).length;
+            length = features.getDimensions();
         } else {
             Set<Integer> medians = selectInitialMedians(numClusters);
             assert (medians.size() == numClusters); // this has to be the same ...
             Iterator<Integer> mediansIterator = medians.iterator();
             double[] descriptor;
             for (int i = 0; i < clusters.length; i++) {
-                descriptor = features.get(mediansIterator.next());
+                descriptor = features.getRow(mediansIterator.next(), null);
                 clusters[i] = new Cluster(new double[descriptor.length]);
                 System.arraycopy(descriptor, 0, clusters[i].mean, 0, descriptor.length);
             }
-            length = features.get(0).length;
+            length = features.getDimensions();
         }
     }
 
@@ -127,14 +196,14 @@ public class KMeans {
      *
      * @return
      */
-    protected Integer selectNextMedian(ArrayList<double[]> features,int cluster_i,Random random,double[] distToClosestCentroid){
+    protected Integer selectNextMedian(FeatureMatrix features,int cluster_i,Random random,double[] distToClosestCentroid){
         double[] weightedDistribution = new double[features.size()];  // cumulative sum of squared distances
         int choose = random.nextInt(features.size());;
         if (cluster_i ==0) // first centroid: choose any feature
             return choose;
         for (int i = 0; i < features.size(); i++) {
             // gives chosen points 0 probability of being chosen again -> sampling without replacement
-            double tempDistance = clusters[cluster_i - 1].getDistance(features.get(i));
+            double tempDistance = Math.sqrt(features.squaredDistance(i, clusters[cluster_i - 1].mean));
             // base case: if we have only chosen one centroid so far, nothing to compare to
             if (cluster_i == 1)
                 distToClosestCentroid[i] = tempDistance;
@@ -174,6 +243,13 @@ public class KMeans {
         return overallStress();
     }
 
+    private static boolean hasNaNs(float[] feature) {
+        for (float next : feature) {
+            if (Float.isNaN(next)) return true;
+        }
+        return false;
+    }
+
     protected boolean hasNaNs(double[] histogram) {
         boolean hasNaNs = false;
         for (double next : histogram) {
@@ -197,29 +273,209 @@ public class KMeans {
      * Re-shuffle all features.
      */
     protected void reOrganizeFeatures() {
-        double[] f;
-        Cluster best;
-        double v, minDistance;
-        for (int k = 0; k < features.size(); k++) {
-            f = features.get(k);
-            best = clusters[0];
-            minDistance = clusters[0].getDistance(f);
-            for (int i = 1; i < clusters.length; i++) {
-                v = clusters[i].getDistance(f);
-                if (minDistance > v) {
-                    best = clusters[i];
+        prepareStep();
+        computeCenterDistances(0, clusters.length);
+        int k = clusters.length, length = clusters[0].mean.length;
+        double[] sums = new double[k * length];
+        int[] counts = new int[k];
+        double[] row = new double[length];
+        long count = 0;
+        for (int n = 0; n < features.size(); n++) {
+            count += assign(n, row);
+            counts[assignments[n]]++;
+            features.addTo(n, sums, assignments[n] * length);
+        }
+        double[] clusterSums = new double[length];
+        for (int c = 0; c < k; c++) {
+            System.arraycopy(sums, c * length, clusterSums, 0, length);
+            clusters[c].setMembers(counts[c], clusterSums);
+        }
+        finishStep(count);
+    }
+
+    /**
+     * Sets up the per feature state and computes how far the centers have moved since the last step. To be called
+     * before {@link #computeCenterDistances(int, int)} and {@link #assign(int)}.
+     */
+    protected void prepareStep() {
+        int k = clusters.length;
+        if (assignments == null || assignments.length != features.size() || lastMeans == null || lastMeans.length != k) {
+            assignments = new int[features.size()];
+            lastMeans = new double[k][];
+            drift = new double[k];
+            boundsValid = false;
+        }
+        firstStep = !boundsValid || algorithm == Algorithm.Lloyd;
+        if (algorithm == Algorithm.Lloyd) return;
+        if (upperBounds == null || upperBounds.length != features.size()) upperBounds = new double[features.size()];
+        int lowerSize = features.size();
+        if (algorithm == Algorithm.Elkan) {
+            if ((long) features.size() * k > Integer.MAX_VALUE || (long) k * k > Integer.MAX_VALUE)
+                throw new UnsupportedOperationException("Too many features or clusters for Elkan's algorithm, use Hamerly's algorithm instead.");
+            lowerSize = features.size() * k;
+            if (centerDistances == null || centerDistances.length != k * k) centerDistances = new double[k * k];
+        }
+        if (lowerBounds == null || lowerBounds.length != lowerSize) {
+            lowerBounds = new double[lowerSize];
+            firstStep = true;
+        }
+        if (halfMinCenterDistance == null || halfMinCenterDistance.length != k) halfMinCenterDistance = new double[k];
+        maxDrift = 0;
+        secondMaxDrift = 0;
+        maxDriftCluster = -1;
+        for (int c = 0; c < k; c++) {
+            drift[c] = firstStep ? 0 : distance(lastMeans[c], clusters[c].mean);
+            if (drift[c] > maxDrift) {
+                secondMaxDrift = maxDrift;
+                maxDrift = drift[c];
+                maxDriftCluster = c;
+            } else if (drift[c] > secondMaxDrift) {
+                secondMaxDrift = drift[c];
+            }
+            lastMeans[c] = clusters[c].mean.clone();
+        }
+    }
+
+    /**
+     * Computes the distances of the centers from to (exclusive) to all other centers, as far as needed by the
+     * algorithm. The ranges can be computed in parallel.
+     */
+    protected void computeCenterDistances(int from, int to) {
+        if (algorithm == Algorithm.Lloyd) return;
+        int k = clusters.length;
+        for (int c = from; c < to; c++) {
+            double min = Double.MAX_VALUE, d;
+            for (int o = 0; o < k; o++) {
+                if (o == c) continue;
+                d = distance(clusters[c].mean, clusters[o].mean) * (1 - EPSILON);
+                if (algorithm == Algorithm.Elkan) centerDistances[c * k + o] = d;
+                if (d < min) min = d;
+            }
+            halfMinCenterDistance[c] = min / 2;
+        }
+    }
+
+    /**
+     * Finds the nearest cluster of a feature and stores it in {@link #assignments}. The features can be assigned in
+     * parallel, as each call only changes the state of the given feature.
+     *
+     * @param n   the index of the feature.
+     * @param row a buffer of the feature's length, the feature is copied there if distances are needed. Computing
+     *            them in double precision is much faster than converting each value once per center.
+     * @return the number of distances computed.
+     */
+    protected int assign(int n, double[] row) {
+        if (firstStep) return assignFully(n, features.getRow(n, row));
+        else if (algorithm == Algorithm.Hamerly) return assignHamerly(n, row);
+        else return assignElkan(n, row);
+    }
+
+    /**
+     * @param count the number of distances computed in this step.
+     */
+    protected void finishStep(long count) {
+        distanceCount.addAndGet(count);
+        boundsValid = algorithm != Algorithm.Lloyd;
+    }
+
+    private int assignFully(int n, double[] f) {
+        int k = clusters.length, best = 0;
+        if (algorithm == Algorithm.Lloyd) { // squared distances are enough to find the nearest one.
+            double minDistance = Double.MAX_VALUE, v;
+            for (int c = 0; c < k; c++) {
+                v = squaredDistance(f, clusters[c].mean);
+                if (v < minDistance) {
+                    best = c;
                     minDistance = v;
                 }
             }
-            best.assignMember(f);
+        } else {
+            double minDistance = Double.MAX_VALUE, second = Double.MAX_VALUE, v;
+            for (int c = 0; c < k; c++) {
+                v = distance(f, clusters[c].mean);
+                if (algorithm == Algorithm.Elkan) lowerBounds[n * k + c] = v;
+                if (v < minDistance) {
+                    second = minDistance;
+                    best = c;
+                    minDistance = v;
+                } else if (v < second) {
+                    second = v;
+                }
+            }
+            upperBounds[n] = minDistance;
+            if (algorithm == Algorithm.Hamerly) lowerBounds[n] = second;
+        }
+        assignments[n] = best;
+        return k;
+    }
+
+    private int assignHamerly(int n, double[] f) {
+        int a = assignments[n];
+        double upper = (upperBounds[n] + drift[a]) * (1 + EPSILON);
+        double lower = (lowerBounds[n] - ((a == maxDriftCluster) ? secondMaxDrift : maxDrift)) * (1 - EPSILON);
+        double bound = Math.max(lower, halfMinCenterDistance[a]);
+        upperBounds[n] = upper;
+        lowerBounds[n] = lower;
+        if (upper < bound) return 0;
+        features.getRow(n, f);
+        upper = distance(f, clusters[a].mean);
+        upperBounds[n] = upper;
+        if (upper < bound) return 1;
+        return assignFully(n, f) + 1;
+    }
+
+    private int assignElkan(int n, double[] f) {
+        int k = clusters.length, offset = n * k, a = assignments[n], count = 0;
+        for (int c = 0; c < k; c++) {
+            lowerBounds[offset + c] = Math.max(0, (lowerBounds[offset + c] - drift[c]) * (1 - EPSILON));
         }
+        double upper = (upperBounds[n] + drift[a]) * (1 + EPSILON), d;
+        boolean tight = false;
+        if (upper < halfMinCenterDistance[a]) {
+            upperBounds[n] = upper;
+            return 0;
+        }
+        for (int c = 0; c < k; c++) {
+            if (c == a || upper < lowerBounds[offset + c] || upper < centerDistances[a * k + c] / 2) continue;
+            if (!tight) {
+                features.getRow(n, f);
+                upper = distance(f, clusters[a].mean);
+                lowerBounds[offset + a] = upper;
+                tight = true;
+                count++;
+                if (upper < lowerBounds[offset + c] || upper < centerDistances[a * k + c] / 2) continue;
+            }
+            d = distance(f, clusters[c].mean);
+            lowerBounds[offset + c] = d;
+            count++;
+            // on ties the lower index wins, like in Lloyd's algorithm.
+            if (d < upper || (d == upper && c < a)) {
+                a = c;
+                upper = d;
+            }
+        }
+        assignments[n] = a;
+        upperBounds[n] = upper;
+        return count;
+    }
+
+    protected static double squaredDistance(double[] a, double[] b) {
+        double sum = 0, d;
+        for (int i = 0; i < a.length; i++) {
+            d = a[i] - b[i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    protected static double distance(double[] a, double[] b) {
+        return Math.sqrt(squaredDistance(a, b));
     }
 
     /**
      * Computes the mean per cluster (averaged vector)
      */
     protected void recomputeMeans() {
-        int length = features.get(0).length;
         Cluster cluster;
         double[] mean;
         for (int i = 0; i < clusters.length; i++) {
@@ -229,8 +485,8 @@ public class KMeans {
             } else if (cluster.getSize() < 1) {
                 System.err.println("** There is NO member in cluster " + i);
                 // fill it with a random member?!?
-                int index = (int) Math.floor(Math.random() * features.size());
-                clusters[i].assignMember(features.get(index));
+                int index = random.nextInt(features.size());
+                clusters[i].assignMember(features.getRow(index, null));
             }
             cluster.move();
         }
@@ -0,0 +1,121 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.classifiers;
+
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureExtractor;
+import net.semanticmetadata.lire.imageanalysis.features.local.sift.SiftExtractor;
+import net.semanticmetadata.lire.imageanalysis.features.local.surf.SurfExtractor;
+import net.semanticmetadata.lire.utils.FileUtils;
+import net.semanticmetadata.lire.utils.ImageUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the k-means {@link KMeans.Algorithm}s on SURF and SIFT features of a set of images. All algorithms start
+ * from the same centers, the runtime and the number of distance computations are printed along with a check that
+ * the clusters are the same as with Lloyd's algorithm.
+ * <pre>
+ * java net.semanticmetadata.lire.classifiers.KMeansBenchmark &lt;image directory&gt; [clusters=1024] [steps=10] [threads=1]
+ * </pre>
+ */
+public class KMeansBenchmark {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: KMeansBenchmark <image directory> [clusters=1024] [steps=10] [threads=1]");
+            return;
+        }
+        int numClusters = (args.length > 1) ? Integer.parseInt(args[1]) : 1024;
+        int steps = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+        int numThreads = (args.length > 3) ? Integer.parseInt(args[3]) : 1;
+        ArrayList<String> images = FileUtils.getAllImages(new File(args[0]), true);
+        if (images == null) throw new IOException("No images found in " + args[0]);
+        benchmark("SURF", extract(images, new SurfExtractor()), numClusters, steps, numThreads);
+        benchmark("SIFT", extract(images, new SiftExtractor()), numClusters, steps, numThreads);
+    }
+
+    private static FeatureMatrix extract(ArrayList<String> images, LocalFeatureExtractor extractor) {
+        FeatureMatrix features = new FeatureMatrix();
+        for (String image : images) {
+            try {
+                BufferedImage img = ImageIO.read(new File(image));
+                if (img == null) continue;
+                extractor.extract(ImageUtils.scaleImage(img, 640));
+                for (LocalFeature feature : extractor.getFeatures()) features.add(feature.getFeatureVector());
+            } catch (Exception e) {
+                System.err.println("Could not extract features from " + image + ": " + e.getMessage());
+            }
+        }
+        return features;
+    }
+
+    private static void benchmark(String name, FeatureMatrix features, int numClusters, int steps, int numThreads) {
+        System.out.printf("%s: %d features of %d dimensions, %d clusters, %d steps.\n", name, features.size(),
+                features.getDimensions(), numClusters, steps);
+        if (features.size() <= numClusters) {
+            System.out.println("Not enough features, skipping.");
+            return;
+        }
+        double[][] initialMeans = null;
+        int[] lloydAssignments = null;
+        for (KMeans.Algorithm algorithm : KMeans.Algorithm.values()) {
+            KMeans k = (numThreads > 1) ? new ParallelKMeans(numClusters, numThreads, algorithm) : new KMeans(numClusters, algorithm);
+            k.setRandom(new Random(42));
+            k.addFeatures(features);
+            k.init(true);
+            if (initialMeans == null) {
+                initialMeans = new double[numClusters][];
+                for (int i = 0; i < numClusters; i++) initialMeans[i] = k.clusters[i].mean.clone();
+            } else {
+                for (int i = 0; i < numClusters; i++) k.clusters[i].mean = initialMeans[i].clone();
+            }
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < steps; i++) k.clusteringStep();
+            long time = System.currentTimeMillis() - start;
+            if (k instanceof ParallelKMeans) ((ParallelKMeans) k).shutdown();
+            String identical = "";
+            if (lloydAssignments == null) lloydAssignments = k.assignments.clone();
+            else identical = Arrays.equals(lloydAssignments, k.assignments) ? ", same clusters" : ", DIFFERENT clusters";
+            System.out.printf("  %-8s %8d ms, %6.2f%% of the distances computed%s\n", algorithm, time,
+                    100d * k.getDistanceCount() / ((double) steps * features.size() * numClusters), identical);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.classifiers;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Mini-batch k-means after D. Sculley, "Web-Scale K-Means Clustering", WWW 2010. Instead of assigning all features
+ * and recomputing the means in every step like {@link KMeans}, each iteration draws a small random batch of features,
+ * assigns it to the nearest centers, then moves every center towards its features with a learning rate of one over
+ * the number of features it has seen so far.
+ * <p/>
+ * The features are streamed from an {@link Iterable}, eg. a {@link FeatureSpillFile}, and never held in memory all
+ * at once. Each scan over the features draws a uniform random sample into a buffer, the batches are then drawn from
+ * the buffer without replacement. The first buffer also serves for the k-means++ seeding. If all features fit into
+ * the buffer, they are read only once. Memory use is bounded by the buffer and the centers.
+ */
+public class MiniBatchKMeans {
+    private int numClusters;
+    private int batchSize = 1024;
+    private int bufferSize = 32 * 1024;
+    private int reservoirSize = -1;
+    private int maxIterations = 100;
+    private double tolerance = 0.001;
+    private Random random = new Random();
+
+    private int length;
+    private double[][] centers;
+    private long[] seen;
+    private long countAllFeatures = 0;
+
+    public MiniBatchKMeans(int numClusters) {
+        this.numClusters = numClusters;
+    }
+
+    /**
+     * @param batchSize the number of features per iteration, default is 1024.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("The batch size has to be at least 1.");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param bufferSize the number of features sampled per scan, the batches are drawn from these. Default is 32768.
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1) throw new IllegalArgumentException("The buffer size has to be at least 1.");
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param reservoirSize the number of features sampled for the seeding, values &lt; 1 use ten times the number of
+     *                      clusters. The k-means++ seeding takes numClusters * reservoirSize distance computations.
+     *                      At most the buffer size is used.
+     */
+    public void setReservoirSize(int reservoirSize) {
+        this.reservoirSize = reservoirSize;
+    }
+
+    /**
+     * @param maxIterations the maximum number of batches, default is 100.
+     */
+    public void setMaxIterations(int maxIterations) {
+        if (maxIterations < 1) throw new IllegalArgumentException("At least one iteration is needed.");
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * @param tolerance the clustering stops once the mean squared error of the batches drawn from a buffer changes
+     *                  by less than this share compared to the last buffer, default is 0.001.
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Clusters the features. Features with NaN values are skipped.
+     *
+     * @param features the features, iterated once for each buffer.
+     * @return the clusters, the sizes and stress are those of all batches.
+     */
+    public Cluster[] cluster(Iterable<double[]> features) {
+        FeatureMatrix buffer = sample(features.iterator());
+        if (countAllFeatures < numClusters) {
+            throw new UnsupportedOperationException("Only " + countAllFeatures + " features found to cluster in " + numClusters + ". Try to use less clusters or more images.");
+        }
+        if (countAllFeatures < 2 * numClusters) {
+            System.err.println("WARNING: The number of local features, " + countAllFeatures + ", is smaller than the recommended minimum " +
+                    "of two times the number of visual words, 2*" + numClusters + ".");
+        }
+        int[] order = permutation(buffer.size());
+        seed(buffer, order, Math.min((reservoirSize > 0) ? reservoirSize : 10 * numClusters, buffer.size()));
+        seen = new long[numClusters];
+        long[] counts = new long[numClusters], bufferCounts = new long[numClusters];
+        double[] stress = new double[numClusters];
+        int[] batch = new int[batchSize];
+        double lastError = Double.MAX_VALUE;
+        int iteration = 0;
+        while (iteration < maxIterations) {
+            Arrays.fill(bufferCounts, 0);
+            double error = 0;
+            long assigned = 0;
+            for (int next = 0; next < order.length && iteration < maxIterations; iteration++) {
+                int n = Math.min(batchSize, order.length - next);
+                System.arraycopy(order, next, batch, 0, n);
+                next += n;
+                error += step(buffer, batch, n, bufferCounts, stress);
+                assigned += n;
+            }
+            for (int c = 0; c < numClusters; c++) counts[c] += bufferCounts[c];
+            error /= assigned;
+            if (iteration >= maxIterations || Math.abs(lastError - error) <= tolerance * error) break;
+            lastError = error;
+            reseedEmptyClusters(bufferCounts, buffer);
+            // a new random sample, unless all features are in the buffer anyway.
+            if (countAllFeatures > buffer.size()) buffer = sample(features.iterator());
+            order = permutation(buffer.size());
+        }
+        Cluster[] clusters = new Cluster[numClusters];
+        for (int i = 0; i < numClusters; i++) {
+            clusters[i] = new Cluster(centers[i]);
+            clusters[i].size.set((int) Math.min(counts[i], Integer.MAX_VALUE));
+            clusters[i].setStress(stress[i]);
+        }
+        return clusters;
+    }
+
+    /**
+     * @return the number of valid features seen in the last scan.
+     */
+    public long getFeatureCount() {
+        return countAllFeatures;
+    }
+
+    public int getNumClusters() {
+        return numClusters;
+    }
+
+    /**
+     * Reservoir sampling, Algorithm R, of up to bufferSize features. The order of the rows is not random, see
+     * {@link #permutation(int)}.
+     */
+    private FeatureMatrix sample(Iterator<double[]> features) {
+        FeatureMatrix reservoir = new FeatureMatrix();
+        countAllFeatures = 0;
+        length = -1;
+        while (features.hasNext()) {
+            double[] f = features.next();
+            if (hasNaNs(f)) continue;
+            if (length < 0) length = f.length;
+            if (countAllFeatures < bufferSize) {
+                reservoir.add(f);
+            } else {
+                long r = (long) (random.nextDouble() * (countAllFeatures + 1));
+                if (r < bufferSize) reservoir.set((int) r, f);
+            }
+            countAllFeatures++;
+        }
+        reservoir.trimToSize();
+        return reservoir;
+    }
+
+    /**
+     * Fisher-Yates shuffle of the row numbers.
+     */
+    private int[] permutation(int size) {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) order[i] = i;
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1), tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+        return order;
+    }
+
+    /**
+     * k-means++ seeding on the first rows of the permutation, each center is drawn with a probability proportional
+     * to the squared distance to the nearest center chosen so far.
+     */
+    private void seed(FeatureMatrix buffer, int[] order, int size) {
+        centers = new double[numClusters][];
+        double[] minDistance = new double[size];
+        int choose = random.nextInt(size);
+        for (int c = 0; c < numClusters; c++) {
+            centers[c] = buffer.getRow(order[choose], null);
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                double d = buffer.squaredDistance(order[i], centers[c]);
+                if (c == 0 || d < minDistance[i]) minDistance[i] = d;
+                sum += minDistance[i];
+            }
+            if (sum <= 0) { // fewer distinct features than clusters, take any.
+                choose = random.nextInt(size);
+                continue;
+            }
+            double r = random.nextDouble() * sum;
+            choose = size - 1;
+            for (int i = 0; i < size; i++) {
+                r -= minDistance[i];
+                if (r < 0) {
+                    choose = i;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * One mini-batch iteration over the given rows of the buffer.
+     *
+     * @return the sum of squared distances of the features to their centers at assignment time.
+     */
+    private double step(FeatureMatrix buffer, int[] batch, int n, long[] counts, double[] stress) {
+        int[] assignment = new int[n];
+        double error = 0;
+        // assign the whole batch first, then move the centers.
+        for (int i = 0; i < n; i++) {
+            int best = 0;
+            double minDistance = buffer.squaredDistance(batch[i], centers[0]);
+            for (int c = 1; c < numClusters; c++) {
+                double d = buffer.squaredDistance(batch[i], centers[c]);
+                if (d < minDistance) {
+                    minDistance = d;
+                    best = c;
+                }
+            }
+            assignment[i] = best;
+            error += minDistance;
+            stress[best] += minDistance;
+            counts[best]++;
+        }
+        float[] block;
+        for (int i = 0; i < n; i++) {
+            double[] center = centers[assignment[i]];
+            double eta = 1d / (++seen[assignment[i]]);
+            block = buffer.getBlock(batch[i]);
+            int offset = buffer.getOffset(batch[i]);
+            for (int j = 0; j < length; j++) {
+                center[j] += eta * (block[offset + j] - center[j]);
+            }
+        }
+        return error;
+    }
+
+    /**
+     * Centers nobody was assigned to from the last buffer are moved to a random feature of the buffer.
+     */
+    private void reseedEmptyClusters(long[] counts, FeatureMatrix buffer) {
+        for (int c = 0; c < numClusters; c++) {
+            if (counts[c] == 0) {
+                centers[c] = buffer.getRow(random.nextInt(buffer.size()), null);
+                seen[c] = 0;
+            }
+        }
+    }
+
+    private static boolean hasNaNs(double[] f) {
+        for (double v : f) {
+            if (Double.isNaN(v)) return true;
+        }
+        return false;
+    }
+}
@@ -41,11 +41,17 @@ package net.semanticmetadata.lire.classifiers;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 
-import java.util.LinkedList;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Arrays;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
 
 /**
+ * k-means with the assignment step run in parallel. Each worker thread owns a contiguous partition of the features
+ * and sums up the features per cluster in its own arrays, so there is no shared state written during assignment.
+ * The partial sums are then reduced, each worker adding up the sums of a range of clusters. The workers are started
+ * with the first step and wait in between steps, call {@link #shutdown()} to stop them when done.
+ * All {@link KMeans.Algorithm}s are supported, the bounds of a feature are only touched by the worker owning it.
+ * <p/>
  * Created by Mathias on 12/10/11.
  *
  * @author Mathias Lux, mathias@juggle.at
@@ -53,269 +59,167 @@ import java.util.concurrent.LinkedBlockingQueue;
  * @author Lazaros Tsochatzidis, ltsochat@ee.duth.gr
  */
 public class ParallelKMeans extends KMeans {
+    private static final int CENTERS = 0, ASSIGN = 1, REDUCE = 2, STOP = 3;
     int numThreads = DocumentBuilder.NUM_OF_THREADS;
-    private LinkedBlockingQueue<Item> queue = new LinkedBlockingQueue<Item>(100);
+    private Worker[] workers = null;
+    private CyclicBarrier barrier;
+    private volatile int task;
 
     public ParallelKMeans(int numClusters) {
         super(numClusters);
     }
 
-    /**
-     * Re-shuffle all features.
-     */
-    protected void reOrganizeFeatures() {
-        LinkedList<Thread> threads = new LinkedList<Thread>();
-        Thread thread;
-        Thread p = new Thread(new ProducerForFeatures());
-        p.start();
-        for (int i = 0; i < numThreads; i++) {
-            thread = new Thread(new FeatureToClass());
-            thread.start();
-            threads.add(thread);
-        }
-        for (Thread next : threads) {
-            try {
-                next.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-        threads.clear();
+    public ParallelKMeans(int numClusters, int numThreads) {
+        super(numClusters);
+        this.numThreads = numThreads;
     }
 
-    protected void recomputeMeans() {
-        LinkedList<Thread> threads = new LinkedList<Thread>();
-        Thread p = new Thread(new ProducerForClusters());
-        p.start();
-        Thread thread;
-        for (int i = 0; i < numThreads; i++) {
-            thread = new Thread(new MeanOfCluster());
-            thread.start();
-            threads.add(thread);
-        }
-        for (Thread next : threads) {
-            try {
-                next.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-        threads.clear();
+    public ParallelKMeans(int numClusters, int numThreads, Algorithm algorithm) {
+        super(numClusters, algorithm);
+        this.numThreads = numThreads;
     }
 
-    protected double overallStress() {
-        double v = 0.0;
-        LinkedList<ComputeStress> tasks = new LinkedList<ComputeStress>();
-        LinkedList<Thread> threads = new LinkedList<Thread>();
-        ComputeStress computeStress;
-        Thread thread;
-        Thread p = new Thread(new ProducerForClusters());
-        p.start();
-        for (int i = 0; i < numThreads; i++) {
-            computeStress = new ComputeStress();
-            thread = new Thread(computeStress);
-            thread.start();
-            tasks.add(computeStress);
-            threads.add(thread);
-        }
-        for (Thread next : threads) {
-            try {
-                next.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-        for (ComputeStress task : tasks) {
-            v += task.getResult();
-        }
-        tasks.clear();
-        threads.clear();
-//        for(Cluster cluster : clusters){
-//            v += cluster.getStress();
-//        }
-
-        return v;
+    /**
+     * Assigns all features to their nearest cluster and sets the cluster sums.
+     */
+    protected void reOrganizeFeatures() {
+        if (workers == null) startWorkers();
+        prepareStep();
+        if (algorithm != Algorithm.Lloyd) runTask(CENTERS);
+        runTask(ASSIGN);
+        runTask(REDUCE);
+        long count = 0;
+        for (Worker worker : workers) count += worker.distances;
+        finishStep(count);
     }
 
-
-    private class ComputeStress implements Runnable {
-        private boolean locallyEnded;
-        double result;
-
-        private ComputeStress() {
-            this.result  = 0.0;
-            this.locallyEnded = false;
-        }
-
-        public void run() {
-            Item tmp;
-            while (!locallyEnded) {
-                try {
-                    tmp = queue.take();
-                    if (tmp.getNum() == -1)  locallyEnded = true;
-                    if (!locallyEnded) {    // && tmp != -1
-//                        for (Integer member : tmp.getCluster().members) {
-//                            for (int j = 0; j < length; j++) {
-//                                result += Math.abs(tmp.getCluster().mean[j] - features.get(member)[j]);
-//                            }
-//                        }
-                        result += tmp.getCluster().getStress();
-                    }
-                } catch (InterruptedException e) {
-                    e.getMessage();
-                }
-            }
-        }
-
-        public double getResult() {
-            return result;
-        }
+    /**
+     * Stops the worker threads. The object can still be used, the workers are started again if needed.
+     */
+    public synchronized void shutdown() {
+        if (workers == null) return;
+        runTask(STOP);
+        workers = null;
     }
 
-
-    private class MeanOfCluster implements Runnable {
-        private boolean locallyEnded;
-
-        private MeanOfCluster() {
-            this.locallyEnded = false;
+    private synchronized void startWorkers() {
+        int threads = Math.max(1, Math.min(numThreads, features.size()));
+        workers = new Worker[threads];
+        barrier = new CyclicBarrier(threads + 1);
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i, threads);
+            Thread t = new Thread(workers[i], "ParallelKMeans-" + i);
+            t.setDaemon(true);
+            t.start();
         }
+    }
 
-        public void run() {
-            Cluster cluster;
-            double[] mean, f;
-            Item tmp;
-            double size, stress;
-            while (!locallyEnded) {
-                try {
-                    tmp = queue.take();
-                    if (tmp.getNum() == -1) locallyEnded = true;
-                    if (!locallyEnded) {    // && tmp != -1
-                        cluster = tmp.getCluster();
-                        if (cluster.getSize() == 1) {
-                            System.err.println("** There is just one member in cluster " + tmp.getNum());
-                        } else if (cluster.getSize() < 1) {
-                            System.err.println("** There is NO member in cluster " + tmp.getNum());
-                            // fill it with a random member?!?
-                            cluster.assignMember(features.get((int) Math.floor(Math.random() * features.size())));
-                        }
-                        cluster.move();
-                    }
-                } catch (InterruptedException e) {
-                    e.getMessage();
-                }
-            }
-        }
+    /**
+     * Lets all workers do the task and waits for them to finish. If a worker failed, its exception is thrown here,
+     * errors as they are. The workers keep waiting for the next task, so {@link #shutdown()} still stops them.
+     */
+    private void runTask(int task) {
+        this.task = task; // visible to the workers, the barrier is a happens-before edge.
+        try {
+            barrier.await(); // start
+            if (task != STOP) barrier.await(); // done
+        } catch (InterruptedException e) {
+            barrier.reset(); // the workers stop on the broken barrier.
+            workers = null;
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while clustering.", e);
+        } catch (BrokenBarrierException e) {
+            workers = null;
+            throw new IllegalStateException("A clustering thread failed.", e);
+        }
+        if (task == STOP) return;
+        Throwable error = null;
+        for (Worker worker : workers) {
+            if (error == null) error = worker.error;
+            worker.error = null;
+        }
+        if (error instanceof Error) throw (Error) error;
+        if (error != null) throw new IllegalStateException("A clustering thread failed.", error);
     }
 
-    private class FeatureToClass implements Runnable {
-        private boolean locallyEnded;
+    private class Worker implements Runnable {
+        private final int id, count;
+        private double[] sums;
+        private int[] counts;
+        private long distances;
+        private Throwable error = null;
 
-        private FeatureToClass() {
-            this.locallyEnded = false;
+        private Worker(int id, int count) {
+            this.id = id;
+            this.count = count;
         }
 
         public void run() {
-            double v, minDistance;
-            double[] f;
-            Item tmp;
-            int best;
-            while (!locallyEnded) {
-                try {
-                    tmp = queue.take();
-                    if (tmp.getNum() == -1) locallyEnded = true;
-                    if (!locallyEnded) {    // && tmp != -1
-                        f = tmp.getArray();
-                        best = 0;
-                        minDistance = clusters[0].getDistance(f);
-                        for (int i = 1; i < clusters.length; i++) {
-                            v = clusters[i].getDistance(f);
-                            if (minDistance > v) {
-                                best = i;
-                                minDistance = v;
-                            }
-                        }
-                        clusters[best].assignMember(f);
+            try {
+                while (true) {
+                    barrier.await();
+                    if (task == STOP) return;
+                    try {
+                        if (task == CENTERS) centers();
+                        else if (task == ASSIGN) assign();
+                        else reduce();
+                    } catch (Throwable e) { // also errors, the worker has to reach the barrier anyway.
+                        error = e;
                     }
-                } catch (InterruptedException e) {
-                    e.getMessage();
+                    barrier.await();
                 }
+            } catch (InterruptedException e) {
+                barrier.reset();
+            } catch (BrokenBarrierException e) {
+                // the clustering has been aborted.
             }
         }
-    }
-
 
-    class ProducerForClusters implements Runnable {
-        private ProducerForClusters() {
-            queue.clear();
+        private void centers() {
+            int k = clusters.length;
+            computeCenterDistances((int) ((long) k * id / count), (int) ((long) k * (id + 1) / count));
         }
 
-        public void run() {
-            int counter = 0;
-            for(Cluster cluster : clusters){
-                try {
-                    queue.put(new Item(counter, cluster));
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                counter++;
+        /**
+         * Assigns the features of this worker's partition and sums them up per cluster.
+         */
+        private void assign() {
+            int k = clusters.length, length = clusters[0].mean.length;
+            if (sums == null || sums.length != k * length) {
+                sums = new double[k * length];
+                counts = new int[k];
+            } else {
+                Arrays.fill(sums, 0d);
+                Arrays.fill(counts, 0);
             }
-            Cluster cluster = null;
-            for (int i = 0; i < numThreads * 3; i++)  {
-                try {
-                    queue.put(new Item(-1, cluster));
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+            int from = (int) ((long) features.size() * id / count), to = (int) ((long) features.size() * (id + 1) / count);
+            double[] row = new double[length];
+            int best;
+            distances = 0;
+            for (int n = from; n < to; n++) {
+                distances += ParallelKMeans.this.assign(n, row);
+                best = assignments[n];
+                counts[best]++;
+                features.addTo(n, sums, best * length);
             }
         }
-    }
-
-    class ProducerForFeatures implements Runnable {
-        private ProducerForFeatures() {
-            queue.clear();
-        }
 
-        public void run() {
-            int counter = 0;
-            for (double[] feature : features) {
-                try {
-                    queue.put(new Item(counter, feature));
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                counter++;
-            }
-            double[] tmp = null;
-            for (int i = 0; i < numThreads * 3; i++)  {
-                try {
-                    queue.put(new Item(-1, tmp));
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        /**
+         * Adds up the partial sums of all workers for this worker's range of clusters.
+         */
+        private void reduce() {
+            int k = clusters.length, length = clusters[0].mean.length;
+            int from = (int) ((long) k * id / count), to = (int) ((long) k * (id + 1) / count);
+            double[] total = new double[length];
+            for (int c = from; c < to; c++) {
+                Arrays.fill(total, 0d);
+                int members = 0, offset = c * length;
+                for (Worker w : workers) {
+                    members += w.counts[c];
+                    for (int i = 0; i < length; i++) total[i] += w.sums[offset + i];
                 }
+                clusters[c].setMembers(members, total);
             }
         }
     }
-
-    private class Item {
-        private double[] array;
-        private Cluster cluster;
-        private int num;
-
-        Item(int num, double[] array) {
-            this.num = num;
-            this.array = array;
-        }
-
-        Item(int num, Cluster cluster) {
-            this.num = num;
-            this.cluster = cluster;
-        }
-
-        private int getNum() { return num; }
-
-        private Cluster getCluster() { return cluster; }
-
-        private double[] getArray() { return array; }
-    }
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,222 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+
+package net.semanticmetadata.lire.classifiers;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Projects vectors onto their principal components, optionally whitened, ie. each component divided by its standard
+ * deviation. For vectors with more dimensions than samples, like VLAD vectors with k*d dimensions computed for a few
+ * hundred images, the components are computed from the n x n Gram matrix of the samples instead of the d x d
+ * covariance matrix, so training a 128 dimensional projection of 8192 dimensional vectors takes seconds.
+ * The number of components is at most the number of samples minus one.
+ */
+public class PrincipalComponents {
+    private static final double EPSILON = 1e-12;
+    private int numComponents;
+    private boolean whitening = true;
+    private int inputDimensions;
+    private double[] mean, components, scale;
+
+    /**
+     * @param numComponents the number of dimensions after the projection.
+     */
+    public PrincipalComponents(int numComponents) {
+        if (numComponents < 1) throw new IllegalArgumentException("At least one component is needed.");
+        this.numComponents = numComponents;
+    }
+
+    /**
+     * @param whitening true to scale the components to unit variance, default is true.
+     */
+    public void setWhitening(boolean whitening) {
+        this.whitening = whitening;
+    }
+
+    public boolean isWhitening() {
+        return whitening;
+    }
+
+    /**
+     * @return the number of dimensions after the projection.
+     */
+    public int getNumComponents() {
+        return numComponents;
+    }
+
+    public int getInputDimensions() {
+        return inputDimensions;
+    }
+
+    /**
+     * Computes the principal components. If there are less samples than components, the number of components is
+     * reduced to the number of samples minus one.
+     *
+     * @param samples the training vectors.
+     */
+    public void train(FeatureMatrix samples) {
+        int n = samples.size(), d = samples.getDimensions();
+        if (n < 2) throw new UnsupportedOperationException("At least two samples are needed, got " + n + ".");
+        if (numComponents > Math.min(n - 1, d)) {
+            System.err.println("Reducing the number of components from " + numComponents + " to " + Math.min(n - 1, d) + ", as there are only " + n + " samples.");
+            numComponents = Math.min(n - 1, d);
+        }
+        inputDimensions = d;
+        mean = new double[d];
+        for (int i = 0; i < n; i++) samples.addTo(i, mean, 0);
+        for (int j = 0; j < d; j++) mean[j] /= n;
+        double[][] centered = new double[n][];
+        for (int i = 0; i < n; i++) {
+            centered[i] = samples.getRow(i, null);
+            for (int j = 0; j < d; j++) centered[i][j] -= mean[j];
+        }
+
+        components = new double[numComponents * d];
+        scale = new double[numComponents];
+        if (n <= d) {
+            // eigenvectors v of the Gram matrix X X^T give the components X^T v / sqrt(lambda).
+            double[][] gram = new double[n][n];
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j <= i; j++) {
+                    gram[i][j] = gram[j][i] = dot(centered[i], centered[j]);
+                }
+            }
+            EigenDecomposition eigen = new EigenDecomposition(new Array2DRowRealMatrix(gram, false));
+            Integer[] order = largestFirst(eigen.getRealEigenvalues());
+            for (int c = 0; c < numComponents; c++) {
+                double lambda = Math.max(eigen.getRealEigenvalue(order[c]), EPSILON);
+                double[] v = eigen.getEigenvector(order[c]).toArray();
+                for (int i = 0; i < n; i++) {
+                    double w = v[i] / Math.sqrt(lambda);
+                    for (int j = 0; j < d; j++) components[c * d + j] += w * centered[i][j];
+                }
+                scale[c] = scale(lambda, n);
+            }
+        } else {
+            double[][] scatter = new double[d][d];
+            for (double[] row : centered) {
+                for (int a = 0; a < d; a++) {
+                    for (int b = 0; b <= a; b++) scatter[a][b] += row[a] * row[b];
+                }
+            }
+            for (int a = 0; a < d; a++) for (int b = 0; b < a; b++) scatter[b][a] = scatter[a][b];
+            RealMatrix matrix = new Array2DRowRealMatrix(scatter, false);
+            EigenDecomposition eigen = new EigenDecomposition(matrix);
+            Integer[] order = largestFirst(eigen.getRealEigenvalues());
+            for (int c = 0; c < numComponents; c++) {
+                double[] u = eigen.getEigenvector(order[c]).toArray();
+                System.arraycopy(u, 0, components, c * d, d);
+                scale[c] = scale(Math.max(eigen.getRealEigenvalue(order[c]), EPSILON), n);
+            }
+        }
+    }
+
+    /**
+     * @param vector the vector to project, it is not changed.
+     * @return the projected vector.
+     */
+    public double[] project(double[] vector) {
+        if (components == null) throw new IllegalStateException("The projection has not been trained yet.");
+        if (vector.length != inputDimensions)
+            throw new IllegalArgumentException("Expected " + inputDimensions + " dimensions, got " + vector.length + ".");
+        double[] centered = new double[inputDimensions];
+        for (int j = 0; j < inputDimensions; j++) centered[j] = vector[j] - mean[j];
+        double[] result = new double[numComponents];
+        for (int c = 0, offset = 0; c < numComponents; c++, offset += inputDimensions) {
+            double sum = 0;
+            for (int j = 0; j < inputDimensions; j++) sum += components[offset + j] * centered[j];
+            result[c] = whitening ? sum * scale[c] : sum;
+        }
+        return result;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(numComponents);
+        out.writeInt(inputDimensions);
+        out.writeBoolean(whitening);
+        for (double v : mean) out.writeDouble(v);
+        for (double v : components) out.writeDouble(v);
+        for (double v : scale) out.writeDouble(v);
+    }
+
+    public static PrincipalComponents read(DataInputStream in) throws IOException {
+        PrincipalComponents pca = new PrincipalComponents(in.readInt());
+        pca.inputDimensions = in.readInt();
+        pca.whitening = in.readBoolean();
+        pca.mean = readDoubles(in, pca.inputDimensions);
+        pca.components = readDoubles(in, pca.numComponents * pca.inputDimensions);
+        pca.scale = readDoubles(in, pca.numComponents);
+        return pca;
+    }
+
+    private static double[] readDoubles(DataInputStream in, int length) throws IOException {
+        double[] result = new double[length];
+        for (int i = 0; i < length; i++) result[i] = in.readDouble();
+        return result;
+    }
+
+    /**
+     * @return 1 / standard deviation of a component with the given eigenvalue of the scatter matrix.
+     */
+    private static double scale(double lambda, int n) {
+        return 1d / Math.sqrt(lambda / (n - 1) + EPSILON);
+    }
+
+    private static Integer[] largestFirst(final double[] eigenvalues) {
+        Integer[] order = new Integer[eigenvalues.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(eigenvalues[b], eigenvalues[a]);
+            }
+        });
+        return order;
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) sum += a[i] * b[i];
+        return sum;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+
+package net.semanticmetadata.lire.classifiers;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Product quantization after Jegou, Douze and Schmid, "Product Quantization for Nearest Neighbor Search", PAMI 2011.
+ * The vector is split into m sub vectors and each one is replaced by the index of the nearest of up to 256 centroids
+ * trained for its subspace, so a vector is encoded in m bytes. Distances from a query to the codes are computed with
+ * a table of the query's distances to all centroids, ie. m lookups per code:
+ * <pre>
+ * double[] table = pq.distanceTable(query);
+ * double distance = pq.distance(table, codes, offset);
+ * </pre>
+ */
+public class ProductQuantizer {
+    public static final int MAX_CENTROIDS = 256;
+    private int numSubspaces, numCentroids, dimensions, subDimensions;
+    private int maxIterations = 20;
+    // centroid c of subspace s starts at (s * numCentroids + c) * subDimensions.
+    private double[] centroids;
+
+    /**
+     * @param numSubspaces the number of sub vectors, ie. the number of bytes per code.
+     */
+    public ProductQuantizer(int numSubspaces) {
+        if (numSubspaces < 1) throw new IllegalArgumentException("At least one subspace is needed.");
+        this.numSubspaces = numSubspaces;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = Math.max(1, maxIterations);
+    }
+
+    /**
+     * @return the length of the codes in bytes.
+     */
+    public int getCodeLength() {
+        return numSubspaces;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Trains the centroids of each subspace with k-means. There are 256 centroids per subspace, or half the number of
+     * samples if there are less than 512.
+     *
+     * @param samples the training vectors, their length has to be a multiple of the number of subspaces.
+     */
+    public void train(FeatureMatrix samples) {
+        dimensions = samples.getDimensions();
+        if (dimensions % numSubspaces != 0)
+            throw new IllegalArgumentException(dimensions + " dimensions cannot be split into " + numSubspaces + " subspaces.");
+        if (samples.size() < 4) throw new UnsupportedOperationException("Only " + samples.size() + " samples for training.");
+        subDimensions = dimensions / numSubspaces;
+        numCentroids = Math.min(MAX_CENTROIDS, samples.size() / 2);
+        centroids = new double[numSubspaces * numCentroids * subDimensions];
+        double[] row = new double[dimensions], sub = new double[subDimensions];
+        for (int s = 0; s < numSubspaces; s++) {
+            FeatureMatrix subspace = new FeatureMatrix(subDimensions, samples.size());
+            for (int i = 0; i < samples.size(); i++) {
+                samples.getRow(i, row);
+                System.arraycopy(row, s * subDimensions, sub, 0, subDimensions);
+                subspace.add(sub);
+            }
+            KMeans kMeans = new KMeans(numCentroids);
+            kMeans.setRandom(new Random(s));
+            kMeans.addFeatures(subspace);
+            kMeans.init(true);
+            double last = Double.MAX_VALUE;
+            for (int i = 0; i < maxIterations; i++) {
+                double stress = kMeans.clusteringStep();
+                if (last - stress <= 1e-4 * stress) break;
+                last = stress;
+            }
+            Cluster[] clusters = kMeans.getClusters();
+            for (int c = 0; c < numCentroids; c++)
+                System.arraycopy(clusters[c].getMean(), 0, centroids, (s * numCentroids + c) * subDimensions, subDimensions);
+        }
+    }
+
+    /**
+     * @return the index of the nearest centroid for each sub vector.
+     */
+    public byte[] encode(double[] vector) {
+        checkDimensions(vector);
+        byte[] code = new byte[numSubspaces];
+        for (int s = 0; s < numSubspaces; s++) {
+            int best = 0;
+            double min = Double.MAX_VALUE;
+            for (int c = 0; c < numCentroids; c++) {
+                double distance = subspaceDistance(vector, s, c);
+                if (distance < min) {
+                    min = distance;
+                    best = c;
+                }
+            }
+            code[s] = (byte) best;
+        }
+        return code;
+    }
+
+    /**
+     * @return the vector made of the centroids of the code.
+     */
+    public double[] decode(byte[] code, int offset) {
+        double[] vector = new double[dimensions];
+        for (int s = 0; s < numSubspaces; s++) {
+            int c = code[offset + s] & 0xFF;
+            System.arraycopy(centroids, (s * numCentroids + c) * subDimensions, vector, s * subDimensions, subDimensions);
+        }
+        return vector;
+    }
+
+    /**
+     * @param query the query vector.
+     * @return the squared distances of the query's sub vectors to all centroids, for {@link #distance(double[], byte[], int)}.
+     */
+    public double[] distanceTable(double[] query) {
+        checkDimensions(query);
+        double[] table = new double[numSubspaces * MAX_CENTROIDS];
+        for (int s = 0; s < numSubspaces; s++) {
+            for (int c = 0; c < numCentroids; c++) table[s * MAX_CENTROIDS + c] = subspaceDistance(query, s, c);
+        }
+        return table;
+    }
+
+    /**
+     * @param table  the distance table of the query.
+     * @param codes  the array holding the code.
+     * @param offset the start of the code in the array.
+     * @return the approximate squared L2 distance between the query and the encoded vector.
+     */
+    public double distance(double[] table, byte[] codes, int offset) {
+        double sum = 0;
+        for (int s = 0, t = 0; s < numSubspaces; s++, t += MAX_CENTROIDS) sum += table[t + (codes[offset + s] & 0xFF)];
+        return sum;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(numSubspaces);
+        out.writeInt(numCentroids);
+        out.writeInt(dimensions);
+        for (double v : centroids) out.writeDouble(v);
+    }
+
+    public static ProductQuantizer read(DataInputStream in) throws IOException {
+        ProductQuantizer pq = new ProductQuantizer(in.readInt());
+        pq.numCentroids = in.readInt();
+        pq.dimensions = in.readInt();
+        pq.subDimensions = pq.dimensions / pq.numSubspaces;
+        pq.centroids = new double[pq.numSubspaces * pq.numCentroids * pq.subDimensions];
+        for (int i = 0; i < pq.centroids.length; i++) pq.centroids[i] = in.readDouble();
+        return pq;
+    }
+
+    private double subspaceDistance(double[] vector, int subspace, int centroid) {
+        double sum = 0, d;
+        for (int i = 0, v = subspace * subDimensions, c = (subspace * numCentroids + centroid) * subDimensions; i < subDimensions; i++) {
+            d = vector[v + i] - centroids[c + i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    private void checkDimensions(double[] vector) {
+        if (centroids == null) throw new IllegalStateException("The quantizer has not been trained yet.");
+        if (vector.length != dimensions)
+            throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + vector.length + ".");
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+
+package net.semanticmetadata.lire.classifiers;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hierarchical k-means vocabulary tree after Nister and Stewenius, "Scalable Recognition with a Vocabulary Tree",
+ * CVPR 2006. The features are clustered into b groups, each group again into b groups and so on up to depth L, the
+ * leaves are the visual words. A tree with b=10 and L=6 has up to a million words, but a feature is quantized with
+ * b*L = 60 distance computations instead of a million for a flat codebook of the same size.
+ * <p/>
+ * Nodes with fewer than 2*b features are not split any further, so the number of words may be lower than b^L.
+ * Training splits the nodes with a few Lloyd iterations each, nodes are handed to the threads as soon as their parent
+ * has been split. The result does not depend on the number of threads.
+ * <pre>
+ * VocabularyTree tree = new VocabularyTree(10, 6);
+ * tree.train(features);
+ * int word = tree.quantize(feature.getFeatureVector());
+ * </pre>
+ * The {@link net.semanticmetadata.lire.indexers.parallel.ParallelIndexer} stores the first level of the tree as the
+ * codebook and the tree next to it, see {@link #readForCodebook(String)}. For the aggregators created by the document
+ * builders the tree is {@link #register(Cluster[], VocabularyTree) registered} for that codebook.
+ */
+public class VocabularyTree {
+    /**
+     * The extension of the tree file next to the codebook.
+     */
+    public static final String FILE_EXTENSION = ".vtree";
+
+    private static final Map<Cluster[], VocabularyTree> trees = Collections.synchronizedMap(new WeakHashMap<Cluster[], VocabularyTree>());
+    private int branching, depth;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private int maxIterations = 10;
+    private long seed = 0;
+
+    // the tree in breadth first order, the children of a node are stored next to each other.
+    private int dimensions = 0;
+    private double[] centers;
+    private int[] firstChild, numChildren, words;
+    private int numWords = 0;
+
+    /**
+     * @param branching the number of children per node, b.
+     * @param depth     the number of levels below the root, L.
+     */
+    public VocabularyTree(int branching, int depth) {
+        if (branching < 2) throw new IllegalArgumentException("The branching factor has to be at least 2.");
+        if (depth < 1) throw new IllegalArgumentException("The depth has to be at least 1.");
+        this.branching = branching;
+        this.depth = depth;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * @param maxIterations the maximum number of Lloyd iterations per node, default is 10.
+     */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = Math.max(1, maxIterations);
+    }
+
+    /**
+     * @param seed the seed for the k-means++ initialization, default is 0.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public int getBranching() {
+        return branching;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * @return the number of visual words, ie. leaves.
+     */
+    public int getNumWords() {
+        return numWords;
+    }
+
+    /**
+     * Builds the tree, replacing a tree trained or read before.
+     *
+     * @param features the training features.
+     */
+    public void train(final FeatureMatrix features) {
+        if (features.size() < branching)
+            throw new UnsupportedOperationException("Only " + features.size() + " features for a branching factor of " + branching + ".");
+        int[] all = new int[features.size()];
+        for (int i = 0; i < all.length; i++) all[i] = i;
+        Node root = new Node(0, seed, all, null);
+
+        final LinkedBlockingQueue<Node> queue = new LinkedBlockingQueue<Node>();
+        final AtomicInteger pending = new AtomicInteger(1);
+        final LinkedList<Throwable> errors = new LinkedList<Throwable>();
+        queue.add(root);
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (pending.get() > 0) {
+                            Node node = queue.poll(10, TimeUnit.MILLISECONDS);
+                            if (node == null) continue;
+                            try {
+                                split(node, features);
+                                if (node.children != null) {
+                                    pending.addAndGet(node.children.length);
+                                    queue.addAll(Arrays.asList(node.children));
+                                }
+                                pending.decrementAndGet();
+                            } catch (Throwable e) { // also errors, pending has to be reset in any case.
+                                synchronized (errors) {
+                                    errors.add(e);
+                                }
+                                pending.set(0); // stops all threads.
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, "VocabularyTree-" + i);
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        if (!errors.isEmpty()) {
+            Throwable error = errors.getFirst();
+            if (error instanceof Error) throw (Error) error;
+            throw (RuntimeException) error;
+        }
+        flatten(root, features.getDimensions());
+    }
+
+    /**
+     * Descends the tree to the nearest leaf, with b distance computations per level.
+     *
+     * @param feature the feature vector.
+     * @return the visual word of the feature.
+     */
+    public int quantize(double[] feature) {
+        if (centers == null) throw new IllegalStateException("The tree has not been trained yet.");
+        if (feature.length != dimensions)
+            throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + feature.length + ".");
+        int node = 0;
+        while (firstChild[node] >= 0) {
+            int best = firstChild[node];
+            double min = Double.MAX_VALUE;
+            for (int c = firstChild[node], end = c + numChildren[node]; c < end; c++) {
+                double sum = 0, d;
+                for (int i = 0, offset = c * dimensions; i < dimensions && sum < min; i++) {
+                    d = centers[offset + i] - feature[i];
+                    sum += d * d;
+                }
+                if (sum < min) {
+                    min = sum;
+                    best = c;
+                }
+            }
+            node = best;
+        }
+        return words[node];
+    }
+
+    /**
+     * Returns the centers of the first level as codebook, to store the tree along with it and to name the fields
+     * after the number of clusters.
+     *
+     * @return one cluster per child of the root.
+     */
+    public Cluster[] getFirstLevel() {
+        if (centers == null) throw new IllegalStateException("The tree has not been trained yet.");
+        Cluster[] result = new Cluster[Math.max(numChildren[0], 1)];
+        if (numChildren[0] == 0) { // the root is the only word.
+            result[0] = new Cluster(new double[dimensions]);
+            return result;
+        }
+        for (int c = 0; c < result.length; c++) {
+            int offset = (firstChild[0] + c) * dimensions;
+            result[c] = new Cluster(Arrays.copyOfRange(centers, offset, offset + dimensions));
+        }
+        return result;
+    }
+
+    /**
+     * Sets the tree used by {@link net.semanticmetadata.lire.aggregators.VocabularyTreeAggregator} for a codebook,
+     * the codebook is referenced weakly.
+     */
+    public static void register(Cluster[] codebook, VocabularyTree tree) {
+        trees.put(codebook, tree);
+    }
+
+    /**
+     * @return the tree registered for the codebook or null.
+     */
+    public static VocabularyTree forCodebook(Cluster[] codebook) {
+        return trees.get(codebook);
+    }
+
+    /**
+     * Reads the tree stored next to a codebook, ie. in the codebook file name with the extension ".vtree".
+     *
+     * @param codebookFile the file of the codebook.
+     * @return the tree or null if there is none.
+     */
+    public static VocabularyTree readForCodebook(String codebookFile) throws IOException {
+        File file = new File(codebookFile + FILE_EXTENSION);
+        return file.exists() ? read(file.getPath()) : null;
+    }
+
+    /**
+     * Writes the tree to a file to be read with {@link #read(String)}.
+     */
+    public void write(String path) throws IOException {
+        if (centers == null) throw new IllegalStateException("The tree has not been trained yet.");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        try {
+            out.writeInt(branching);
+            out.writeInt(depth);
+            out.writeInt(dimensions);
+            out.writeInt(firstChild.length);
+            for (int node = 0; node < firstChild.length; node++) {
+                out.writeInt(firstChild[node]);
+                out.writeInt(numChildren[node]);
+                out.writeInt(words[node]);
+                for (int i = node * dimensions; i < (node + 1) * dimensions; i++) out.writeDouble(centers[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static VocabularyTree read(String path) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        try {
+            VocabularyTree tree = new VocabularyTree(in.readInt(), in.readInt());
+            tree.dimensions = in.readInt();
+            int nodes = in.readInt();
+            tree.firstChild = new int[nodes];
+            tree.numChildren = new int[nodes];
+            tree.words = new int[nodes];
+            tree.centers = new double[nodes * tree.dimensions];
+            for (int node = 0; node < nodes; node++) {
+                tree.firstChild[node] = in.readInt();
+                tree.numChildren[node] = in.readInt();
+                tree.words[node] = in.readInt();
+                if (tree.words[node] >= 0) tree.numWords++;
+                for (int i = node * tree.dimensions; i < (node + 1) * tree.dimensions; i++)
+                    tree.centers[i] = in.readDouble();
+            }
+            return tree;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Clusters the members of a node into at most b children, or leaves it as a leaf.
+     */
+    private void split(Node node, FeatureMatrix features) {
+        int[] members = node.members;
+        if (node.level >= depth || members.length < 2 * branching) return;
+        int d = features.getDimensions(), k = branching;
+        double[] means = new double[k * d];
+        double[] sums = new double[k * d];
+        int[] counts = new int[k];
+        int[] assignment = new int[members.length];
+        double[] row = new double[d];
+        seed(members, features, means, new Random(node.seed));
+
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            boolean changed = iteration == 0;
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            for (int m = 0; m < members.length; m++) {
+                features.getRow(members[m], row);
+                int best = nearest(row, means, k, d);
+                if (best != assignment[m]) changed = true;
+                assignment[m] = best;
+                features.addTo(members[m], sums, best * d);
+                counts[best]++;
+            }
+            if (!changed) break;
+            for (int c = 0; c < k; c++) {
+                if (counts[c] == 0) continue; // keep the old mean, the child is dropped if it stays empty.
+                for (int i = c * d; i < (c + 1) * d; i++) means[i] = sums[i] / counts[c];
+            }
+        }
+
+        int children = 0;
+        for (int c = 0; c < k; c++) if (counts[c] > 0) children++;
+        if (children < 2) return; // all members are the same.
+        int[][] childMembers = new int[k][];
+        for (int c = 0; c < k; c++) childMembers[c] = new int[counts[c]];
+        int[] fill = new int[k];
+        for (int m = 0; m < members.length; m++) childMembers[assignment[m]][fill[assignment[m]]++] = members[m];
+        node.members = null;
+        node.children = new Node[children];
+        for (int c = 0, child = 0; c < k; c++) {
+            if (counts[c] == 0) continue;
+            double[] mean = new double[d];
+            System.arraycopy(means, c * d, mean, 0, d);
+            node.children[child] = new Node(node.level + 1, node.seed * 31 + c + 1, childMembers[c], mean);
+            child++;
+        }
+    }
+
+    /**
+     * k-means++ initialization, the next mean is drawn with a probability proportional to the squared distance to
+     * the nearest mean chosen so far.
+     */
+    private static void seed(int[] members, FeatureMatrix features, double[] means, Random random) {
+        int d = features.getDimensions(), k = means.length / d;
+        double[] minDistance = new double[members.length];
+        double[] mean = features.getRow(members[random.nextInt(members.length)], null);
+        System.arraycopy(mean, 0, means, 0, d);
+        Arrays.fill(minDistance, Double.MAX_VALUE);
+        for (int c = 1; c < k; c++) {
+            double total = 0;
+            for (int m = 0; m < members.length; m++) {
+                minDistance[m] = Math.min(minDistance[m], features.squaredDistance(members[m], mean));
+                total += minDistance[m];
+            }
+            int next = members.length - 1;
+            double target = random.nextDouble() * total;
+            for (int m = 0; m < members.length; m++) {
+                target -= minDistance[m];
+                if (target < 0) {
+                    next = m;
+                    break;
+                }
+            }
+            features.getRow(members[next], mean);
+            System.arraycopy(mean, 0, means, c * d, d);
+        }
+    }
+
+    private static int nearest(double[] row, double[] means, int k, int d) {
+        int best = 0;
+        double min = Double.MAX_VALUE;
+        for (int c = 0; c < k; c++) {
+            double sum = 0, diff;
+            for (int i = 0, offset = c * d; i < d && sum < min; i++) {
+                diff = means[offset + i] - row[i];
+                sum += diff * diff;
+            }
+            if (sum < min) {
+                min = sum;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Stores the tree in arrays, nodes in breadth first order and words numbered depth first, so the words below a
+     * node are numbered consecutively.
+     */
+    private void flatten(Node root, int dimensions) {
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            node.index = i;
+            if (node.children != null) for (Node child : node.children) nodes.add(child);
+        }
+        this.dimensions = dimensions;
+        centers = new double[nodes.size() * dimensions];
+        firstChild = new int[nodes.size()];
+        numChildren = new int[nodes.size()];
+        words = new int[nodes.size()];
+        for (Node node : nodes) {
+            if (node.mean != null) System.arraycopy(node.mean, 0, centers, node.index * dimensions, dimensions);
+            boolean leaf = node.children == null || node.children.length == 0;
+            firstChild[node.index] = leaf ? -1 : node.children[0].index;
+            numChildren[node.index] = leaf ? 0 : node.children.length;
+            words[node.index] = -1;
+        }
+        numWords = 0;
+        numberWords(root);
+    }
+
+    private void numberWords(Node node) {
+        if (firstChild[node.index] < 0) {
+            words[node.index] = numWords++;
+        } else {
+            for (Node child : node.children) numberWords(child);
+        }
+    }
+
+    private static class Node {
+        final int level;
+        final long seed;
+        final double[] mean;
+        int[] members;
+        Node[] children = null;
+        int index;
+
+        Node(int level, long seed, int[] members, double[] mean) {
+            this.level = level;
+            this.seed = seed;
+            this.members = members;
+            this.mean = mean;
+        }
+    }
+}
@@ -50,4 +50,14 @@ public interface Extractor {
      * @param image the source image
      */
     public void extract(BufferedImage image);
+
+    /**
+     * Extracts the feature vector from an image context, which shares converted versions of the image with the
+     * other extractors. Extractors override this to use the representations of the context instead of converting
+     * the image themselves, by default the original image is analyzed.
+     * @param context the context of the source image
+     */
+    public default void extract(ImageContext context) {
+        extract(context.getImage());
+    }
 }
@@ -0,0 +1,203 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.imageanalysis.features;
+
+import net.semanticmetadata.lire.utils.ImageUtils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.HashMap;
+
+/**
+ * Holds an image along with the representations extractors derive from it, ie. the 8 bit RGB version, packed
+ * pixels, gray values, HSV values, scaled versions and the integral image. Each representation is computed on first
+ * use and then shared by all extractors working on the same context, so an image analyzed by ten extractors is
+ * converted once instead of ten times.
+ * <p/>
+ * The context is thread safe. The arrays and images returned are shared and must not be modified.
+ */
+public class ImageContext {
+    private final BufferedImage image;
+    private BufferedImage rgbImage = null, grayscaleImage = null;
+    private int[] packedRgb = null;
+    private byte[] gray = null;
+    private int[][][] hsvPixels = null;
+    private long[] integralImage = null;
+    private final HashMap<Integer, ImageContext> scaled = new HashMap<Integer, ImageContext>(2);
+
+    /**
+     * @param image the image to analyze. It remains untouched.
+     */
+    public ImageContext(BufferedImage image) {
+        if (image == null) throw new IllegalArgumentException("The image must not be null.");
+        this.image = image;
+    }
+
+    /**
+     * @return the original image.
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    /**
+     * Returns the context of the image scaled down to fit into a box of maxSideLength x maxSideLength, see
+     * {@link ImageUtils#scaleImage(BufferedImage, int)}.
+     *
+     * @param maxSideLength the maximum side length.
+     * @return the context of the scaled image, or this context if the image is small enough.
+     */
+    public synchronized ImageContext scaledTo(int maxSideLength) {
+        ImageContext result = scaled.get(maxSideLength);
+        if (result == null) {
+            BufferedImage img = ImageUtils.scaleImage(image, maxSideLength);
+            result = (img == image) ? this : new ImageContext(img);
+            scaled.put(maxSideLength, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the image as TYPE_INT_RGB with 8 bits per channel, see {@link ImageUtils#get8BitRGBImage(BufferedImage)}.
+     */
+    public synchronized BufferedImage getRGBImage() {
+        if (rgbImage == null) rgbImage = ImageUtils.get8BitRGBImage(image);
+        return rgbImage;
+    }
+
+    /**
+     * @return the pixels in rows from top to bottom, each one with red, green and blue in the lower 24 bits, ie.
+     * 0xRRGGBB. The upper 8 bits are undefined, so mask the channels.
+     */
+    public synchronized int[] getPackedRGB() {
+        if (packedRgb == null) {
+            BufferedImage rgb = getRGBImage();
+            int width = rgb.getWidth(), height = rgb.getHeight();
+            Raster raster = rgb.getRaster();
+            // use the pixel data directly if it's laid out without gaps, otherwise copy it.
+            if (raster.getDataBuffer() instanceof DataBufferInt
+                    && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                    && ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == width
+                    && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+                    && raster.getDataBuffer().getOffset() == 0
+                    && raster.getDataBuffer().getSize() == width * height) {
+                packedRgb = ((DataBufferInt) raster.getDataBuffer()).getData();
+            } else {
+                packedRgb = rgb.getRGB(0, 0, width, height, null, 0, width);
+            }
+        }
+        return packedRgb;
+    }
+
+    /**
+     * @return the image as TYPE_BYTE_GRAY, see {@link ImageUtils#getGrayscaleImage(BufferedImage)}.
+     */
+    public synchronized BufferedImage getGrayscaleImage() {
+        if (grayscaleImage == null) grayscaleImage = ImageUtils.getGrayscaleImage(image);
+        return grayscaleImage;
+    }
+
+    /**
+     * @return the gray values of {@link #getGrayscaleImage()} in rows from top to bottom, to be read as
+     * (gray[i] &amp; 0xFF).
+     */
+    public synchronized byte[] getGray() {
+        if (gray == null) {
+            // the grayscale image is created by ImageUtils, so its raster has no gaps.
+            gray = ((DataBufferByte) getGrayscaleImage().getRaster().getDataBuffer()).getData();
+        }
+        return gray;
+    }
+
+    /**
+     * @return the HSV values of the original image indexed by [x][y][channel], see
+     * {@link ImageUtils#getHsvPixels(Raster)}.
+     */
+    public synchronized int[][][] getHsvPixels() {
+        if (hsvPixels == null) hsvPixels = ImageUtils.getHsvPixels(image.getRaster());
+        return hsvPixels;
+    }
+
+    /**
+     * Returns the integral image of the gray values. It has (width+1) x (height+1) entries in rows, the entry at
+     * y*(width+1)+x is the sum of all gray values above and left of (x, y), exclusive.
+     *
+     * @return the integral image.
+     * @see #getGraySum(int, int, int, int)
+     */
+    public synchronized long[] getIntegralImage() {
+        if (integralImage == null) {
+            byte[] g = getGray();
+            int width = getWidth(), height = getHeight(), stride = width + 1;
+            long[] sums = new long[stride * (height + 1)];
+            for (int y = 0; y < height; y++) {
+                long rowSum = 0;
+                for (int x = 0; x < width; x++) {
+                    rowSum += g[y * width + x] & 0xFF;
+                    sums[(y + 1) * stride + x + 1] = sums[y * stride + x + 1] + rowSum;
+                }
+            }
+            integralImage = sums;
+        }
+        return integralImage;
+    }
+
+    /**
+     * Sums up the gray values of a rectangle in constant time using the integral image.
+     *
+     * @param x      the left border.
+     * @param y      the upper border.
+     * @param width  the width of the rectangle.
+     * @param height the height of the rectangle.
+     * @return the sum of the gray values in the rectangle.
+     */
+    public long getGraySum(int x, int y, int width, int height) {
+        long[] sums = getIntegralImage();
+        int stride = getWidth() + 1;
+        return sums[(y + height) * stride + x + width] - sums[y * stride + x + width]
+                - sums[(y + height) * stride + x] + sums[y * stride + x];
+    }
+}
@@ -47,5 +47,15 @@ public interface LocalFeatureExtractor extends Extractor{
 
     public List<? extends LocalFeature> getFeatures();
 
+    /**
+     * Returns the features of the last extraction in a compact form. Extractors override this to fill the set
+     * directly, the default copies {@link #getFeatures()}.
+     *
+     * @return the features of the last image.
+     */
+    default LocalFeatureSet getFeatureSet() {
+        return LocalFeatureSet.fromFeatures(getFeatures());
+    }
+
     public Class<? extends LocalFeature> getClassOfFeatures();
 }
@@ -0,0 +1,320 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+
+package net.semanticmetadata.lire.imageanalysis.features;
+
+import net.semanticmetadata.lire.classifiers.FeatureMatrix;
+import net.semanticmetadata.lire.utils.MetricsUtils;
+import net.semanticmetadata.lire.utils.SerializationUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The local features of an image as parallel arrays of keypoint positions, sizes and orientations and one
+ * {@link FeatureMatrix} holding all descriptors. Compared to a list of {@link LocalFeature} objects with a double
+ * array each this takes about a third of the memory, and the descriptors can be handed to the aggregators and to
+ * k-means without copying, see {@link LocalFeatureExtractor#getFeatureSet()}.
+ * <p/>
+ * Descriptors and keypoints are kept with float precision. That's exact for SURF, whose descriptors are floats anyway,
+ * but SIFT and other double descriptors are rounded, so the vectors aggregated from a set may differ in the last digits
+ * from the ones aggregated from the list of features.
+ */
+public class LocalFeatureSet {
+    private float[] x, y, size, orientation;
+    private final FeatureMatrix descriptors;
+    private int count = 0;
+
+    /**
+     * @param dimensions the length of the descriptors, 0 if it is set by the first feature added.
+     * @param capacity   the expected number of features.
+     */
+    public LocalFeatureSet(int dimensions, int capacity) {
+        capacity = Math.max(capacity, 1);
+        x = new float[capacity];
+        y = new float[capacity];
+        size = new float[capacity];
+        orientation = new float[capacity];
+        descriptors = (dimensions > 0) ? new FeatureMatrix(dimensions, capacity) : new FeatureMatrix();
+    }
+
+    /**
+     * Copies a list of local features, the orientation is set to 0 as {@link LocalFeature} doesn't provide it.
+     *
+     * @param features the features, all with descriptors of the same length.
+     * @return the feature set.
+     */
+    public static LocalFeatureSet fromFeatures(List<? extends LocalFeature> features) {
+        int dimensions = features.isEmpty() ? 0 : features.get(0).getFeatureVector().length;
+        LocalFeatureSet result = new LocalFeatureSet(dimensions, features.size());
+        for (LocalFeature feature : features) {
+            result.add(feature.getX(), feature.getY(), feature.getSize(), 0, feature.getFeatureVector());
+        }
+        return result;
+    }
+
+    /**
+     * Copies the features to a list, eg. for {@link net.semanticmetadata.lire.aggregators.Aggregator} implementations
+     * that only work on lists. The features have the descriptors with float precision and no field name.
+     *
+     * @return a new list with one feature per row.
+     */
+    public List<LocalFeature> toList() {
+        ArrayList<LocalFeature> result = new ArrayList<LocalFeature>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(new Feature(x[i], y[i], size[i], descriptors.getRow(i, null)));
+        }
+        return result;
+    }
+
+    /**
+     * Appends a feature.
+     *
+     * @return the index of the feature.
+     */
+    public int add(double x, double y, double size, double orientation, double[] descriptor) {
+        descriptors.add(descriptor);
+        return addKeypoint(x, y, size, orientation);
+    }
+
+    /**
+     * Appends a feature.
+     *
+     * @return the index of the feature.
+     */
+    public int add(double x, double y, double size, double orientation, float[] descriptor) {
+        descriptors.add(descriptor);
+        return addKeypoint(x, y, size, orientation);
+    }
+
+    private int addKeypoint(double x, double y, double size, double orientation) {
+        if (count == this.x.length) {
+            int capacity = count + (count >> 1) + 1;
+            this.x = Arrays.copyOf(this.x, capacity);
+            this.y = Arrays.copyOf(this.y, capacity);
+            this.size = Arrays.copyOf(this.size, capacity);
+            this.orientation = Arrays.copyOf(this.orientation, capacity);
+        }
+        this.x[count] = (float) x;
+        this.y[count] = (float) y;
+        this.size[count] = (float) size;
+        this.orientation[count] = (float) orientation;
+        return count++;
+    }
+
+    /**
+     * @return the number of features.
+     */
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return the length of the descriptors, -1 if it isn't known yet.
+     */
+    public int getDimensions() {
+        return descriptors.getDimensions();
+    }
+
+    public float getX(int feature) {
+        return x[check(feature)];
+    }
+
+    public float getY(int feature) {
+        return y[check(feature)];
+    }
+
+    public float getSize(int feature) {
+        return size[check(feature)];
+    }
+
+    /**
+     * @return the orientation in radians, 0 if the extractor doesn't provide it.
+     */
+    public float getOrientation(int feature) {
+        return orientation[check(feature)];
+    }
+
+    /**
+     * @return the descriptors, row i belongs to feature i. The matrix is shared, so don't modify it.
+     */
+    public FeatureMatrix getDescriptors() {
+        return descriptors;
+    }
+
+    /**
+     * Copies a descriptor into a double array.
+     *
+     * @param feature the index of the feature.
+     * @param target  the array to copy to, a new one is created if it is null.
+     * @return the target array.
+     */
+    public double[] getDescriptor(int feature, double[] target) {
+        return descriptors.getRow(check(feature), target);
+    }
+
+    /**
+     * Writes the features with float precision, 4 * (4 + dimensions) bytes per feature.
+     *
+     * @param out the output to write to.
+     * @see #read(DataInput)
+     */
+    public void write(DataOutput out) throws IOException {
+        int dimensions = Math.max(getDimensions(), 0);
+        out.writeInt(count);
+        out.writeInt(dimensions);
+        for (int i = 0; i < count; i++) {
+            out.writeFloat(x[i]);
+            out.writeFloat(y[i]);
+            out.writeFloat(size[i]);
+            out.writeFloat(orientation[i]);
+            float[] data = descriptors.getBlock(i);
+            int offset = descriptors.getOffset(i);
+            for (int j = 0; j < dimensions; j++) out.writeFloat(data[offset + j]);
+        }
+    }
+
+    /**
+     * Reads features written with {@link #write(DataOutput)}.
+     *
+     * @param in the input to read from.
+     * @return the feature set.
+     */
+    public static LocalFeatureSet read(DataInput in) throws IOException {
+        int count = in.readInt(), dimensions = in.readInt();
+        LocalFeatureSet result = new LocalFeatureSet(dimensions, count);
+        float[] descriptor = new float[dimensions];
+        for (int i = 0; i < count; i++) {
+            float x = in.readFloat(), y = in.readFloat(), size = in.readFloat(), orientation = in.readFloat();
+            for (int j = 0; j < dimensions; j++) descriptor[j] = in.readFloat();
+            result.add(x, y, size, orientation, descriptor);
+        }
+        return result;
+    }
+
+    /**
+     * Releases the memory reserved for more features.
+     */
+    public void trimToSize() {
+        x = Arrays.copyOf(x, count);
+        y = Arrays.copyOf(y, count);
+        size = Arrays.copyOf(size, count);
+        orientation = Arrays.copyOf(orientation, count);
+        descriptors.trimToSize();
+    }
+
+    private int check(int feature) {
+        if (feature >= count) throw new IndexOutOfBoundsException("Feature " + feature + " of " + count);
+        return feature;
+    }
+
+    /**
+     * A feature of the set as returned by {@link #toList()}.
+     */
+    private static class Feature implements LocalFeature {
+        private final double x, y, size;
+        private double[] descriptor;
+
+        Feature(double x, double y, double size, double[] descriptor) {
+            this.x = x;
+            this.y = y;
+            this.size = size;
+            this.descriptor = descriptor;
+        }
+
+        @Override
+        public double getX() {
+            return x;
+        }
+
+        @Override
+        public double getY() {
+            return y;
+        }
+
+        @Override
+        public double getSize() {
+            return size;
+        }
+
+        @Override
+        public Class<?> getClassOfExtractor() {
+            return null;
+        }
+
+        @Override
+        public String getFeatureName() {
+            return "Local feature";
+        }
+
+        @Override
+        public String getFieldName() {
+            return null;
+        }
+
+        @Override
+        public byte[] getByteArrayRepresentation() {
+            return SerializationUtils.toByteArray(descriptor);
+        }
+
+        @Override
+        public void setByteArrayRepresentation(byte[] featureData) {
+            descriptor = SerializationUtils.toDoubleArray(featureData);
+        }
+
+        @Override
+        public void setByteArrayRepresentation(byte[] featureData, int offset, int length) {
+            descriptor = SerializationUtils.toDoubleArray(featureData, offset, length);
+        }
+
+        @Override
+        public double getDistance(LireFeature feature) {
+            return MetricsUtils.distL2(descriptor, feature.getFeatureVector());
+        }
+
+        @Override
+        public double[] getFeatureVector() {
+            return descriptor;
+        }
+    }
+}
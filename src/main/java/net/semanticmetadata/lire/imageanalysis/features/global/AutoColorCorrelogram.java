@@ -42,15 +42,16 @@ package net.semanticmetadata.lire.imageanalysis.features.global;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.correlogram.DynamicProgrammingAutoCorrelogramExtraction;
 import net.semanticmetadata.lire.imageanalysis.features.global.correlogram.IAutoCorrelogramFeatureExtractor;
 import net.semanticmetadata.lire.imageanalysis.features.global.correlogram.MLuxAutoCorrelogramExtraction;
 import net.semanticmetadata.lire.imageanalysis.features.global.correlogram.NaiveAutoCorrelogramExtraction;
 import net.semanticmetadata.lire.utils.ConversionUtils;
+import net.semanticmetadata.lire.utils.ImageUtils;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.Raster;
 
 /**
  * <p>Feature for the AutoCorrelogram based on color as described in
@@ -219,28 +220,14 @@ public class AutoColorCorrelogram implements GlobalFeature {
 //        }
     }
 
-    private static int[][][] hsvImage(Raster r) {
-        int[][][] pixels = new int[r.getWidth()][r.getHeight()][3];
-        // quantize colors for each pixel (done in HSV color space):
-        int[] pixel = new int[3];
-        for (int x = 0; x < r.getWidth(); x++) {
-            for (int y = 0; y < r.getHeight(); y++) {
-                // converting to HSV:
-                int[] hsv = new int[3];
-                convertRgbToHsv(r.getPixel(x, y, pixel), hsv);
-                // quantize the actual pixel:
-                pixels[x][y] = hsv;
-            }
-        }
-        return pixels;
-
+    @Override
+    public void extract(BufferedImage bi) {
+        extract(ImageUtils.getHsvPixels(bi.getRaster()));
     }
 
     @Override
-    public void extract(BufferedImage bi) {
-        final Raster r = bi.getRaster();
-        int[][][] hsvImage = hsvImage(r);
-        extract(hsvImage);
+    public void extract(ImageContext context) {
+        extract(context.getHsvPixels());
     }
 
     @Override
@@ -359,57 +346,6 @@ public class AutoColorCorrelogram implements GlobalFeature {
                 + (int) (pixel[2] / quantV));
     }
 
-    /**
-     * @param rgb RGB Values
-     * @param hsv HSV values to set.
-     */
-    private static void convertRgbToHsv(int[] rgb, int[] hsv) {     //TODO: Conversion
-        if (hsv.length < 3) {
-            throw new IndexOutOfBoundsException("HSV array too small, a minim of three elements is required.");
-        }
-        int R = rgb[0];
-        int G = rgb[1];
-        int B = rgb[2];
-        int max, min;
-        float hue = 0f;
-
-        max = Math.max(R, G);     //calculation of max(R,G,B)
-        max = Math.max(max, B);
-
-        min = Math.min(R, G);     //calculation of min(R,G,B)
-        min = Math.min(min, B);
-
-        if (max == 0)
-            hsv[1] = 0;
-        else {
-            // Saturation in [0,255]
-            hsv[1] = (int) (((max - min) / (float) max) * 255f);
-        }
-
-        if (max == min) {
-            hue = 0;     // (max - min) = 0
-        } else {
-            float maxMinusMin = (float) (max - min);
-            if (R == max)
-                hue = ((G - B) / maxMinusMin);
-
-            else if (G == max)
-                hue = (2 + (B - R) / maxMinusMin);
-
-            else if (B == max)
-                hue = (4 + (R - G) / maxMinusMin);
-
-            hue *= 60f;
-
-            if (hue < 0f)
-                hue += 360f;
-        }
-        // hue in [0,359]
-        hsv[0] = (int) (hue);
-        // value in [0,255]
-        hsv[2] = max;
-    }
-
     @Override
     public double getDistance(LireFeature vd) {
         if (!(vd instanceof AutoColorCorrelogram)) return -1;
@@ -43,13 +43,12 @@ package net.semanticmetadata.lire.imageanalysis.features.global;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.cedd.*;
-import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferInt;
 import java.util.Arrays;
 
 /**
@@ -97,7 +96,11 @@ public class CEDD implements GlobalFeature {
     // signature changed by mlux
     @Override
     public void extract(BufferedImage image) {
-        image = ImageUtils.get8BitRGBImage(image);
+        extract(new ImageContext(image));
+    }
+
+    @Override
+    public void extract(ImageContext context) {
         Fuzzy10Bin Fuzzy10 = new Fuzzy10Bin(false);
         Fuzzy24Bin Fuzzy24 = new Fuzzy24Bin(false);
         RGB2HSV HSVConverter = new RGB2HSV();
@@ -107,8 +110,8 @@ public class CEDD implements GlobalFeature {
         double[] Fuzzy24BinResultTable = new double[24];
         double[] CEDD = new double[144];
 
-        int width = image.getWidth();
-        int height = image.getHeight();
+        int width = context.getWidth();
+        int height = context.getHeight();
 
 
         double[][] ImageGrid = new double[width][height];
@@ -158,15 +161,13 @@ public class CEDD implements GlobalFeature {
         int pixel, r, g, b;
 
         // extraction is based on a speedup fix from Michael Riegler & Konstantin Pogorelov
-        BufferedImage image_rgb = new BufferedImage(width, height, BufferedImage.TYPE_INT_BGR);
-        image_rgb.getGraphics().drawImage(image, 0, 0, null);
-        int[] pixels = ((DataBufferInt) image_rgb.getRaster().getDataBuffer()).getData();
+        int[] pixels = context.getPackedRGB();
         for (int x = 0; x < width; x++) {
             for (int y = 0; y < height; y++) {
                 pixel = pixels[y * width + x];
-                b = (pixel >> 16) & 0xFF;
+                r = (pixel >> 16) & 0xFF;
                 g = (pixel >> 8) & 0xFF;
-                r = (pixel) & 0xFF;
+                b = (pixel) & 0xFF;
                 ImageGridRed[x][y] = r;
                 ImageGridGreen[x][y] = g;
                 ImageGridBlue[x][y] = b;
@@ -191,8 +192,8 @@ public class CEDD implements GlobalFeature {
         int TempSum = 0;
         double Max = 0;
 
-        int TemoMAX_X = Step_X * (int) Math.floor(image.getWidth() >> 1);
-        int TemoMAX_Y = Step_Y * (int) Math.floor(image.getHeight() >> 1);
+        int TemoMAX_X = Step_X * (int) Math.floor(width >> 1);
+        int TemoMAX_Y = Step_Y * (int) Math.floor(height >> 1);
 
         if (NumberOfBlocks > 0) {
             TemoMAX_X = Step_X * (int) Math.sqrt(NumberOfBlocks);
@@ -42,14 +42,13 @@ package net.semanticmetadata.lire.imageanalysis.features.global;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.como.*;
-import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.MetricsUtils;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferInt;
 import java.util.Arrays;
 
 /**
@@ -71,25 +70,26 @@ public class COMO implements GlobalFeature {
 
     @Override
     public void extract(BufferedImage image) {
-        image = ImageUtils.get8BitRGBImage(image);
+        extract(new ImageContext(image));
+    }
 
-        int width = image.getWidth(), height = image.getHeight();
+    @Override
+    public void extract(ImageContext context) {
+        int width = context.getWidth(), height = context.getHeight();
 
         double[][] ImageGrid = new double[width][height];
         int[][] ImageGridRed = new int[width][height];
         int[][] ImageGridGreen = new int[width][height];
         int[][] ImageGridBlue = new int[width][height];
         // extraction is based on a speedup fix from Michael Riegler & Konstantin Pogorelov
-        BufferedImage image_rgb = new BufferedImage(width, height, BufferedImage.TYPE_INT_BGR);
-        image_rgb.getGraphics().drawImage(image, 0, 0, null);
-        int[] pixels = ((DataBufferInt) image_rgb.getRaster().getDataBuffer()).getData();
+        int[] pixels = context.getPackedRGB();
         int pixel, r, g, b;
         for (int x = 0; x < width; x++) {
             for (int y = 0; y < height; y++) {
                 pixel = pixels[y * width + x];
-                b = (pixel >> 16) & 0xFF;
+                r = (pixel >> 16) & 0xFF;
                 g = (pixel >> 8) & 0xFF;
-                r = (pixel) & 0xFF;
+                b = (pixel) & 0xFF;
                 ImageGridRed[x][y] = r;
                 ImageGridGreen[x][y] = g;
                 ImageGridBlue[x][y] = b;
@@ -42,12 +42,11 @@ package net.semanticmetadata.lire.imageanalysis.features.global;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.fcth.*;
-import net.semanticmetadata.lire.utils.ImageUtils;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferInt;
 import java.util.Arrays;
 
 /**
@@ -77,6 +76,10 @@ public class FCTH implements GlobalFeature {
 
     // Apply filter
     public double[] Apply(BufferedImage image) {
+        return Apply(new ImageContext(image));
+    }
+
+    private double[] Apply(ImageContext context) {
         Fuzzy10Bin Fuzzy10 = new Fuzzy10Bin(false);
         Fuzzy24Bin Fuzzy24 = new Fuzzy24Bin(false);
         FuzzyFCTHpart FuccyFCTH = new FuzzyFCTHpart();
@@ -88,8 +91,8 @@ public class FCTH implements GlobalFeature {
 
 
         int Method = 2;
-        int width = image.getWidth();
-        int height = image.getHeight();
+        int width = context.getWidth();
+        int height = context.getHeight();
 
 
         for (int R = 0; R < 192; R++) {
@@ -110,15 +113,13 @@ public class FCTH implements GlobalFeature {
 
         int pixel, r,g,b;
         // extraction is based on a speedup fix from Michael Riegler & Konstantin Pogorelov
-        BufferedImage image_rgb = new BufferedImage(width, height, BufferedImage.TYPE_INT_BGR);
-        image_rgb.getGraphics().drawImage(image, 0, 0, null);
-        int[] pixels = ((DataBufferInt) image_rgb.getRaster().getDataBuffer()).getData();
+        int[] pixels = context.getPackedRGB();
         for (int x = 0; x < width; x++) {
             for (int y = 0; y < height; y++) {
                 pixel = pixels[y * width + x];
-                b = (pixel >> 16) & 0xFF;
+                r = (pixel >> 16) & 0xFF;
                 g = (pixel >> 8) & 0xFF;
-                r = (pixel) & 0xFF;
+                b = (pixel) & 0xFF;
                 ImageGridRed[x][y] = r;
                 ImageGridGreen[x][y] = g;
                 ImageGridBlue[x][y] = b;
@@ -364,8 +365,12 @@ public class FCTH implements GlobalFeature {
 
     @Override
     public void extract(BufferedImage bimg) {
-        bimg = ImageUtils.get8BitRGBImage(bimg);
-        histogram = Apply(bimg);
+        extract(new ImageContext(bimg));
+    }
+
+    @Override
+    public void extract(ImageContext context) {
+        histogram = Apply(context);
     }
 
     /**
@@ -42,6 +42,7 @@ package net.semanticmetadata.lire.imageanalysis.features.global;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 
 import java.awt.image.BufferedImage;
@@ -106,10 +107,15 @@ public class JCD implements GlobalFeature {
 
     @Override
     public void extract(BufferedImage bimg) {
+        extract(new ImageContext(bimg));
+    }
+
+    @Override
+    public void extract(ImageContext context) {
         CEDD c = new CEDD();
-        c.extract(bimg);
+        c.extract(context);
         FCTH f = new FCTH();
-        f.extract(bimg);
+        f.extract(context);
         init(c, f);
     }
 /*
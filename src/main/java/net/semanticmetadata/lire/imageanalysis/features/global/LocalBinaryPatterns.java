@@ -43,6 +43,7 @@ package net.semanticmetadata.lire.imageanalysis.features.global;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.MetricsUtils;
@@ -61,13 +62,17 @@ public class LocalBinaryPatterns implements GlobalFeature {
 
     @Override
     public void extract(BufferedImage image) {
+        extract(new ImageContext(image));
+    }
+
+    @Override
+    public void extract(ImageContext context) {
         Arrays.fill(histogram, 0d);
-        extractRadiusWithOne(image);
+        // intensity only.
+        extractRadiusWithOne(context.getGrayscaleImage().getRaster());
     }
 
-    private void extractRadiusWithOne(BufferedImage image) {
-        // first convert to intensity only.
-        WritableRaster raster = ImageUtils.getGrayscaleImage(image).getRaster();
+    private void extractRadiusWithOne(WritableRaster raster) {
         // cached pixel array
         int[] pixel = new int[9];
         int bin = 0;
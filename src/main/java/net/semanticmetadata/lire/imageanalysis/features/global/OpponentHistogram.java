@@ -43,8 +43,8 @@ package net.semanticmetadata.lire.imageanalysis.features.global;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
-import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.MetricsUtils;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 
@@ -89,8 +89,13 @@ public class OpponentHistogram implements GlobalFeature {
 
     @Override
     public void extract(BufferedImage bimg) {
-        // check if it's (i) RGB and (ii) 8 bits per pixel.
-        bimg = ImageUtils.get8BitRGBImage(bimg);
+        extract(new ImageContext(bimg));
+    }
+
+    @Override
+    public void extract(ImageContext context) {
+        // the RGB image of the context is 8 bits per pixel.
+        BufferedImage bimg = context.getRGBImage();
         // extract:
         double[] histogram = new double[64];
         for (int i = 0; i < histogram.length; i++) {
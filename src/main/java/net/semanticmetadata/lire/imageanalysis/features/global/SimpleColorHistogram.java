@@ -42,10 +42,10 @@ package net.semanticmetadata.lire.imageanalysis.features.global;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.imageanalysis.utils.ColorConversion;
 import net.semanticmetadata.lire.utils.ConversionUtils;
-import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.MetricsUtils;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 
@@ -195,7 +195,12 @@ public class SimpleColorHistogram implements GlobalFeature {
      */
     @Override
     public void extract(BufferedImage image) {
-        image = ImageUtils.get8BitRGBImage(image);
+        extract(new ImageContext(image));
+    }
+
+    @Override
+    public void extract(ImageContext context) {
+        BufferedImage image = context.getRGBImage();
         Arrays.fill(histogram, 0);
         WritableRaster raster = image.getRaster();
         for (int x = 0; x < image.getWidth(); x++) {
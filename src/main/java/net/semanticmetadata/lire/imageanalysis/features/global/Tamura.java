@@ -43,6 +43,7 @@ package net.semanticmetadata.lire.imageanalysis.features.global;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.SerializationUtils;
@@ -276,8 +277,15 @@ public class Tamura implements GlobalFeature {
 
     @Override
     public void extract(BufferedImage image) {
+        extract(new ImageContext(image));
+    }
+
+    @Override
+    public void extract(ImageContext context) {
         histogram = new double[18];
         double[] directionality;
+        // gray conversion first, then scaling, the descriptor values depend on the order.
+        BufferedImage image = context.getImage();
         ColorConvertOp op = new ColorConvertOp(image.getColorModel().getColorSpace(),
                 ColorSpace.getInstance(ColorSpace.CS_GRAY),
                 new RenderingHints(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_QUALITY));
@@ -41,6 +41,7 @@ package net.semanticmetadata.lire.imageanalysis.features.local.sift;
 
 import net.semanticmetadata.lire.imageanalysis.features.LocalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureExtractor;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureSet;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
@@ -146,6 +147,19 @@ public class SiftExtractor implements LocalFeatureExtractor{
         return features;
     }
 
+    /**
+     * Copies the features including their orientation.
+     */
+    @Override
+    public LocalFeatureSet getFeatureSet() {
+        if (features == null) throw new IllegalStateException("No features, extract(...) has not been called yet.");
+        LocalFeatureSet result = new LocalFeatureSet(features.isEmpty() ? 0 : features.get(0).descriptor.length, features.size());
+        for (SiftFeature f : features) {
+            result.add(f.location[0], f.location[1], f.scale, f.orientation, f.descriptor);
+        }
+        return result;
+    }
+
     @Override
     public Class<? extends LocalFeature> getClassOfFeatures() {
         return SiftFeature.class;
@@ -4,6 +4,7 @@ import com.stromberglabs.jopensurf.SURFInterestPoint;
 import com.stromberglabs.jopensurf.Surf;
 import net.semanticmetadata.lire.imageanalysis.features.LocalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureExtractor;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureSet;
 
 import java.awt.image.BufferedImage;
 import java.util.LinkedList;
@@ -15,14 +16,34 @@ import java.util.List;
  * @author Nektarios
  */
 public class SurfExtractor implements LocalFeatureExtractor {
+    List<SURFInterestPoint> interestPoints = null;
     LinkedList<SurfFeature> features = null;
 
 
     @Override
     public List<? extends LocalFeature> getFeatures() {
+        if (features == null && interestPoints != null) {
+            features = new LinkedList<SurfFeature>();
+            for (SURFInterestPoint interestPoint : interestPoints) {
+                features.add(new SurfFeature(interestPoint));
+            }
+        }
         return features;
     }
 
+    /**
+     * Fills the set directly from the interest points, without creating a {@link SurfFeature} for each one.
+     */
+    @Override
+    public LocalFeatureSet getFeatureSet() {
+        if (interestPoints == null) throw new IllegalStateException("No features, extract(...) has not been called yet.");
+        LocalFeatureSet result = new LocalFeatureSet(interestPoints.isEmpty() ? 0 : interestPoints.get(0).getDescriptor().length, interestPoints.size());
+        for (SURFInterestPoint p : interestPoints) {
+            result.add(p.getX(), p.getY(), p.getScale(), p.getOrientation(), p.getDescriptor());
+        }
+        return result;
+    }
+
     @Override
     public Class<? extends LocalFeature> getClassOfFeatures() {
         return SurfFeature.class;
@@ -31,10 +52,7 @@ public class SurfExtractor implements LocalFeatureExtractor {
     @Override
     public void extract(BufferedImage image) {
         Surf s = new Surf(image);
-        List<SURFInterestPoint> interestPoints = s.getFreeOrientedInterestPoints();
-        features = new LinkedList<SurfFeature>();
-        for (SURFInterestPoint interestPoint : interestPoints) {
-            features.add(new SurfFeature(interestPoint));
-        }
+        interestPoints = s.getFreeOrientedInterestPoints();
+        features = null;
     }
 }
@@ -42,7 +42,6 @@
 package net.semanticmetadata.lire.indexers.hashing;
 
 import java.io.*;
-import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -69,14 +68,7 @@ public class BitSampling {
     public static int dimensions = 640;
 
     public static final String hashFunctionsFileName = "LshBitSampling.obj";
-    private static double[][][] hashes = null;
-    private static double[] lookUp = new double[32];
-
-    static {
-        for (int i = 0; i < lookUp.length; i++) {
-            lookUp[i] = Math.pow(2, i);
-        }
-    }
+    private static volatile BitSamplingHashFamily hashFamily = null;
 
     /**
      * Generate new hash functions.
@@ -139,29 +131,14 @@ public class BitSampling {
     /**
      * Reads a file from disk, where the hash bundles are specified. Make sure to generate it first
      * and make sure to re-use it for search. This method reads the in class specified file relative
-     * to the execution directory.
+     * to the execution directory. The hash functions are read only once, see {@link BitSamplingHashFamily#getDefault()}.
      *
      * @return
      * @throws IOException
      */
     public static double[][][] readHashFunctions() throws IOException {
-        ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(BitSampling.class.getResourceAsStream(hashFunctionsFileName)));
-        int bits = ois.readInt();
-        int dimensions = ois.readInt();
-        int numFunctionBundles = ois.readInt();
-
-        double[][][] hashFunctions = new double[numFunctionBundles][bits][dimensions];
-        for (int i = 0; i < hashFunctions.length; i++) {
-            double[][] functionBundle = hashFunctions[i];
-            for (int j = 0; j < functionBundle.length; j++) {
-                double[] bitFunctions = functionBundle[j];
-                for (int k = 0; k < bitFunctions.length; k++) {
-                    bitFunctions[k] = (double) ois.readFloat();
-                }
-            }
-        }
-        BitSampling.hashes = hashFunctions;
-        return hashFunctions;
+        BitSampling.hashFamily = BitSamplingHashFamily.getDefault();
+        return hashFamily.toArray();
     }
 
     /**
@@ -173,46 +150,39 @@ public class BitSampling {
      * @throws IOException
      */
     public static double[][][] readHashFunctions(InputStream inputStream) throws IOException {
-        ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(inputStream));
-        int bits = ois.readInt();
-        int dimensions = ois.readInt();
-        int numFunctionBundles = ois.readInt();
-
-        double[][][] hashFunctions = new double[numFunctionBundles][bits][dimensions];
-        for (int i = 0; i < hashFunctions.length; i++) {
-            double[][] functionBundle = hashFunctions[i];
-            for (int j = 0; j < functionBundle.length; j++) {
-                double[] bitFunctions = functionBundle[j];
-                for (int k = 0; k < bitFunctions.length; k++) {
-                    bitFunctions[k] = ois.readFloat();
-                }
-            }
-        }
-        BitSampling.hashes = hashFunctions;
-        return hashFunctions;
+        BitSampling.hashFamily = BitSamplingHashFamily.read(inputStream);
+        return hashFamily.toArray();
     }
 
     /**
-     * Generates and returns the hashes for a given histogram input.
+     * Generates and returns the hashes for a given histogram input based on the current hash functions. If none
+     * have been set or read, the default ones are used.
      *
      * @param histogram
      * @return
      */
     public static int[] generateHashes(double[] histogram) {
-        double val;
-        int[] hashResults = new int[hashes.length];
-        for (int i = 0; i < hashes.length; i++) {
-            double[][] hashBundle = hashes[i];
-            for (int j = 0; j < hashBundle.length; j++) {
-                val = 0d;
-                double[] hashBit = hashBundle[j];
-                for (int k = 0; k < histogram.length; k++) {
-                    val += hashBit[k] * histogram[k];
-                }
-                hashResults[i] += lookUp[j] * (val < 0 ? 0 : 1);
+        return getHashFamily().generateHashes(histogram);
+    }
+
+    /**
+     * @return the hash functions used by the static methods of this class.
+     */
+    public static BitSamplingHashFamily getHashFamily() {
+        BitSamplingHashFamily family = hashFamily;
+        if (family == null) {
+            try {
+                family = BitSamplingHashFamily.getDefault();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read hash functions: " + e.getMessage(), e);
             }
+            hashFamily = family;
         }
-        return hashResults;
+        return family;
+    }
+
+    public static void setHashFamily(BitSamplingHashFamily hashFamily) {
+        BitSampling.hashFamily = hashFamily;
     }
 
     public static void setW(double w) {
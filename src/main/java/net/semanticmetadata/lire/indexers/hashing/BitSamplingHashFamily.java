@@ -0,0 +1,224 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.indexers.hashing;
+
+import java.io.*;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Immutable set of hash functions for {@link BitSampling}. There are numFunctionBundles bundles of bits random
+ * hyperplanes each, every bundle results in one hash value with one bit per hyperplane, depending on the side of the
+ * hyperplane the feature vector lies on.
+ * <p/>
+ * Use {@link #getDefault()} for the hash functions shipped with LIRE. It's read once per JVM and shared by all
+ * searchers and document builders. To use a different configuration, create or read another instance and hand it to
+ * the searcher or the {@link net.semanticmetadata.lire.builders.GlobalDocumentBuilder}, both configurations can be
+ * used side by side.
+ */
+public class BitSamplingHashFamily extends HashFamily {
+    private final int bits;
+    private final int numFunctionBundles;
+
+    public BitSamplingHashFamily(int bits, int dimensions, int numFunctionBundles, float[] projections) {
+        this(bits, dimensions, numFunctionBundles, FloatBuffer.wrap(projections));
+    }
+
+    BitSamplingHashFamily(int bits, int dimensions, int numFunctionBundles, FloatBuffer projections) {
+        super(numFunctionBundles * bits, dimensions, projections);
+        if (bits > 31) throw new IllegalArgumentException("A hash can hold at most 31 bits.");
+        this.bits = bits;
+        this.numFunctionBundles = numFunctionBundles;
+    }
+
+    /**
+     * Creates new random hash functions.
+     *
+     * @param bits               number of bits per hash.
+     * @param dimensions         maximum length of the feature vectors.
+     * @param numFunctionBundles number of hashes per feature vector.
+     * @param w                  the hyperplane coefficients are drawn uniformly from [-w/2, w/2).
+     * @param random             the source of randomness.
+     * @return the new hash functions.
+     */
+    public static BitSamplingHashFamily generate(int bits, int dimensions, int numFunctionBundles, double w, Random random) {
+        float[] projections = new float[numFunctionBundles * bits * dimensions];
+        for (int i = 0; i < projections.length; i++) {
+            projections[i] = (float) (random.nextDouble() * w - w / 2);
+        }
+        return new BitSamplingHashFamily(bits, dimensions, numFunctionBundles, projections);
+    }
+
+    /**
+     * Returns the hash functions from the class path, see {@link BitSampling#hashFunctionsFileName}.
+     *
+     * @return the shared default instance.
+     * @throws IOException if the hash functions cannot be read.
+     */
+    public static BitSamplingHashFamily getDefault() throws IOException {
+        BitSamplingHashFamily result = DefaultHolder.instance;
+        if (result == null) {
+            synchronized (DefaultHolder.class) {
+                result = DefaultHolder.instance;
+                if (result == null) {
+                    InputStream in = BitSampling.class.getResourceAsStream(BitSampling.hashFunctionsFileName);
+                    if (in == null)
+                        throw new FileNotFoundException("Could not find " + BitSampling.hashFunctionsFileName + " in the class path.");
+                    try {
+                        result = read(in);
+                    } finally {
+                        in.close();
+                    }
+                    DefaultHolder.instance = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads hash functions from a file, either in the packed format (memory mapped) or in the format written by
+     * {@link BitSampling#generateHashFunctions()}.
+     *
+     * @param file the file to read.
+     * @return the hash functions.
+     * @throws IOException
+     */
+    public static BitSamplingHashFamily read(File file) throws IOException {
+        HashFamily family = HashFamily.read(file);
+        if (!(family instanceof BitSamplingHashFamily))
+            throw new IOException(file.getPath() + " does not contain BitSampling hash functions.");
+        return (BitSamplingHashFamily) family;
+    }
+
+    /**
+     * Reads hash functions from a stream, either in the packed format or in the format written by
+     * {@link BitSampling#generateHashFunctions()}.
+     *
+     * @param in the stream, it's not closed.
+     * @return the hash functions.
+     * @throws IOException
+     */
+    public static BitSamplingHashFamily read(InputStream in) throws IOException {
+        if (!in.markSupported()) in = new BufferedInputStream(in);
+        in.mark(MAGIC.length);
+        byte[] magic = new byte[MAGIC.length];
+        int read = new DataInputStream(in).read(magic);
+        in.reset();
+        if (read == MAGIC.length && java.util.Arrays.equals(magic, MAGIC)) {
+            HashFamily family = readPacked(in);
+            if (!(family instanceof BitSamplingHashFamily))
+                throw new IOException("Stream does not contain BitSampling hash functions.");
+            return (BitSamplingHashFamily) family;
+        }
+        return readLegacy(in);
+    }
+
+    /**
+     * Reads the GZIP'd object stream written by {@link BitSampling#generateHashFunctions()}.
+     */
+    static BitSamplingHashFamily readLegacy(InputStream in) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(in));
+        int bits = ois.readInt();
+        int dimensions = ois.readInt();
+        int numFunctionBundles = ois.readInt();
+        float[] projections = new float[numFunctionBundles * bits * dimensions];
+        for (int i = 0; i < projections.length; i++) {
+            projections[i] = ois.readFloat();
+        }
+        return new BitSamplingHashFamily(bits, dimensions, numFunctionBundles, projections);
+    }
+
+    @Override
+    public void write(File file) throws IOException {
+        DataOutputStream dos = createPackedOutput(file, TYPE_BIT_SAMPLING);
+        try {
+            dos.writeInt(bits);
+            dos.writeInt(dimensions);
+            dos.writeInt(numFunctionBundles);
+            writeFloats(dos, projections);
+        } finally {
+            dos.close();
+        }
+    }
+
+    @Override
+    protected void toHashes(double[] products, int offset, int[] hashes) {
+        for (int i = 0; i < numFunctionBundles; i++) {
+            int hash = 0;
+            int rowOffset = offset + i * bits;
+            for (int j = 0; j < bits; j++) {
+                if (products[rowOffset + j] >= 0) hash |= 1 << j;
+            }
+            hashes[i] = hash;
+        }
+    }
+
+    @Override
+    public int getNumberOfHashes() {
+        return numFunctionBundles;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    public int getNumFunctionBundles() {
+        return numFunctionBundles;
+    }
+
+    /**
+     * Copies the hash functions to the array layout used by {@link BitSampling#readHashFunctions()}.
+     *
+     * @return hash functions as [bundle][bit][dimension]
+     */
+    public double[][][] toArray() {
+        double[][][] hashFunctions = new double[numFunctionBundles][bits][dimensions];
+        for (int i = 0; i < numFunctionBundles; i++) {
+            for (int j = 0; j < bits; j++) {
+                int offset = (i * bits + j) * dimensions;
+                for (int k = 0; k < dimensions; k++) {
+                    hashFunctions[i][j][k] = projections.get(offset + k);
+                }
+            }
+        }
+        return hashFunctions;
+    }
+
+    private static class DefaultHolder {
+        static volatile BitSamplingHashFamily instance = null;
+    }
+}
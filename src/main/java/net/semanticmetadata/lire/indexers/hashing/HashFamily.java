@@ -0,0 +1,310 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.indexers.hashing;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Base class for hash families based on random projections, ie. {@link BitSamplingHashFamily} and
+ * {@link LshHashFamily}. Each hash is computed from one or more dot products of the feature vector with the rows of
+ * a projection matrix. The matrix is stored row-major in one FloatBuffer, and all rows are multiplied at once, four
+ * rows at a time for single vectors and in blocks of vectors for bulk hashing, so each row is read from memory once
+ * per block.
+ * <p/>
+ * Instances are immutable and can be shared among threads, searchers and document builders. The packed file format
+ * written by {@link #write(File)} consists of a small header and the raw floats. On {@link #read(File)} the file is
+ * memory mapped and the projection matrix is read from the mapping, it is not copied to the heap.
+ */
+public abstract class HashFamily {
+    static final byte[] MAGIC = new byte[]{(byte) 0x89, 'L', 'H', 'F'};
+    static final int TYPE_BIT_SAMPLING = 1;
+    static final int TYPE_LSH = 2;
+    // number of vectors multiplied with the projection matrix in one go.
+    private static final int BLOCK_SIZE = 16;
+
+    protected final int dimensions;
+    protected final int rows;
+    // read with absolute gets only, so the buffer can be shared among threads.
+    protected final FloatBuffer projections;
+
+    protected HashFamily(int rows, int dimensions, float[] projections) {
+        this(rows, dimensions, FloatBuffer.wrap(projections));
+    }
+
+    /**
+     * @param projections the projection matrix from position 0 to the limit of the buffer.
+     */
+    HashFamily(int rows, int dimensions, FloatBuffer projections) {
+        if (projections.limit() != rows * dimensions)
+            throw new IllegalArgumentException("Projection matrix has to have " + rows + "x" + dimensions + " entries.");
+        this.rows = rows;
+        this.dimensions = dimensions;
+        this.projections = projections;
+    }
+
+    /**
+     * Converts the dot products of one vector with all rows to the actual hashes.
+     *
+     * @param products the products of the vector with the rows, starting at offset.
+     * @param offset   where the products of the vector start.
+     * @param hashes   the array to write the hashes to.
+     */
+    protected abstract void toHashes(double[] products, int offset, int[] hashes);
+
+    /**
+     * @return the number of hashes generated per feature vector.
+     */
+    public abstract int getNumberOfHashes();
+
+    /**
+     * Writes the hash family in the packed format.
+     *
+     * @param file the file to write to, it's overwritten.
+     * @throws IOException
+     */
+    public abstract void write(File file) throws IOException;
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Generates the hashes for a single feature vector.
+     *
+     * @param vector the feature vector, must not be longer than {@link #getDimensions()}.
+     * @return the hashes.
+     */
+    public int[] generateHashes(double[] vector) {
+        checkLength(vector);
+        double[] products = new double[rows];
+        multiply(vector, 0, rows, products, 0);
+        int[] hashes = new int[getNumberOfHashes()];
+        toHashes(products, 0, hashes);
+        return hashes;
+    }
+
+    /**
+     * Generates the hashes for many feature vectors at once. The vectors are processed in blocks, so each row of
+     * the projection matrix is loaded once per block instead of once per vector.
+     *
+     * @param vectors the feature vectors, none of them longer than {@link #getDimensions()}.
+     * @return the hashes for each vector in the same order.
+     */
+    public int[][] generateHashes(double[][] vectors) {
+        int[][] result = new int[vectors.length][];
+        double[] products = new double[BLOCK_SIZE * rows];
+        for (int start = 0; start < vectors.length; start += BLOCK_SIZE) {
+            int end = Math.min(vectors.length, start + BLOCK_SIZE);
+            for (int i = start; i < end; i++) checkLength(vectors[i]);
+            // four rows at a time fit into the L1 cache and are re-used for all vectors in the block.
+            for (int r = 0; r < rows; r += 4) {
+                int rowEnd = Math.min(rows, r + 4);
+                for (int i = start; i < end; i++) {
+                    multiply(vectors[i], r, rowEnd, products, (i - start) * rows);
+                }
+            }
+            for (int i = start; i < end; i++) {
+                result[i] = new int[getNumberOfHashes()];
+                toHashes(products, (i - start) * rows, result[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the products of the vector with rows [from, to) and stores them at products[offset + row].
+     */
+    private void multiply(double[] vector, int from, int to, double[] products, int offset) {
+        int r = from;
+        for (; r + 4 <= to; r += 4) {
+            int o0 = r * dimensions, o1 = o0 + dimensions, o2 = o1 + dimensions, o3 = o2 + dimensions;
+            double p0 = 0d, p1 = 0d, p2 = 0d, p3 = 0d, v;
+            for (int k = 0; k < vector.length; k++) {
+                v = vector[k];
+                p0 += projections.get(o0 + k) * v;
+                p1 += projections.get(o1 + k) * v;
+                p2 += projections.get(o2 + k) * v;
+                p3 += projections.get(o3 + k) * v;
+            }
+            products[offset + r] = p0;
+            products[offset + r + 1] = p1;
+            products[offset + r + 2] = p2;
+            products[offset + r + 3] = p3;
+        }
+        for (; r < to; r++) {
+            products[offset + r] = dot(r, vector);
+        }
+    }
+
+    private double dot(int row, double[] vector) {
+        int offset = row * dimensions;
+        double product = 0d;
+        for (int k = 0; k < vector.length; k++) {
+            product += projections.get(offset + k) * vector[k];
+        }
+        return product;
+    }
+
+    private void checkLength(double[] vector) {
+        if (vector.length > dimensions)
+            throw new IllegalArgumentException("Feature vector too long for hashing: " + vector.length + " > " + dimensions);
+    }
+
+    /**
+     * Reads a hash family from a file. Files in the packed format are memory mapped and the projections are read
+     * from the mapping, which stays valid after the file is closed. Files written by
+     * {@link BitSampling#generateHashFunctions()} are read as BitSampling families.
+     *
+     * @param file the file to read.
+     * @return the hash family.
+     * @throws IOException
+     */
+    public static HashFamily read(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (channel.size() >= MAGIC.length) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                byte[] magic = new byte[MAGIC.length];
+                buffer.get(magic);
+                if (Arrays.equals(magic, MAGIC)) return readPacked(buffer);
+            }
+        } finally {
+            channel.close();
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return BitSamplingHashFamily.readLegacy(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a hash family in the packed format from a stream.
+     *
+     * @param in the stream, not closed by the method.
+     * @return the hash family.
+     * @throws IOException
+     */
+    static HashFamily readPacked(InputStream in) throws IOException {
+        DataInputStream dis = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        dis.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a packed hash function file.");
+        // the rest is read as a whole, so we can use the same code as for memory mapped files.
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(1024 * 1024);
+        byte[] tmp = new byte[1024 * 64];
+        int read;
+        while ((read = dis.read(tmp)) > 0) bos.write(tmp, 0, read);
+        return readPacked(ByteBuffer.wrap(bos.toByteArray()));
+    }
+
+    /**
+     * Reads the packed format, the buffer is positioned right after the magic number. Truncated files and header
+     * values out of range are reported with an IOException.
+     */
+    private static HashFamily readPacked(ByteBuffer buffer) throws IOException {
+        int type = getInt(buffer);
+        if (type == TYPE_BIT_SAMPLING) {
+            int bits = getInt(buffer);
+            int dimensions = getInt(buffer);
+            int numFunctionBundles = getInt(buffer);
+            if (bits < 1 || bits > 31) throw new IOException("Invalid number of bits in hash function file: " + bits);
+            FloatBuffer projections = slice(buffer, (long) numFunctionBundles * bits, dimensions);
+            return new BitSamplingHashFamily(bits, dimensions, numFunctionBundles, projections);
+        } else if (type == TYPE_LSH) {
+            int dimensions = getInt(buffer);
+            int numFunctionBundles = getInt(buffer);
+            if (buffer.remaining() < 8) throw new IOException("Hash function file is truncated.");
+            double binLength = buffer.getDouble();
+            float[] offsets = new float[checkCount(numFunctionBundles, buffer)];
+            buffer.asFloatBuffer().get(offsets);
+            buffer.position(buffer.position() + offsets.length * 4);
+            FloatBuffer projections = slice(buffer, numFunctionBundles, dimensions);
+            return new LshHashFamily(dimensions, numFunctionBundles, binLength, projections, offsets);
+        } else throw new IOException("Unknown type of hash functions: " + type);
+    }
+
+    private static int getInt(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) throw new IOException("Hash function file is truncated.");
+        return buffer.getInt();
+    }
+
+    /**
+     * Returns a view of the next rows x dimensions floats of the buffer, without copying them.
+     */
+    private static FloatBuffer slice(ByteBuffer buffer, long rows, int dimensions) throws IOException {
+        if (dimensions < 1) throw new IOException("Invalid number of dimensions in hash function file: " + dimensions);
+        int length = checkCount(rows * dimensions, buffer);
+        FloatBuffer result = buffer.asFloatBuffer();
+        result.limit(length);
+        return result.slice();
+    }
+
+    /**
+     * Checks that count is positive and that count floats are left in the buffer.
+     */
+    private static int checkCount(long count, ByteBuffer buffer) throws IOException {
+        if (count < 1 || count > Integer.MAX_VALUE)
+            throw new IOException("Invalid size in hash function file: " + count);
+        if (buffer.remaining() < count * 4L) throw new IOException("Hash function file is truncated.");
+        return (int) count;
+    }
+
+    /**
+     * Opens a stream for writing the packed format and writes magic number and type. The caller writes the rest of
+     * the header and the floats.
+     */
+    protected static DataOutputStream createPackedOutput(File file, int type) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024));
+        dos.write(MAGIC);
+        dos.writeInt(type);
+        return dos;
+    }
+
+    protected static void writeFloats(DataOutputStream dos, float[] data) throws IOException {
+        for (float f : data) dos.writeFloat(f);
+    }
+
+    protected static void writeFloats(DataOutputStream dos, FloatBuffer data) throws IOException {
+        for (int i = 0; i < data.limit(); i++) dos.writeFloat(data.get(i));
+    }
+}
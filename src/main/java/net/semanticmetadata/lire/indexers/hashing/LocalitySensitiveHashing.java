@@ -42,7 +42,6 @@
 package net.semanticmetadata.lire.indexers.hashing;
 
 import java.io.*;
-import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -62,8 +61,7 @@ public class LocalitySensitiveHashing {
     public static int numFunctionBundles = 50;     // k
     public static double binLength = 10;           // w
 
-    private static double[][] hashA = null;      // a
-    private static double[] hashB = null;        // b
+    private static volatile LshHashFamily hashFamily = null;
     private static double dilation = 1d;         // defines how "stretched out" the hash values are.
 
     /**
@@ -112,55 +110,59 @@ public class LocalitySensitiveHashing {
     }
 
     /**
-     * Reads a file from disk and sets the hash functions.
+     * Reads a file from disk and sets the hash functions. The file is read on each call with the current
+     * {@link #binLength}, so hash functions generated or a bin length set after the first call are picked up.
      *
      * @return
      * @throws IOException
      * @see LocalitySensitiveHashing#generateHashFunctions()
      */
     public static double[][] readHashFunctions() throws IOException {
-        return readHashFunctions(new FileInputStream(name));
+        setHashFamily(LshHashFamily.read(new File(name)));
+        return hashFamily.toArray();
     }
 
     public static double[][] readHashFunctions(InputStream in) throws IOException {
-        ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(in));
-        dimensions = ois.readInt();
-        numFunctionBundles = ois.readInt();
-        double[] tmpB = new double[numFunctionBundles];
-        for (int k = 0; k < numFunctionBundles; k++) {
-            tmpB[k] = ois.readFloat();
-        }
-        LocalitySensitiveHashing.hashB = tmpB;
-        double[][] hashFunctions = new double[numFunctionBundles][dimensions];
-        for (int i = 0; i < hashFunctions.length; i++) {
-            double[] functionBundle = hashFunctions[i];
-            for (int j = 0; j < functionBundle.length; j++) {
-                functionBundle[j] = ois.readFloat();
-            }
-        }
-        LocalitySensitiveHashing.hashA = hashFunctions;
-        return hashFunctions;
+        setHashFamily(LshHashFamily.read(in));
+        return hashFamily.toArray();
     }
 
     /**
-     * Generates the hashes from the given hash bundles.
+     * Generates the hashes from the given hash bundles. If no hash functions have been read or set, the default
+     * ones are used.
      *
      * @param histogram
      * @return
      */
     public static int[] generateHashes(double[] histogram) {
-        double product;
-        int[] result = new int[numFunctionBundles];
-        for (int k = 0; k < numFunctionBundles; k++) {
-            product = 0;
-            for (int i = 0; i < histogram.length; i++) {
-                product += histogram[i] * hashA[k][i];
+        return getHashFamily().generateHashes(histogram);
+    }
+
+    /**
+     * @return the hash functions used by the static methods of this class.
+     */
+    public static LshHashFamily getHashFamily() {
+        LshHashFamily family = hashFamily;
+        if (family == null) {
+            try {
+                family = LshHashFamily.getDefault();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read hash functions: " + e.getMessage(), e);
             }
-            result[k] = (int) Math.floor((product + hashB[k]) / binLength);
+            setHashFamily(family);
         }
-        return result;
+        return family;
     }
 
+    public static void setHashFamily(LshHashFamily hashFamily) {
+        LocalitySensitiveHashing.hashFamily = hashFamily;
+        dimensions = hashFamily.getDimensions();
+        numFunctionBundles = hashFamily.getNumberOfHashes();
+    }
+
+    public static String getHashFunctionsFileName() {
+        return name;
+    }
 
     /**
      * Returns a random number distributed with standard normal distribution based on the Box-Muller method.
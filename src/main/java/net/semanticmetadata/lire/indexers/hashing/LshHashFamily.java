@@ -0,0 +1,232 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.indexers.hashing;
+
+import java.io.*;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Immutable set of hash functions for {@link LocalitySensitiveHashing}. Each of the numFunctionBundles hashes is
+ * h(v) = floor((a*v + b) / binLength) with a drawn from a standard normal distribution and b from [0, binLength).
+ * <p/>
+ * {@link #getDefault()} reads the file {@link LocalitySensitiveHashing#getHashFunctionsFileName()} once per JVM.
+ * Other configurations can be read or generated and passed to searchers and document builders independently.
+ */
+public class LshHashFamily extends HashFamily {
+    private final int numFunctionBundles;
+    private final double binLength;
+    private final float[] offsets;
+
+    public LshHashFamily(int dimensions, int numFunctionBundles, double binLength, float[] projections, float[] offsets) {
+        this(dimensions, numFunctionBundles, binLength, FloatBuffer.wrap(projections), offsets);
+    }
+
+    LshHashFamily(int dimensions, int numFunctionBundles, double binLength, FloatBuffer projections, float[] offsets) {
+        super(numFunctionBundles, dimensions, projections);
+        if (offsets.length != numFunctionBundles)
+            throw new IllegalArgumentException("There has to be one offset per hash function.");
+        this.numFunctionBundles = numFunctionBundles;
+        this.binLength = binLength;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Creates new random hash functions.
+     *
+     * @param dimensions         maximum length of the feature vectors.
+     * @param numFunctionBundles number of hashes per feature vector.
+     * @param binLength          the bin length w.
+     * @param random             the source of randomness.
+     * @return the new hash functions.
+     */
+    public static LshHashFamily generate(int dimensions, int numFunctionBundles, double binLength, Random random) {
+        float[] offsets = new float[numFunctionBundles];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = (float) (random.nextDouble() * binLength);
+        }
+        float[] projections = new float[numFunctionBundles * dimensions];
+        for (int i = 0; i < projections.length; i++) {
+            projections[i] = (float) random.nextGaussian();
+        }
+        return new LshHashFamily(dimensions, numFunctionBundles, binLength, projections, offsets);
+    }
+
+    /**
+     * Returns the hash functions from {@link LocalitySensitiveHashing#getHashFunctionsFileName()}, read on first
+     * access with {@link LocalitySensitiveHashing#binLength}.
+     *
+     * @return the shared default instance.
+     * @throws IOException if the hash functions cannot be read.
+     */
+    public static LshHashFamily getDefault() throws IOException {
+        LshHashFamily result = DefaultHolder.instance;
+        if (result == null) {
+            synchronized (DefaultHolder.class) {
+                result = DefaultHolder.instance;
+                if (result == null) {
+                    result = read(new File(LocalitySensitiveHashing.getHashFunctionsFileName()));
+                    DefaultHolder.instance = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads hash functions from a file, either in the packed format (memory mapped) or in the format written by
+     * {@link LocalitySensitiveHashing#generateHashFunctions()}. For the latter the bin length is taken from
+     * {@link LocalitySensitiveHashing#binLength}.
+     *
+     * @param file the file to read.
+     * @return the hash functions.
+     * @throws IOException
+     */
+    public static LshHashFamily read(File file) throws IOException {
+        if (isPacked(file)) {
+            HashFamily family = HashFamily.read(file);
+            if (!(family instanceof LshHashFamily))
+                throw new IOException(file.getPath() + " does not contain LSH hash functions.");
+            return (LshHashFamily) family;
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return readLegacy(in, LocalitySensitiveHashing.binLength);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads hash functions from a stream, either in the packed format or in the format written by
+     * {@link LocalitySensitiveHashing#generateHashFunctions()}.
+     *
+     * @param in the stream, it's not closed.
+     * @return the hash functions.
+     * @throws IOException
+     */
+    public static LshHashFamily read(InputStream in) throws IOException {
+        if (!in.markSupported()) in = new BufferedInputStream(in);
+        in.mark(MAGIC.length);
+        byte[] magic = new byte[MAGIC.length];
+        int read = new DataInputStream(in).read(magic);
+        in.reset();
+        if (read == MAGIC.length && Arrays.equals(magic, MAGIC)) {
+            HashFamily family = readPacked(in);
+            if (!(family instanceof LshHashFamily))
+                throw new IOException("Stream does not contain LSH hash functions.");
+            return (LshHashFamily) family;
+        }
+        return readLegacy(in, LocalitySensitiveHashing.binLength);
+    }
+
+    /**
+     * Reads the GZIP'd object stream written by {@link LocalitySensitiveHashing#generateHashFunctions()}, which does
+     * not contain the bin length.
+     */
+    static LshHashFamily readLegacy(InputStream in, double binLength) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(in));
+        int dimensions = ois.readInt();
+        int numFunctionBundles = ois.readInt();
+        float[] offsets = new float[numFunctionBundles];
+        for (int k = 0; k < numFunctionBundles; k++) {
+            offsets[k] = ois.readFloat();
+        }
+        float[] projections = new float[numFunctionBundles * dimensions];
+        for (int i = 0; i < projections.length; i++) {
+            projections[i] = ois.readFloat();
+        }
+        return new LshHashFamily(dimensions, numFunctionBundles, binLength, projections, offsets);
+    }
+
+    private static boolean isPacked(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            return in.read(magic) == MAGIC.length && Arrays.equals(magic, MAGIC);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public void write(File file) throws IOException {
+        DataOutputStream dos = createPackedOutput(file, TYPE_LSH);
+        try {
+            dos.writeInt(dimensions);
+            dos.writeInt(numFunctionBundles);
+            dos.writeDouble(binLength);
+            writeFloats(dos, offsets);
+            writeFloats(dos, projections);
+        } finally {
+            dos.close();
+        }
+    }
+
+    @Override
+    protected void toHashes(double[] products, int offset, int[] hashes) {
+        for (int k = 0; k < numFunctionBundles; k++) {
+            hashes[k] = (int) Math.floor((products[offset + k] + offsets[k]) / binLength);
+        }
+    }
+
+    @Override
+    public int getNumberOfHashes() {
+        return numFunctionBundles;
+    }
+
+    public double getBinLength() {
+        return binLength;
+    }
+
+    /**
+     * @return the hash functions a in the layout returned by {@link LocalitySensitiveHashing#readHashFunctions()}.
+     */
+    public double[][] toArray() {
+        double[][] hashFunctions = new double[numFunctionBundles][dimensions];
+        for (int k = 0; k < numFunctionBundles; k++) {
+            for (int i = 0; i < dimensions; i++) {
+                hashFunctions[k][i] = projections.get(k * dimensions + i);
+            }
+        }
+        return hashFunctions;
+    }
+
+    private static class DefaultHolder {
+        static volatile LshHashFamily instance = null;
+    }
+}
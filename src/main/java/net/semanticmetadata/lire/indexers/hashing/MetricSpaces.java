@@ -4,10 +4,13 @@ import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
 import org.apache.commons.io.FilenameUtils;
 
-import javax.imageio.ImageIO;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 /**
  * This hashing approach implements the proximity approach "metric spaces" based on the work of Giuseppe Amato.
@@ -25,13 +28,32 @@ public class MetricSpaces {
 //    public static int lengthOfPostingList = 10;
 
     // for actual runtime in indexing and search we need per feature index structures:
-    static HashMap<String, ArrayList<GlobalFeature>> referencePoints = new HashMap<>();
+    static HashMap<String, ReferencePoints> referencePoints = new HashMap<>();
     static HashMap<String, Parameters> parameters = new HashMap<>();
     private static Class<? extends GlobalFeature> featureClass = CEDD.class;
 
+    /**
+     * If true, reference points are skipped based on the lower bounds from the pivot distances, see {@link ReferencePoints}.
+     * Only set to true for features with a metric distance function, the default CEDD with the Tanimoto coefficient
+     * is none, and pruning with its lower bounds may skip reference points that are actually among the nearest.
+     */
+    public static boolean usePivotPruning = false;
+
+    /**
+     * Number of threads used by {@link #generateHashStrings(List)} and {@link #generateHashLists(List)}.
+     */
+    public static int numThreads = Runtime.getRuntime().availableProcessors();
+    private static ExecutorService executor = null;
+    private static int executorThreads = 0;
+
+    // header of the binary reference point files.
+    private static final byte[] MSD_MAGIC = new byte[]{(byte) 0x89, 'M', 'S', 'D'};
+    private static final int MSD_VERSION = 1;
+
     public static void main(String[] args) {
         int numberOfReferencePoints = 500;
         int lenghtOfPostingList = 10;
+        ReferencePointsBuilder.Selection selection = ReferencePointsBuilder.Selection.Random;
         File inFile = null, outFile = null;
         for (int i = 0; i < args.length; i++) {
             String arg = args[i];
@@ -89,6 +111,21 @@ public class MetricSpaces {
                     System.err.println("There is something wrong with the parameters.");
                     printHelp();
                 }
+            } else if (arg.startsWith("-s")) {
+                // selection strategy
+                if ((i + 1) < args.length) {
+                    String strategy = args[i + 1].toLowerCase();
+                    if (strategy.startsWith("f")) selection = ReferencePointsBuilder.Selection.FarthestFirst;
+                    else if (strategy.startsWith("k")) selection = ReferencePointsBuilder.Selection.KMeansPlusPlus;
+                    else if (strategy.startsWith("r")) selection = ReferencePointsBuilder.Selection.Random;
+                    else {
+                        System.err.println("Unknown selection strategy: -s " + args[i + 1]);
+                        printHelp();
+                    }
+                } else {
+                    System.err.println("There is something wrong with the parameters.");
+                    printHelp();
+                }
             } else if (arg.startsWith("-h")) {
                 // help
                 printHelp();
@@ -110,7 +147,7 @@ public class MetricSpaces {
         System.out.println("------------------------------------------------------------");
         try {
             try {
-                indexReferencePoints(featureClass, numberOfReferencePoints, lenghtOfPostingList, inFile, outFile);
+                indexReferencePoints(featureClass, numberOfReferencePoints, lenghtOfPostingList, inFile, outFile, selection);
             } catch (IllegalAccessException e) {
                 e.printStackTrace();
             } catch (InstantiationException e) {
@@ -136,65 +173,130 @@ public class MetricSpaces {
      * @throws InstantiationException
      */
     public static void indexReferencePoints(Class globalFeatureClass, int numberOfReferencePoints, int lenghtOfPostingList, File inFile, File outFile) throws IOException, IllegalAccessException, InstantiationException {
-        BufferedReader br = new BufferedReader(new FileReader(inFile));
-        BufferedWriter bw = new BufferedWriter(new FileWriter(outFile), 1024 * 1024 * 25); // 25 M chars as a buffer
-        String line;
-        LinkedList<String> lines = new LinkedList<>();
-        // read all the file paths.
-        System.out.println("Reading input file.");
-        while ((line = br.readLine()) != null) {
-            if (!line.startsWith("#")) { // check for comments.
-                if (line.trim().length() > 1) { // check for empty ones.
-                    lines.add(line);
-                }
-            }
+        indexReferencePoints(globalFeatureClass, numberOfReferencePoints, lenghtOfPostingList, inFile, outFile, ReferencePointsBuilder.Selection.Random);
+    }
+
+    /**
+     * Index reference points for use with a specific feature. A file (infile) containing one image path per line is
+     * sampled, features are extracted in parallel and the reference points are selected with the given strategy, see
+     * {@link ReferencePointsBuilder}. The resulting data points plus configuration are written to a binary file (outfile).
+     *
+     * @param globalFeatureClass      The feature class to be used, eg. CEDD, PHOG, etc.
+     * @param numberOfReferencePoints the number of reference points, eg. 5000
+     * @param lenghtOfPostingList     the length of the posting list, ie. how many reference points per image are stored.
+     * @param inFile                  the file containing the image data, one image path per line
+     * @param outFile                 the output of processing.
+     * @param selection               how to select the reference points from the sample.
+     * @throws IOException
+     */
+    public static void indexReferencePoints(Class globalFeatureClass, int numberOfReferencePoints, int lenghtOfPostingList, File inFile, File outFile, ReferencePointsBuilder.Selection selection) throws IOException, IllegalAccessException, InstantiationException {
+        System.out.println("Sampling input file.");
+        ReferencePointsBuilder builder = new ReferencePointsBuilder(globalFeatureClass, selection);
+        List<GlobalFeature> points = builder.build(inFile, numberOfReferencePoints);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile));
+        try {
+            writeReferencePoints(out, globalFeatureClass, points, lenghtOfPostingList);
+        } finally {
+            out.close();
         }
-        br.close();
-        System.out.printf("Read %,d lines from the input file. Now selecting reference points.\n", lines.size());
-        // now for the randomness:
-        Collections.shuffle(lines);
-
-        // or using Java Math, creating a sampling permutation:
-//        RandomDataGenerator randomDataGenerator = new RandomDataGenerator();
-//        int[] ints = randomDataGenerator.nextPermutation(lines.size(), getNumberOfReferencePoints);
-
-        // now for the reference points:
-        GlobalFeature feature = (GlobalFeature) globalFeatureClass.newInstance();
-        // Write the parameters into the file:
-        bw.write("# Created " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + " by " + MetricSpaces.class.getName() + " \n");
-        bw.write(feature.getClass().getName() + "\n");
-        bw.write(numberOfReferencePoints + "," + lenghtOfPostingList + "\n");
-        System.out.print("Indexing ");
-        int i = 0;
-        for (Iterator<String> iterator = lines.iterator(); iterator.hasNext() && i < numberOfReferencePoints; ) {
-            String file = iterator.next();
-            try {
-                FileInputStream fis = new FileInputStream(file);
-                feature.extract(ImageIO.read(fis));
-                fis.close(); // and closing it again .. just to leave no open file pointers.
-                bw.write(Base64.getEncoder().encodeToString(feature.getByteArrayRepresentation()) + "\n");
-                i++;
-                if (i % (numberOfReferencePoints >> 5) == 0) {
-                    System.out.print('.');
-                }
-            } catch (Exception e) {
-                System.out.printf("Having problem \"%s\" with file %s\n", e.getMessage(), file);
-                // e.printStackTrace();
-            }
+    }
+
+    /**
+     * Writes reference points in the binary format. The header consists of a magic number, the format version, the
+     * feature class, the number of reference points, the length of the posting list and the record length. Every
+     * record starts with the length of the feature's byte[] representation and is padded to the record length, so
+     * reference point i is found at a fixed offset. The records are followed by a CRC32 checksum.
+     *
+     * @param out                 where to write the data to, not closed by the method.
+     * @param globalFeatureClass  the feature class of the reference points.
+     * @param points              the reference points.
+     * @param lengthOfPostingList the length of the posting list.
+     * @throws IOException
+     */
+    public static void writeReferencePoints(OutputStream out, Class globalFeatureClass, List<GlobalFeature> points, int lengthOfPostingList) throws IOException {
+        byte[][] data = new byte[points.size()][];
+        int maxLength = 0;
+        for (int i = 0; i < data.length; i++) {
+            data[i] = points.get(i).getByteArrayRepresentation();
+            maxLength = Math.max(maxLength, data[i].length);
+        }
+        int recordLength = 4 + maxLength;
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.write(MSD_MAGIC);
+        dos.writeInt(MSD_VERSION);
+        dos.writeUTF(globalFeatureClass.getName());
+        dos.writeUTF("Created " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + " by " + MetricSpaces.class.getName());
+        dos.writeInt(data.length);
+        dos.writeInt(lengthOfPostingList);
+        dos.writeInt(recordLength);
+        byte[] records = new byte[data.length * recordLength];
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        for (int i = 0; i < data.length; i++) {
+            buffer.putInt(i * recordLength, data[i].length);
+            System.arraycopy(data[i], 0, records, i * recordLength + 4, data[i].length);
         }
-        System.out.println();
-        bw.close();
+        dos.write(records);
+        CRC32 crc = new CRC32();
+        crc.update(records, 0, records.length);
+        dos.writeLong(crc.getValue());
+        dos.flush();
     }
 
     /**
      * Init with a single file. In this file the feature class and all parameters are given. To create such a file see
      * {@link MetricSpaces#indexReferencePoints(Class, int, int, File, File)}. Note that you can load multiple files, one for each
-     * feature. If you load more than one per feature class, they will be overwritten.
+     * feature. If you load more than one per feature class, they will be overwritten. Both the binary format and the
+     * older Base64 based text format are supported.
      *
      * @param referencePoints is the outFile from the method {@link MetricSpaces#indexReferencePoints(Class, int, int, File, File)}
      * @throws IOException
      */
     public static Parameters loadReferencePoints(InputStream referencePoints) throws IOException, ClassNotFoundException, IllegalAccessException, InstantiationException {
+        BufferedInputStream in = new BufferedInputStream(referencePoints, 1024 * 64);
+        in.mark(MSD_MAGIC.length);
+        byte[] magic = new byte[MSD_MAGIC.length];
+        int read = in.read(magic);
+        in.reset();
+        if (read == MSD_MAGIC.length && Arrays.equals(magic, MSD_MAGIC)) {
+            return loadBinaryReferencePoints(in);
+        } else {
+            return loadTextReferencePoints(in);
+        }
+    }
+
+    private static Parameters loadBinaryReferencePoints(InputStream referencePoints) throws IOException, ClassNotFoundException, IllegalAccessException, InstantiationException {
+        DataInputStream dis = new DataInputStream(referencePoints);
+        dis.skipBytes(MSD_MAGIC.length);
+        int version = dis.readInt();
+        if (version != MSD_VERSION) throw new IOException("Unsupported reference point file version " + version);
+        String feature = dis.readUTF();
+        dis.readUTF(); // comment
+        Class<?> featureClass = Class.forName(feature);
+        Parameters p = new MetricSpaces.Parameters();
+        p.numberOfReferencePoints = dis.readInt();
+        p.lengthOfPostingList = dis.readInt();
+        p.featureClass = featureClass;
+        int recordLength = dis.readInt();
+        byte[] records = new byte[p.numberOfReferencePoints * recordLength];
+        dis.readFully(records);
+        CRC32 crc = new CRC32();
+        crc.update(records, 0, records.length);
+        if (crc.getValue() != dis.readLong())
+            throw new IOException("Checksum of reference point file does not match, the file seems to be corrupt.");
+        dis.close();
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        ArrayList<GlobalFeature> ro = new ArrayList<>(p.numberOfReferencePoints);
+        for (int i = 0; i < p.numberOfReferencePoints; i++) {
+            GlobalFeature f = (GlobalFeature) featureClass.newInstance();
+            f.setByteArrayRepresentation(records, i * recordLength + 4, buffer.getInt(i * recordLength));
+            ro.add(f);
+        }
+        parameters.put(feature, p);
+        MetricSpaces.referencePoints.put(feature, new ReferencePoints(ro));
+        return p;
+    }
+
+    private static Parameters loadTextReferencePoints(InputStream referencePoints) throws IOException, ClassNotFoundException, IllegalAccessException, InstantiationException {
         BufferedReader br = new BufferedReader(new InputStreamReader(referencePoints));
         String feature = br.readLine().trim();
         while (feature.startsWith("#")) feature = br.readLine().trim();
@@ -216,7 +318,7 @@ public class MetricSpaces {
                 }
             }
         }
-        MetricSpaces.referencePoints.put(feature, ro);
+        MetricSpaces.referencePoints.put(feature, new ReferencePoints(ro));
         br.close();
         return p;
     }
@@ -257,17 +359,14 @@ public class MetricSpaces {
         if (lengthOfPostingList < 1) {
             lengthOfPostingList = parameters.get(feature.getClass().getName()).lengthOfPostingList;
         }
-        TreeSet<Result> results = getResults(feature, queryLength, lengthOfPostingList);
+        int[] results = getResults(feature, lengthOfPostingList);
         StringBuilder sb = new StringBuilder(lengthOfPostingList * 8);
-        int position = 0;
-        for (Iterator<Result> iterator = results.iterator(); iterator.hasNext(); ) {
-            Result result = iterator.next();
-            // sb.append(String.format("%d (%2.2f) ", result.index, result.distance)); // debug.
+        for (int position = 0; position < results.length; position++) {
             // adding it to the text field, but depending on the position in the results it's added multiple times.
-            for (int i = 0; i < results.size() - position; i++) {
-                sb.append(String.format("R%06d ", result.index));
+            String term = String.format("R%06d ", results[position]);
+            for (int i = 0; i < results.length - position; i++) {
+                sb.append(term);
             }
-            position++;
         }
         return sb.toString();
     }
@@ -285,13 +384,9 @@ public class MetricSpaces {
         if (lengthOfPostingList < 1) {
             lengthOfPostingList = parameters.get(feature.getClass().getName()).lengthOfPostingList;
         }
-        TreeSet<Result> results = getResults(feature, queryLength, lengthOfPostingList);
-        int position = 0;
-        for (Iterator<Result> iterator = results.iterator(); iterator.hasNext(); ) {
-            Result result = iterator.next();
-            // sb.append(String.format("%d (%2.2f) ", result.index, result.distance)); // debug.
-            resultList.add(String.format("R%06d", result.index));
-            position++;
+        int[] results = getResults(feature, lengthOfPostingList);
+        for (int result : results) {
+            resultList.add(String.format("R%06d", result));
         }
         return resultList;
     }
@@ -306,28 +401,112 @@ public class MetricSpaces {
         return generateHashList(feature, parameters.get(feature.getClass().getName()).lengthOfPostingList);
     }
 
-    private static TreeSet<Result> getResults(GlobalFeature feature, int queryLength, int lengthOfPostingList) {
-        ArrayList<GlobalFeature> l = referencePoints.get(feature.getClass().getName());
-        // break if the feature is not indexed ...
-        if (l == null) return null;
-        TreeSet<Result> results = new TreeSet<>();
-        double maxDistance = Double.MAX_VALUE;
-        double distance;
-        for (int i = 0; i < l.size(); i++) {
-            GlobalFeature f = l.get(i);
-            distance = f.getDistance(feature);
-            if (results.size() < lengthOfPostingList) {
-                results.add(new Result(distance, i));
-                maxDistance = l.get(results.last().index).getDistance(feature);
-            } else if (distance < maxDistance) {
-                results.add(new Result(distance, i));
-                maxDistance = distance;
-                if (results.size() > lengthOfPostingList) {
-                    results.pollLast();
-                }
+    /**
+     * Creates the index strings for a batch of features in parallel, e.g. for a chunk of documents at indexing time.
+     * The features are split into up to {@link #numThreads} chunks, which are handled by a shared thread pool.
+     *
+     * @param features the features to create the strings for, all of a class with loaded reference points.
+     * @return the text for the Lucene index, one for each feature in the same order.
+     * @see #generateHashString(GlobalFeature)
+     */
+    public static String[] generateHashStrings(final List<? extends GlobalFeature> features) {
+        final String[] result = new String[features.size()];
+        runInParallel(features.size(), new IndexedTask() {
+            public void run(int i) {
+                result[i] = generateHashString(features.get(i));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Creates the lists of hashes for a batch of features in parallel.
+     *
+     * @param features the features to create the hashes for, all of a class with loaded reference points.
+     * @return the list of hashes for each feature in the same order.
+     * @see #generateHashList(GlobalFeature)
+     */
+    public static List<List<String>> generateHashLists(final List<? extends GlobalFeature> features) {
+        final List<List<String>> result = new ArrayList<>(Collections.nCopies(features.size(), (List<String>) null));
+        runInParallel(features.size(), new IndexedTask() {
+            public void run(int i) {
+                result.set(i, generateHashList(features.get(i)));
             }
+        });
+        return result;
+    }
+
+    private static void runInParallel(int size, final IndexedTask task) {
+        int threads = Math.max(1, Math.min(numThreads, size));
+        if (threads == 1) {
+            for (int i = 0; i < size; i++) task.run(i);
+            return;
+        }
+        ExecutorService executor = getExecutor();
+        LinkedList<Future<?>> chunks = new LinkedList<>();
+        int step = (size + threads - 1) / threads;
+        try {
+            for (int t = 0; t < threads; t++) {
+                final int from = t * step, to = Math.min(size, from + step);
+                chunks.add(executor.submit(new Runnable() {
+                    public void run() {
+                        for (int i = from; i < to; i++) task.run(i);
+                    }
+                }));
+            }
+            for (Future<?> chunk : chunks) {
+                chunk.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while hashing the features.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException("Could not hash the features.", cause);
+        } finally {
+            // nothing left to do for the other chunks if one of them failed.
+            for (Future<?> chunk : chunks) {
+                chunk.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Returns the thread pool for the batch methods, with {@link #numThreads} daemon threads. The pool is created on
+     * first use and replaced if numThreads has been changed since.
+     */
+    private static synchronized ExecutorService getExecutor() {
+        int threads = Math.max(1, numThreads);
+        if (executor == null || executorThreads != threads) {
+            if (executor != null) executor.shutdown();
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "MetricSpaces-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            executorThreads = threads;
         }
-        return results;
+        return executor;
+    }
+
+    private interface IndexedTask {
+        void run(int i);
+    }
+
+    /**
+     * Returns the indexes of the nearest reference points, nearest first.
+     */
+    private static int[] getResults(GlobalFeature feature, int lengthOfPostingList) {
+        ReferencePoints l = referencePoints.get(feature.getClass().getName());
+        // break if the feature is not indexed ...
+        if (l == null) return null;
+        return l.getNearest(feature, lengthOfPostingList, usePivotPruning);
     }
 
     /**
@@ -342,15 +521,14 @@ public class MetricSpaces {
         if (lengthOfPostingList < 1) {
             lengthOfPostingList = parameters.get(feature.getClass().getName()).lengthOfPostingList;
         }
-        TreeSet<Result> results = getResults(feature, queryLength, lengthOfPostingList);
-        StringBuilder sb = new StringBuilder(results.size() * 12);
-        double max = results.size();
-        double pos = results.size();
+        int[] results = getResults(feature, lengthOfPostingList);
+        StringBuilder sb = new StringBuilder(results.length * 12);
+        double max = results.length;
+        double pos = results.length;
         Locale currentLocale = Locale.getDefault();
         Locale.setDefault(Locale.ENGLISH);
-        for (Iterator<Result> resultIterator = results.iterator(); resultIterator.hasNext(); ) {
-            Result result = resultIterator.next();
-            sb.append(String.format("R%06d^%1.2f ", result.index, pos / max));
+        for (int result : results) {
+            sb.append(String.format("R%06d^%1.2f ", result, pos / max));
             pos--;
         }
         Locale.setDefault(currentLocale);
@@ -368,7 +546,7 @@ public class MetricSpaces {
                 "for indexing and hashing. This text is shown with the\n" +
                 "-h option.\n" +
                 "\n" +
-                "$> MetricSpaces -i <input-file> -p <parameters> [-c <class>]\n" +
+                "$> MetricSpaces -i <input-file> -p <parameters> [-c <class>] [-s <selection>]\n" +
                 "\n" +
                 "<input-file>    ... gives the image data set to sample from,\n" +
                 "                    one per line, lines starting with # are\n" +
@@ -377,6 +555,9 @@ public class MetricSpaces {
                 "\t\t\t\t    the posting list, eg. \"-p 1000,50\"\n" +
                 "<class>         ... which class to use for indexing, default\n" +
                 "                    is CEDD.\n" +
+                "<selection>     ... how reference points are selected from the\n" +
+                "                    sample: random (default), farthest or\n" +
+                "                    kmeans++.\n" +
                 "\n" +
                 "\n" +
                 "Example usage:\n" +
@@ -421,7 +602,7 @@ Run the main method to create a compatible file to be used
 for indexing and hashing. This text is shown with the
 -h option.
 
-$> MetricSpaces -i <input-file> -p <parameters> [-c <class>]
+$> MetricSpaces -i <input-file> -p <parameters> [-c <class>] [-s <selection>]
 
 <input-file>    ... gives the image data set to sample from,
                     one per line, lines starting with # are
@@ -430,6 +611,9 @@ $> MetricSpaces -i <input-file> -p <parameters> [-c <class>]
 				    the posting list, eg. "-p 1000,50"
 <class>         ... which class to use for indexing, default
                     is CEDD.
+<selection>     ... how reference points are selected from the
+                    sample: random (default), farthest or
+                    kmeans++.
 
 
 Example usage:
@@ -0,0 +1,234 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.indexers.hashing;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+
+import java.util.List;
+
+/**
+ * Holds the reference points of {@link MetricSpaces} for one feature class. Reference points are kept in a plain
+ * array and the distances of all reference points to a small set of pivots (a subset of the reference points) are
+ * stored in one flat, row-major float array. For a query q and a reference point r the triangle inequality gives the
+ * lower bound max_p |d(q,p) - d(r,p)| for d(q,r), so reference points that cannot make it into the top l are skipped
+ * without computing the actual distance.
+ * <p/>
+ * Note that pruning is only exact if the distance function of the feature is a metric, so it is off unless switched
+ * on with {@link MetricSpaces#usePivotPruning}.
+ * <p/>
+ * Instances are immutable after construction and can be shared among threads. Distances are always computed on the
+ * query object, as many LIRE features keep temporary state in their getDistance(..) implementation.
+ */
+public class ReferencePoints {
+    /**
+     * Default number of pivots used for the lower bounds.
+     */
+    public static final int DEFAULT_NUMBER_OF_PIVOTS = 16;
+
+    private final GlobalFeature[] points;
+    private final int[] pivots;
+    // distances of point i to pivot j are found at pivotDistances[i * pivots.length + j]
+    private final float[] pivotDistances;
+
+    public ReferencePoints(List<GlobalFeature> referencePoints) {
+        this(referencePoints, DEFAULT_NUMBER_OF_PIVOTS);
+    }
+
+    /**
+     * Creates the store and computes the pivot table. As the reference points are selected randomly, pivots are
+     * simply taken at equal steps from the list.
+     *
+     * @param referencePoints the reference points, typically loaded by {@link MetricSpaces#loadReferencePoints(java.io.InputStream)}
+     * @param numberOfPivots  how many pivots should be used for computing the lower bounds, 0 turns pruning off.
+     */
+    public ReferencePoints(List<GlobalFeature> referencePoints, int numberOfPivots) {
+        points = referencePoints.toArray(new GlobalFeature[referencePoints.size()]);
+        int numPivots = Math.max(0, Math.min(numberOfPivots, points.length));
+        pivots = new int[numPivots];
+        for (int j = 0; j < numPivots; j++) {
+            pivots[j] = (int) ((long) j * points.length / numPivots);
+        }
+        pivotDistances = new float[points.length * numPivots];
+        for (int i = 0; i < points.length; i++) {
+            for (int j = 0; j < numPivots; j++) {
+                pivotDistances[i * numPivots + j] = (i == pivots[j]) ? 0f : (float) points[pivots[j]].getDistance(points[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return points.length;
+    }
+
+    public GlobalFeature get(int index) {
+        return points[index];
+    }
+
+    public int getNumberOfPivots() {
+        return pivots.length;
+    }
+
+    /**
+     * Finds the nearest reference points to the given feature.
+     *
+     * @param query  the feature to find the nearest reference points for. It is used as receiver for getDistance(..)
+     *               and must therefore not be shared among threads.
+     * @param l      the number of reference points to return.
+     * @param prune  set to true to skip reference points based on the pivot lower bounds.
+     * @return the indexes of the nearest reference points, nearest first.
+     */
+    public int[] getNearest(GlobalFeature query, int l, boolean prune) {
+        TopL top = new TopL(Math.min(l, points.length));
+        int numPivots = pivots.length;
+        if (!prune || numPivots == 0) {
+            for (int i = 0; i < points.length; i++) {
+                top.offer(query.getDistance(points[i]), i);
+            }
+            return top.getSortedIndexes();
+        }
+        // distances to the pivots first, pivots are reference points too.
+        double[] pivotQueryDistances = new double[numPivots];
+        boolean[] isPivot = new boolean[points.length];
+        for (int j = 0; j < numPivots; j++) {
+            pivotQueryDistances[j] = query.getDistance(points[pivots[j]]);
+            isPivot[pivots[j]] = true;
+            top.offer(pivotQueryDistances[j], pivots[j]);
+        }
+        double lowerBound, tmp;
+        int offset;
+        for (int i = 0; i < points.length; i++) {
+            if (isPivot[i]) continue;
+            if (top.isFull()) {
+                lowerBound = 0d;
+                offset = i * numPivots;
+                for (int j = 0; j < numPivots; j++) {
+                    tmp = Math.abs(pivotQueryDistances[j] - pivotDistances[offset + j]);
+                    if (tmp > lowerBound) lowerBound = tmp;
+                }
+                if (lowerBound > top.getWorstDistance()) continue;
+            }
+            top.offer(query.getDistance(points[i]), i);
+        }
+        return top.getSortedIndexes();
+    }
+
+    /**
+     * Primitive bounded collector for the l nearest reference points. It's a max heap on the distance, so the worst
+     * of the current top l is always at the root. Ties are resolved by the index of the reference point.
+     */
+    static final class TopL {
+        private final double[] distances;
+        private final int[] indexes;
+        private int size = 0;
+
+        TopL(int capacity) {
+            distances = new double[capacity];
+            indexes = new int[capacity];
+        }
+
+        boolean isFull() {
+            return size == distances.length;
+        }
+
+        double getWorstDistance() {
+            return distances[0];
+        }
+
+        void offer(double distance, int index) {
+            if (distances.length == 0) return;
+            if (size < distances.length) {
+                // sift up
+                int pos = size++;
+                while (pos > 0) {
+                    int parent = (pos - 1) >> 1;
+                    if (!isWorse(distance, index, distances[parent], indexes[parent])) break;
+                    distances[pos] = distances[parent];
+                    indexes[pos] = indexes[parent];
+                    pos = parent;
+                }
+                distances[pos] = distance;
+                indexes[pos] = index;
+            } else if (isWorse(distances[0], indexes[0], distance, index)) {
+                // replace the root and sift down
+                int pos = 0;
+                while (true) {
+                    int child = (pos << 1) + 1;
+                    if (child >= size) break;
+                    if (child + 1 < size && isWorse(distances[child + 1], indexes[child + 1], distances[child], indexes[child]))
+                        child++;
+                    if (!isWorse(distances[child], indexes[child], distance, index)) break;
+                    distances[pos] = distances[child];
+                    indexes[pos] = indexes[child];
+                    pos = child;
+                }
+                distances[pos] = distance;
+                indexes[pos] = index;
+            }
+        }
+
+        /**
+         * Empties the heap and returns the indexes, nearest first.
+         *
+         * @return the collected indexes sorted by distance.
+         */
+        int[] getSortedIndexes() {
+            int[] result = new int[size];
+            while (size > 0) {
+                result[size - 1] = indexes[0];
+                size--;
+                double distance = distances[size];
+                int index = indexes[size];
+                int pos = 0;
+                while (true) {
+                    int child = (pos << 1) + 1;
+                    if (child >= size) break;
+                    if (child + 1 < size && isWorse(distances[child + 1], indexes[child + 1], distances[child], indexes[child]))
+                        child++;
+                    if (!isWorse(distances[child], indexes[child], distance, index)) break;
+                    distances[pos] = distances[child];
+                    indexes[pos] = indexes[child];
+                    pos = child;
+                }
+                distances[pos] = distance;
+                indexes[pos] = index;
+            }
+            return result;
+        }
+
+        private static boolean isWorse(double d1, int i1, double d2, int i2) {
+            return d1 > d2 || (d1 == d2 && i1 > i2);
+        }
+    }
+}
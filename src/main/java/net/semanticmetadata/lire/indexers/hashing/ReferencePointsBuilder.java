@@ -0,0 +1,328 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.indexers.hashing;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selects the reference points for {@link MetricSpaces}. The list of images is read in a single pass and a uniform
+ * sample is drawn with reservoir sampling, so the list is never held in memory. Features of the sampled images are
+ * extracted in parallel, then the reference points are selected from the sample with one of the strategies in
+ * {@link Selection}.
+ * <p/>
+ * Random selection needs exactly as many images as reference points. For farthest-first and k-means++ a larger pool
+ * of candidates is sampled (see {@link #setPoolFactor(int)}) and reference points are picked to be spread out over
+ * the data, which gives tighter lower bounds for pruning and more balanced posting lists.
+ */
+public class ReferencePointsBuilder {
+    public enum Selection {Random, FarthestFirst, KMeansPlusPlus}
+
+    private Class<? extends GlobalFeature> featureClass;
+    private Selection selection = Selection.Random;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private int poolFactor = 4;
+    private Random random = new Random();
+
+    public ReferencePointsBuilder(Class<? extends GlobalFeature> featureClass) {
+        this.featureClass = featureClass;
+    }
+
+    public ReferencePointsBuilder(Class<? extends GlobalFeature> featureClass, Selection selection) {
+        this.featureClass = featureClass;
+        this.selection = selection;
+    }
+
+    /**
+     * Samples images from the list, extracts the features and selects the reference points.
+     *
+     * @param inFile                  the file containing the image data, one image path per line, lines starting
+     *                                with # are ignored.
+     * @param numberOfReferencePoints how many reference points should be selected.
+     * @return the selected reference points, might be less than numberOfReferencePoints if there are not enough
+     * readable images in the list.
+     * @throws IOException
+     */
+    public List<GlobalFeature> build(File inFile, int numberOfReferencePoints) throws IOException {
+        int poolSize = (selection == Selection.Random) ? numberOfReferencePoints : numberOfReferencePoints * poolFactor;
+        // we sample a little more than needed to make up for images that cannot be read.
+        String[] sample = sample(inFile, poolSize + poolSize / 10 + 1);
+        System.out.printf("Sampled %,d images from the input file. Now extracting features.\n", sample.length);
+        GlobalFeature[] pool = extract(sample, poolSize);
+        if (pool.length < numberOfReferencePoints) {
+            System.err.printf("Only %,d images could be read, using all of them as reference points.\n", pool.length);
+        }
+        System.out.printf("Selecting %,d reference points from %,d candidates (%s).\n", Math.min(numberOfReferencePoints, pool.length), pool.length, selection);
+        return select(pool, numberOfReferencePoints);
+    }
+
+    /**
+     * Reservoir sampling (algorithm R) over the lines of the file. The reservoir is shuffled at the end, as the lines
+     * that fit in before the first replacement are still in file order.
+     */
+    private String[] sample(File inFile, int size) throws IOException {
+        String[] reservoir = new String[size];
+        long count = 0;
+        BufferedReader br = new BufferedReader(new FileReader(inFile));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith("#") || line.trim().length() <= 1) continue; // check for comments and empty ones.
+                if (count < size) {
+                    reservoir[(int) count] = line;
+                } else {
+                    long r = (long) (random.nextDouble() * (count + 1));
+                    if (r < size) reservoir[(int) r] = line;
+                }
+                count++;
+            }
+        } finally {
+            br.close();
+        }
+        if (count < size) {
+            String[] tmp = new String[(int) count];
+            System.arraycopy(reservoir, 0, tmp, 0, tmp.length);
+            reservoir = tmp;
+        }
+        Collections.shuffle(Arrays.asList(reservoir), random);
+        return reservoir;
+    }
+
+    /**
+     * Extracts features from the sampled images in parallel, until maxResults features are available.
+     */
+    private GlobalFeature[] extract(final String[] files, final int maxResults) throws InterruptedIOException {
+        final GlobalFeature[] features = new GlobalFeature[files.length];
+        final AtomicInteger next = new AtomicInteger(0), found = new AtomicInteger(0);
+        int threads = Math.max(1, Math.min(numThreads, files.length));
+        ExecutorService executor = createExecutor(threads);
+        try {
+            LinkedList<Future<?>> workers = new LinkedList<>();
+            for (int t = 0; t < threads; t++) {
+                workers.add(executor.submit(new Runnable() {
+                    public void run() {
+                        int i;
+                        while (found.get() < maxResults && (i = next.getAndIncrement()) < files.length) {
+                            try {
+                                BufferedImage image = ImageIO.read(new File(files[i]));
+                                if (image == null) throw new IOException("unsupported image format");
+                                GlobalFeature feature = featureClass.newInstance();
+                                feature.extract(image);
+                                features[i] = feature;
+                                if (found.incrementAndGet() % Math.max(1, maxResults >> 5) == 0) System.out.print('.');
+                            } catch (Exception e) {
+                                System.out.printf("Having problem \"%s\" with file %s\n", e.getMessage(), files[i]);
+                            }
+                        }
+                    }
+                }));
+            }
+            await(workers);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting the features of the reference points.");
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println();
+        ArrayList<GlobalFeature> result = new ArrayList<>(maxResults);
+        for (int i = 0; i < features.length && result.size() < maxResults; i++) {
+            if (features[i] != null) result.add(features[i]);
+        }
+        return result.toArray(new GlobalFeature[result.size()]);
+    }
+
+    /**
+     * Selects the reference points from the candidates based on the configured strategy.
+     *
+     * @param candidates the pool of candidate features.
+     * @param number     the number of reference points.
+     * @return the selected reference points.
+     */
+    public List<GlobalFeature> select(final GlobalFeature[] candidates, int number) {
+        number = Math.min(number, candidates.length);
+        ArrayList<GlobalFeature> result = new ArrayList<>(number);
+        if (selection == Selection.Random || number == candidates.length) {
+            // the sample is already random.
+            for (int i = 0; i < number; i++) result.add(candidates[i]);
+            return result;
+        }
+        // minimum distance of each candidate to the current set of reference points.
+        final double[] minDistance = new double[candidates.length];
+        Arrays.fill(minDistance, Double.MAX_VALUE);
+        final boolean[] selected = new boolean[candidates.length];
+        int threads = Math.max(1, Math.min(numThreads, candidates.length / 256));
+        // one pool for all rounds, the distances are updated once per selected point.
+        ExecutorService executor = (threads > 1) ? createExecutor(threads) : null;
+        try {
+            int current = random.nextInt(candidates.length);
+            for (int k = 0; k < number; k++) {
+                selected[current] = true;
+                minDistance[current] = 0d;
+                result.add(candidates[current]);
+                if (k + 1 == number) break;
+                updateMinDistances(executor, threads, candidates, candidates[current], minDistance, selected);
+                current = (selection == Selection.FarthestFirst) ? farthest(minDistance, selected) : sampleBySquaredDistance(minDistance, selected);
+                if ((k + 1) % Math.max(1, number >> 5) == 0) System.out.print('.');
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while selecting the reference points.", e);
+        } finally {
+            if (executor != null) executor.shutdownNow();
+        }
+        System.out.println();
+        return result;
+    }
+
+    /**
+     * Updates the distances to the nearest selected reference point in parallel. Distances are computed on the
+     * candidates, each of which is touched by exactly one thread.
+     */
+    private void updateMinDistances(ExecutorService executor, int threads, final GlobalFeature[] candidates, final GlobalFeature newPoint, final double[] minDistance, final boolean[] selected) throws InterruptedException {
+        final int step = (candidates.length + threads - 1) / threads;
+        LinkedList<Future<?>> workers = new LinkedList<>();
+        for (int t = 0; t < threads; t++) {
+            final int from = t * step, to = Math.min(candidates.length, from + step);
+            Runnable r = new Runnable() {
+                public void run() {
+                    for (int i = from; i < to; i++) {
+                        if (!selected[i]) minDistance[i] = Math.min(minDistance[i], candidates[i].getDistance(newPoint));
+                    }
+                }
+            };
+            if (executor == null) {
+                r.run();
+            } else {
+                workers.add(executor.submit(r));
+            }
+        }
+        await(workers);
+    }
+
+    /**
+     * Waits for the workers and rethrows the first failure.
+     */
+    private static void await(List<Future<?>> workers) throws InterruptedException {
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IllegalStateException("Could not select the reference points.", cause);
+            }
+        }
+    }
+
+    private static ExecutorService createExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ReferencePoints-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private int farthest(double[] minDistance, boolean[] selected) {
+        int best = -1;
+        for (int i = 0; i < minDistance.length; i++) {
+            if (!selected[i] && (best < 0 || minDistance[i] > minDistance[best])) best = i;
+        }
+        return best;
+    }
+
+    private int sampleBySquaredDistance(double[] minDistance, boolean[] selected) {
+        double sum = 0d;
+        for (int i = 0; i < minDistance.length; i++) {
+            if (!selected[i]) sum += minDistance[i] * minDistance[i];
+        }
+        if (sum <= 0d) { // all remaining candidates are duplicates of selected ones.
+            return farthest(minDistance, selected);
+        }
+        double r = random.nextDouble() * sum;
+        int last = -1;
+        for (int i = 0; i < minDistance.length; i++) {
+            if (selected[i]) continue;
+            last = i;
+            r -= minDistance[i] * minDistance[i];
+            if (r <= 0d) return i;
+        }
+        return last;
+    }
+
+    public Selection getSelection() {
+        return selection;
+    }
+
+    public void setSelection(Selection selection) {
+        this.selection = selection;
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    public int getPoolFactor() {
+        return poolFactor;
+    }
+
+    /**
+     * Sets how many candidates per reference point are sampled for farthest-first and k-means++ selection.
+     *
+     * @param poolFactor the factor, default is 4.
+     */
+    public void setPoolFactor(int poolFactor) {
+        this.poolFactor = Math.max(1, poolFactor);
+    }
+
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.indexers.parallel;
+
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureSet;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.IndexableFieldType;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Keeps the images indexed by the {@link ParallelIndexer} before the codebooks are ready in a file: the document with
+ * the fields extracted so far and the local features waiting to be aggregated. Once the codebooks are there the file
+ * is read in one pass, so the images don't have to be decoded again. Supported are the field types of the global
+ * document builders, ie. string, text, stored and binary doc values fields with their value set.
+ */
+class DocumentSpillFile implements Iterable<WorkItem>, Closeable {
+    private static final byte STRING = 0, TEXT = 1, STORED_BINARY = 2, STORED_STRING = 3, BINARY_DOC_VALUES = 4;
+    private final File file;
+    private DataOutputStream out;
+    private int size = 0;
+
+    /**
+     * Creates a temporary file, which is deleted on {@link #close()}.
+     *
+     * @param directory the directory of the file, null for the default temporary directory.
+     */
+    DocumentSpillFile(File directory) throws IOException {
+        file = File.createTempFile("lire-documents", ".bin", directory);
+        file.deleteOnExit();
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    }
+
+    /**
+     * Writes the file name, the document and the pending local features of the item.
+     */
+    synchronized void add(WorkItem item) throws IOException {
+        if (out == null) throw new IllegalStateException("The spill file has been closed.");
+        out.writeUTF(item.getFileName());
+        List<IndexableField> fields = item.getDocument().getFields();
+        out.writeInt(fields.size());
+        for (IndexableField field : fields) {
+            writeField(field);
+        }
+        LocalFeatureSet[] features = item.getPendingFeatures();
+        out.writeInt(features.length);
+        for (LocalFeatureSet set : features) {
+            out.writeBoolean(set != null);
+            if (set != null) set.write(out);
+        }
+        size++;
+    }
+
+    /**
+     * @return the number of items written.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Iterates the items written so far, each with its file name, document and pending features.
+     */
+    @Override
+    public synchronized Iterator<WorkItem> iterator() {
+        if (out == null) throw new IllegalStateException("The spill file has been closed.");
+        final int count = size;
+        final DataInputStream in;
+        try {
+            out.flush();
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Iterator<WorkItem>() {
+            int read = 0;
+
+            public boolean hasNext() {
+                if (read < count) return true;
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing left to read.
+                }
+                return false;
+            }
+
+            public WorkItem next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                try {
+                    WorkItem item = new WorkItem(in.readUTF(), (byte[]) null);
+                    Document doc = new Document();
+                    for (int i = in.readInt(); i > 0; i--) {
+                        doc.add(readField(in));
+                    }
+                    item.setDocument(doc);
+                    LocalFeatureSet[] features = new LocalFeatureSet[in.readInt()];
+                    for (int i = 0; i < features.length; i++) {
+                        if (in.readBoolean()) features[i] = LocalFeatureSet.read(in);
+                    }
+                    item.setPendingFeatures(features);
+                    read++;
+                    return item;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    private void writeField(IndexableField field) throws IOException {
+        IndexableFieldType type = field.fieldType();
+        if (type.docValuesType() == DocValuesType.BINARY && field.binaryValue() != null) {
+            out.writeByte(BINARY_DOC_VALUES);
+            out.writeUTF(field.name());
+            writeBytes(field.binaryValue());
+        } else if (type.docValuesType() == DocValuesType.NONE && type.indexOptions() != IndexOptions.NONE && field.stringValue() != null) {
+            out.writeByte(type.tokenized() ? TEXT : STRING);
+            out.writeUTF(field.name());
+            out.writeBoolean(type.stored());
+            writeBytes(new BytesRef(field.stringValue()));
+        } else if (type.docValuesType() == DocValuesType.NONE && type.stored() && field.binaryValue() != null) {
+            out.writeByte(STORED_BINARY);
+            out.writeUTF(field.name());
+            writeBytes(field.binaryValue());
+        } else if (type.docValuesType() == DocValuesType.NONE && type.stored() && field.stringValue() != null) {
+            out.writeByte(STORED_STRING);
+            out.writeUTF(field.name());
+            writeBytes(new BytesRef(field.stringValue()));
+        } else {
+            throw new UnsupportedOperationException("Field " + field.name() + " cannot be written to the spill file.");
+        }
+    }
+
+    private static IndexableField readField(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        String name = in.readUTF();
+        switch (type) {
+            case BINARY_DOC_VALUES:
+                return new BinaryDocValuesField(name, new BytesRef(readBytes(in)));
+            case STRING:
+            case TEXT:
+                Field.Store store = in.readBoolean() ? Field.Store.YES : Field.Store.NO;
+                String value = new String(readBytes(in), StandardCharsets.UTF_8);
+                return (type == TEXT) ? new TextField(name, value, store) : new StringField(name, value, store);
+            case STORED_BINARY:
+                return new StoredField(name, new BytesRef(readBytes(in)));
+            case STORED_STRING:
+                return new StoredField(name, new String(readBytes(in), StandardCharsets.UTF_8));
+            default:
+                throw new IOException("Unknown field type " + type + " in the spill file.");
+        }
+    }
+
+    private void writeBytes(BytesRef bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes.bytes, bytes.offset, bytes.length);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Closes and deletes the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.indexers.parallel;
+
+import net.semanticmetadata.lire.utils.ImageDecoder;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Limits the memory taken by images in flight in the indexing producers and consumers. Before a file is read, the
+ * producer acquires its size plus an estimate of the decoded raster, taken from the image header. The consumers
+ * release the file bytes when the image is decoded and the raster estimate when they are done with the image.
+ * <p/>
+ * So many small images fill the queues while a few large ones don't exhaust the heap. An image larger than the whole
+ * budget is deferred until all other images are done and then processed alone. While an image waits for memory, no
+ * other image is admitted, so large images are not starved by small ones.
+ */
+public class MemoryBudget {
+    /**
+     * Assumed ratio of decoded to file size if the image header cannot be read.
+     */
+    public static int defaultCompressionRatio = 10;
+    private final long maxBytes;
+    private long usedBytes = 0;
+    private boolean waiting = false;
+
+    /**
+     * @param maxBytes the maximum number of bytes in flight.
+     */
+    public MemoryBudget(long maxBytes) {
+        if (maxBytes < 1) throw new IllegalArgumentException("The budget has to be positive.");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Blocks until the given number of bytes fits into the budget.
+     *
+     * @param bytes the number of bytes to take.
+     * @throws InterruptedException
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        while (waiting) wait();
+        if (!fits(bytes)) {
+            waiting = true;
+            try {
+                while (!fits(bytes)) wait();
+            } finally {
+                waiting = false;
+                notifyAll();
+            }
+        }
+        usedBytes += bytes;
+    }
+
+    /**
+     * Gives back bytes taken with {@link #acquire(long)}.
+     *
+     * @param bytes the number of bytes.
+     */
+    public synchronized void release(long bytes) {
+        if (bytes <= 0) return;
+        usedBytes -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Blocks until the file and its decoded raster fit into the budget and records the bytes taken in the item.
+     *
+     * @param item the work item the file will be read into.
+     * @param file the image file.
+     * @throws InterruptedException
+     */
+    public void acquire(WorkItem item, File file) throws InterruptedException {
+        acquire(item, file, -1);
+    }
+
+    /**
+     * Like {@link #acquire(WorkItem, File)} for images decoded with subsampling, see
+     * {@link ImageDecoder#read(byte[], int)}.
+     *
+     * @param item          the work item the file will be read into.
+     * @param file          the image file.
+     * @param maxSideLength the side length the image is decoded for, values &lt; 1 for the full image.
+     * @throws InterruptedException
+     */
+    public void acquire(WorkItem item, File file, int maxSideLength) throws InterruptedException {
+        long fileBytes = file.length(), rasterBytes = estimateDecodedSize(file, maxSideLength);
+        acquire(fileBytes + rasterBytes);
+        synchronized (this) {
+            item.reservedFileBytes = fileBytes;
+            item.reservedRasterBytes = rasterBytes;
+        }
+    }
+
+    /**
+     * Releases the bytes of the file once the image is decoded.
+     *
+     * @param item the work item.
+     */
+    public synchronized void releaseFile(WorkItem item) {
+        release(item.reservedFileBytes);
+        item.reservedFileBytes = 0;
+    }
+
+    /**
+     * Releases all bytes still taken by the item, can be called more than once.
+     *
+     * @param item the work item.
+     */
+    public synchronized void release(WorkItem item) {
+        release(item.reservedFileBytes + item.reservedRasterBytes);
+        item.reservedFileBytes = 0;
+        item.reservedRasterBytes = 0;
+    }
+
+    private boolean fits(long bytes) {
+        return usedBytes == 0 || usedBytes + bytes <= maxBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Estimates the size of the decoded image from the header of the file, assuming 4 bytes per pixel.
+     *
+     * @param file the image file.
+     * @return the estimated number of bytes of the raster.
+     */
+    public static long estimateDecodedSize(File file) {
+        return estimateDecodedSize(file, -1);
+    }
+
+    /**
+     * Estimates the size of the image decoded with subsampling, assuming 4 bytes per pixel.
+     *
+     * @param file          the image file.
+     * @param maxSideLength the side length the image is decoded for, values &lt; 1 for the full image.
+     * @return the estimated number of bytes of the raster.
+     */
+    public static long estimateDecodedSize(File file, int maxSideLength) {
+        try {
+            ImageInputStream iis = ImageIO.createImageInputStream(file);
+            if (iis != null) {
+                try {
+                    Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+                    if (readers.hasNext()) {
+                        ImageReader reader = readers.next();
+                        try {
+                            reader.setInput(iis, true, true);
+                            int width = reader.getWidth(0), height = reader.getHeight(0);
+                            int subsampling = ImageDecoder.getSubsampling(width, height, maxSideLength);
+                            return 4L * ((width + subsampling - 1) / subsampling) * ((height + subsampling - 1) / subsampling);
+                        } finally {
+                            reader.dispose();
+                        }
+                    }
+                } finally {
+                    iis.close();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // the header cannot be read, decoding will most likely fail too.
+        }
+        return defaultCompressionRatio * file.length(); // subsampling is ignored, so this is on the safe side.
+    }
+}
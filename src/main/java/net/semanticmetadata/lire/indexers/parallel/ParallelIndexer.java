@@ -36,25 +36,43 @@ package net.semanticmetadata.lire.indexers.parallel;
 
 import net.semanticmetadata.lire.aggregators.AbstractAggregator;
 import net.semanticmetadata.lire.aggregators.BOVW;
+import net.semanticmetadata.lire.aggregators.CodewordAssigner;
+import net.semanticmetadata.lire.aggregators.CompactVLAD;
+import net.semanticmetadata.lire.aggregators.VLADProjection;
+import net.semanticmetadata.lire.aggregators.VocabularyTreeAggregator;
 import net.semanticmetadata.lire.builders.*;
 import net.semanticmetadata.lire.classifiers.Cluster;
+import net.semanticmetadata.lire.classifiers.FeatureMatrix;
+import net.semanticmetadata.lire.classifiers.FeatureSpillFile;
 import net.semanticmetadata.lire.classifiers.KMeans;
+import net.semanticmetadata.lire.classifiers.MiniBatchKMeans;
 import net.semanticmetadata.lire.classifiers.ParallelKMeans;
+import net.semanticmetadata.lire.classifiers.VocabularyTree;
 import net.semanticmetadata.lire.imageanalysis.features.Extractor;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
-import net.semanticmetadata.lire.imageanalysis.features.LocalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureSet;
 import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureExtractor;
 import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
 import net.semanticmetadata.lire.imageanalysis.features.global.FCTH;
 import net.semanticmetadata.lire.imageanalysis.features.global.JCD;
 import net.semanticmetadata.lire.imageanalysis.features.local.simple.SimpleExtractor;
 import net.semanticmetadata.lire.utils.FileUtils;
+import net.semanticmetadata.lire.utils.ImageDecoder;
 import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.LuceneUtils;
+import net.semanticmetadata.lire.utils.metrics.Counter;
+import net.semanticmetadata.lire.utils.metrics.Gauge;
+import net.semanticmetadata.lire.utils.metrics.Histogram;
+import net.semanticmetadata.lire.utils.metrics.MetricRegistry;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StringField;
-import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
@@ -68,15 +86,19 @@ import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 //import net.semanticmetadata.lire.imageanalysis.features.global.ACCID;
 
 /**
- * This class allows for creating indexes in a parallel manner. The class
- * at hand reads files from the disk and acts as producer, while several consumer
- * threads extract the features from the given files.
+ * This class allows for creating indexes in a parallel manner. The images are
+ * processed in a pipeline of reader, decoder, extractor and writer threads,
+ * connected by bounded queues. The number of threads per stage can be set with
+ * {@link ParallelIndexer#setPipelineThreads}, the utilization of each stage is
+ * printed by the monitoring thread.
  * <p/>
  * Use the methods {@link ParallelIndexer#addExtractor} to add your own features.
  * Check the source of this class -- the main method -- to get an idea.
@@ -93,9 +115,16 @@ public class ParallelIndexer implements Runnable {
     private DecimalFormat df = (DecimalFormat) NumberFormat.getNumberInstance();
     private int numOfThreads = DocumentBuilder.NUM_OF_THREADS;
     private int monitoringInterval = 30; // all xx seconds a status message will be displayed
-    private int overallCount = -1, numImages = -1; //, numSample = -1
+    private AtomicInteger overallCount = new AtomicInteger(-1);
+    private volatile int numImages = -1; //, numSample = -1
     private boolean overWrite = true;   //!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
     private boolean useParallelClustering = true;
+    private boolean miniBatchClustering = false;
+    private KMeans.Algorithm clusteringAlgorithm = KMeans.Algorithm.Lloyd;
+    private int assignmentProbes = 0;
+    private int compactVladDimensions = 128, compactVladSubspaces = 32;
+    private VLADProjection.Encoding compactVladEncoding = VLADProjection.Encoding.ProductQuantization;
+    private int vocabularyTreeDepth = 3;
     private boolean indexingFinished = false;
     private boolean lockLists = false;
     private boolean sampling = false;
@@ -106,7 +135,21 @@ public class ParallelIndexer implements Runnable {
     private IndexWriter writer;
     private String imageDirectory, indexPath;
     private File imageList = null;
-    private List<String> allImages, sampleImages;
+    private List<String> sampleImages;
+    // images already processed, skipped when streaming the image source.
+    private Set<String> skipImages = Collections.emptySet();
+    // when appending: the images in the index mapped to their file stamp, "" for documents without stamp.
+    private Map<String, String> indexedImages = null;
+    // images in the index that have changed, their documents are replaced.
+    private Set<String> changedImages = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private int skippedImages = 0;
+
+    // keys of the commit user data, see checkpoint(boolean).
+    public static final String COMMIT_DATA_COMPLETE = "lire.complete";
+    public static final String COMMIT_DATA_DOCUMENTS = "lire.documents";
+    public static final String COMMIT_DATA_TIME = "lire.time";
+    private int checkpointInterval = 10000;
+    private AtomicInteger lastCheckpoint = new AtomicInteger(0);
 
     private int numOfDocsForCodebooks = 300;
     private int[] numOfClusters = new int[]{512};
@@ -119,7 +162,7 @@ public class ParallelIndexer implements Runnable {
     private Class<? extends DocumentBuilder> customDocumentBuilder = null;
     private boolean customDocBuilderFlag = false;
 
-    private ConcurrentHashMap<String, List<? extends LocalFeature>> conSampleMap;
+    private ConcurrentHashMap<String, LocalFeatureSet> conSampleMap;
 
     private Class<? extends AbstractAggregator> aggregator = BOVW.class;
 
@@ -127,9 +170,45 @@ public class ParallelIndexer implements Runnable {
 
     private ImagePreprocessor imagePreprocessor;
 
-    // Note that you can edit the queue size here. 100 is a good value, but I'd raise it to 200.
-    private int queueCapacity = 200;
+    // Note that you can edit the queue size here. The memory taken by the queued images is limited by the
+    // memoryBudget, so the number of images can be higher, to keep the consumers busy with small images.
+    private int queueCapacity = 1000;
+    private MemoryBudget memoryBudget = new MemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+    private final MetricRegistry metrics = MetricRegistry.getDefault();
+    private static final String[] QUEUE_GAUGES = new String[]{"indexing.queue.files", "indexing.queue.images", "indexing.queue.documents"};
+    private static final String MEMORY_GAUGE = "indexing.memory.bytes";
+    private final Gauge[] gauges = new Gauge[QUEUE_GAUGES.length + 1];
     private LinkedBlockingQueue<WorkItem> queue = new LinkedBlockingQueue<>(queueCapacity);
+    // marks the end of the input, the consumer taking it puts it back for the others.
+    private static final WorkItem END_OF_QUEUE = new WorkItem(null, (byte[]) null);
+    private StageStats producerStats, consumerStats;
+    private StageStats[] stageStats;
+    private PipelineQueue<?>[] pipelineQueues;
+
+    // configuration of the indexing pipeline, see index(). The extractors use numOfThreads threads.
+    private int numOfReaderThreads = 1, numOfDecoderThreads = -1, numOfWriterThreads = 1;
+    private int imageQueueCapacity = -1, documentQueueCapacity = -1;
+    private int writeBatchSize = 32;
+    private boolean taskPerExtractor = false;
+
+    // single pass indexing while the codebooks are created, see setSinglePass(boolean).
+    private boolean singlePass = false;
+    private List<ExtractorItem> deferredExtractors = Collections.emptyList();
+    private List<LinkedList<Cluster[]>> deferredCodebooks;
+    private List<ConcurrentHashMap<String, LocalFeatureSet>> sampleFeatures;
+    private Set<String> sampleSet = Collections.emptySet();
+    private CountDownLatch samplesPending;
+    private volatile boolean codebooksReady = true;
+    private volatile Exception codebookFailure = null; // stops the pipeline, see CodebookTrainer and WriterStage.
+    private DocumentSpillFile documentSpill;
+
+    // sharded writing, see setShards(String[], boolean).
+    private String[] shardPaths = null;
+    private boolean keepShards = false;
+    private IndexWriter[] shardWriters = null;
+    private MergePolicy mergePolicy = null;
+    private int maxSegments = 1;
+    private boolean subsampledDecoding = true;
 
 
     public static void main(String[] args) {
@@ -747,19 +826,16 @@ public class ParallelIndexer implements Runnable {
         try {
             long start = System.currentTimeMillis();
             writer = LuceneUtils.createIndexWriter(indexPath, overWrite, LuceneUtils.AnalyzerType.WhitespaceAnalyzer);
-            if (imageList == null) {
-//                allImages = FileUtils.getAllImages(new File(imageDirectory), true); //TODO: change to readFileLines
-                allImages = FileUtils.readFileLines(new File(imageDirectory), true);
-            } else {
-                allImages = new LinkedList<String>();
-                BufferedReader br = new BufferedReader(new FileReader(imageList));
-                String line;
-                while ((line = br.readLine()) != null) {
-                    if (line.trim().length() > 3) allImages.add(line.trim());
-                }
+            openShards();
+            if (appending) {
+                indexedImages = readIndexedImages();
+                System.out.printf("%d images found in the index, only new and changed images are indexed.\n", indexedImages.size());
             }
-
-            if (!(allImages.size() > 0)) throw new UnsupportedOperationException("No images were found!!");
+            // the images are streamed from the directory or list, they are never held in memory all at once.
+            Iterator<String> images = openImageSource();
+            boolean found = images.hasNext();
+            closeImageSource(images);
+            if (!found) throw new UnsupportedOperationException("No images were found!!");
 
             for (int numOfCluster : numOfClusters) {
                 numOfClustersSet.add(numOfCluster);
@@ -776,86 +852,619 @@ public class ParallelIndexer implements Runnable {
             if (sampling) {
                 if (customDocBuilderFlag)
                     throw new UnsupportedOperationException("Cannot use sampling and set custom document builder at the same time!!");
-                System.out.println("Sampling and Creating Codebooks....");
-                numImages = allImages.size();
-                int capacity = Math.min(numOfDocsForCodebooks, numImages);
-                if (capacity < 0) capacity = (numImages / 2);
-                allDocuments = new HashMap<String, Document>(capacity);
-                sampleImages = selectVocabularyDocs(numImages, capacity);
-                numImages = sampleImages.size();
-                conSampleMap = new ConcurrentHashMap<String, List<? extends LocalFeature>>(numImages);
-                sample(LocalExtractorsAndCodebooks);
-                sample(SimpleExtractorsAndCodebooks);
-                conSampleMap.clear();
-                conSampleMap = null;
-                if (GlobalExtractors.size() > 0) fillSampleWithGlobals();
-                flushDocuments();
-                allDocuments.clear();
-                allDocuments = null;
-                System.out.println("Indexing rest images....");
-            } else System.out.println("No need for sampling and generating codebooks.....");
-
-            numImages = allImages.size();
-            index();
+                int capacity = numOfDocsForCodebooks;
+                if (capacity < 0) capacity = (countImages() / 2);
+                sampleImages = selectVocabularyDocs(capacity);
+            }
 
-            System.out.printf("Total time of indexing: %s.\n", convertTime(System.currentTimeMillis() - start));
+            if (sampling && singlePass) {
+                System.out.println("Indexing and creating codebooks in one pass....");
+                indexSinglePass();
+            } else {
+                if (sampling) {
+                    System.out.println("Sampling and Creating Codebooks....");
+                    allDocuments = new HashMap<String, Document>(sampleImages.size());
+                    for (String path : sampleImages) {
+                        allDocuments.put(path, createDocument(path));
+                    }
+                    numImages = sampleImages.size();
+                    conSampleMap = new ConcurrentHashMap<String, LocalFeatureSet>(numImages);
+                    sample(LocalExtractorsAndCodebooks);
+                    sample(SimpleExtractorsAndCodebooks);
+                    conSampleMap.clear();
+                    conSampleMap = null;
+                    if (GlobalExtractors.size() > 0) fillSampleWithGlobals();
+                    flushDocuments();
+                    allDocuments.clear();
+                    allDocuments = null;
+                    skipImages = new HashSet<String>(sampleImages);
+                    System.out.println("Indexing rest images....");
+                } else System.out.println("No need for sampling and generating codebooks.....");
+
+                // saved before indexing, so an interrupted run can be resumed in appending mode.
+                if (!appending) {
+                    writePropertiesFile();
+                    System.out.println("Properties saved!");
+                }
 
-            LuceneUtils.commitWriter(writer);
-            LuceneUtils.optimizeWriter(writer);
-            LuceneUtils.closeWriter(writer);
+                index();
+            }
+            skipImages = Collections.emptySet();
+            indexedImages = null;
 
-            if (!appending) {
-                writePropertiesFile();
-                System.out.println("Properties saved!");
+            System.out.printf("Total time of indexing: %s.\n", convertTime(System.currentTimeMillis() - start));
+
+            // the shards are merged or closed first, the index is only marked complete once they are.
+            closeShards();
+            checkpoint(true);
+            if (maxSegments > 0 && !(shardPaths != null && keepShards)) {
+                long merge = System.currentTimeMillis();
+                LuceneUtils.optimizeWriter(writer, maxSegments);
+                System.out.printf("Time of merging: %s.\n", convertTime(System.currentTimeMillis() - merge));
             }
+            LuceneUtils.closeWriter(writer);
 
             indexingFinished = true;
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            rollbackWriters();
         }
     }
 
+    /**
+     * Rolls back the writers left open by a failed run to their last checkpoint, so no write locks are left behind.
+     */
+    private void rollbackWriters() {
+        for (IndexWriter indexWriter : getAllWriters()) {
+            if (indexWriter == null || !indexWriter.isOpen()) continue;
+            try {
+                indexWriter.rollback();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        shardWriters = null;
+    }
+
     private void flushDocuments() {
         System.out.println("Flushing documents....");
         long start = System.currentTimeMillis();
         try {
             for (Map.Entry<String, Document> documentEntry : allDocuments.entrySet()) {
-                writer.addDocument(documentEntry.getValue());
+                getWriter(0).addDocument(documentEntry.getValue());
             }
-            LuceneUtils.commitWriter(writer);
+            LuceneUtils.commitWriter(getWriter(0));
         } catch (IOException e) {
             e.printStackTrace();
         }
         System.out.printf("Time of flushing: %s.\n", convertTime(System.currentTimeMillis() - start));
     }
 
+    /**
+     * Runs the indexing pipeline: reader threads read the files, decoder threads decode the images, extractor threads
+     * extract the features and writer threads add the documents to the index in batches. The stages are connected
+     * by bounded queues, so a slow stage throttles the ones before it instead of filling up the heap.
+     */
     private void index() {
-        System.out.printf("Indexing %d images\n", numImages);
+        System.out.printf("Indexing images from %s\n", (imageList != null) ? imageList.getPath() : imageDirectory);
         long start = System.currentTimeMillis();
+        int numDecoders = (numOfDecoderThreads > 0) ? numOfDecoderThreads : Math.max(1, numOfThreads / 4);
+        int numTasks = taskPerExtractor ? createDocumentBuilders().length + deferredExtractors.size() : 1;
+        int decodingSize = getDecodingSize();
+        PipelineQueue<WorkItem> fileQueue = new PipelineQueue<WorkItem>(queueCapacity, numOfReaderThreads);
+        PipelineQueue<ExtractionTask> taskQueue = new PipelineQueue<ExtractionTask>((imageQueueCapacity > 0) ? imageQueueCapacity : 2 * numOfThreads * numTasks, numDecoders);
+        int numWriters = getNumWriterThreads();
+        PipelineQueue<WorkItem> documentQueue = new PipelineQueue<WorkItem>((documentQueueCapacity > 0) ? documentQueueCapacity : 2 * writeBatchSize * numWriters, numOfThreads);
+        StageStats reading = new StageStats("Readers", numOfReaderThreads), decoding = new StageStats("Decoders", numDecoders),
+                extracting = new StageStats("Extractors", numOfThreads), writing = new StageStats("Writers", numWriters);
+        overallCount.set(0);
+        lastCheckpoint.set(0);
+        numImages = 0;
+        skippedImages = 0;
+        changedImages.clear();
+        stageStats = new StageStats[]{reading, decoding, extracting, writing};
+        pipelineQueues = new PipelineQueue<?>[]{fileQueue, taskQueue, documentQueue};
+        registerGauges();
+        Iterator<String> paths = null;
         try {
-            Thread p, c, m;
-            p = new Thread(new Producer(allImages), "Producer");
-            p.start();
             LinkedList<Thread> threads = new LinkedList<Thread>();
+            // the sampled images go first, so the codebooks can be created early on.
+            paths = (documentSpill != null) ? new SampleFirstIterator(sampleImages, openImageSource(), sampleSet) : openImageSource();
+            for (int i = 0; i < numOfReaderThreads; i++) {
+                threads.add(new Thread(new ReaderStage(paths, fileQueue, reading, decodingSize), String.format("Reader-%02d", i + 1)));
+            }
+            for (int i = 0; i < numDecoders; i++) {
+                threads.add(new Thread(new DecoderStage(fileQueue, taskQueue, decoding, numTasks, decodingSize), String.format("Decoder-%02d", i + 1)));
+            }
             for (int i = 0; i < numOfThreads; i++) {
-                c = new Thread(new Consumer(), String.format("Consumer-%02d", i + 1));
-                c.start();
-                threads.add(c);
+                threads.add(new Thread(new ExtractorStage(taskQueue, documentQueue, extracting), String.format("Extractor-%02d", i + 1)));
+            }
+            for (int i = 0; i < numWriters; i++) {
+                threads.add(new Thread(new WriterStage(documentQueue, writing, getWriter(i)), String.format("Writer-%02d", i + 1)));
+            }
+            for (Thread thread : threads) {
+                thread.start();
             }
             Monitoring monitoring = new Monitoring();
-            m = new Thread(monitoring, "IndexingMonitor");
+            Thread m = new Thread(monitoring, "IndexingMonitor");
+            m.setDaemon(true);
             m.start();
             for (Thread thread : threads) {
                 thread.join();
             }
             monitoring.killMonitoring();
-            long end = System.currentTimeMillis() - start;
-            System.out.printf("Analyzed %d images in %s ~ %3.2f ms each.\n", overallCount, convertTime(end), ((overallCount > 0) ? ((float) end / (float) overallCount) : -1f));
+            printSummary(System.currentTimeMillis() - start);
+            if (indexedImages != null)
+                System.out.printf("Skipped %d unchanged images, replaced %d changed ones.\n", skippedImages, changedImages.size());
+        } catch (InterruptedException | IOException e) {
+            e.printStackTrace();
+        } finally {
+            pipelineQueues = null;
+            unregisterGauges();
+            closeImageSource(paths);
+        }
+    }
+
+    /**
+     * Indexes the images in one pass while the codebooks are created. The sampled images are read first and their
+     * local features are kept for the codebooks. As soon as they are extracted, a {@link CodebookTrainer} creates the
+     * codebooks, while the extraction of the other images goes on. Documents finished before the codebooks are ready
+     * are written to a {@link DocumentSpillFile} along with their local features, and aggregated afterwards in one
+     * pass over the file, so no image is decoded twice.
+     */
+    private void indexSinglePass() throws IOException {
+        deferredExtractors = new ArrayList<ExtractorItem>();
+        deferredCodebooks = new ArrayList<LinkedList<Cluster[]>>();
+        for (Map.Entry<ExtractorItem, LinkedList<Cluster[]>> listEntry : LocalExtractorsAndCodebooks.entrySet()) {
+            deferredExtractors.add(listEntry.getKey());
+            deferredCodebooks.add(listEntry.getValue());
+        }
+        for (Map.Entry<ExtractorItem, LinkedList<Cluster[]>> listEntry : SimpleExtractorsAndCodebooks.entrySet()) {
+            deferredExtractors.add(listEntry.getKey());
+            deferredCodebooks.add(listEntry.getValue());
+        }
+        sampleFeatures = new ArrayList<ConcurrentHashMap<String, LocalFeatureSet>>(deferredExtractors.size());
+        for (int i = 0; i < deferredExtractors.size(); i++) {
+            sampleFeatures.add(new ConcurrentHashMap<String, LocalFeatureSet>(sampleImages.size()));
+        }
+        sampleSet = new HashSet<String>(sampleImages);
+        samplesPending = new CountDownLatch(sampleImages.size());
+        codebooksReady = false;
+        codebookFailure = null;
+        documentSpill = new DocumentSpillFile(new File(indexPath + ".config/"));
+        try {
+            Thread trainer = new Thread(new CodebookTrainer(), "CodebookTrainer");
+            trainer.start();
+            index();
+            // in case the extraction has been interrupted before all sampled images were done.
+            while (samplesPending.getCount() > 0) samplesPending.countDown();
+            trainer.join();
+            if (codebookFailure != null)
+                throw new IOException("The codebooks could not be created or a document could not be spilled, indexing has been stopped.", codebookFailure);
+            if (!codebooksReady)
+                throw new IOException("The codebooks could not be created, " + documentSpill.size() + " documents have not been indexed.");
+            if (documentSpill.size() > 0) aggregateSpilledDocuments();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            // deletes the spill file, also if the codebooks have failed.
+            documentSpill.close();
+            documentSpill = null;
+            deferredExtractors = Collections.emptyList();
+            deferredCodebooks = null;
+            sampleFeatures = null;
+            sampleSet = Collections.emptySet();
+            samplesPending = null;
+            codebooksReady = true;
+        }
+    }
+
+    /**
+     * Aggregates the local features of the spilled documents and adds the documents to the index. One thread reads
+     * the spill file, the extractor threads aggregate and the writer threads write, like in {@link #index()}.
+     */
+    private void aggregateSpilledDocuments() {
+        System.out.printf("Aggregating %d documents finished before the codebooks were ready....\n", documentSpill.size());
+        long start = System.currentTimeMillis();
+        PipelineQueue<WorkItem> spillQueue = new PipelineQueue<WorkItem>(2 * numOfThreads, 1);
+        int numWriters = getNumWriterThreads();
+        PipelineQueue<WorkItem> documentQueue = new PipelineQueue<WorkItem>((documentQueueCapacity > 0) ? documentQueueCapacity : 2 * writeBatchSize * numWriters, numOfThreads);
+        StageStats reading = new StageStats("SpillReader", 1), aggregating = new StageStats("Aggregators", numOfThreads),
+                writing = new StageStats("Writers", numWriters);
+        stageStats = new StageStats[]{reading, aggregating, writing};
+        pipelineQueues = new PipelineQueue<?>[]{spillQueue, documentQueue};
+        try {
+            LinkedList<Thread> threads = new LinkedList<Thread>();
+            threads.add(new Thread(new SpillReaderStage(spillQueue, reading), "SpillReader"));
+            for (int i = 0; i < numOfThreads; i++) {
+                threads.add(new Thread(new AggregatorStage(spillQueue, documentQueue, aggregating), String.format("Aggregator-%02d", i + 1)));
+            }
+            for (int i = 0; i < numWriters; i++) {
+                threads.add(new Thread(new WriterStage(documentQueue, writing, getWriter(i)), String.format("Writer-%02d", i + 1)));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            System.out.printf("Time of aggregation: %s.\n", convertTime(System.currentTimeMillis() - start));
+            System.out.println(getStageSummary());
         } catch (InterruptedException e) {
             e.printStackTrace();
+        } finally {
+            pipelineQueues = null;
+        }
+    }
+
+    /**
+     * Opens the writers of the shards and sets the merge policy. The shards get a share of the RAM buffer of the
+     * index writer each, so the heap taken by buffered documents stays the same.
+     */
+    private void openShards() throws IOException {
+        if (mergePolicy != null) writer.getConfig().setMergePolicy(mergePolicy);
+        if (shardPaths == null) return;
+        shardWriters = new IndexWriter[shardPaths.length];
+        double ramBuffer = Math.max(32, writer.getConfig().getRAMBufferSizeMB() / shardPaths.length);
+        for (int i = 0; i < shardPaths.length; i++) {
+            shardWriters[i] = LuceneUtils.createIndexWriter(shardPaths[i], overWrite, LuceneUtils.AnalyzerType.WhitespaceAnalyzer);
+            shardWriters[i].getConfig().setRAMBufferSizeMB(ramBuffer);
+            if (mergePolicy != null) shardWriters[i].getConfig().setMergePolicy(mergePolicy);
+        }
+    }
+
+    /**
+     * Closes the writers of the shards. Kept shards are merged in parallel, one thread per shard, otherwise they are
+     * added to the index with IndexWriter#addIndexes, which copies their segments, and the index files of the shards
+     * are deleted. If a shard cannot be merged or closed, the exception is thrown once all shards are done.
+     */
+    private void closeShards() throws IOException {
+        if (shardWriters == null) return;
+        long start = System.currentTimeMillis();
+        final IndexWriter[] shards = shardWriters;
+        if (keepShards) {
+            LinkedList<Thread> threads = new LinkedList<Thread>();
+            final List<IOException> failures = Collections.synchronizedList(new ArrayList<IOException>());
+            for (int i = 0; i < shards.length; i++) {
+                final IndexWriter shard = shards[i];
+                threads.add(new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            try {
+                                LuceneUtils.optimizeWriter(shard, maxSegments);
+                            } finally {
+                                LuceneUtils.closeWriter(shard);
+                            }
+                        } catch (IOException e) {
+                            failures.add(e);
+                        }
+                    }
+                }, String.format("ShardMerger-%02d", i + 1)));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            try {
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while merging the shards.");
+            }
+            if (!failures.isEmpty()) {
+                IOException failure = new IOException(failures.size() + " of " + shards.length + " shards could not be merged.", failures.get(0));
+                for (int i = 1; i < failures.size(); i++) failure.addSuppressed(failures.get(i));
+                throw failure;
+            }
+            System.out.printf("Closed %d shards in %s.\n", shards.length, convertTime(System.currentTimeMillis() - start));
+        } else {
+            Directory[] directories = new Directory[shards.length];
+            for (int i = 0; i < shards.length; i++) {
+                directories[i] = shards[i].getDirectory();
+                LuceneUtils.closeWriter(shards[i]);
+            }
+            writer.addIndexes(directories);
+            LuceneUtils.commitWriter(writer);
+            for (int i = 0; i < directories.length; i++) {
+                for (String file : directories[i].listAll()) {
+                    if (file.startsWith(IndexFileNames.SEGMENTS) || file.startsWith("_") || file.equals(IndexWriter.WRITE_LOCK_NAME))
+                        directories[i].deleteFile(file);
+                }
+                directories[i].close();
+                new File(shardPaths[i]).delete(); // only if it's empty now.
+            }
+            System.out.printf("Added %d shards to the index in %s.\n", shards.length, convertTime(System.currentTimeMillis() - start));
+        }
+        shardWriters = null;
+    }
+
+    /**
+     * @return the writer for the i-th writer thread, the shards are assigned in turn.
+     */
+    private IndexWriter getWriter(int i) {
+        return (shardWriters != null) ? shardWriters[i % shardWriters.length] : writer;
+    }
+
+    /**
+     * @return the index writer and the writers of the shards.
+     */
+    private List<IndexWriter> getAllWriters() {
+        ArrayList<IndexWriter> result = new ArrayList<IndexWriter>();
+        result.add(writer);
+        if (shardWriters != null) Collections.addAll(result, shardWriters);
+        return result;
+    }
+
+    /**
+     * @return the number of writer threads, at least one per shard.
+     */
+    private int getNumWriterThreads() {
+        return (shardWriters != null) ? Math.max(numOfWriterThreads, shardWriters.length) : numOfWriterThreads;
+    }
+
+    /**
+     * Counts a sampled image as done, also if it could not be read or decoded.
+     */
+    private void sampleDone(String path) {
+        CountDownLatch pending = samplesPending;
+        if (pending != null && sampleSet.contains(path)) pending.countDown();
+    }
+
+    /**
+     * @return a new iterator over the paths of the images in the image directory or list.
+     */
+    private Iterator<String> openImageSource() throws IOException {
+        if (imageList == null) return FileUtils.iterateImageFiles(new File(imageDirectory), true);
+        else return FileUtils.iterateImageList(imageList);
+    }
+
+    private static void closeImageSource(Iterator<String> images) {
+        if (images instanceof Closeable) {
+            try {
+                ((Closeable) images).close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private int countImages() throws IOException {
+        int count = 0;
+        Iterator<String> images = openImageSource();
+        try {
+            while (images.hasNext()) {
+                images.next();
+                count++;
+            }
+        } finally {
+            closeImageSource(images);
+        }
+        return count;
+    }
+
+    /**
+     * Creates the document builders for one extractor thread, one per extractor, so the features of an image can be
+     * extracted in parallel. A custom document builder contributes its descriptor fields.
+     */
+    private DocumentBuilder[] createDocumentBuilders() {
+        return createDocumentBuilders(new ArrayList<String>());
+    }
+
+    /**
+     * @param names gets the names of the extractors in the order of the builders.
+     */
+    private DocumentBuilder[] createDocumentBuilders(List<String> names) {
+        ArrayList<DocumentBuilder> builders = new ArrayList<DocumentBuilder>();
+        if (customDocumentBuilder != null) {
+            try {
+                builders.add(customDocumentBuilder.newInstance());
+                names.add(customDocumentBuilder.getSimpleName());
+            } catch (InstantiationException | IllegalAccessException e) {
+                e.printStackTrace();
+            }
+        }
+        for (ExtractorItem globalExtractor : GlobalExtractors) {
+            GlobalDocumentBuilder builder = new GlobalDocumentBuilder(globalHashing, globalHashingMode, useDocValues);
+            builder.addExtractor(globalExtractor.clone());
+            builders.add(builder);
+            names.add(globalExtractor.getFieldName());
+        }
+        for (Map.Entry<ExtractorItem, LinkedList<Cluster[]>> listEntry : LocalExtractorsAndCodebooks.entrySet()) {
+            if (deferredExtractors.contains(listEntry.getKey())) continue; // see DeferredExtractors.
+            LocalDocumentBuilder builder = new LocalDocumentBuilder(aggregator);
+            builder.setApproximateAssignment(assignmentProbes);
+            builder.addExtractor(listEntry.getKey().clone(), listEntry.getValue());
+            builders.add(builder);
+            names.add(listEntry.getKey().getFieldName());
+        }
+        for (Map.Entry<ExtractorItem, LinkedList<Cluster[]>> listEntry : SimpleExtractorsAndCodebooks.entrySet()) {
+            if (deferredExtractors.contains(listEntry.getKey())) continue; // see DeferredExtractors.
+            SimpleDocumentBuilder builder = new SimpleDocumentBuilder(aggregator);
+            builder.setApproximateAssignment(assignmentProbes);
+            builder.addExtractor(listEntry.getKey().clone(), listEntry.getValue());
+            builders.add(builder);
+            names.add(listEntry.getKey().getFieldName());
+        }
+        return builders.toArray(new DocumentBuilder[builders.size()]);
+    }
+
+    /**
+     * Registers the gauges of the pipeline queues and the memory in flight, they read 0 while not indexing.
+     */
+    private void registerGauges() {
+        for (int i = 0; i < QUEUE_GAUGES.length; i++) {
+            final int queue = i;
+            gauges[i] = new Gauge() {
+                public double getValue() {
+                    PipelineQueue<?>[] queues = pipelineQueues;
+                    return (queues != null && queue < queues.length) ? queues[queue].size() : 0;
+                }
+            };
+            metrics.gauge(QUEUE_GAUGES[i], gauges[i]);
+        }
+        gauges[QUEUE_GAUGES.length] = new Gauge() {
+            public double getValue() {
+                return memoryBudget.getUsedBytes();
+            }
+        };
+        metrics.gauge(MEMORY_GAUGE, gauges[QUEUE_GAUGES.length]);
+    }
+
+    /**
+     * Removes the gauges from the shared registry when the run is over, so they don't keep the indexer reachable and
+     * don't report stale values. Gauges of another indexer registered in the meantime are kept.
+     */
+    private void unregisterGauges() {
+        for (int i = 0; i < QUEUE_GAUGES.length; i++) {
+            metrics.remove(QUEUE_GAUGES[i], gauges[i]);
+        }
+        metrics.remove(MEMORY_GAUGE, gauges[QUEUE_GAUGES.length]);
+    }
+
+    /**
+     * Returns the next image to process from the shared iterator, skipping those in skipImages and, when appending,
+     * those already indexed with the same modification time and size. Documents without file stamp, ie. indexed by
+     * older versions, are considered up to date.
+     */
+    private String nextPath(Iterator<String> paths) {
+        if (codebookFailure != null) return null; // nothing can be indexed without the codebooks.
+        synchronized (paths) {
+            while (paths.hasNext()) {
+                String path = paths.next();
+                if (skipImages.contains(path)) continue;
+                if (indexedImages != null) {
+                    String stamp = indexedImages.get(path);
+                    if (stamp != null) {
+                        if (stamp.isEmpty() || stamp.equals(getFileStamp(new File(path)))) {
+                            skippedImages++;
+                            sampleDone(path);
+                            continue;
+                        }
+                        changedImages.add(path);
+                    }
+                }
+                numImages++;
+                return path;
+            }
+            return null;
         }
     }
 
+    private static String getFileStamp(File file) {
+        return file.lastModified() + ":" + file.length();
+    }
+
+    /**
+     * Creates the document for an image with its identifier and file stamp. The stamp term holds the path as well, so
+     * the images in the index can be listed from the terms without loading the stored fields.
+     */
+    private static Document createDocument(String path) {
+        Document doc = new Document();
+        doc.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, path, Field.Store.YES));
+        doc.add(new StringField(DocumentBuilder.FIELD_NAME_FILE_STAMP, getFileStamp(new File(path)) + ":" + path, Field.Store.NO));
+        return doc;
+    }
+
+    /**
+     * Lists the images in the index from the identifier and file stamp terms of the live documents.
+     *
+     * @return the paths mapped to the file stamp, "" if the document has no stamp.
+     */
+    private HashMap<String, String> readIndexedImages() throws IOException {
+        HashMap<String, String> result = new HashMap<String, String>();
+        for (IndexWriter indexWriter : getAllWriters()) {
+            try (DirectoryReader reader = DirectoryReader.open(indexWriter)) {
+                for (LeafReaderContext leaf : reader.leaves()) {
+                    for (String path : getLiveTerms(leaf.reader(), DocumentBuilder.FIELD_NAME_IDENTIFIER)) {
+                        if (!result.containsKey(path)) result.put(path, "");
+                    }
+                    for (String term : getLiveTerms(leaf.reader(), DocumentBuilder.FIELD_NAME_FILE_STAMP)) {
+                        int split = term.indexOf(':', term.indexOf(':') + 1);
+                        if (split > 0) result.put(term.substring(split + 1), term.substring(0, split));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<String> getLiveTerms(LeafReader reader, String field) throws IOException {
+        LinkedList<String> result = new LinkedList<String>();
+        Terms terms = reader.terms(field);
+        if (terms == null) return result;
+        Bits liveDocs = reader.getLiveDocs();
+        TermsEnum termsEnum = terms.iterator();
+        PostingsEnum postings = null;
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+            postings = termsEnum.postings(postings, PostingsEnum.NONE);
+            int doc;
+            while ((doc = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                if (liveDocs == null || liveDocs.get(doc)) {
+                    result.add(term.utf8ToString());
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Commits the index with the number of documents written in the commit user data. As the documents are complete
+     * when written, an interrupted run loses at most the images since the last checkpoint. Rerunning it in appending
+     * mode skips the images already in the index.
+     *
+     * @param complete true if all images have been indexed.
+     */
+    private synchronized void checkpoint(boolean complete) throws IOException {
+        int documents = overallCount.get();
+        HashMap<String, String> userData = new HashMap<String, String>(4);
+        userData.put(COMMIT_DATA_COMPLETE, String.valueOf(complete));
+        userData.put(COMMIT_DATA_DOCUMENTS, String.valueOf(documents));
+        userData.put(COMMIT_DATA_TIME, String.valueOf(System.currentTimeMillis()));
+        // the shards first, so the progress marker doesn't count documents that are not committed yet.
+        if (shardWriters != null) {
+            for (IndexWriter shard : shardWriters) {
+                LuceneUtils.commitWriter(shard);
+            }
+        }
+        writer.setLiveCommitData(userData.entrySet());
+        LuceneUtils.commitWriter(writer);
+        lastCheckpoint.set(documents);
+    }
+
+    /**
+     * Reads the progress marker of the last commit, see {@link #COMMIT_DATA_COMPLETE} and
+     * {@link #COMMIT_DATA_DOCUMENTS}. If the index is not complete, the run can be resumed in appending mode.
+     *
+     * @param indexPath the path of the index.
+     * @return the commit user data, empty if the index was not created by this version.
+     * @throws IOException
+     */
+    public static Map<String, String> readCheckpoint(String indexPath) throws IOException {
+        try (Directory directory = FSDirectory.open(Paths.get(indexPath))) {
+            return SegmentInfos.readLatestCommit(directory).getUserData();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        int fileSize = (int) file.length();
+        byte[] buffer = new byte[fileSize];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            map.load();
+            map.get(buffer);
+            channel.close();
+        } finally {
+            fis.close();
+        }
+        return buffer;
+    }
+
     private void fillSampleWithGlobals() {
         System.out.println("Filling GlobalFeatures....");
         System.out.printf("Indexing %d images\n", sampleImages.size());
@@ -878,7 +1487,7 @@ public class ParallelIndexer implements Runnable {
             }
             monitoring.killMonitoring();
             long end = System.currentTimeMillis() - start;
-            System.out.printf("Analyzed %d images in %s ~ %3.2f ms each.\n", overallCount, convertTime(end), ((overallCount > 0) ? ((float) end / (float) overallCount) : -1f));
+            printSummary(end);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -891,9 +1500,7 @@ public class ParallelIndexer implements Runnable {
         ExtractorForLocalSample extractorForLocalSample;
         Monitoring monitoring;
         Extractor myExtractor;
-        String codebookTitle, toPrint;
-        Cluster[] codebook;
-        boolean flag;
+        String toPrint;
         try {
             for (ExtractorItem extractorItem : mapWithClassesAndCodebooks.keySet()) {
                 myExtractor = extractorItem.getExtractorInstance();
@@ -902,10 +1509,8 @@ public class ParallelIndexer implements Runnable {
                 threads.clear();
 
                 if (extractorItem.isSimple()) {
-                    codebookTitle = ((SimpleExtractor) myExtractor).getFieldName();
                     toPrint = ((SimpleExtractor) myExtractor).getFeatureName() + " and " + aggregator.getSimpleName();
                 } else if (extractorItem.isLocal()) {
-                    codebookTitle = (extractorItem.getFeatureInstance()).getFieldName();
                     toPrint = (extractorItem.getFeatureInstance()).getFeatureName() + " and " + aggregator.getSimpleName();
                 } else throw new UnsupportedOperationException("Something is wrong!! (ParallelLocalIndexer.sampling)");
 
@@ -933,27 +1538,9 @@ public class ParallelIndexer implements Runnable {
                 }
                 monitoring.killMonitoring();
                 end = System.currentTimeMillis() - start;
-                System.out.printf("Analyzed %d images in %s ~ %3.2f ms each.\n", overallCount, convertTime(end), ((overallCount > 0) ? ((float) end / (float) overallCount) : -1f));
-
-                for (Integer numOfClusters : numOfClustersSet) {
-                    System.out.println("Number of clusters: " + numOfClusters);
-                    flag = true;
-                    for (int j = 0; j < mapWithClassesAndCodebooks.get(extractorItem).size(); j++) {
-                        if (mapWithClassesAndCodebooks.get(extractorItem).get(j).length == numOfClusters) {
-                            System.out.println("Codebook of " + numOfClusters + " clusters found, no need to generate!");
-                            flag = false;
-                        }
-                    }
+                printSummary(end);
 
-                    if (flag) {
-                        start = System.currentTimeMillis();
-                        codebook = codebookGenerator(conSampleMap, numOfClusters);
-                        Cluster.writeClusters(codebook, indexPath + ".config/" + codebookTitle + numOfClusters);
-                        mapWithClassesAndCodebooks.get(extractorItem).add(codebook);
-                        System.out.printf("Time of codebook generation: %s.\n", convertTime(System.currentTimeMillis() - start));
-                    }
-
-                }
+                createCodebooks(extractorItem, mapWithClassesAndCodebooks.get(extractorItem), conSampleMap);
 
                 threads.clear();
 
@@ -978,23 +1565,349 @@ public class ParallelIndexer implements Runnable {
                 }
                 monitoring.killMonitoring();
                 end = System.currentTimeMillis() - start;
-                System.out.printf("Analyzed %d images in %s ~ %3.2f ms each.\n", overallCount, convertTime(end), ((overallCount > 0) ? ((float) end / (float) overallCount) : -1f));
+                printSummary(end);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public double getPercentageDone() {
-        return (double) overallCount / (double) numImages;
+    /**
+     * Creates the codebooks of the sizes missing for an extractor, and the {@link VLADProjection} for each of its
+     * codebooks if the aggregator is {@link CompactVLAD}.
+     *
+     * @param extractorItem the extractor.
+     * @param codebooks     the codebooks of the extractor, the new ones are added.
+     * @param sampleMap     the local features of the sampled images.
+     */
+    private void createCodebooks(ExtractorItem extractorItem, LinkedList<Cluster[]> codebooks, ConcurrentHashMap<String, LocalFeatureSet> sampleMap) throws IOException {
+        String codebookTitle = extractorItem.getFieldName();
+        long start;
+        for (Integer numOfClusters : numOfClustersSet) {
+            System.out.println("Number of clusters: " + numOfClusters);
+            boolean flag = true;
+            for (Cluster[] codebook : codebooks) {
+                if (codebook.length == numOfClusters) {
+                    System.out.println("Codebook of " + numOfClusters + " clusters found, no need to generate!");
+                    flag = false;
+                }
+            }
+
+            if (flag) {
+                start = System.currentTimeMillis();
+                Cluster[] codebook;
+                if (VocabularyTreeAggregator.class.isAssignableFrom(aggregator)) {
+                    VocabularyTree tree = vocabularyTreeGenerator(sampleMap, numOfClusters);
+                    tree.write(indexPath + ".config/" + codebookTitle + numOfClusters + VocabularyTree.FILE_EXTENSION);
+                    codebook = tree.getFirstLevel();
+                    VocabularyTree.register(codebook, tree);
+                } else codebook = codebookGenerator(sampleMap, numOfClusters);
+                Cluster.writeClusters(codebook, indexPath + ".config/" + codebookTitle + numOfClusters);
+                codebooks.add(codebook);
+                System.out.printf("Time of codebook generation: %s.\n", convertTime(System.currentTimeMillis() - start));
+            }
+
+            if (CompactVLAD.class.isAssignableFrom(aggregator)) {
+                for (Cluster[] vladCodebook : codebooks) {
+                    if (vladCodebook.length != numOfClusters || VLADProjection.forCodebook(vladCodebook) != null) continue;
+                    start = System.currentTimeMillis();
+                    VLADProjection projection = VLADProjection.train(sampleMap.values(), vladCodebook, compactVladDimensions, compactVladEncoding, compactVladSubspaces);
+                    projection.write(indexPath + ".config/" + codebookTitle + numOfClusters + VLADProjection.FILE_EXTENSION);
+                    VLADProjection.register(vladCodebook, projection);
+                    System.out.printf("Time of VLAD projection training: %s.\n", convertTime(System.currentTimeMillis() - start));
+                }
+            }
+        }
+    }
+
+    /**
+     * As the images are discovered while they are indexed, this is relative to the images found so far.
+     *
+     * @return the share of images processed.
+     */
+    public double getPercentageDone() {
+        return (double) overallCount.get() / (double) numImages;
+    }
+
+    private void printSummary(long time) {
+        int count = overallCount.get();
+        System.out.printf("Analyzed %d images in %s ~ %3.2f ms each.\n", count, convertTime(time), ((count > 0) ? ((float) time / (float) count) : -1f));
+        System.out.println(getStageSummary());
+    }
+
+    private String getStageSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (StageStats stats : stageStats) {
+            if (sb.length() > 0) sb.append("; ");
+            sb.append(stats);
+        }
+        return sb.toString();
+    }
+
+    private String getQueueSizes() {
+        PipelineQueue<?>[] queues = pipelineQueues;
+        if (queues == null) return String.valueOf(queue.size());
+        StringBuilder sb = new StringBuilder();
+        for (PipelineQueue<?> q : queues) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(q.size());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Resets the counters for a new producer / consumer run.
+     */
+    private void startStage(String producerName, String consumerName) {
+        overallCount.set(0);
+        queue.clear();
+        producerStats = new StageStats(producerName, 1);
+        consumerStats = new StageStats(consumerName, numOfThreads);
+        stageStats = new StageStats[]{producerStats, consumerStats};
+    }
+
+    /**
+     * Blocks until the next item is available.
+     *
+     * @return the next item or null if the producer has finished.
+     */
+    private WorkItem takeWorkItem() throws InterruptedException {
+        long start = System.nanoTime();
+        WorkItem item = queue.take();
+        consumerStats.addWaiting(System.nanoTime() - start);
+        if (item == END_OF_QUEUE) {
+            queue.put(END_OF_QUEUE); // there's room, as the producer has finished.
+            return null;
+        }
+        overallCount.incrementAndGet();
+        return item;
+    }
+
+    /**
+     * Hands the item over to the consumers, blocks while the queue is full.
+     */
+    private void putWorkItem(WorkItem item) throws InterruptedException {
+        long start = System.nanoTime();
+        queue.put(item);
+        producerStats.addWaiting(System.nanoTime() - start);
+    }
+
+    private void endOfQueue() {
+        try {
+            queue.put(END_OF_QUEUE);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public ImagePreprocessor getImagePreprocessor() {
+        return imagePreprocessor;
+    }
+
+    public void setImagePreprocessor(ImagePreprocessor imagePreprocessor) {
+        this.imagePreprocessor = imagePreprocessor;
+    }
+
+    /**
+     * Sets the number of threads of the indexing pipeline stages. The number of extractor threads is the numOfThreads
+     * given in the constructor.
+     *
+     * @param numOfReaderThreads  threads reading the files, default is 1, more pay off for network storage or SSDs.
+     * @param numOfDecoderThreads threads decoding the images, values &lt; 1 use a quarter of the extractor threads.
+     * @param numOfWriterThreads  threads adding documents to the index, default is 1.
+     */
+    public void setPipelineThreads(int numOfReaderThreads, int numOfDecoderThreads, int numOfWriterThreads) {
+        if (numOfReaderThreads < 1 || numOfWriterThreads < 1)
+            throw new IllegalArgumentException("At least one reader and one writer thread are needed.");
+        this.numOfReaderThreads = numOfReaderThreads;
+        this.numOfDecoderThreads = numOfDecoderThreads;
+        this.numOfWriterThreads = numOfWriterThreads;
+    }
+
+    /**
+     * Sets the capacities of the queues between the decoders and the extractors and between the extractors and the
+     * writers. The capacity of the queue of raw files is the queueSize of the constructor. Values &lt; 1 use the
+     * defaults, twice the number of extractor threads and twice the batch size per writer.
+     *
+     * @param imageQueueCapacity    the maximum number of decoded images waiting for extraction.
+     * @param documentQueueCapacity the maximum number of documents waiting to be written.
+     */
+    public void setPipelineQueueCapacities(int imageQueueCapacity, int documentQueueCapacity) {
+        this.imageQueueCapacity = imageQueueCapacity;
+        this.documentQueueCapacity = documentQueueCapacity;
+    }
+
+    /**
+     * Sets the maximum number of bytes taken by images in flight, files read and their decoded rasters, estimated
+     * from the image headers. Default is a quarter of the maximum heap size.
+     *
+     * @param maxBytes the budget in bytes.
+     */
+    public void setMemoryBudget(long maxBytes) {
+        this.memoryBudget = new MemoryBudget(maxBytes);
+    }
+
+    /**
+     * Decodes the images at the resolution the global features are extracted from, see {@link ImageDecoder}, instead
+     * of decoding them fully and scaling them down afterwards. This only applies if there are no local, simple or
+     * custom extractors, which analyze the full image. Default is true.
+     *
+     * @param subsampledDecoding false to always decode the full image.
+     */
+    public void setSubsampledDecoding(boolean subsampledDecoding) {
+        this.subsampledDecoding = subsampledDecoding;
+    }
+
+    /**
+     * @return the side length the images are decoded for, -1 for the full resolution.
+     */
+    private int getDecodingSize() {
+        if (!subsampledDecoding || customDocumentBuilder != null || LocalExtractorsAndCodebooks.size() > 0 || SimpleExtractorsAndCodebooks.size() > 0)
+            return -1;
+        return DocumentBuilder.MAX_IMAGE_DIMENSION;
+    }
+
+    /**
+     * Creates the codebooks with {@link MiniBatchKMeans}, which writes the sampled features to a
+     * {@link FeatureSpillFile} and clusters random batches streamed from it, instead of copying all of them to the
+     * heap for full k-means steps. The codebooks are approximations of the full k-means ones, and the parallel
+     * clustering and {@link #setClusteringAlgorithm(KMeans.Algorithm)} have no effect while it is on. Default is
+     * false.
+     *
+     * @param miniBatchClustering true for mini-batch k-means.
+     */
+    public void setMiniBatchClustering(boolean miniBatchClustering) {
+        this.miniBatchClustering = miniBatchClustering;
+    }
+
+    /**
+     * Sets the algorithm for the full k-means steps, see {@link KMeans.Algorithm}. Hamerly and Elkan give the same
+     * codebooks as Lloyd, but skip most of the distance computations at the cost of memory for the bounds. As
+     * mini-batch k-means has no full steps, this switches mini-batch clustering off. Default is Lloyd.
+     *
+     * @param algorithm the k-means algorithm.
+     */
+    public void setClusteringAlgorithm(KMeans.Algorithm algorithm) {
+        this.clusteringAlgorithm = algorithm;
+        this.miniBatchClustering = false;
+    }
+
+    /**
+     * Switches the aggregators to approximate codeword assignment, see {@link CodewordAssigner}. The codewords are
+     * grouped and each local feature is only compared to the codewords of the nearest groups, which is faster for
+     * large codebooks, but a feature may end up with a codeword that is not the nearest one. Default is 0.
+     *
+     * @param probes the number of codeword groups searched per feature, 0 for exact assignment.
+     */
+    public void setApproximateAssignment(int probes) {
+        this.assignmentProbes = probes;
+    }
+
+    /**
+     * Configures the projection trained for {@link CompactVLAD} on the sampled images after each codebook has been
+     * created, see {@link VLADProjection}. It is written next to the codebook with the suffix ".vlad". Default is 128
+     * dimensions with product quantization in 32 subspaces, ie. 32 bytes per image.
+     *
+     * @param dimensions the number of dimensions after the projection.
+     * @param encoding   the way the projected vectors are stored.
+     * @param subspaces  the number of subspaces for product quantization, ignored otherwise.
+     */
+    public void setCompactVLAD(int dimensions, VLADProjection.Encoding encoding, int subspaces) {
+        this.compactVladDimensions = dimensions;
+        this.compactVladEncoding = encoding;
+        this.compactVladSubspaces = subspaces;
+    }
+
+    /**
+     * Sets the depth of the {@link VocabularyTree} trained for the {@link VocabularyTreeAggregator}. The number of
+     * clusters is taken as branching factor, so a tree has up to clusters^depth words. The first level is written as
+     * codebook and the tree next to it with the suffix ".vtree". Default is 3.
+     *
+     * @param depth the number of levels of the tree.
+     */
+    public void setVocabularyTreeDepth(int depth) {
+        this.vocabularyTreeDepth = depth;
+    }
+
+    /**
+     * Sets the number of documents after which the index is committed with a progress marker, so an interrupted run
+     * can be resumed in appending mode, see {@link #readCheckpoint(String)}. Default is 10,000.
+     *
+     * @param checkpointInterval the number of documents between commits, 0 for a single commit at the end.
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * @param writeBatchSize the number of documents added with one call to IndexWriter#addDocuments, default is 32.
+     */
+    public void setWriteBatchSize(int writeBatchSize) {
+        this.writeBatchSize = Math.max(1, writeBatchSize);
+    }
+
+    /**
+     * Writes the documents to several indexes, each with its own IndexWriter, so writing and merging are spread over
+     * several disks. The writer threads are assigned to the shards in turn, with at least one thread per shard. At the
+     * end the shards are either added to the index at indexPath with IndexWriter#addIndexes, which copies their
+     * segments without merging them, or kept, eg. for the
+     * {@link net.semanticmetadata.lire.searchers.sharding.ShardedImageSearcher}. Kept shards are merged in parallel,
+     * see {@link #setForceMerge(int)}, and the index at indexPath only holds the progress marker, see
+     * {@link #readCheckpoint(String)}.
+     *
+     * @param shardPaths the directories of the shards, eg. one per disk, null to write a single index.
+     * @param keepShards true to keep the shards, false to add them to the index and delete their files.
+     */
+    public void setShards(String[] shardPaths, boolean keepShards) {
+        if (shardPaths != null && shardPaths.length == 0)
+            throw new IllegalArgumentException("At least one shard is needed.");
+        this.shardPaths = shardPaths;
+        this.keepShards = keepShards;
+    }
+
+    /**
+     * Sets the number of segments the index, or each kept shard, is merged to at the end. One segment is a bit faster
+     * to search, but for large indexes the merge can take longer than the indexing. Default is 1.
+     *
+     * @param maxSegments the maximum number of segments, 0 to keep the segments of the merge policy.
+     */
+    public void setForceMerge(int maxSegments) {
+        this.maxSegments = maxSegments;
     }
 
-    public ImagePreprocessor getImagePreprocessor() {
-        return imagePreprocessor;
+    /**
+     * Sets the merge policy of the index writers, eg. a TieredMergePolicy with larger segments, to control merging
+     * while indexing. The policy is shared by the shards, so it must not keep state per writer, which the Lucene
+     * merge policies don't. Default is the merge policy of {@link LuceneUtils#createIndexWriter(String, boolean, LuceneUtils.AnalyzerType)}.
+     *
+     * @param mergePolicy the merge policy.
+     */
+    public void setMergePolicy(MergePolicy mergePolicy) {
+        this.mergePolicy = mergePolicy;
     }
 
-    public void setImagePreprocessor(ImagePreprocessor imagePreprocessor) {
-        this.imagePreprocessor = imagePreprocessor;
+    /**
+     * If codebooks have to be created, the images are indexed in one pass: the sampled images are extracted first,
+     * the codebooks are created from their local features while the other images are extracted, and the documents
+     * finished before the codebooks are ready are spilled to disk with their local features and aggregated
+     * afterwards. If set to false, the sampled images are extracted once per local extractor before indexing and then
+     * again when they are indexed. Default is false.
+     *
+     * @param singlePass true to create the codebooks while indexing.
+     */
+    public void setSinglePass(boolean singlePass) {
+        this.singlePass = singlePass;
+    }
+
+    /**
+     * If set, the features of an image are extracted in one task per extractor, so the extractor threads can work on
+     * the same image in parallel. This pays off for few large images or extractors of very different run time.
+     * Default is one task for all extractors of an image.
+     *
+     * @param taskPerExtractor true for one task per extractor.
+     */
+    public void setTaskPerExtractor(boolean taskPerExtractor) {
+        this.taskPerExtractor = taskPerExtractor;
     }
 
     class Producer implements Runnable {
@@ -1002,18 +1915,20 @@ public class ParallelIndexer implements Runnable {
 
         public Producer(List<String> localList) {
             this.localList = localList;
-            overallCount = 0;
-            queue.clear();
+            startStage("Producer", "Consumers");
         }
 
         public void run() {
             File next;
-            for (String path : localList) {
-                next = new File(path);
-                try {
-                    // option 1 --------------------
+            long start;
+            try {
+                for (String path : localList) {
+                    next = new File(path);
+                    start = System.nanoTime();
+                    try {
+                        // option 1 --------------------
 //                    byte[] buffer = Files.readAllBytes(Paths.get(path)); // JDK 7 only!
-                    // option 2 --------------------
+                        // option 2 --------------------
 //                    path = next.getCanonicalPath();
 //                    int fileSize = (int) next.length();
 //                    byte[] buffer = new byte[fileSize];
@@ -1021,58 +1936,49 @@ public class ParallelIndexer implements Runnable {
 //                    int tmp = fis.read(buffer);
 //                    assert(tmp == fileSize);
 //                    fis.close();
-                    // option 3 --------------------
-                    int fileSize = (int) next.length();
-                    byte[] buffer = new byte[fileSize];
-                    FileInputStream fis = new FileInputStream(next);
-                    FileChannel channel = fis.getChannel();
-                    MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
-                    map.load();
-                    map.get(buffer);
-                    queue.put(new WorkItem(path, buffer));
-                    channel.close();
-                    fis.close();
-                } catch (Exception e) {
-                    System.err.println("Could not open " + path + ". " + e.getMessage());
-                }
-            }
-            String path = null;
-            byte[] buffer = null;
-            for (int i = 0; i < numOfThreads * 3; i++) {
-                try {
-                    queue.put(new WorkItem(path, buffer));
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                        // option 3 --------------------
+                        WorkItem item = new WorkItem(path, (byte[]) null);
+                        memoryBudget.acquire(item, next);
+                        try {
+                            item.setBuffer(readFile(next));
+                        } catch (Exception e) {
+                            memoryBudget.release(item);
+                            throw e;
+                        }
+                        producerStats.addBusy(System.nanoTime() - start);
+                        putWorkItem(item);
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        System.err.println("Could not open " + path + ". " + e.getMessage());
+                    }
                 }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } finally {
+                endOfQueue();
             }
         }
     }
 
     class ProducerForLocalSample implements Runnable {
-        private ConcurrentHashMap<String, List<? extends LocalFeature>> localSampleList;
+        private ConcurrentHashMap<String, LocalFeatureSet> localSampleList;
 
-        public ProducerForLocalSample(ConcurrentHashMap<String, List<? extends LocalFeature>> localSampleList) {
+        public ProducerForLocalSample(ConcurrentHashMap<String, LocalFeatureSet> localSampleList) {
             this.localSampleList = localSampleList;
-            overallCount = 0;
-            queue.clear();
+            startStage("Producer", "Aggregators");
         }
 
         public void run() {
-            for (Map.Entry<String, List<? extends LocalFeature>> listEntry : localSampleList.entrySet()) {
-                try {
-                    queue.put(new WorkItem(listEntry.getKey(), listEntry.getValue()));
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-            String path = null;
-            List<? extends LocalFeature> listOfFeatures = null;
-            for (int i = 0; i < numOfThreads * 3; i++) {
-                try {
-                    queue.put(new WorkItem(path, listOfFeatures));
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            try {
+                for (Map.Entry<String, LocalFeatureSet> listEntry : localSampleList.entrySet()) {
+                    producerStats.addBusy(0);
+                    putWorkItem(new WorkItem(listEntry.getKey(), listEntry.getValue()));
                 }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } finally {
+                endOfQueue();
             }
         }
     }
@@ -1080,37 +1986,39 @@ public class ParallelIndexer implements Runnable {
     class ExtractorForLocalSample implements Runnable {
         private AbstractLocalDocumentBuilder documentBuilder;
         private ExtractorItem extractorItem;
-        private boolean locallyEnded;
 
         public ExtractorForLocalSample(ExtractorItem extractorItem) {
             if (extractorItem.isLocal()) documentBuilder = new LocalDocumentBuilder();
             else if (extractorItem.isSimple()) documentBuilder = new SimpleDocumentBuilder();
             else throw new UnsupportedOperationException("Something is wrong!! (ExtractorForLocalSample)");
             this.extractorItem = extractorItem.clone();
-            this.locallyEnded = false;
         }
 
         public void run() {
             WorkItem tmp;
             ByteArrayInputStream b;
-            while (!locallyEnded) {
-                try {
-                    tmp = queue.take();
-                    if (tmp.getFileName() == null) locallyEnded = true;
-                    else overallCount++;
-                    if (!locallyEnded) {   //&& tmp != null
+            long start;
+            try {
+                while ((tmp = takeWorkItem()) != null) {
+                    start = System.nanoTime();
+                    try {
                         b = new ByteArrayInputStream(tmp.getBuffer());
                         BufferedImage image = ImageIO.read(b);
-                        if(imagePreprocessor != null){
+                        if (imagePreprocessor != null) {
                             image = imagePreprocessor.process(image);
                         }
-                        conSampleMap.put(tmp.getFileName(), (documentBuilder.extractLocalFeatures(image, ((LocalFeatureExtractor) extractorItem.getExtractorInstance())).getFeatures()));
+                        LocalFeatureSet features = documentBuilder.extractLocalFeatures(image, ((LocalFeatureExtractor) extractorItem.getExtractorInstance())).getFeatureSet();
+                        features.trimToSize();
+                        conSampleMap.put(tmp.getFileName(), features);
+                    } catch (Exception e) {
+                        log.severe(e.getMessage() + ": " + tmp.getFileName());
+                    } finally {
+                        memoryBudget.release(tmp);
                     }
-                } catch (InterruptedException | IOException e) {
-                    log.severe(e.getMessage());
-                }  catch (Exception e) {
-                    log.severe(e.getMessage());
+                    consumerStats.addBusy(System.nanoTime() - start);
                 }
+            } catch (InterruptedException e) {
+                log.severe(e.getMessage());
             }
         }
 
@@ -1120,7 +2028,6 @@ public class ParallelIndexer implements Runnable {
         private AbstractLocalDocumentBuilder documentBuilder;
         private ExtractorItem localExtractorItem;
         private LinkedList<Cluster[]> clusters;
-        private boolean locallyEnded;
 
         public ConsumerForLocalSample(ExtractorItem extractorItem, LinkedList<Cluster[]> clusters) {
             ExtractorItem tmpExtractorItem = extractorItem.clone();
@@ -1129,61 +2036,59 @@ public class ParallelIndexer implements Runnable {
             else if (extractorItem.isSimple())
                 documentBuilder = new SimpleDocumentBuilder(tmpExtractorItem, clusters, aggregator);
             else throw new UnsupportedOperationException("Something is wrong!! (ConsumerForLocalSample)");
+            documentBuilder.setApproximateAssignment(assignmentProbes);
 
             this.localExtractorItem = tmpExtractorItem;
             this.clusters = clusters;
-            this.locallyEnded = false;
         }
 
         public void run() {
             WorkItem tmp;
             Field[] fields;
             Document doc;
-            while (!locallyEnded) {
-                try {
-                    tmp = queue.take();
-                    if (tmp.getFileName() == null) locallyEnded = true;
-                    else overallCount++;
-                    if (!locallyEnded) {   //&& tmp != null
-                        fields = documentBuilder.createLocalDescriptorFields(tmp.getListOfFeatures(), localExtractorItem, clusters);
+            long start;
+            try {
+                while ((tmp = takeWorkItem()) != null) {
+                    start = System.nanoTime();
+                    try {
+                        fields = documentBuilder.createLocalDescriptorFields(tmp.getFeatureSet(), localExtractorItem, clusters);
                         doc = allDocuments.get(tmp.getFileName());
                         for (Field field : fields) {
                             doc.add(field);
                         }
+                    } catch (Exception e) {
+                        log.severe(e.getMessage() + ": " + tmp.getFileName());
                     }
-                } catch (InterruptedException e) {
-                    log.severe(e.getMessage());
-                }  catch (Exception e) {
-                    log.severe(e.getMessage());
+                    consumerStats.addBusy(System.nanoTime() - start);
                 }
+            } catch (InterruptedException e) {
+                log.severe(e.getMessage());
             }
         }
     }
 
     class ConsumerForGlobalSample implements Runnable {
         private GlobalDocumentBuilder globalDocumentBuilder;
-        private boolean locallyEnded;
 
         public ConsumerForGlobalSample() {
             this.globalDocumentBuilder = new GlobalDocumentBuilder(globalHashing, globalHashingMode, useDocValues);
             for (ExtractorItem globalExtractor : GlobalExtractors) {
                 this.globalDocumentBuilder.addExtractor(globalExtractor.clone());
             }
-            this.locallyEnded = false;
         }
 
         public void run() {
             WorkItem tmp;
             Field[] fields;
             Document doc;
-            while (!locallyEnded) {
-                try {
-                    tmp = queue.take();
-                    if (tmp.getFileName() == null) locallyEnded = true;
-                    else overallCount++;
-                    if (!locallyEnded) {   //&& tmp != null
-                        BufferedImage image = ImageIO.read(new ByteArrayInputStream(tmp.getBuffer()));
-                        if(imagePreprocessor != null){
+            long start;
+            try {
+                while ((tmp = takeWorkItem()) != null) {
+                    start = System.nanoTime();
+                    try {
+                        // only global features are extracted from the sample, so the scaled down image is enough.
+                        BufferedImage image = ImageDecoder.read(tmp.getBuffer(), subsampledDecoding ? DocumentBuilder.MAX_IMAGE_DIMENSION : -1);
+                        if (imagePreprocessor != null) {
                             image = imagePreprocessor.process(image);
                         }
                         fields = globalDocumentBuilder.createDescriptorFields(image);
@@ -1191,95 +2096,517 @@ public class ParallelIndexer implements Runnable {
                         for (Field field : fields) {
                             doc.add(field);
                         }
+                    } catch (Exception e) {
+                        log.severe(e.getMessage() + ": " + tmp.getFileName());
+                    } finally {
+                        memoryBudget.release(tmp);
                     }
-                } catch (InterruptedException | IOException e) {
-                    log.severe(e.getMessage());
-                } catch (Exception e) {
-                    log.severe(e.getMessage());
+                    consumerStats.addBusy(System.nanoTime() - start);
                 }
+            } catch (InterruptedException e) {
+                log.severe(e.getMessage());
             }
         }
     }
 
-    class Consumer implements Runnable {
-        private LocalDocumentBuilder localDocumentBuilder;
-        private SimpleDocumentBuilder simpleDocumentBuilder;
-        private GlobalDocumentBuilder globalDocumentBuilder;
-        private DocumentBuilder localCustomDocumentBuilder;
-        private boolean locallyEnded;
+    /**
+     * Reads the image files and hands the raw bytes to the decoders. The readers share one iterator over the paths.
+     */
+    class ReaderStage implements Runnable {
+        private final Iterator<String> paths;
+        private final PipelineQueue<WorkItem> output;
+        private final StageStats stats;
+        private final int decodingSize;
+        private final Histogram readTime = metrics.histogram("indexing.read.time");
+
+        ReaderStage(Iterator<String> paths, PipelineQueue<WorkItem> output, StageStats stats, int decodingSize) {
+            this.paths = paths;
+            this.output = output;
+            this.stats = stats;
+            this.decodingSize = decodingSize;
+        }
 
-        public Consumer() {
-            this.localDocumentBuilder = new LocalDocumentBuilder(aggregator);
-            this.simpleDocumentBuilder = new SimpleDocumentBuilder(aggregator);
-            this.globalDocumentBuilder = new GlobalDocumentBuilder(globalHashing, globalHashingMode, useDocValues);
+        public void run() {
+            String path;
+            long start;
+            try {
+                while ((path = nextPath(paths)) != null) {
+                    start = System.nanoTime();
+                    File file = new File(path);
+                    WorkItem item = new WorkItem(path, (byte[]) null);
+                    // waiting for memory is accounted as busy, as it's the budget and not the queue throttling.
+                    memoryBudget.acquire(item, file, decodingSize);
+                    try {
+                        item.setBuffer(readFile(file));
+                    } catch (IOException e) {
+                        memoryBudget.release(item);
+                        sampleDone(path);
+                        System.err.println("Could not open " + path + ". " + e.getMessage());
+                        continue;
+                    } finally {
+                        long nanos = System.nanoTime() - start;
+                        stats.addBusy(nanos);
+                        readTime.record(nanos / 1000);
+                    }
+                    output.put(item, stats);
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } finally {
+                output.producerFinished();
+            }
+        }
+    }
+
+    /**
+     * Decodes the images and creates the tasks for the extractors.
+     */
+    class DecoderStage implements Runnable {
+        private final PipelineQueue<WorkItem> input;
+        private final PipelineQueue<ExtractionTask> output;
+        private final StageStats stats;
+        private final int numTasks;
+        private final int decodingSize;
+        private final Histogram decodeTime = metrics.histogram("indexing.decode.time");
+        private final Counter decodeFailures = metrics.counter("indexing.decode.failures");
+
+        DecoderStage(PipelineQueue<WorkItem> input, PipelineQueue<ExtractionTask> output, StageStats stats, int numTasks, int decodingSize) {
+            this.input = input;
+            this.output = output;
+            this.stats = stats;
+            this.numTasks = numTasks;
+            this.decodingSize = decodingSize;
+        }
 
-            for (Map.Entry<ExtractorItem, LinkedList<Cluster[]>> listEntry : LocalExtractorsAndCodebooks.entrySet()) {
-                this.localDocumentBuilder.addExtractor(listEntry.getKey().clone(), listEntry.getValue());
+        public void run() {
+            WorkItem tmp;
+            BufferedImage image;
+            long start;
+            try {
+                while ((tmp = input.take(stats)) != null) {
+                    if (codebookFailure != null) { // the images left in the queue are dropped.
+                        memoryBudget.release(tmp);
+                        continue;
+                    }
+                    start = System.nanoTime();
+                    image = null;
+                    try {
+                        image = ImageDecoder.read(tmp.getBuffer(), decodingSize);
+                        decodeTime.record((System.nanoTime() - start) / 1000);
+                        if (image != null && imagePreprocessor != null) {
+                            image = imagePreprocessor.process(image);
+                        }
+                        if (image == null) System.err.println("Could not decode " + tmp.getFileName() + ".");
+                    } catch (Exception e) {
+                        log.severe(e.getMessage() + ": " + tmp.getFileName());
+                    }
+                    stats.addBusy(System.nanoTime() - start);
+                    if (image == null) {
+                        decodeFailures.inc();
+                        memoryBudget.release(tmp);
+                        sampleDone(tmp.getFileName());
+                        continue;
+                    }
+                    tmp.setBuffer(null); // the raw data is not needed anymore.
+                    memoryBudget.releaseFile(tmp);
+                    tmp.setImage(image);
+                    tmp.setDocument(createDocument(tmp.getFileName()));
+                    // decided here, so all extraction tasks of the image agree on aggregating or keeping the features.
+                    if (!deferredExtractors.isEmpty() && !codebooksReady)
+                        tmp.setPendingFeatures(new LocalFeatureSet[deferredExtractors.size()]);
+                    if (numTasks > 1) {
+                        tmp.setPendingTasks(numTasks);
+                        for (int i = 0; i < numTasks; i++) {
+                            output.put(new ExtractionTask(tmp, i), stats);
+                        }
+                    } else {
+                        tmp.setPendingTasks(1);
+                        output.put(new ExtractionTask(tmp, -1), stats);
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.severe(e.getMessage());
+            } finally {
+                output.producerFinished();
             }
-            for (Map.Entry<ExtractorItem, LinkedList<Cluster[]>> listEntry : SimpleExtractorsAndCodebooks.entrySet()) {
-                this.simpleDocumentBuilder.addExtractor(listEntry.getKey().clone(), listEntry.getValue());
+        }
+    }
+
+    /**
+     * Extracts the features of a task. Each extractor thread has its own document builders, one per extractor. The
+     * thread finishing the last task of an image hands the document over to the writers.
+     */
+    class ExtractorStage implements Runnable {
+        private final PipelineQueue<ExtractionTask> input;
+        private final PipelineQueue<WorkItem> output;
+        private final StageStats stats;
+        private final DocumentBuilder[] builders;
+        private final DeferredExtractors deferred = new DeferredExtractors();
+        private final Histogram[] extractionTimes;
+
+        ExtractorStage(PipelineQueue<ExtractionTask> input, PipelineQueue<WorkItem> output, StageStats stats) {
+            this.input = input;
+            this.output = output;
+            this.stats = stats;
+            ArrayList<String> names = new ArrayList<String>();
+            this.builders = createDocumentBuilders(names);
+            for (ExtractorItem extractorItem : deferred.items) {
+                names.add(extractorItem.getFieldName());
             }
-            for (ExtractorItem globalExtractor : GlobalExtractors) {
-                this.globalDocumentBuilder.addExtractor(globalExtractor.clone());
+            this.extractionTimes = new Histogram[names.size()];
+            for (int i = 0; i < extractionTimes.length; i++) {
+                extractionTimes[i] = metrics.histogram("indexing.extract." + names.get(i) + ".time");
             }
+        }
 
+        public void run() {
+            ExtractionTask task;
+            long start;
             try {
-                if (customDocumentBuilder != null) {
-                    this.localCustomDocumentBuilder = customDocumentBuilder.newInstance();
-                } else this.localCustomDocumentBuilder = new GlobalDocumentBuilder(false);
-            } catch (InstantiationException | IllegalAccessException e) {
-                e.printStackTrace();
+                while ((task = input.take(stats)) != null) {
+                    start = System.nanoTime();
+                    WorkItem item = task.item;
+                    boolean done;
+                    try {
+                        if (codebookFailure != null) {
+                            // the image is dropped, the remaining tasks just count down.
+                        } else if (task.builder < 0) {
+                            for (int i = 0; i < extractionTimes.length; i++) {
+                                extract(item, i);
+                            }
+                        } else {
+                            extract(item, task.builder);
+                        }
+                    } catch (Exception e) {
+                        log.severe(e.getMessage() + ": " + item.getFileName());
+                    } finally {
+                        // an Error must not keep the reservation, the readers would wait for it forever.
+                        done = item.taskDone();
+                        if (done) {
+                            item.setImage(null);
+                            memoryBudget.release(item);
+                            sampleDone(item.getFileName());
+                        }
+                    }
+                    stats.addBusy(System.nanoTime() - start);
+                    if (done && codebookFailure == null) output.put(item, stats);
+                }
+            } catch (InterruptedException e) {
+                log.severe(e.getMessage());
+            } finally {
+                output.producerFinished();
+            }
+        }
+
+        private void extract(WorkItem item, int builder) {
+            long start = System.nanoTime();
+            Field[] fields;
+            if (builder < builders.length) fields = builders[builder].createDescriptorFields(item.getImageContext());
+            else fields = extractDeferred(item, builder - builders.length);
+            extractionTimes[builder].record((System.nanoTime() - start) / 1000);
+            if (fields != null) addFields(item.getDocument(), fields);
+        }
+
+        /**
+         * Extracts the local features for an extractor waiting for codebooks. They are kept for the codebooks if the
+         * image is sampled, and aggregated right away if the codebooks have been ready when the image was decoded.
+         *
+         * @return the fields to add, null if the features are pending.
+         */
+        private Field[] extractDeferred(WorkItem item, int extractor) {
+            LocalFeatureSet features = deferred.extract(item.getImage(), extractor);
+            if (sampleSet.contains(item.getFileName())) sampleFeatures.get(extractor).put(item.getFileName(), features);
+            LocalFeatureSet[] pending = item.getPendingFeatures();
+            if (pending == null) return deferred.aggregate(features, extractor);
+            pending[extractor] = features;
+            return null;
+        }
+
+        private void addFields(Document doc, Field[] fields) {
+            synchronized (doc) { // other extractors may work on the same document.
+                for (Field field : fields) {
+                    doc.add(field);
+                }
             }
+        }
+    }
 
-            this.locallyEnded = false;
+    /**
+     * Adds the documents to the index in batches.
+     */
+    class WriterStage implements Runnable {
+        private final PipelineQueue<WorkItem> input;
+        private final StageStats stats;
+        private final Histogram addTime = metrics.histogram("indexing.addDocuments.time");
+        private final Counter documents = metrics.counter("indexing.documents");
+        private final IndexWriter target;
+
+        WriterStage(PipelineQueue<WorkItem> input, StageStats stats, IndexWriter target) {
+            this.input = input;
+            this.stats = stats;
+            this.target = target;
         }
 
         public void run() {
-            WorkItem tmp = null;
-            Document doc;
-            Field[] fields;
-            BufferedImage image;
-            while (!locallyEnded) {
-                try {
-                    if (queue.peek()==null) {
-//                        while (queue.remainingCapacity() > 2*queueCapacity/3) Thread.sleep(1000);
-                        Thread.sleep((long) ((Math.random()/2+0.5) * 10000)); // sleep for a second if queue is empty.
-                    }
-                    tmp = queue.take();
-                    if (tmp.getFileName() == null) locallyEnded = true;
-                    else overallCount++;
-                    if (!locallyEnded) {    //&& tmp != null
-                        image = ImageIO.read(new ByteArrayInputStream(tmp.getBuffer()));
-//                        image = ImageUtils.createWorkingCopy(ImageIO.read(new ByteArrayInputStream(tmp.getBuffer())));
-                        if(imagePreprocessor != null){
-                            image = imagePreprocessor.process(image);
+            ArrayList<WorkItem> batch = new ArrayList<WorkItem>(writeBatchSize);
+            ArrayList<Document> docs = new ArrayList<Document>(writeBatchSize);
+            long start;
+            try {
+                while (input.takeBatch(batch, writeBatchSize, stats)) {
+                    start = System.nanoTime();
+                    int spilled = 0;
+                    for (WorkItem item : batch) {
+                        if (item.getPendingFeatures() == null) continue;
+                        spilled++;
+                        // added once the codebooks are ready, dropped if they have failed, it would never be aggregated.
+                        if (codebookFailure == null) {
+                            try {
+                                documentSpill.add(item);
+                            } catch (IOException | RuntimeException e) {
+                                // the document would be missing from the index, so indexing is stopped.
+                                log.severe("Could not spill " + item.getFileName() + ": " + e.getMessage());
+                                codebookFailure = e;
+                            }
                         }
-                        doc = localCustomDocumentBuilder.createDocument(image, tmp.getFileName());
-                        fields = globalDocumentBuilder.createDescriptorFields(image);
-                        for (Field field : fields) {
-                            doc.add(field);
+                    }
+                    try {
+                        for (WorkItem item : batch) {
+                            if (item.getPendingFeatures() != null) continue;
+                            if (changedImages.contains(item.getFileName())) // replaces the outdated document.
+                                replaceDocument(item, target);
+                            else docs.add(item.getDocument());
                         }
-                        fields = localDocumentBuilder.createDescriptorFields(image);
-                        for (Field field : fields) {
-                            doc.add(field);
+                        target.addDocuments(docs);
+                        addTime.record((System.nanoTime() - start) / 1000);
+                        // spilled documents are counted when they are written after the aggregation.
+                        documents.add(batch.size() - spilled);
+                        int count = overallCount.addAndGet(batch.size() - spilled);
+                        if (checkpointInterval > 0 && count - lastCheckpoint.get() >= checkpointInterval) {
+                            checkpoint(false);
                         }
-                        fields = simpleDocumentBuilder.createDescriptorFields(image);
-                        for (Field field : fields) {
-                            doc.add(field);
+                    } catch (Exception e) {
+                        log.severe(e.getMessage() + ": " + batch.get(0).getFileName() + " and " + (batch.size() - 1) + " more");
+                    }
+                    stats.addBusy(System.nanoTime() - start);
+                    batch.clear();
+                    docs.clear();
+                }
+            } catch (InterruptedException e) {
+                log.severe(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The outdated document may be in the index or any of the shards, so it is deleted from all of them.
+     */
+    private void replaceDocument(WorkItem item, IndexWriter target) throws IOException {
+        Term identifier = new Term(DocumentBuilder.FIELD_NAME_IDENTIFIER, item.getFileName());
+        for (IndexWriter indexWriter : getAllWriters()) {
+            if (indexWriter != target) indexWriter.deleteDocuments(identifier);
+        }
+        target.updateDocument(identifier, item.getDocument());
+    }
+
+    /**
+     * The extractors waiting for codebooks, with extractor instances and document builders for one thread. The
+     * builders aggregating the features are created once the codebooks are ready.
+     */
+    class DeferredExtractors {
+        final ExtractorItem[] items;
+        private final AbstractLocalDocumentBuilder[] builders;
+        private final AbstractLocalDocumentBuilder extractionBuilder = new LocalDocumentBuilder();
+
+        DeferredExtractors() {
+            items = new ExtractorItem[deferredExtractors.size()];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = deferredExtractors.get(i).clone();
+            }
+            builders = new AbstractLocalDocumentBuilder[items.length];
+        }
+
+        LocalFeatureSet extract(BufferedImage image, int extractor) {
+            LocalFeatureSet features = extractionBuilder.extractLocalFeatures(image, (LocalFeatureExtractor) items[extractor].getExtractorInstance()).getFeatureSet();
+            features.trimToSize();
+            return features;
+        }
+
+        Field[] aggregate(LocalFeatureSet features, int extractor) {
+            LinkedList<Cluster[]> codebooks = deferredCodebooks.get(extractor);
+            if (builders[extractor] == null) {
+                if (items[extractor].isSimple())
+                    builders[extractor] = new SimpleDocumentBuilder(items[extractor], codebooks, aggregator);
+                else builders[extractor] = new LocalDocumentBuilder(items[extractor], codebooks, aggregator);
+                builders[extractor].setApproximateAssignment(assignmentProbes);
+            }
+            return builders[extractor].createLocalDescriptorFields(features, items[extractor], codebooks);
+        }
+    }
+
+    /**
+     * Reads the documents from the spill file, see {@link #aggregateSpilledDocuments()}.
+     */
+    class SpillReaderStage implements Runnable {
+        private final PipelineQueue<WorkItem> output;
+        private final StageStats stats;
+
+        SpillReaderStage(PipelineQueue<WorkItem> output, StageStats stats) {
+            this.output = output;
+            this.stats = stats;
+        }
+
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                for (WorkItem item : documentSpill) {
+                    stats.addBusy(System.nanoTime() - start);
+                    output.put(item, stats);
+                    start = System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (UncheckedIOException e) {
+                log.severe("Could not read the spill file: " + e.getMessage());
+            } finally {
+                output.producerFinished();
+            }
+        }
+    }
+
+    /**
+     * Aggregates the pending local features of spilled documents, see {@link #aggregateSpilledDocuments()}.
+     */
+    class AggregatorStage implements Runnable {
+        private final PipelineQueue<WorkItem> input;
+        private final PipelineQueue<WorkItem> output;
+        private final StageStats stats;
+        private final DeferredExtractors deferred = new DeferredExtractors();
+
+        AggregatorStage(PipelineQueue<WorkItem> input, PipelineQueue<WorkItem> output, StageStats stats) {
+            this.input = input;
+            this.output = output;
+            this.stats = stats;
+        }
+
+        public void run() {
+            WorkItem item;
+            long start;
+            try {
+                while ((item = input.take(stats)) != null) {
+                    start = System.nanoTime();
+                    LocalFeatureSet[] pending = item.getPendingFeatures();
+                    item.setPendingFeatures(null);
+                    try {
+                        for (int i = 0; i < pending.length; i++) {
+                            if (pending[i] == null) continue; // the extraction failed.
+                            for (Field field : deferred.aggregate(pending[i], i)) {
+                                item.getDocument().add(field);
+                            }
                         }
-                        writer.addDocument(doc);
+                    } catch (Exception e) {
+                        log.severe(e.getMessage() + ": " + item.getFileName());
                     }
-                } catch (InterruptedException | IOException e) {
-                    log.severe(e.getMessage() + ": " + tmp!=null?tmp.getFileName():"");
-                } catch (Exception e) {
-                    log.severe(e.getMessage() + ": " + tmp!=null?tmp.getFileName():"");
+                    stats.addBusy(System.nanoTime() - start);
+                    output.put(item, stats);
+                }
+            } catch (InterruptedException e) {
+                log.severe(e.getMessage());
+            } finally {
+                output.producerFinished();
+            }
+        }
+    }
+
+    /**
+     * Creates the codebooks of the extractors waiting for them as soon as the sampled images are extracted, while the
+     * extraction of the other images goes on, see {@link #indexSinglePass()}.
+     */
+    class CodebookTrainer implements Runnable {
+        public void run() {
+            try {
+                samplesPending.await();
+                long start = System.currentTimeMillis();
+                System.out.println("Sampled images extracted, creating codebooks....");
+                for (int i = 0; i < deferredExtractors.size(); i++) {
+                    System.out.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
+                    System.out.println("Feature: " + deferredExtractors.get(i).getFieldName() + " and " + aggregator.getSimpleName());
+                    createCodebooks(deferredExtractors.get(i), deferredCodebooks.get(i), sampleFeatures.get(i));
+                    sampleFeatures.get(i).clear();
+                }
+                // saved before the other images are written, so an interrupted run can be resumed in appending mode.
+                if (!appending) {
+                    writePropertiesFile();
+                    System.out.println("Properties saved!");
+                }
+                codebooksReady = true;
+                System.out.printf("Codebooks ready after %s, %d documents spilled so far.\n", convertTime(System.currentTimeMillis() - start), documentSpill.size());
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (IOException | RuntimeException e) {
+                // stops the readers and extractors, indexSinglePass() reports the failure.
+                log.severe("Could not create the codebooks: " + e.getMessage());
+                codebookFailure = e;
+            }
+        }
+    }
+
+    /**
+     * Iterates the sampled images first and then the others, skipping the sampled ones.
+     */
+    private static class SampleFirstIterator implements Iterator<String>, Closeable {
+        private final Iterator<String> sample, images;
+        private final Set<String> sampleSet;
+        private String next = null;
+
+        SampleFirstIterator(List<String> sample, Iterator<String> images, Set<String> sampleSet) {
+            this.sample = sample.iterator();
+            this.images = images;
+            this.sampleSet = sampleSet;
+        }
+
+        public boolean hasNext() {
+            if (next != null) return true;
+            if (sample.hasNext()) {
+                next = sample.next();
+                return true;
+            }
+            while (images.hasNext()) {
+                String path = images.next();
+                if (!sampleSet.contains(path)) {
+                    next = path;
+                    return true;
                 }
             }
+            return false;
+        }
+
+        public String next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            String result = next;
+            next = null;
+            return result;
+        }
+
+        public void close() {
+            closeImageSource(images);
+        }
+    }
+
+    /**
+     * One image for one document builder of an {@link ExtractorStage}, or for all of them if builder is -1.
+     */
+    static final class ExtractionTask {
+        final WorkItem item;
+        final int builder;
+
+        ExtractionTask(WorkItem item, int builder) {
+            this.item = item;
+            this.builder = builder;
         }
     }
 
     class Monitoring implements Runnable {
-        private boolean killMonitor;
+        private volatile boolean killMonitor;
 
         public Monitoring() {
             this.killMonitor = false;
@@ -1297,7 +2624,9 @@ public class ParallelIndexer implements Runnable {
                 try {
                     // print the current status:
                     end = System.currentTimeMillis() - start;
-                    System.out.printf("Analyzed %d images in %s ~ %3.2f ms each. (queue size is %d)\n", overallCount, convertTime(end), ((overallCount > 0) ? ((float) end / (float) overallCount) : -1f), queue.size());
+                    int count = overallCount.get();
+                    System.out.printf("Analyzed %d images in %s ~ %3.2f ms each. (queue size is %s, %d MB in flight)\n", count, convertTime(end), ((count > 0) ? ((float) end / (float) count) : -1f), getQueueSizes(), memoryBudget.getUsedBytes() / (1024 * 1024));
+                    System.out.println(getStageSummary());
                     Thread.sleep(gap); // wait xx seconds
                 } catch (InterruptedException e) {
                     e.printStackTrace();
@@ -1310,46 +2639,65 @@ public class ParallelIndexer implements Runnable {
         }
     }
 
-    private LinkedList<String> selectVocabularyDocs(int maxDocs, int capacity) {
-        // need to make sure that this is not running forever ......
-        LinkedList<String> tmpImages = new LinkedList<String>();
-        Document doc;
-        String tmpStr;
-        if (numOfDocsForCodebooks >= maxDocs) {
-            for (int i = 0; i < maxDocs; i++) {
-                tmpStr = allImages.get(i);
-                doc = new Document();
-                doc.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, tmpStr, Field.Store.YES));
-                allDocuments.put(tmpStr, doc);
-                tmpImages.add(tmpStr);
+    /**
+     * Selects the images for the codebooks with reservoir sampling in one pass over the image source, so each image
+     * has the same chance to be selected without the list of all images being held in memory.
+     */
+    private LinkedList<String> selectVocabularyDocs(int capacity) throws IOException {
+        ArrayList<String> reservoir = new ArrayList<String>(capacity);
+        Random random = new Random();
+        Iterator<String> images = openImageSource();
+        try {
+            long seen = 0;
+            while (images.hasNext()) {
+                String path = images.next();
+                seen++;
+                if (reservoir.size() < capacity) {
+                    reservoir.add(path);
+                } else {
+                    long j = (long) (random.nextDouble() * seen);
+                    if (j < capacity) reservoir.set((int) j, path);
+                }
             }
-            allImages.clear();
-        } else {
-            int tmpIndex;
-            for (int i = 0; i < capacity; i++) {
-                tmpIndex = (int) Math.floor(Math.random() * (double) allImages.size());
-                tmpStr = allImages.get(tmpIndex);
-                doc = new Document();
-                doc.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, tmpStr, Field.Store.YES));
-                allDocuments.put(tmpStr, doc);
-                tmpImages.add(tmpStr);
-                allImages.remove(tmpIndex);
+        } finally {
+            closeImageSource(images);
+        }
+        return new LinkedList<String>(reservoir);
+    }
+
+    /**
+     * Trains a vocabulary tree on all sampled features, with the number of clusters as branching factor.
+     */
+    private VocabularyTree vocabularyTreeGenerator(ConcurrentHashMap<String, LocalFeatureSet> sampleMap, int branching) {
+        FeatureMatrix features = null;
+        double[] row = null;
+        for (LocalFeatureSet set : sampleMap.values()) {
+            if (set.isEmpty()) continue;
+            if (features == null) features = new FeatureMatrix(set.getDimensions(), 1024);
+            for (int i = 0; i < set.size(); i++) {
+                row = set.getDescriptor(i, row);
+                features.add(row);
             }
         }
-        return tmpImages;
+        if (features == null) throw new UnsupportedOperationException("No features found to train the vocabulary tree.");
+        System.out.println("Number of local features: " + df.format(features.size()));
+        System.out.printf("Training a vocabulary tree with branching factor %d and depth %d ...\n", branching, vocabularyTreeDepth);
+        VocabularyTree tree = new VocabularyTree(branching, vocabularyTreeDepth);
+        tree.setNumThreads(numOfThreads);
+        tree.train(features);
+        System.out.printf("Vocabulary tree with %d words.\n", tree.getNumWords());
+        return tree;
     }
 
-    private Cluster[] codebookGenerator(ConcurrentHashMap<String, List<? extends LocalFeature>> sampleMap, int numClusters) {
+    private Cluster[] codebookGenerator(ConcurrentHashMap<String, LocalFeatureSet> sampleMap, int numClusters) throws IOException {
+        if (miniBatchClustering) return miniBatchCodebookGenerator(sampleMap, numClusters);
         KMeans k;
         if (useParallelClustering) k = new ParallelKMeans(numClusters);
         else k = new KMeans(numClusters);
+        k.setAlgorithm(clusteringAlgorithm);
         // fill the KMeans object:
-        List<? extends LocalFeature> tempList;
-        for (Map.Entry<String, List<? extends LocalFeature>> stringListEntry : sampleMap.entrySet()) {
-            tempList = stringListEntry.getValue();
-            for (LocalFeature aTempList : tempList) {
-                k.addFeature(aTempList.getFeatureVector());
-            }
+        for (LocalFeatureSet features : sampleMap.values()) {
+            if (!features.isEmpty()) k.addFeatures(features.getDescriptors());
         }
         if (pm != null) { // set to 5 of 100 before clustering starts.
             pm.setProgress(5);
@@ -1362,45 +2710,79 @@ public class ParallelIndexer implements Runnable {
         // do the clustering:
         System.out.println("Number of local features: " + df.format(k.getFeatureCount()));
         System.out.println("Starting clustering ...");
-        k.init();
-        System.out.println("Step.");
-        long start = System.currentTimeMillis();
-        double lastStress = k.clusteringStep();
+        try {
+            k.init();
+            System.out.println("Step.");
+            long start = System.currentTimeMillis();
+            double lastStress = k.clusteringStep();
 
-        if (pm != null) { // set to 8 of 100 after first step.
-            pm.setProgress(8);
-            pm.setNote("Step 1 finished");
-        }
+            if (pm != null) { // set to 8 of 100 after first step.
+                pm.setProgress(8);
+                pm.setNote("Step 1 finished");
+            }
 
-        System.out.println(convertTime(System.currentTimeMillis() - start) + " -> Next step.");
-        start = System.currentTimeMillis();
-        double newStress = k.clusteringStep();
+            System.out.println(convertTime(System.currentTimeMillis() - start) + " -> Next step.");
+            start = System.currentTimeMillis();
+            double newStress = k.clusteringStep();
 
-        if (pm != null) { // set to 11 of 100 after second step.
-            pm.setProgress(11);
-            pm.setNote("Step 2 finished");
-        }
+            if (pm != null) { // set to 11 of 100 after second step.
+                pm.setProgress(11);
+                pm.setNote("Step 2 finished");
+            }
 
-        // critical part: Give the difference in between steps as a constraint for accuracy vs. runtime trade off.
-        double threshold = Math.max(20d, (double) k.getFeatureCount() / 1000d);
-        System.out.println("Threshold = " + df.format(threshold));
-        int cStep = 3;
+            // critical part: Give the difference in between steps as a constraint for accuracy vs. runtime trade off.
+            double threshold = Math.max(20d, (double) k.getFeatureCount() / 1000d);
+            System.out.println("Threshold = " + df.format(threshold));
+            int cStep = 3;
 
-        while (Math.abs(newStress - lastStress) > threshold && cStep < 12) {
-            System.out.println(convertTime(System.currentTimeMillis() - start) + " -> Next step. Stress difference ~ |" + (int) newStress + " - " + (int) lastStress + "| = " + df.format(Math.abs(newStress - lastStress)));
-            start = System.currentTimeMillis();
-            lastStress = newStress;
-            newStress = k.clusteringStep();
-            if (pm != null) { // set to XX of 100 after second step.
-                pm.setProgress(cStep * 3 + 5);
-                pm.setNote("Step " + cStep + " finished");
+            while (Math.abs(newStress - lastStress) > threshold && cStep < 12) {
+                System.out.println(convertTime(System.currentTimeMillis() - start) + " -> Next step. Stress difference ~ |" + (int) newStress + " - " + (int) lastStress + "| = " + df.format(Math.abs(newStress - lastStress)));
+                start = System.currentTimeMillis();
+                lastStress = newStress;
+                newStress = k.clusteringStep();
+                if (pm != null) { // set to XX of 100 after second step.
+                    pm.setProgress(cStep * 3 + 5);
+                    pm.setNote("Step " + cStep + " finished");
+                }
+                cStep++;
             }
-            cStep++;
+        } finally {
+            // stops the worker threads, also if a step failed.
+            if (k instanceof ParallelKMeans) ((ParallelKMeans) k).shutdown();
         }
 
         return k.getClusters();
     }
 
+    private Cluster[] miniBatchCodebookGenerator(ConcurrentHashMap<String, LocalFeatureSet> sampleMap, int numClusters) throws IOException {
+        if (pm != null) {
+            pm.setProgress(5);
+            pm.setNote("Starting clustering");
+        }
+        System.out.println("Starting mini-batch clustering ...");
+        long start = System.currentTimeMillis();
+        MiniBatchKMeans k = new MiniBatchKMeans(numClusters);
+        Cluster[] clusters;
+        FeatureSpillFile spillFile = new FeatureSpillFile();
+        try {
+            for (LocalFeatureSet features : sampleMap.values()) {
+                for (int i = 0; i < features.size(); i++) {
+                    spillFile.add(features.getDescriptor(i, null));
+                }
+            }
+            clusters = k.cluster(spillFile);
+        } finally {
+            spillFile.close();
+        }
+        System.out.println("Number of local features: " + df.format(k.getFeatureCount()));
+        System.out.println("Clustering finished in " + convertTime(System.currentTimeMillis() - start) + ".");
+        if (pm != null) {
+            pm.setProgress(40);
+            pm.setNote("Clustering finished");
+        }
+        return clusters;
+    }
+
     private String convertTime(long time) {
         double h = time / 3600000.0;
         double m = (h - Math.floor(h)) * 60.0;
@@ -1455,6 +2837,18 @@ public class ParallelIndexer implements Runnable {
         }
     }
 
+    /**
+     * Reads a codebook along with the {@link VLADProjection} or {@link VocabularyTree} trained for it, if there is one.
+     */
+    private static Cluster[] readCodebook(String file) throws IOException {
+        Cluster[] codebook = Cluster.readClusters(file);
+        VLADProjection projection = VLADProjection.readForCodebook(file);
+        if (projection != null) VLADProjection.register(codebook, projection);
+        VocabularyTree tree = VocabularyTree.readForCodebook(file);
+        if (tree != null) VocabularyTree.register(codebook, tree);
+        return codebook;
+    }
+
     private void loadPropertiesFile(String path) {
         try {
             Properties prop = new Properties();
@@ -1476,7 +2870,7 @@ public class ParallelIndexer implements Runnable {
                     counter = 1;
                     tmpListOfCodebooks = new LinkedList<Cluster[]>();
                     while (prop.getProperty(String.valueOf(overAllcounter) + ".codebook." + String.valueOf(counter)) != null) {
-                        tmpListOfCodebooks.add(Cluster.readClusters(path + prop.getProperty(String.valueOf(overAllcounter) + ".codebook." + String.valueOf(counter))));
+                        tmpListOfCodebooks.add(readCodebook(path + prop.getProperty(String.valueOf(overAllcounter) + ".codebook." + String.valueOf(counter))));
                         counter++;
                     }
                     tmpLocalClass = (Class<? extends LocalFeatureExtractor>) Class.forName(prop.getProperty(String.valueOf(overAllcounter) + ".extractor"));
@@ -1485,7 +2879,7 @@ public class ParallelIndexer implements Runnable {
                     counter = 1;
                     tmpListOfCodebooks = new LinkedList<Cluster[]>();
                     while (prop.getProperty(String.valueOf(overAllcounter) + ".codebook." + String.valueOf(counter)) != null) {
-                        tmpListOfCodebooks.add(Cluster.readClusters(path + prop.getProperty(String.valueOf(overAllcounter) + ".codebook." + String.valueOf(counter))));
+                        tmpListOfCodebooks.add(readCodebook(path + prop.getProperty(String.valueOf(overAllcounter) + ".codebook." + String.valueOf(counter))));
                         counter++;
                     }
                     tmpGlobalClass = (Class<? extends GlobalFeature>) Class.forName(prop.getProperty(String.valueOf(overAllcounter) + ".extractor"));
@@ -0,0 +1,124 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.indexers.parallel;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded queue connecting two stages of the {@link ParallelIndexer} pipeline. Producers block while the queue is
+ * full, consumers block while it is empty. When the last producer thread has finished, an end marker is put into the
+ * queue, which each consumer puts back for its siblings before it stops. Time spent blocking is accounted as waiting
+ * time of the calling stage.
+ *
+ * @param <T> the type of the items.
+ */
+class PipelineQueue<T> {
+    private static final Object END = new Object();
+    private final LinkedBlockingQueue<Object> queue;
+    private final AtomicInteger openProducers;
+
+    /**
+     * @param capacity     the maximum number of items in the queue.
+     * @param numProducers the number of threads putting items into the queue.
+     */
+    PipelineQueue(int capacity, int numProducers) {
+        this.queue = new LinkedBlockingQueue<Object>(Math.max(1, capacity));
+        this.openProducers = new AtomicInteger(numProducers);
+    }
+
+    void put(T item, StageStats stats) throws InterruptedException {
+        long start = System.nanoTime();
+        queue.put(item);
+        stats.addWaiting(System.nanoTime() - start);
+    }
+
+    /**
+     * Blocks until the next item is available.
+     *
+     * @return the next item or null if all producers have finished.
+     */
+    @SuppressWarnings("unchecked")
+    T take(StageStats stats) throws InterruptedException {
+        long start = System.nanoTime();
+        Object item = queue.take();
+        stats.addWaiting(System.nanoTime() - start);
+        if (item == END) {
+            queue.put(END); // there's room, as no producer is left.
+            return null;
+        }
+        return (T) item;
+    }
+
+    /**
+     * Blocks until at least one item is available and adds up to maxItems items to the batch, without waiting for
+     * more to arrive.
+     *
+     * @return false if all producers have finished and the batch is empty.
+     */
+    @SuppressWarnings("unchecked")
+    boolean takeBatch(List<T> batch, int maxItems, StageStats stats) throws InterruptedException {
+        T first = take(stats);
+        if (first == null) return false;
+        batch.add(first);
+        Object item;
+        while (batch.size() < maxItems && (item = queue.poll()) != null) {
+            if (item == END) {
+                queue.put(END);
+                break;
+            }
+            batch.add((T) item);
+        }
+        return true;
+    }
+
+    /**
+     * Has to be called by each producer thread when it has finished, also in case of errors.
+     */
+    void producerFinished() {
+        if (openProducers.decrementAndGet() == 0) {
+            try {
+                queue.put(END);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    int size() {
+        return queue.size();
+    }
+}
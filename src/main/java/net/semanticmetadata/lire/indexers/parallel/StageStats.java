@@ -0,0 +1,89 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.indexers.parallel;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of how the threads of one stage of the {@link ParallelIndexer} spend their time: working on items or
+ * waiting for the queue, ie. starved for input or blocked by a full queue. A stage that is waiting most of the time
+ * is not the bottleneck, so its threads are better spent elsewhere.
+ */
+class StageStats {
+    private final String name;
+    private final int numThreads;
+    private final AtomicLong busyNanos = new AtomicLong(0);
+    private final AtomicLong waitingNanos = new AtomicLong(0);
+    private final AtomicLong items = new AtomicLong(0);
+
+    StageStats(String name, int numThreads) {
+        this.name = name;
+        this.numThreads = numThreads;
+    }
+
+    void addBusy(long nanos) {
+        busyNanos.addAndGet(nanos);
+        items.incrementAndGet();
+    }
+
+    void addWaiting(long nanos) {
+        waitingNanos.addAndGet(nanos);
+    }
+
+    long getItems() {
+        return items.get();
+    }
+
+    /**
+     * @return the share of time the threads were working, in [0, 1].
+     */
+    double getUtilization() {
+        long busy = busyNanos.get(), total = busy + waitingNanos.get();
+        return (total > 0) ? (double) busy / (double) total : 0d;
+    }
+
+    /**
+     * @return the average processing time per item in ms.
+     */
+    double getMillisPerItem() {
+        long n = items.get();
+        return (n > 0) ? busyNanos.get() / 1000000d / n : 0d;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%d threads): %3.0f%% busy, %d items, %3.2f ms each", name, numThreads, getUtilization() * 100d, getItems(), getMillisPerItem());
+    }
+}
@@ -41,9 +41,12 @@
 
 package net.semanticmetadata.lire.indexers.parallel;
 
-import net.semanticmetadata.lire.imageanalysis.features.LocalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureSet;
+import org.apache.lucene.document.Document;
 
-import java.util.List;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This file is part of LIRE, a Java library for content based image retrieval.
@@ -56,7 +59,15 @@ import java.util.List;
 public class WorkItem {
     private byte[] buffer;
     private String fileName;
-    private List<? extends LocalFeature> listOfFeatures;
+    private LocalFeatureSet featureSet;
+    // local features waiting for their codebooks, see ParallelIndexer.setSinglePass(boolean).
+    private LocalFeatureSet[] pendingFeatures;
+    private BufferedImage image;
+    private ImageContext imageContext;
+    private Document document;
+    private final AtomicInteger pendingTasks = new AtomicInteger(0);
+    // bytes taken from a MemoryBudget for this item.
+    long reservedFileBytes = 0, reservedRasterBytes = 0;
 
     /**
      * Creates a new WorkItem based on the actual byte[] data of the image, not decoded
@@ -68,17 +79,29 @@ public class WorkItem {
         this.buffer = buffer;
     }
 
-    public WorkItem(String path, List<? extends LocalFeature> listOfFeatures) {
+    public WorkItem(String path, LocalFeatureSet featureSet) {
         this.fileName = path;
-        this.listOfFeatures = listOfFeatures;
+        this.featureSet = featureSet;
     }
 
-    public List<? extends LocalFeature> getListOfFeatures() {
-        return listOfFeatures;
+    public LocalFeatureSet getFeatureSet() {
+        return featureSet;
     }
 
-    public void setListOfFeatures(List<? extends LocalFeature> listOfFeatures) {
-        this.listOfFeatures = listOfFeatures;
+    public void setFeatureSet(LocalFeatureSet featureSet) {
+        this.featureSet = featureSet;
+    }
+
+    /**
+     * @return the local features to be aggregated once the codebooks are ready, null if they are aggregated right
+     * away. The entries are in the order of the extractors waiting for codebooks.
+     */
+    public LocalFeatureSet[] getPendingFeatures() {
+        return pendingFeatures;
+    }
+
+    public void setPendingFeatures(LocalFeatureSet[] pendingFeatures) {
+        this.pendingFeatures = pendingFeatures;
     }
 
     public byte[] getBuffer() {
@@ -96,4 +119,43 @@ public class WorkItem {
     public void setFileName(String fileName) {
         this.fileName = fileName;
     }
+
+    public synchronized BufferedImage getImage() {
+        return image;
+    }
+
+    public synchronized void setImage(BufferedImage image) {
+        this.image = image;
+        this.imageContext = null;
+    }
+
+    /**
+     * @return the context of the decoded image shared by all extraction tasks of this item, null if there's no image.
+     */
+    public synchronized ImageContext getImageContext() {
+        if (imageContext == null && image != null) imageContext = new ImageContext(image);
+        return imageContext;
+    }
+
+    public Document getDocument() {
+        return document;
+    }
+
+    public void setDocument(Document document) {
+        this.document = document;
+    }
+
+    /**
+     * Sets the number of extraction tasks the image is split into.
+     */
+    void setPendingTasks(int tasks) {
+        pendingTasks.set(tasks);
+    }
+
+    /**
+     * @return true if this was the last pending extraction task, ie. the document is complete.
+     */
+    boolean taskDone() {
+        return pendingTasks.decrementAndGet() == 0;
+    }
 }
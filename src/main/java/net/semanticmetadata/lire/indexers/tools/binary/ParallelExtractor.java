@@ -43,6 +43,7 @@ package net.semanticmetadata.lire.indexers.tools.binary;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.indexers.parallel.MemoryBudget;
 import net.semanticmetadata.lire.indexers.parallel.WorkItem;
 import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.SerializationUtils;
@@ -123,7 +124,9 @@ public class ParallelExtractor implements Runnable {
 
     private static boolean force = false;
     private static int numberOfThreads = DocumentBuilder.NUM_OF_THREADS;
-    LinkedBlockingQueue<WorkItem> images = new LinkedBlockingQueue<WorkItem>(200);
+    // the memory taken by the queued images is limited by the memoryBudget.
+    LinkedBlockingQueue<WorkItem> images = new LinkedBlockingQueue<WorkItem>(1000);
+    private MemoryBudget memoryBudget = new MemoryBudget(Runtime.getRuntime().maxMemory() / 4);
     boolean ended = false;
     int overallCount = 0;
     OutputStream dos = null;
@@ -279,6 +282,16 @@ public class ParallelExtractor implements Runnable {
         this.maxSideLength = maxSideLength;
     }
 
+    /**
+     * Sets the maximum number of bytes taken by the images read but not yet processed, including the estimated
+     * size of the decoded images. Default is a quarter of the maximum heap size.
+     *
+     * @param maxBytes the budget in bytes.
+     */
+    public void setMemoryBudget(long maxBytes) {
+        this.memoryBudget = new MemoryBudget(maxBytes);
+    }
+
     private boolean isConfigured() {
         boolean configured = true;
         if (fileList == null || !fileList.exists()) {
@@ -384,14 +397,21 @@ public class ParallelExtractor implements Runnable {
                 while ((file = br.readLine()) != null) {
                     next = new File(file);
                     BufferedImage img = null;
+                    WorkItem item = new WorkItem(next.getCanonicalPath(), (byte[]) null);
                     try {
+                        memoryBudget.acquire(item, next);
                         int fileSize = (int) next.length();
                         byte[] buffer = new byte[fileSize];
-                        FileInputStream fis = new FileInputStream(next);
-                        fis.read(buffer);
-                        String path = next.getCanonicalPath();
-                        images.put(new WorkItem(path, buffer));
+                        DataInputStream dis = new DataInputStream(new FileInputStream(next));
+                        try {
+                            dis.readFully(buffer);
+                        } finally {
+                            dis.close();
+                        }
+                        item.setBuffer(buffer);
+                        images.put(item);
                     } catch (Exception e) {
+                        memoryBudget.release(item);
                         System.err.println("Could not read image " + file + ": " + e.getMessage());
                     }
                 }
@@ -478,6 +498,8 @@ public class ParallelExtractor implements Runnable {
                 } catch (Exception e) {
                     System.err.println("Error processing file " + tmp.getFileName());
                     e.printStackTrace();
+                } finally {
+                    if (tmp != null) memoryBudget.release(tmp);
                 }
             }
         }
@@ -1,6 +1,7 @@
 package net.semanticmetadata.lire.indexers.tools.text;
 
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.indexers.parallel.MemoryBudget;
 import net.semanticmetadata.lire.indexers.parallel.WorkItem;
 import net.semanticmetadata.lire.utils.CommandLineUtils;
 import net.semanticmetadata.lire.utils.StatsUtils;
@@ -27,6 +28,8 @@ public class ParallelExtraction implements Runnable {
     private int numOfThreads = 8;
     private int overallCount = 0;
     private LinkedBlockingQueue<WorkItem> queue = new LinkedBlockingQueue<>(5000);
+    // limits the memory of the queued images, while the queue size limits the number.
+    private MemoryBudget memoryBudget = new MemoryBudget(Runtime.getRuntime().maxMemory() / 4);
     private long monitoringInterval = 10;
     private OutputStream dos;
 
@@ -79,6 +82,16 @@ public class ParallelExtraction implements Runnable {
         listOfFeatures.add(feature);
     }
 
+    /**
+     * Sets the maximum number of bytes taken by the images read but not yet processed, including the estimated
+     * size of the decoded images. Default is a quarter of the maximum heap size.
+     *
+     * @param maxBytes the budget in bytes.
+     */
+    public void setMemoryBudget(long maxBytes) {
+        this.memoryBudget = new MemoryBudget(maxBytes);
+    }
+
     @Override
     public void run() {
         System.out.printf("Starting to index files defined in %s.\n", imageList.getPath());
@@ -151,10 +164,18 @@ public class ParallelExtraction implements Runnable {
             while (imageFiles.hasNext()) {
                 path = imageFiles.next();
                 next = new File(path);
+                WorkItem item = new WorkItem(path, (byte[]) null);
                 try {
-                    byte[] buffer = IOUtils.readFully(new FileInputStream(next), (int) next.length());
-                    queue.put(new WorkItem(path, buffer));
+                    memoryBudget.acquire(item, next);
+                    FileInputStream in = new FileInputStream(next);
+                    try {
+                        item.setBuffer(IOUtils.readFully(in, (int) next.length()));
+                    } finally {
+                        in.close();
+                    }
+                    queue.put(item);
                 } catch (Exception e) {
+                    memoryBudget.release(item);
                     System.err.println("Could not open " + path + ". " + e.getMessage());
                 }
             }
@@ -236,6 +257,8 @@ public class ParallelExtraction implements Runnable {
                             }
                         } catch (Exception e) {
                             e.printStackTrace();
+                        } finally {
+                            memoryBudget.release(tmp);
                         }
                     }
                 } catch (Exception e) {
@@ -38,10 +38,11 @@
  */
 package net.semanticmetadata.lire.searchers;
 
+import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.utils.ImageDecoder;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
@@ -49,7 +50,7 @@ import java.util.Set;
 
 
 /**
- * Abstract ImageSearcher, which uses javax.imageio.ImageIO to create a BufferedImage
+ * Abstract ImageSearcher, which uses {@link ImageDecoder} to create a BufferedImage
  * from an InputStream.
  * <p/>
  * This file is part of the Caliph and Emir project: http://www.SemanticMetadata.net
@@ -62,7 +63,7 @@ public abstract class AbstractImageSearcher implements ImageSearcher {
     /**
      * Searches for images similar to the given image. This simple implementation uses
      * {@link ImageSearcher#search(java.awt.image.BufferedImage, org.apache.lucene.index.IndexReader)},
-     * the image is read using javax.imageio.ImageIO.
+     * the image is decoded with subsampling to the size given by {@link #getDecodingSize()}.
      *
      * @param image  the example image to search for.
      * @param reader the IndexReader which is used to dsearch through the images.
@@ -70,10 +71,20 @@ public abstract class AbstractImageSearcher implements ImageSearcher {
      * @throws IOException in case the image could not be read from stream.
      */
     public ImageSearchHits search(InputStream image, IndexReader reader) throws IOException {
-        BufferedImage bufferedImage = ImageIO.read(image);
+        BufferedImage bufferedImage = ImageDecoder.read(image, getDecodingSize());
         return search(bufferedImage, reader);
     }
 
+    /**
+     * Global features are extracted from images scaled down to {@link DocumentBuilder#MAX_IMAGE_DIMENSION}, so
+     * there's no need to decode the full image. Searchers analyzing the full resolution override this.
+     *
+     * @return the side length images are decoded for, -1 for the full resolution.
+     */
+    protected int getDecodingSize() {
+        return DocumentBuilder.MAX_IMAGE_DIMENSION;
+    }
+
     public ImageSearchHits relevanceFeedback(ImageSearchHits originalSearch, Set<Document> positives, Set<Document> negatives) {
         throw new UnsupportedOperationException("Not implemented yet for this kind of searcher!");
     }
@@ -43,7 +43,7 @@ package net.semanticmetadata.lire.searchers;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
-import net.semanticmetadata.lire.indexers.hashing.BitSampling;
+import net.semanticmetadata.lire.indexers.hashing.BitSamplingHashFamily;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.FieldInvertState;
 import org.apache.lucene.index.IndexReader;
@@ -54,24 +54,30 @@ import org.apache.lucene.search.similarities.ClassicSimilarity;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.TreeSet;
 
 /**
  * This class allows for searching based on {@link net.semanticmetadata.lire.indexers.hashing.BitSampling}
  * HashingMode. First a number of candidates is retrieved from the index, then the candidates are re-ranked.
  * The number of candidates can be tuned with the numHashedResults parameter in the constructor. The higher
  * this parameter, the better the results, but the slower the search.
+ * <p/>
+ * Each searcher uses its own {@link BitSamplingHashFamily}, by default the shared one from the class path, so
+ * searchers with different hash functions can be used at the same time.
  *
  * @author Mathias Lux, mathias@juggle.at, 2013-04-12
  */
 
-public class BitSamplingImageSearcher extends AbstractImageSearcher {
+public class BitSamplingImageSearcher extends AbstractImageSearcher implements HashingImageSearcher {
     private int maxResultsHashBased = 1000;
     private int maximumHits = 100;
     private String featureFieldName = null;
     private GlobalFeature feature = null;
     private String hashesFieldName = null;
     private boolean partialHashes = false;
+    private BitSamplingHashFamily hashFamily = null;
+    // number of hashes used for the query, 0 uses all of them.
+    private int numHashesUsedForQuery = 0;
+    private int earlyTerminationWindow = 0;
 
     /**
      * Creates a new searcher for BitSampling based hashes.
@@ -87,7 +93,7 @@ public class BitSamplingImageSearcher extends AbstractImageSearcher {
         this.hashesFieldName = hashesFieldName;
         this.feature = feature;
         try {
-            BitSampling.readHashFunctions();
+            hashFamily = BitSamplingHashFamily.getDefault();
         } catch (IOException e) {
             System.err.println("Error reading hash functions from default location.");
             e.printStackTrace();
@@ -106,7 +112,7 @@ public class BitSamplingImageSearcher extends AbstractImageSearcher {
         this.hashesFieldName = featureFieldName + DocumentBuilder.HASH_FIELD_SUFFIX;
         this.feature = feature;
         try {
-            BitSampling.readHashFunctions();
+            hashFamily = BitSamplingHashFamily.getDefault();
         } catch (IOException e) {
             System.err.println("Error reading hash functions from default location.");
             e.printStackTrace();
@@ -127,7 +133,7 @@ public class BitSamplingImageSearcher extends AbstractImageSearcher {
         this.feature = feature;
         partialHashes = useFastSearch;
         try {
-            BitSampling.readHashFunctions();
+            hashFamily = BitSamplingHashFamily.getDefault();
         } catch (IOException e) {
             System.err.println("Error reading hash functions from default location.");
             e.printStackTrace();
@@ -148,7 +154,7 @@ public class BitSamplingImageSearcher extends AbstractImageSearcher {
         this.feature = feature;
         maxResultsHashBased = numHashedResults;
         try {
-            BitSampling.readHashFunctions();
+            hashFamily = BitSamplingHashFamily.getDefault();
         } catch (IOException e) {
             System.err.println("Error reading hash functions from default location.");
             e.printStackTrace();
@@ -162,7 +168,7 @@ public class BitSamplingImageSearcher extends AbstractImageSearcher {
         this.feature = feature;
         maxResultsHashBased = numHashedResults;
         try {
-            BitSampling.readHashFunctions();
+            hashFamily = BitSamplingHashFamily.getDefault();
         } catch (IOException e) {
             System.err.println("Error reading hash functions from default location.");
             e.printStackTrace();
@@ -175,7 +181,7 @@ public class BitSamplingImageSearcher extends AbstractImageSearcher {
         this.hashesFieldName = hashesFieldName;
         this.feature = feature;
         try {
-            BitSampling.readHashFunctions(hashes);
+            hashFamily = BitSamplingHashFamily.read(hashes);
             hashes.close();
         } catch (IOException e) {
             System.err.println("Error reading has functions from given input stream.");
@@ -190,7 +196,7 @@ public class BitSamplingImageSearcher extends AbstractImageSearcher {
         this.feature = feature;
         maxResultsHashBased = numHashedResults;
         try {
-            BitSampling.readHashFunctions(hashes);
+            hashFamily = BitSamplingHashFamily.read(hashes);
             hashes.close();
         } catch (IOException e) {
             System.err.println("Error reading has functions from given input stream.");
@@ -198,11 +204,29 @@ public class BitSamplingImageSearcher extends AbstractImageSearcher {
         }
     }
 
+    /**
+     * Creates a new searcher for BitSampling based hashes with the given hash functions. They have to be the same as
+     * the ones used for indexing.
+     *
+     * @param maximumHits      how many hits the searcher shall return.
+     * @param feature          an instance of the feature.
+     * @param numHashedResults the number of candidate results retrieved from the index before re-ranking.
+     * @param hashFamily       the hash functions.
+     */
+    public BitSamplingImageSearcher(int maximumHits, GlobalFeature feature, int numHashedResults, BitSamplingHashFamily hashFamily) {
+        this.maximumHits = maximumHits;
+        this.featureFieldName = feature.getFieldName();
+        this.hashesFieldName = featureFieldName + DocumentBuilder.HASH_FIELD_SUFFIX;
+        this.feature = feature;
+        this.maxResultsHashBased = numHashedResults;
+        this.hashFamily = hashFamily;
+    }
+
     public ImageSearchHits search(BufferedImage image, IndexReader reader) throws IOException {
         try {
             GlobalFeature queryFeature = feature.getClass().newInstance();
             queryFeature.extract(image);
-            int[] ints = BitSampling.generateHashes(queryFeature.getFeatureVector());
+            int[] ints = hashFamily.generateHashes(queryFeature.getFeatureVector());
             String[] hashes = new String[ints.length];
             for (int i = 0; i < ints.length; i++) {
                 hashes[i] = Integer.toString(ints[i]);
@@ -229,12 +253,18 @@ public class BitSamplingImageSearcher extends AbstractImageSearcher {
     }
 
     private ImageSearchHits search(String[] hashes, GlobalFeature queryFeature, IndexReader reader) throws IOException {
+        TopDocs docs = getCandidates(hashes, reader, maxResultsHashBased, numHashesUsedForQuery);
+        // then re-rank, features are fetched once in docId order.
+        return CandidateReRanker.reRank(docs.scoreDocs, queryFeature, reader, featureFieldName, maximumHits, earlyTerminationWindow);
+    }
+
+    private TopDocs getCandidates(String[] hashes, IndexReader reader, int numCandidates, int queryLength) throws IOException {
         // first search by text:
         IndexSearcher searcher = new IndexSearcher(reader);
         searcher.setSimilarity(new BaseSimilarity());
-        BooleanQuery query = null;
         BooleanQuery.Builder builder = new BooleanQuery.Builder();
-        for (int i = 0; i < hashes.length; i++) {
+        int numHashes = (queryLength > 0) ? Math.min(queryLength, hashes.length) : hashes.length;
+        for (int i = 0; i < numHashes; i++) {
             // be aware that the hashFunctionsFileName of the field must match the one you put the hashes in before.
             if (partialHashes) {
                 if (Math.random() < 0.5)
@@ -242,34 +272,57 @@ public class BitSamplingImageSearcher extends AbstractImageSearcher {
             } else
                 builder.add(new BooleanClause(new TermQuery(new Term(hashesFieldName, hashes[i] + "")), BooleanClause.Occur.SHOULD));
         }
-        query = builder.build();
-        TopDocs docs = searcher.search(query, maxResultsHashBased);
-//        System.out.println(docs.totalHits);
-        // then re-rank
-        TreeSet<SimpleResult> resultScoreDocs = new TreeSet<SimpleResult>();
-        double maxDistance = -1d;
-        double tmpScore;
-        for (int i = 0; i < docs.scoreDocs.length; i++) {
-            feature.setByteArrayRepresentation(reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).bytes,
-                    reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).offset,
-                    reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).length);
-            tmpScore = queryFeature.getDistance(feature);
-            assert (tmpScore >= 0);
-            if (resultScoreDocs.size() < maximumHits) {
-                resultScoreDocs.add(new SimpleResult(tmpScore, docs.scoreDocs[i].doc));
-                maxDistance = Math.max(maxDistance, tmpScore);
-            } else if (tmpScore < maxDistance) {
-                // if it is nearer to the sample than at least one of the current set:
-                // remove the last one ...
-                resultScoreDocs.remove(resultScoreDocs.last());
-                // add the new one ...
-                resultScoreDocs.add(new SimpleResult(tmpScore, docs.scoreDocs[i].doc));
-                // and set our new distance border ...
-                maxDistance = resultScoreDocs.last().getDistance();
-            }
+        return searcher.search(builder.build(), numCandidates);
+    }
+
+    @Override
+    public TopDocs getCandidates(GlobalFeature queryFeature, IndexReader reader, int numCandidates, int queryLength) throws IOException {
+        int[] ints = hashFamily.generateHashes(queryFeature.getFeatureVector());
+        String[] hashes = new String[ints.length];
+        for (int i = 0; i < ints.length; i++) {
+            hashes[i] = Integer.toString(ints[i]);
         }
-        assert (resultScoreDocs.size() <= maximumHits);
-        return new SimpleImageSearchHits(resultScoreDocs, maxDistance);
+        return getCandidates(hashes, reader, numCandidates, (queryLength > 0) ? queryLength : numHashesUsedForQuery);
+    }
+
+    @Override
+    public int getMaxQueryLength() {
+        return hashFamily.getNumberOfHashes();
+    }
+
+    @Override
+    public int getQueryLength() {
+        return (numHashesUsedForQuery > 0) ? numHashesUsedForQuery : getMaxQueryLength();
+    }
+
+    @Override
+    public void setQueryLength(int queryLength) {
+        this.numHashesUsedForQuery = queryLength;
+    }
+
+    @Override
+    public int getNumHashedResults() {
+        return maxResultsHashBased;
+    }
+
+    @Override
+    public void setNumHashedResults(int numHashedResults) {
+        this.maxResultsHashBased = numHashedResults;
+    }
+
+    @Override
+    public void setEarlyTerminationWindow(int window) {
+        this.earlyTerminationWindow = window;
+    }
+
+    @Override
+    public String getFeatureFieldName() {
+        return featureFieldName;
+    }
+
+    @Override
+    public Class<? extends GlobalFeature> getFeatureClass() {
+        return feature.getClass();
     }
 
     public ImageDuplicates findDuplicates(IndexReader reader) throws IOException {
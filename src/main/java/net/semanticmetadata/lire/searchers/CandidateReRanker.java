@@ -0,0 +1,303 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.searchers;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.utils.metrics.Counter;
+import net.semanticmetadata.lire.utils.metrics.Histogram;
+import net.semanticmetadata.lire.utils.metrics.MetricRegistry;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Re-ranks the candidates of the hash based searchers by the actual distance to the query. The features of all
+ * candidates are fetched in one pass in ascending docId order, from {@link BinaryDocValues} if the field has them,
+ * otherwise from the stored fields, loading only the feature field. Stored fields are compressed in blocks of
+ * documents, so reading them in docId order decompresses each block once, instead of three times per candidate.
+ * <p/>
+ * For large candidate sets the distances are computed in parallel chunks on a shared thread pool, each chunk using its
+ * own copies of the query and candidate features. The result list is the same as with sequential re-ranking.
+ */
+public class CandidateReRanker {
+    /**
+     * Number of threads used for computing the distances.
+     */
+    public static int numThreads = Runtime.getRuntime().availableProcessors();
+    /**
+     * Minimum number of candidates per thread, smaller candidate sets are re-ranked in the calling thread.
+     */
+    public static int minChunkSize = 256;
+
+    private static ExecutorService executor = null;
+    private static int executorThreads = 0;
+
+    private static final Histogram candidateCounts = MetricRegistry.getDefault().histogram("search.candidates");
+    private static final Histogram reRankTime = MetricRegistry.getDefault().histogram("search.rerank.time");
+    private static final Counter evaluated = MetricRegistry.getDefault().counter("search.rerank.evaluated");
+
+    /**
+     * Re-ranks the candidates and returns the maximumHits nearest ones.
+     *
+     * @param candidates   the candidates from the hash based query.
+     * @param queryFeature the query, it's not modified.
+     * @param reader       the reader the candidates come from.
+     * @param fieldName    the field the feature is stored in.
+     * @param maximumHits  the number of results.
+     * @return the re-ranked results.
+     * @throws IOException
+     */
+    public static ImageSearchHits reRank(ScoreDoc[] candidates, GlobalFeature queryFeature, IndexReader reader, String fieldName, int maximumHits) throws IOException {
+        return reRank(candidates, queryFeature, reader, fieldName, maximumHits, 0);
+    }
+
+    /**
+     * Re-ranks the candidates in windows of the given size, in the order of the hash based query. Re-ranking stops
+     * as soon as a whole window of candidates did not change the top maximumHits results, as candidates further down
+     * the list are less and less likely to make it into the result list.
+     *
+     * @param candidates             the candidates from the hash based query.
+     * @param queryFeature           the query, it's not modified.
+     * @param reader                 the reader the candidates come from.
+     * @param fieldName              the field the feature is stored in.
+     * @param maximumHits            the number of results.
+     * @param earlyTerminationWindow the window size, 0 re-ranks all candidates at once.
+     * @return the re-ranked results.
+     * @throws IOException
+     */
+    public static ImageSearchHits reRank(ScoreDoc[] candidates, GlobalFeature queryFeature, IndexReader reader, String fieldName, int maximumHits, int earlyTerminationWindow) throws IOException {
+        long start = System.nanoTime();
+        int window = (earlyTerminationWindow > 0) ? earlyTerminationWindow : Math.max(1, candidates.length);
+        TopResults top = new TopResults(maximumHits);
+        for (int from = 0; from < candidates.length; from += window) {
+            ScoreDoc[] chunk = (window >= candidates.length) ? candidates : Arrays.copyOfRange(candidates, from, Math.min(candidates.length, from + window));
+            byte[][] data = fetch(chunk, reader, fieldName);
+            double[] distances = computeDistances(data, queryFeature);
+            evaluated.add(chunk.length);
+            // candidates are considered in the order of the hash query, same as with sequential re-ranking.
+            boolean changed = false;
+            for (int i = 0; i < chunk.length; i++) {
+                if (data[i] == null) continue;
+                changed |= top.offer(distances[i], chunk[i].doc);
+            }
+            if (!changed && top.isFull()) break;
+        }
+        candidateCounts.record(candidates.length);
+        reRankTime.record((System.nanoTime() - start) / 1000);
+        return top.toSearchHits();
+    }
+
+    /**
+     * Reads the feature data of all candidates in ascending docId order.
+     *
+     * @return the data in the order of the candidates, null if a document has no value for the field.
+     */
+    static byte[][] fetch(ScoreDoc[] candidates, IndexReader reader, String fieldName) throws IOException {
+        byte[][] data = new byte[candidates.length][];
+        // sort positions by docId, docId in the upper and position in the lower 32 bits.
+        long[] order = new long[candidates.length];
+        for (int i = 0; i < candidates.length; i++) {
+            order[i] = ((long) candidates[i].doc << 32) | i;
+        }
+        Arrays.sort(order);
+        List<LeafReaderContext> leaves = reader.leaves();
+        Set<String> fieldsToLoad = Collections.singleton(fieldName);
+        LeafReaderContext leaf = null;
+        BinaryDocValues docValues = null;
+        for (long key : order) {
+            int doc = (int) (key >>> 32), pos = (int) key;
+            if (leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                docValues = leaf.reader().getBinaryDocValues(fieldName);
+            }
+            BytesRef value = null;
+            if (docValues != null) {
+                if (docValues.advanceExact(doc - leaf.docBase)) value = docValues.binaryValue();
+            } else {
+                Document d = leaf.reader().document(doc - leaf.docBase, fieldsToLoad);
+                value = d.getBinaryValue(fieldName);
+            }
+            if (value != null) {
+                data[pos] = Arrays.copyOfRange(value.bytes, value.offset, value.offset + value.length);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Computes the distances of the query to the given feature data, in parallel for large arrays. The chunks are
+     * run on a thread pool shared by all searches, see {@link #getExecutor()}.
+     *
+     * @return the distances, entries for null data are undefined.
+     * @throws InterruptedIOException if the calling thread is interrupted while waiting for the chunks.
+     */
+    static double[] computeDistances(final byte[][] data, final GlobalFeature queryFeature) throws IOException {
+        final double[] distances = new double[data.length];
+        int threads = Math.max(1, Math.min(numThreads, data.length / Math.max(1, minChunkSize)));
+        if (threads == 1) {
+            computeDistances(data, distances, 0, data.length, copy(queryFeature), newInstance(queryFeature));
+            return distances;
+        }
+        ExecutorService executor = getExecutor();
+        final byte[] queryData = queryFeature.getByteArrayRepresentation();
+        final int step = (data.length + threads - 1) / threads;
+        LinkedList<Future<?>> chunks = new LinkedList<>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                final int from = t * step, to = Math.min(data.length, from + step);
+                final GlobalFeature query = newInstance(queryFeature), candidate = newInstance(queryFeature);
+                query.setByteArrayRepresentation(queryData);
+                chunks.add(executor.submit(new Runnable() {
+                    public void run() {
+                        computeDistances(data, distances, from, to, query, candidate);
+                    }
+                }));
+            }
+            for (Future<?> chunk : chunks) {
+                chunk.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while re-ranking the candidates.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException("Could not compute the distances.", cause);
+        } finally {
+            // nothing left to do for the other chunks if one of them failed.
+            for (Future<?> chunk : chunks) {
+                chunk.cancel(true);
+            }
+        }
+        return distances;
+    }
+
+    /**
+     * Returns the thread pool for the distance computation, with {@link #numThreads} daemon threads. The pool is
+     * created on first use and replaced if numThreads has been changed since.
+     */
+    private static synchronized ExecutorService getExecutor() {
+        int threads = Math.max(1, numThreads);
+        if (executor == null || executorThreads != threads) {
+            if (executor != null) executor.shutdown();
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CandidateReRanker-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            executorThreads = threads;
+        }
+        return executor;
+    }
+
+    private static void computeDistances(byte[][] data, double[] distances, int from, int to, GlobalFeature query, GlobalFeature candidate) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == null) continue;
+            candidate.setByteArrayRepresentation(data[i]);
+            distances[i] = query.getDistance(candidate);
+        }
+    }
+
+    private static GlobalFeature copy(GlobalFeature feature) {
+        GlobalFeature result = newInstance(feature);
+        result.setByteArrayRepresentation(feature.getByteArrayRepresentation());
+        return result;
+    }
+
+    private static GlobalFeature newInstance(GlobalFeature feature) {
+        try {
+            return feature.getClass().newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new IllegalStateException("Could not create an instance of " + feature.getClass().getName(), e);
+        }
+    }
+
+    /**
+     * Bounded list of the nearest results, ordered by distance and docId like {@link SimpleResult}.
+     */
+    static final class TopResults {
+        private final TreeSet<SimpleResult> results = new TreeSet<SimpleResult>();
+        private final int maximumHits;
+        private double maxDistance = -1d;
+
+        TopResults(int maximumHits) {
+            this.maximumHits = maximumHits;
+        }
+
+        /**
+         * @return true if the result made it into the list.
+         */
+        boolean offer(double distance, int doc) {
+            assert (distance >= 0);
+            if (results.size() < maximumHits) {
+                results.add(new SimpleResult(distance, doc));
+                maxDistance = Math.max(maxDistance, distance);
+                return true;
+            } else if (distance < maxDistance) {
+                // if it is nearer to the sample than at least one of the current set:
+                results.remove(results.last());
+                results.add(new SimpleResult(distance, doc));
+                maxDistance = results.last().getDistance();
+                return true;
+            }
+            return false;
+        }
+
+        boolean isFull() {
+            return results.size() >= maximumHits;
+        }
+
+        TreeSet<SimpleResult> getResults() {
+            return results;
+        }
+
+        ImageSearchHits toSearchHits() {
+            assert (results.size() <= maximumHits);
+            return new SimpleImageSearchHits(results, maxDistance);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+
+package net.semanticmetadata.lire.searchers;
+
+import net.semanticmetadata.lire.aggregators.Aggregator;
+import net.semanticmetadata.lire.aggregators.CompactVLAD;
+import net.semanticmetadata.lire.aggregators.VLADProjection;
+import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.builders.LocalDocumentBuilder;
+import net.semanticmetadata.lire.classifiers.Cluster;
+import net.semanticmetadata.lire.classifiers.ProductQuantizer;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureExtractor;
+import net.semanticmetadata.lire.indexers.parallel.ExtractorItem;
+import net.semanticmetadata.lire.utils.SerializationUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiBits;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Searches compact VLAD codes created with {@link net.semanticmetadata.lire.aggregators.CompactVLAD}. All codes of
+ * the field are read into one array when the searcher is created, so a search is a linear scan in memory with the
+ * L2 distance for float codes, the Hamming distance for binary codes and table lookups for product quantization.
+ * <p/>
+ * To search with images, the searcher has to be created with the extractor and the codebook, see
+ * {@link #CompactVLADSearcher(int, Class, int, String, IndexReader)}.
+ */
+public class CompactVLADSearcher extends AbstractImageSearcher {
+    private final int maxHits;
+    private final String fieldName;
+    private final VLADProjection projection;
+    private final int codeLength;
+    private final ExtractorItem extractorItem;
+    private final Cluster[] codebook;
+    private byte[] codes;
+    private float[] vectors = null; // the codes decoded for Encoding.Float.
+    private int[] documents;
+    private int size = 0;
+
+    /**
+     * @param maxHits    the number of results.
+     * @param fieldName  the field the codes are stored in.
+     * @param projection the projection the codes were created with.
+     * @param reader     the index the codes are read from.
+     */
+    public CompactVLADSearcher(int maxHits, String fieldName, VLADProjection projection, IndexReader reader) throws IOException {
+        this(maxHits, fieldName, projection, null, null, reader);
+    }
+
+    /**
+     * Reads the codebook and its projection like the {@link net.semanticmetadata.lire.indexers.parallel.ParallelIndexer}
+     * has written them, so images can be searched too.
+     *
+     * @param maxHits               the number of results.
+     * @param localFeatureExtractor the extractor the codes were created with.
+     * @param codebookSize          the number of clusters of the codebook.
+     * @param codebooksDir          the directory of the codebook, ie. the index path + ".config".
+     * @param reader                the index the codes are read from.
+     */
+    public CompactVLADSearcher(int maxHits, Class<? extends LocalFeatureExtractor> localFeatureExtractor, int codebookSize, String codebooksDir, IndexReader reader) throws IOException {
+        this(maxHits, new ExtractorItem(localFeatureExtractor), codebookSize, codebooksDir + File.separator, reader);
+    }
+
+    private CompactVLADSearcher(int maxHits, ExtractorItem extractorItem, int codebookSize, String codebooksDir, IndexReader reader) throws IOException {
+        this(maxHits, extractorItem.getFieldName() + Aggregator.FIELD_NAME_COMPACT_VLAD + codebookSize,
+                readProjection(codebooksDir + extractorItem.getFieldName() + codebookSize),
+                Cluster.readClusters(codebooksDir + extractorItem.getFieldName() + codebookSize), extractorItem, reader);
+    }
+
+    private static VLADProjection readProjection(String codebookFile) throws IOException {
+        VLADProjection projection = VLADProjection.readForCodebook(codebookFile);
+        if (projection == null) throw new FileNotFoundException("No VLAD projection found for the codebook " + codebookFile + ".");
+        return projection;
+    }
+
+    private CompactVLADSearcher(int maxHits, String fieldName, VLADProjection projection, Cluster[] codebook, ExtractorItem extractorItem, IndexReader reader) throws IOException {
+        this.maxHits = maxHits;
+        this.fieldName = fieldName;
+        this.projection = projection;
+        this.codeLength = projection.getCodeLength();
+        this.codebook = codebook;
+        this.extractorItem = extractorItem;
+        codes = new byte[reader.numDocs() * codeLength];
+        documents = new int[reader.numDocs()];
+        Bits liveDocs = MultiBits.getLiveDocs(reader);
+        Set<String> fields = Collections.singleton(fieldName);
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            if (reader.hasDeletions() && !liveDocs.get(i)) continue;
+            BytesRef code = reader.document(i, fields).getBinaryValue(fieldName);
+            if (code == null) continue;
+            if (code.length != codeLength)
+                throw new IllegalArgumentException("Document " + i + " has a code of " + code.length + " bytes, expected " + codeLength + ".");
+            System.arraycopy(code.bytes, code.offset, codes, size * codeLength, codeLength);
+            documents[size++] = i;
+        }
+        codes = Arrays.copyOf(codes, size * codeLength);
+        documents = Arrays.copyOf(documents, size);
+        if (projection.getEncoding() == VLADProjection.Encoding.Float) {
+            vectors = SerializationUtils.toFloatArray(codes, 0, codes.length);
+            codes = null;
+        }
+    }
+
+    /**
+     * @return the number of codes in memory.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Extracts the local features like the indexer does, aggregates them with {@link CompactVLAD} and searches with
+     * the projected vector. The reader is ignored as the codes are already in memory.
+     */
+    public ImageSearchHits search(BufferedImage image, IndexReader reader) throws IOException {
+        if (codebook == null)
+            throw new IllegalStateException("No codebook, create the searcher with the extractor and the codebook to search with images.");
+        LocalFeatureExtractor extractor = new LocalDocumentBuilder().extractLocalFeatures(image, (LocalFeatureExtractor) extractorItem.getExtractorInstance());
+        CompactVLAD aggregator = new CompactVLAD(projection);
+        aggregator.createVectorRepresentation(extractor.getFeatureSet(), codebook);
+        return search(aggregator.getVectorRepresentation());
+    }
+
+    /**
+     * The local features are extracted from the image at full resolution, scaled like at indexing time.
+     */
+    @Override
+    protected int getDecodingSize() {
+        return -1;
+    }
+
+    /**
+     * Searches with the code stored in the document, the reader is ignored as the codes are already in memory.
+     */
+    public ImageSearchHits search(Document doc, IndexReader reader) throws IOException {
+        BytesRef code = doc.getBinaryValue(fieldName);
+        if (code == null) throw new IllegalArgumentException("The document has no field " + fieldName + ".");
+        return search(Arrays.copyOfRange(code.bytes, code.offset, code.offset + code.length));
+    }
+
+    /**
+     * @param code a code created by {@link VLADProjection#encode(double[])}.
+     * @return the hits.
+     */
+    public ImageSearchHits search(byte[] code) {
+        switch (projection.getEncoding()) {
+            case Binary:
+                return searchBinary(code);
+            case ProductQuantization:
+                return searchQuantized(projection.getQuantizer().decode(code, 0));
+            default:
+                return searchFloat(SerializationUtils.toFloatArray(code));
+        }
+    }
+
+    /**
+     * Searches with the projected vector, which is more accurate than the code for product quantization.
+     *
+     * @param projected a vector created by {@link VLADProjection#project(double[])}.
+     * @return the hits.
+     */
+    public ImageSearchHits search(double[] projected) {
+        switch (projection.getEncoding()) {
+            case Binary:
+                return searchBinary(projection.encode(projected));
+            case ProductQuantization:
+                return searchQuantized(projected);
+            default:
+                float[] query = new float[projected.length];
+                for (int i = 0; i < query.length; i++) query[i] = (float) projected[i];
+                return searchFloat(query);
+        }
+    }
+
+    private ImageSearchHits searchBinary(byte[] query) {
+        Results results = new Results();
+        for (int n = 0, offset = 0; n < size; n++, offset += codeLength) {
+            int distance = 0;
+            for (int i = 0; i < codeLength; i++) distance += Integer.bitCount((query[i] ^ codes[offset + i]) & 0xFF);
+            results.add(distance, n);
+        }
+        return results.toHits();
+    }
+
+    private ImageSearchHits searchQuantized(double[] query) {
+        ProductQuantizer quantizer = projection.getQuantizer();
+        double[] table = quantizer.distanceTable(query);
+        Results results = new Results();
+        for (int n = 0, offset = 0; n < size; n++, offset += codeLength) {
+            results.add(quantizer.distance(table, codes, offset), n);
+        }
+        return results.toHits();
+    }
+
+    private ImageSearchHits searchFloat(float[] query) {
+        Results results = new Results();
+        for (int n = 0, offset = 0; n < size; n++, offset += query.length) {
+            double distance = 0, d;
+            for (int i = 0; i < query.length; i++) {
+                d = query[i] - vectors[offset + i];
+                distance += d * d;
+            }
+            results.add(distance, n);
+        }
+        return results.toHits();
+    }
+
+    /**
+     * Finds the documents with identical codes, the reader is used to look up their identifiers.
+     */
+    public ImageDuplicates findDuplicates(IndexReader reader) throws IOException {
+        HashMap<ByteBuffer, List<Integer>> groups = new HashMap<ByteBuffer, List<Integer>>();
+        byte[] data = (codes != null) ? codes : SerializationUtils.toByteArray(vectors);
+        for (int n = 0; n < size; n++) {
+            ByteBuffer code = ByteBuffer.wrap(data, n * codeLength, codeLength).slice();
+            List<Integer> group = groups.get(code);
+            if (group == null) groups.put(code, group = new LinkedList<Integer>());
+            group.add(documents[n]);
+        }
+        Set<String> fields = Collections.singleton(DocumentBuilder.FIELD_NAME_IDENTIFIER);
+        LinkedList<List<String>> results = new LinkedList<List<String>>();
+        for (List<Integer> group : groups.values()) {
+            if (group.size() < 2) continue;
+            LinkedList<String> identifiers = new LinkedList<String>();
+            for (int document : group) {
+                identifiers.add(reader.document(document, fields).get(DocumentBuilder.FIELD_NAME_IDENTIFIER));
+            }
+            results.add(identifiers);
+        }
+        return results.isEmpty() ? null : new SimpleImageDuplicates(results);
+    }
+
+    /**
+     * Keeps the maxHits nearest results.
+     */
+    private class Results {
+        private final TreeSet<SimpleResult> results = new TreeSet<SimpleResult>();
+        private double maxDistance = Double.MAX_VALUE;
+
+        void add(double distance, int n) {
+            if (results.size() < maxHits) {
+                results.add(new SimpleResult(distance, documents[n]));
+                if (results.size() == maxHits) maxDistance = results.last().getDistance();
+            } else if (distance < maxDistance) {
+                results.pollLast();
+                results.add(new SimpleResult(distance, documents[n]));
+                maxDistance = results.last().getDistance();
+            }
+        }
+
+        ImageSearchHits toHits() {
+            return new SimpleImageSearchHits(results, results.isEmpty() ? 0 : results.last().getDistance());
+        }
+    }
+}
@@ -41,16 +41,24 @@
 package net.semanticmetadata.lire.searchers;
 
 import net.semanticmetadata.lire.aggregators.Aggregator;
+import net.semanticmetadata.lire.aggregators.CompactVLAD;
+import net.semanticmetadata.lire.aggregators.SparseHistogramFeature;
+import net.semanticmetadata.lire.aggregators.VLADProjection;
+import net.semanticmetadata.lire.aggregators.VocabularyTreeAggregator;
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.builders.GlobalDocumentBuilder;
 import net.semanticmetadata.lire.builders.LocalDocumentBuilder;
 import net.semanticmetadata.lire.builders.SimpleDocumentBuilder;
 import net.semanticmetadata.lire.classifiers.Cluster;
+import net.semanticmetadata.lire.classifiers.VocabularyTree;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureExtractor;
 import net.semanticmetadata.lire.imageanalysis.features.local.simple.SimpleExtractor;
 import net.semanticmetadata.lire.indexers.parallel.ExtractorItem;
+import net.semanticmetadata.lire.utils.metrics.Counter;
+import net.semanticmetadata.lire.utils.metrics.Histogram;
+import net.semanticmetadata.lire.utils.metrics.MetricRegistry;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.MultiBits;
@@ -59,6 +67,7 @@ import org.apache.lucene.util.Bits;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -91,6 +100,12 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
     protected LinkedBlockingQueue<Map.Entry<Integer, byte[]>> queue = new LinkedBlockingQueue<Map.Entry<Integer, byte[]>>(100);
     protected int numThreads = DocumentBuilder.NUM_OF_THREADS;
 
+    private static final Histogram scanTime = MetricRegistry.getDefault().histogram("search.scan.time");
+    private static final Histogram scanDocumentNanos = MetricRegistry.getDefault().histogram("search.scan.documentNanos");
+    // documents compared from the in-memory copy of the features and read from the index, the copy holds all of them.
+    private static final Counter scannedInMemory = MetricRegistry.getDefault().counter("search.scan.inMemory");
+    private static final Counter scannedFromIndex = MetricRegistry.getDefault().counter("search.scan.fromIndex");
+
 
     public GenericFastImageSearcher(int maxHits, Class<? extends GlobalFeature> globalFeature) {
         this.maxHits = maxHits;
@@ -251,6 +266,8 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
 
 
     protected void init() {
+        // the histograms of the vocabulary tree are sparse, see getAggregatedFeature().
+        if (aggregator instanceof VocabularyTreeAggregator) cachedInstance = new SparseHistogramFeature();
         // put all respective features into an in-memory cache ...
         if (isCaching && reader != null) {
             Bits liveDocs = MultiBits.getLiveDocs(reader);
@@ -283,6 +300,7 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
      * @throws IOException
      */
     protected double findSimilar(IndexReader reader, LireFeature lireFeature) throws IOException {
+        long start = System.nanoTime();
         maxDistance = -1d;
 
         // clear result set ...
@@ -355,6 +373,11 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
                 }
             }
         }
+        long nanos = System.nanoTime() - start;
+        scanTime.record(nanos / 1000);
+        if (docs > 0) scanDocumentNanos.record(nanos / docs);
+        if (isCaching) scannedInMemory.add(docs);
+        else scannedFromIndex.add(docs);
         return maxDistance;
     }
 
@@ -481,7 +504,7 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
     public ImageSearchHits search(Document doc, IndexReader reader) throws IOException {
         SimpleImageSearchHits searchHits = null;
 //        try {
-        LireFeature lireFeature = extractorItem.getFeatureInstance();
+        LireFeature lireFeature = getAggregatedFeature();
 
         if (doc.getField(fieldName).binaryValue() != null && doc.getField(fieldName).binaryValue().length > 0)
             lireFeature.setByteArrayRepresentation(doc.getField(fieldName).binaryValue().bytes, doc.getField(fieldName).binaryValue().offset, doc.getField(fieldName).binaryValue().length);
@@ -500,6 +523,14 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
         return searchHits;
     }
 
+    /**
+     * Local features are extracted from the full image.
+     */
+    @Override
+    protected int getDecodingSize() {
+        return extractorItem.isGlobal() ? super.getDecodingSize() : -1;
+    }
+
     public ImageSearchHits search(BufferedImage image, IndexReader reader) throws IOException {
         logger.finer("Starting extraction.");
         SimpleImageSearchHits searchHits = null;
@@ -517,10 +548,11 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
         } else if (extractorItem.isLocal()){
             LocalDocumentBuilder localDocumentBuilder = new LocalDocumentBuilder();
             LocalFeatureExtractor localFeatureExtractor = localDocumentBuilder.extractLocalFeatures(image, (LocalFeatureExtractor) extractorItem.getExtractorInstance());
-            aggregator.createVectorRepresentation(localFeatureExtractor.getFeatures(), Cluster.readClusters(codebooksDir + File.separator + codebookName));
-            extractorItem.getFeatureInstance().setByteArrayRepresentation(aggregator.getByteVectorRepresentation());
+            aggregator.createVectorRepresentation(localFeatureExtractor.getFeatures(), readCodebook(codebooksDir + File.separator + codebookName));
+            LireFeature query = getAggregatedFeature();
+            query.setByteArrayRepresentation(aggregator.getByteVectorRepresentation());
 
-            double maxDistance = findSimilar(reader, extractorItem.getFeatureInstance());
+            double maxDistance = findSimilar(reader, query);
             if (!useSimilarityScore) {
                 searchHits = new SimpleImageSearchHits(this.docs, maxDistance);
             } else {
@@ -529,9 +561,10 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
         } else if (extractorItem.isSimple()){
             SimpleDocumentBuilder simpleDocumentBuilder = new SimpleDocumentBuilder();
             LocalFeatureExtractor localFeatureExtractor = simpleDocumentBuilder.extractLocalFeatures(image, (LocalFeatureExtractor) extractorItem.getExtractorInstance());
-            aggregator.createVectorRepresentation(localFeatureExtractor.getFeatures(), Cluster.readClusters(codebooksDir + File.separator + codebookName));
-            extractorItem.getFeatureInstance().setByteArrayRepresentation(aggregator.getByteVectorRepresentation());
-            double maxDistance = findSimilar(reader, extractorItem.getFeatureInstance());
+            aggregator.createVectorRepresentation(localFeatureExtractor.getFeatures(), readCodebook(codebooksDir + File.separator + codebookName));
+            LireFeature query = getAggregatedFeature();
+            query.setByteArrayRepresentation(aggregator.getByteVectorRepresentation());
+            double maxDistance = findSimilar(reader, query);
             if (!useSimilarityScore) {
                 searchHits = new SimpleImageSearchHits(this.docs, maxDistance);
             } else {
@@ -543,6 +576,34 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
 
     }
 
+    /**
+     * Returns the feature instance for the query, for local features the aggregated one. The histograms of {@link VocabularyTreeAggregator} are
+     * sparse, so they are compared as {@link SparseHistogramFeature}, the documents as well, see {@link #init()}.
+     */
+    private LireFeature getAggregatedFeature() {
+        if (aggregator instanceof VocabularyTreeAggregator) return new SparseHistogramFeature();
+        return extractorItem.getFeatureInstance();
+    }
+
+    /**
+     * Reads the codebook, and for {@link CompactVLAD} the projection and for {@link VocabularyTreeAggregator} the tree
+     * stored next to it.
+     */
+    private Cluster[] readCodebook(String file) throws IOException {
+        Cluster[] codebook = Cluster.readClusters(file);
+        if (aggregator instanceof VocabularyTreeAggregator) {
+            VocabularyTree tree = VocabularyTree.readForCodebook(file);
+            if (tree == null) throw new FileNotFoundException("No vocabulary tree found for the codebook " + file + ".");
+            VocabularyTree.register(codebook, tree);
+        }
+        if (aggregator instanceof CompactVLAD) {
+            VLADProjection projection = VLADProjection.readForCodebook(file);
+            if (projection == null) throw new FileNotFoundException("No VLAD projection found for the codebook " + file + ".");
+            ((CompactVLAD) aggregator).setProjection(projection);
+        }
+        return codebook;
+    }
+
     public ImageDuplicates findDuplicates(IndexReader reader) throws IOException {
         // get the first document:
         SimpleImageDuplicates simpleImageDuplicates = null;
@@ -551,7 +612,7 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
 //                throw new FileNotFoundException("No index found at this specific location.");
         Document doc = reader.document(0);
 
-        LireFeature lireFeature = extractorItem.getFeatureInstance();
+        LireFeature lireFeature = getAggregatedFeature();
         if (doc.getField(fieldName).binaryValue() != null && doc.getField(fieldName).binaryValue().length > 0)
             lireFeature.setByteArrayRepresentation(doc.getField(fieldName).binaryValue().bytes, doc.getField(fieldName).binaryValue().offset, doc.getField(fieldName).binaryValue().length);
 
@@ -0,0 +1,84 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.searchers;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.TopDocs;
+
+import java.io.IOException;
+
+/**
+ * Searchers that first retrieve a number of candidates based on hashes and then re-rank them by the actual distance.
+ * Both the number of candidates and the number of hashes used for the query can be tuned for a recall target with
+ * {@link HashingSearchTuner}.
+ */
+public interface HashingImageSearcher extends ImageSearcher {
+    /**
+     * Retrieves the candidates for a query, ordered by the score of the hash based query.
+     *
+     * @param queryFeature  the query.
+     * @param reader        the index.
+     * @param numCandidates the maximum number of candidates.
+     * @param queryLength   the number of hashes used for the query, values &lt; 1 use the current setting.
+     * @return the candidates.
+     * @throws IOException
+     */
+    TopDocs getCandidates(GlobalFeature queryFeature, IndexReader reader, int numCandidates, int queryLength) throws IOException;
+
+    /**
+     * @return the maximum number of hashes that can be used for a query.
+     */
+    int getMaxQueryLength();
+
+    int getQueryLength();
+
+    void setQueryLength(int queryLength);
+
+    int getNumHashedResults();
+
+    void setNumHashedResults(int numHashedResults);
+
+    /**
+     * Re-ranking stops early if the top results did not change for the given number of candidates in a row.
+     *
+     * @param window the number of candidates, 0 re-ranks all candidates.
+     */
+    void setEarlyTerminationWindow(int window);
+
+    String getFeatureFieldName();
+
+    Class<? extends GlobalFeature> getFeatureClass();
+}
@@ -0,0 +1,448 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.searchers;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiBits;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.Bits;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Finds the number of candidates and the query length for a {@link HashingImageSearcher}, so that a given recall
+ * of the top k results of a linear search is reached. Queries are sampled from the index, their ground truth is
+ * computed in one parallel linear pass over the index, then for each query length in the grid the candidates are
+ * retrieved once and re-ranked, and the recall is evaluated for each prefix length in the candidate grid. The
+ * cheapest setting reaching the target, ie. the smallest number of candidates and then the shortest query, is
+ * returned.
+ * <p/>
+ * <pre>
+ * HashingSearchTuner tuner = new HashingSearchTuner(reader, searcher);
+ * tuner.setRecallTarget(0.95);
+ * HashingSearchTuner.Result result = tuner.tune();
+ * result.applyTo(searcher);
+ * result.save(indexPath);
+ * // later on ...
+ * HashingSearchTuner.Result.load(indexPath, searcher.getFeatureFieldName()).applyTo(searcher);
+ * </pre>
+ */
+public class HashingSearchTuner {
+    private final IndexReader reader;
+    private final HashingImageSearcher searcher;
+    private double recallTarget = 0.9;
+    private int k = 10;
+    private int numberOfQueries = 100;
+    private int[] candidateCounts = new int[]{50, 100, 200, 300, 500, 750, 1000, 1500, 2000, 3000, 5000};
+    private int[] queryLengths = null;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private Random random = new Random();
+
+    public HashingSearchTuner(IndexReader reader, HashingImageSearcher searcher) {
+        this.reader = reader;
+        this.searcher = searcher;
+    }
+
+    /**
+     * Runs the evaluation and returns the cheapest setting reaching the recall target. If no setting reaches the
+     * target, the one with the highest recall is returned.
+     *
+     * @return the tuned parameters.
+     * @throws IOException
+     */
+    public Result tune() throws IOException {
+        int[] queryDocs = sampleQueries();
+        if (queryDocs.length == 0) throw new IllegalStateException("The index does not contain any documents to tune with.");
+        GlobalFeature[] queries = readFeatures(queryDocs);
+        List<TreeSet<SimpleResult>> groundTruth = computeGroundTruth(queryDocs, queries);
+        int[] lengths = (queryLengths != null) ? queryLengths : defaultQueryLengths(searcher.getMaxQueryLength());
+        int[] counts = candidateCounts.clone();
+        Arrays.sort(counts);
+        int maxCandidates = counts[counts.length - 1];
+        double[][] recall = new double[lengths.length][counts.length];
+        int evaluated = 0;
+        for (int q = 0; q < queries.length; q++) {
+            if (queries[q] == null) continue;
+            evaluated++;
+            Set<Integer> relevant = new HashSet<Integer>();
+            for (SimpleResult r : groundTruth.get(q)) relevant.add(r.getIndexNumber());
+            for (int l = 0; l < lengths.length; l++) {
+                ScoreDoc[] candidates = searcher.getCandidates(queries[q], reader, maxCandidates, lengths[l]).scoreDocs;
+                byte[][] data = CandidateReRanker.fetch(candidates, reader, searcher.getFeatureFieldName());
+                double[] distances = CandidateReRanker.computeDistances(data, queries[q]);
+                CandidateReRanker.TopResults top = new CandidateReRanker.TopResults(k);
+                int c = 0;
+                for (int i = 0; i < candidates.length && c < counts.length; i++) {
+                    // the query is part of the index, it would always be its own first hit.
+                    if (data[i] != null && candidates[i].doc != queryDocs[q]) top.offer(distances[i], candidates[i].doc);
+                    while (c < counts.length && counts[c] == i + 1) {
+                        recall[l][c++] += recall(top, relevant);
+                    }
+                }
+                // prefixes longer than the candidate list have the same result as the full list.
+                double full = recall(top, relevant);
+                while (c < counts.length) recall[l][c++] += full;
+            }
+        }
+        if (evaluated == 0) throw new IllegalStateException("None of the sampled documents contains field " + searcher.getFeatureFieldName());
+        Result best = null;
+        for (int c = 0; c < counts.length && (best == null || !best.targetReached); c++) {
+            for (int l = 0; l < lengths.length; l++) {
+                double r = recall[l][c] / evaluated;
+                if (r >= recallTarget) {
+                    best = new Result(searcher.getFeatureFieldName(), counts[c], lengths[l], r, k, recallTarget, true);
+                    break;
+                } else if (best == null || r > best.recall) {
+                    best = new Result(searcher.getFeatureFieldName(), counts[c], lengths[l], r, k, recallTarget, false);
+                }
+            }
+        }
+        return best;
+    }
+
+    private static double recall(CandidateReRanker.TopResults top, Set<Integer> relevant) {
+        int hits = 0;
+        for (SimpleResult r : top.getResults()) {
+            if (relevant.contains(r.getIndexNumber())) hits++;
+        }
+        return relevant.isEmpty() ? 1d : (double) hits / relevant.size();
+    }
+
+    private static int[] defaultQueryLengths(int maxQueryLength) {
+        TreeSet<Integer> lengths = new TreeSet<Integer>();
+        int step = Math.max(1, maxQueryLength / 10);
+        for (int l = step; l < maxQueryLength; l += step) lengths.add(l);
+        lengths.add(maxQueryLength);
+        int[] result = new int[lengths.size()];
+        int i = 0;
+        for (Integer l : lengths) result[i++] = l;
+        return result;
+    }
+
+    private int[] sampleQueries() {
+        Bits liveDocs = MultiBits.getLiveDocs(reader);
+        int maxDoc = reader.maxDoc();
+        // reservoir sampling over the live documents.
+        int[] sample = new int[Math.min(numberOfQueries, reader.numDocs())];
+        int count = 0;
+        for (int doc = 0; doc < maxDoc; doc++) {
+            if (liveDocs != null && !liveDocs.get(doc)) continue;
+            if (count < sample.length) {
+                sample[count] = doc;
+            } else {
+                int r = random.nextInt(count + 1);
+                if (r < sample.length) sample[r] = doc;
+            }
+            count++;
+        }
+        return sample;
+    }
+
+    private GlobalFeature[] readFeatures(int[] docs) throws IOException {
+        ScoreDoc[] scoreDocs = new ScoreDoc[docs.length];
+        for (int i = 0; i < docs.length; i++) scoreDocs[i] = new ScoreDoc(docs[i], 0f);
+        byte[][] data = CandidateReRanker.fetch(scoreDocs, reader, searcher.getFeatureFieldName());
+        GlobalFeature[] features = new GlobalFeature[docs.length];
+        for (int i = 0; i < docs.length; i++) {
+            if (data[i] == null) continue;
+            features[i] = newFeature();
+            features[i].setByteArrayRepresentation(data[i]);
+        }
+        return features;
+    }
+
+    /**
+     * Linear search for all queries at once. The index is split in one range of documents per thread, each thread
+     * uses its own copies of the queries and keeps its own top k lists, which are merged in the end. The query
+     * documents themselves are not part of their ground truth.
+     */
+    private List<TreeSet<SimpleResult>> computeGroundTruth(final int[] queryDocs, final GlobalFeature[] queries) throws IOException {
+        final int maxDoc = reader.maxDoc();
+        final Bits liveDocs = MultiBits.getLiveDocs(reader);
+        int threads = Math.max(1, Math.min(numThreads, maxDoc / 1024));
+        final int step = (maxDoc + threads - 1) / threads;
+        final List<CandidateReRanker.TopResults[]> partialResults = Collections.synchronizedList(new LinkedList<CandidateReRanker.TopResults[]>());
+        final Throwable[] error = new Throwable[1];
+        LinkedList<Thread> workers = new LinkedList<>();
+        for (int t = 0; t < threads; t++) {
+            final int from = t * step, to = Math.min(maxDoc, from + step);
+            final GlobalFeature[] localQueries = new GlobalFeature[queries.length];
+            final CandidateReRanker.TopResults[] top = new CandidateReRanker.TopResults[queries.length];
+            for (int q = 0; q < queries.length; q++) {
+                if (queries[q] == null) continue;
+                localQueries[q] = newFeature();
+                localQueries[q].setByteArrayRepresentation(queries[q].getByteArrayRepresentation());
+                top[q] = new CandidateReRanker.TopResults(k);
+            }
+            final GlobalFeature candidate = newFeature();
+            Thread w = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int start = from; start < to; start += 4096) {
+                            int end = Math.min(to, start + 4096);
+                            ArrayList<ScoreDoc> docs = new ArrayList<ScoreDoc>(end - start);
+                            for (int doc = start; doc < end; doc++) {
+                                if (liveDocs == null || liveDocs.get(doc)) docs.add(new ScoreDoc(doc, 0f));
+                            }
+                            ScoreDoc[] block = docs.toArray(new ScoreDoc[docs.size()]);
+                            byte[][] data = CandidateReRanker.fetch(block, reader, searcher.getFeatureFieldName());
+                            for (int i = 0; i < docs.size(); i++) {
+                                if (data[i] == null) continue;
+                                candidate.setByteArrayRepresentation(data[i]);
+                                int doc = docs.get(i).doc;
+                                for (int q = 0; q < localQueries.length; q++) {
+                                    if (localQueries[q] != null && doc != queryDocs[q])
+                                        top[q].offer(localQueries[q].getDistance(candidate), doc);
+                                }
+                            }
+                        }
+                        partialResults.add(top);
+                    } catch (Throwable e) {
+                        // the ground truth would be incomplete, the first failure is rethrown by the caller.
+                        synchronized (error) {
+                            if (error[0] == null) error[0] = e;
+                        }
+                    }
+                }
+            });
+            w.start();
+            workers.add(w);
+        }
+        try {
+            for (Thread w : workers) {
+                w.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while computing the ground truth.");
+        }
+        Throwable failure;
+        synchronized (error) {
+            failure = error[0];
+        }
+        if (failure instanceof IOException) throw (IOException) failure;
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure instanceof Error) throw (Error) failure;
+        if (failure != null) throw new IllegalStateException("Could not compute the ground truth.", failure);
+        List<TreeSet<SimpleResult>> result = new ArrayList<TreeSet<SimpleResult>>(queries.length);
+        for (int q = 0; q < queries.length; q++) {
+            CandidateReRanker.TopResults merged = new CandidateReRanker.TopResults(k);
+            if (queries[q] != null) {
+                for (CandidateReRanker.TopResults[] partial : partialResults) {
+                    for (SimpleResult r : partial[q].getResults()) merged.offer(r.getDistance(), r.getIndexNumber());
+                }
+            }
+            result.add(merged.getResults());
+        }
+        return result;
+    }
+
+    private GlobalFeature newFeature() {
+        try {
+            return searcher.getFeatureClass().newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new IllegalStateException("Could not create an instance of " + searcher.getFeatureClass().getName(), e);
+        }
+    }
+
+    public double getRecallTarget() {
+        return recallTarget;
+    }
+
+    /**
+     * @param recallTarget the minimum average recall of the top k results of the linear search, default is 0.9.
+     */
+    public void setRecallTarget(double recallTarget) {
+        this.recallTarget = recallTarget;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * @param k the number of top results the recall is computed for, default is 10.
+     */
+    public void setK(int k) {
+        this.k = k;
+    }
+
+    public int getNumberOfQueries() {
+        return numberOfQueries;
+    }
+
+    /**
+     * @param numberOfQueries how many documents are sampled from the index as queries, default is 100.
+     */
+    public void setNumberOfQueries(int numberOfQueries) {
+        this.numberOfQueries = numberOfQueries;
+    }
+
+    public void setCandidateCounts(int[] candidateCounts) {
+        this.candidateCounts = candidateCounts;
+    }
+
+    /**
+     * @param queryLengths the query lengths to evaluate, null evaluates ten steps up to the maximum.
+     */
+    public void setQueryLengths(int[] queryLengths) {
+        this.queryLengths = queryLengths;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * The tuned parameters for one feature field, can be stored next to the index in the index config directory.
+     */
+    public static class Result {
+        private final String fieldName;
+        private final int numHashedResults;
+        private final int queryLength;
+        private final double recall;
+        private final int k;
+        private final double recallTarget;
+        private final boolean targetReached;
+
+        public Result(String fieldName, int numHashedResults, int queryLength, double recall, int k, double recallTarget, boolean targetReached) {
+            this.fieldName = fieldName;
+            this.numHashedResults = numHashedResults;
+            this.queryLength = queryLength;
+            this.recall = recall;
+            this.k = k;
+            this.recallTarget = recallTarget;
+            this.targetReached = targetReached;
+        }
+
+        public void applyTo(HashingImageSearcher searcher) {
+            searcher.setNumHashedResults(numHashedResults);
+            searcher.setQueryLength(queryLength);
+        }
+
+        /**
+         * Stores the parameters to indexPath + ".config/hashing_" + fieldName + ".xml", like the properties of the
+         * {@link net.semanticmetadata.lire.indexers.parallel.ParallelIndexer}.
+         *
+         * @param indexPath the path of the index.
+         * @throws IOException
+         */
+        public void save(String indexPath) throws IOException {
+            Properties props = new Properties();
+            props.setProperty("fieldName", fieldName);
+            props.setProperty("numHashedResults", String.valueOf(numHashedResults));
+            props.setProperty("queryLength", String.valueOf(queryLength));
+            props.setProperty("recall", String.valueOf(recall));
+            props.setProperty("k", String.valueOf(k));
+            props.setProperty("recallTarget", String.valueOf(recallTarget));
+            props.setProperty("targetReached", String.valueOf(targetReached));
+            File file = getFile(indexPath, fieldName);
+            file.getParentFile().mkdirs();
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                props.storeToXML(fos, "Tuned hashing search parameters");
+            } finally {
+                fos.close();
+            }
+        }
+
+        /**
+         * Loads parameters stored with {@link #save(String)}.
+         *
+         * @param indexPath the path of the index.
+         * @param fieldName the feature field name.
+         * @return the parameters or null if there are none stored for the field.
+         * @throws IOException
+         */
+        public static Result load(String indexPath, String fieldName) throws IOException {
+            File file = getFile(indexPath, fieldName);
+            if (!file.exists()) return null;
+            Properties props = new Properties();
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                props.loadFromXML(fis);
+            } finally {
+                fis.close();
+            }
+            return new Result(fieldName,
+                    Integer.parseInt(props.getProperty("numHashedResults")),
+                    Integer.parseInt(props.getProperty("queryLength")),
+                    Double.parseDouble(props.getProperty("recall")),
+                    Integer.parseInt(props.getProperty("k")),
+                    Double.parseDouble(props.getProperty("recallTarget")),
+                    Boolean.parseBoolean(props.getProperty("targetReached")));
+        }
+
+        private static File getFile(String indexPath, String fieldName) {
+            return new File(indexPath + ".config/hashing_" + fieldName + ".xml");
+        }
+
+        public String getFieldName() {
+            return fieldName;
+        }
+
+        public int getNumHashedResults() {
+            return numHashedResults;
+        }
+
+        public int getQueryLength() {
+            return queryLength;
+        }
+
+        public double getRecall() {
+            return recall;
+        }
+
+        public int getK() {
+            return k;
+        }
+
+        public boolean isTargetReached() {
+            return targetReached;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d candidates, query length %d, recall@%d = %.3f (target %.3f%s)", fieldName,
+                    numHashedResults, queryLength, k, recall, recallTarget, targetReached ? "" : ", not reached");
+        }
+    }
+}
@@ -43,7 +43,7 @@ package net.semanticmetadata.lire.searchers;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
-import net.semanticmetadata.lire.indexers.hashing.LocalitySensitiveHashing;
+import net.semanticmetadata.lire.indexers.hashing.LshHashFamily;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.FieldInvertState;
 import org.apache.lucene.index.IndexReader;
@@ -54,7 +54,6 @@ import org.apache.lucene.search.similarities.ClassicSimilarity;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.TreeSet;
 
 /**
  * This class allows for searching based on {@link net.semanticmetadata.lire.indexers.hashing.BitSampling}
@@ -70,6 +69,7 @@ public class LshImageSearcher extends AbstractImageSearcher {
     private String featureFieldName = DocumentBuilder.FIELD_NAME_OPPONENT_HISTOGRAM;
     private GlobalFeature feature;
     private String hashesFieldName = null;
+    private LshHashFamily hashFamily = null;
 
     /**
      * Creates a new searcher for BitSampling based hashes.
@@ -84,7 +84,7 @@ public class LshImageSearcher extends AbstractImageSearcher {
         this.hashesFieldName = hashesFieldName;
         this.feature = feature;
         try {
-            LocalitySensitiveHashing.readHashFunctions();
+            hashFamily = LshHashFamily.getDefault();
         } catch (IOException e) {
             System.err.println("Error reading hash functions from default location.");
             e.printStackTrace();
@@ -98,7 +98,7 @@ public class LshImageSearcher extends AbstractImageSearcher {
         this.feature = feature;
         maxResultsHashBased = numHashedResults;
         try {
-            LocalitySensitiveHashing.readHashFunctions();
+            hashFamily = LshHashFamily.getDefault();
         } catch (IOException e) {
             System.err.println("Error reading hash functions from default location.");
             e.printStackTrace();
@@ -111,7 +111,7 @@ public class LshImageSearcher extends AbstractImageSearcher {
         this.hashesFieldName = hashesFieldName;
         this.feature = feature;
         try {
-            LocalitySensitiveHashing.readHashFunctions();
+            hashFamily = LshHashFamily.read(hashes);
             hashes.close();
         } catch (IOException e) {
             System.err.println("Error reading has functions from given input stream.");
@@ -126,7 +126,7 @@ public class LshImageSearcher extends AbstractImageSearcher {
         this.feature = feature;
         maxResultsHashBased = numHashedResults;
         try {
-            LocalitySensitiveHashing.readHashFunctions();
+            hashFamily = LshHashFamily.read(hashes);
             hashes.close();
         } catch (IOException e) {
             System.err.println("Error reading has functions from given input stream.");
@@ -134,11 +134,30 @@ public class LshImageSearcher extends AbstractImageSearcher {
         }
     }
 
+    /**
+     * Creates a new searcher for LSH based hashes with the given hash functions, which have to be the same as the
+     * ones used for indexing.
+     * @param maximumHits how many hits the searcher shall return.
+     * @param featureFieldName the field name of the feature.
+     * @param hashesFieldName the field name of the hashes.
+     * @param feature an instance of the feature.
+     * @param numHashedResults the number of candidate results retrieved from the index before re-ranking.
+     * @param hashFamily the hash functions.
+     */
+    public LshImageSearcher(int maximumHits, String featureFieldName, String hashesFieldName, GlobalFeature feature, int numHashedResults, LshHashFamily hashFamily) {
+        this.maximumHits = maximumHits;
+        this.featureFieldName = featureFieldName;
+        this.hashesFieldName = hashesFieldName;
+        this.feature = feature;
+        this.maxResultsHashBased = numHashedResults;
+        this.hashFamily = hashFamily;
+    }
+
     public ImageSearchHits search(BufferedImage image, IndexReader reader) throws IOException {
         try {
             GlobalFeature queryFeature = feature.getClass().newInstance();
             queryFeature.extract(image);
-            int[] ints = LocalitySensitiveHashing.generateHashes(queryFeature.getFeatureVector());
+            int[] ints = hashFamily.generateHashes(queryFeature.getFeatureVector());
             String[] hashes = new String[ints.length];
             for (int i = 0; i < ints.length; i++) {
                 hashes[i] = Integer.toString(ints[i]);
@@ -188,28 +207,8 @@ public class LshImageSearcher extends AbstractImageSearcher {
             queryBuilder.add(new BooleanClause(new TermQuery(new Term(hashesFieldName, hashes[i] + "")), BooleanClause.Occur.SHOULD));
         }
         TopDocs docs = searcher.search(queryBuilder.build(), maxResultsHashBased);
-        // then re-rank
-        TreeSet<SimpleResult> resultScoreDocs = new TreeSet<SimpleResult>();
-        double maxDistance = 0d;
-        double tmpScore = 0d;
-        for (int i = 0; i < docs.scoreDocs.length; i++) {
-            feature.setByteArrayRepresentation(reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).bytes,
-                    reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).offset,
-                    reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).length);
-            tmpScore = queryFeature.getDistance(feature);
-            if (resultScoreDocs.size() < maximumHits) {
-                resultScoreDocs.add(new SimpleResult(tmpScore, docs.scoreDocs[i].doc));
-                maxDistance = Math.max(maxDistance, tmpScore);
-            } else if (tmpScore < maxDistance) {
-                resultScoreDocs.add(new SimpleResult(tmpScore, docs.scoreDocs[i].doc));
-            }
-            while (resultScoreDocs.size() > maximumHits) {
-                resultScoreDocs.remove(resultScoreDocs.last());
-                maxDistance = resultScoreDocs.last().getDistance();
-            }
-//            resultScoreDocs.add(new SimpleResult(tmpScore, reader.document(docs.scoreDocs[i].doc), docs.scoreDocs[i].doc));
-        }
-        return new SimpleImageSearchHits(resultScoreDocs, maxDistance);
+        // then re-rank, features are fetched once in docId order.
+        return CandidateReRanker.reRank(docs.scoreDocs, queryFeature, reader, featureFieldName, maximumHits);
     }
 
     public ImageDuplicates findDuplicates(IndexReader reader) throws IOException {
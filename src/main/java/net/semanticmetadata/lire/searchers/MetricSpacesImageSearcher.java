@@ -61,7 +61,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.TreeSet;
 
 /**
  * This class allows for searching based on {@link MetricSpaces}
@@ -72,7 +71,7 @@ import java.util.TreeSet;
  * @author Mathias Lux, mathias@juggle.at, 2013-04-12
  */
 
-public class MetricSpacesImageSearcher extends AbstractImageSearcher {
+public class MetricSpacesImageSearcher extends AbstractImageSearcher implements HashingImageSearcher {
     private MetricSpaces.Parameters metricSpacesParameters;
     private int maxResultsHashBased = 1000;
     private int maximumHits = 100;
@@ -80,6 +79,7 @@ public class MetricSpacesImageSearcher extends AbstractImageSearcher {
     private GlobalFeature feature = null;
     private String hashesFieldName = null;
     private int numHashesUsedForQuery = 25;
+    private int earlyTerminationWindow = 0;
 
     // for DocValues based storage, currently not implemented:
     private boolean useDocValues = false;
@@ -228,14 +228,13 @@ public class MetricSpacesImageSearcher extends AbstractImageSearcher {
     }
 
     private ImageSearchHits search(String hashes, GlobalFeature queryFeature, IndexReader reader) throws IOException {
-        if (useDocValues)
-            return searchWithDocValues(hashes, queryFeature, reader);
-        else
-            return searchWithField(hashes, queryFeature, reader);
+        TopDocs docs = getCandidates(hashes, reader, maxResultsHashBased);
+        if (docs == null) return null;
+        // then re-rank, features are fetched once in docId order from the DocValues or the stored field.
+        return CandidateReRanker.reRank(docs.scoreDocs, queryFeature, reader, featureFieldName, maximumHits, earlyTerminationWindow);
     }
 
-
-    private ImageSearchHits searchWithField(String hashes, GlobalFeature queryFeature, IndexReader reader) throws IOException {
+    private TopDocs getCandidates(String hashes, IndexReader reader, int numCandidates) throws IOException {
         // first search by text:
         IndexSearcher searcher = new IndexSearcher(reader);
         searcher.setSimilarity(new BaseSimilarity());
@@ -247,76 +246,55 @@ public class MetricSpacesImageSearcher extends AbstractImageSearcher {
             e.printStackTrace();
         }
         if (query == null) return null;
-        TopDocs docs = searcher.search(query, maxResultsHashBased);
-//        System.out.println(docs.totalHits);
-        // then re-rank
-        TreeSet<SimpleResult> resultScoreDocs = new TreeSet<SimpleResult>();
-        double maxDistance = -1d;
-        double tmpScore;
-        for (int i = 0; i < docs.scoreDocs.length; i++) {
-            feature.setByteArrayRepresentation(reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).bytes,
-                    reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).offset,
-                    reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).length);
-            tmpScore = queryFeature.getDistance(feature);
-            assert (tmpScore >= 0);
-            if (resultScoreDocs.size() < maximumHits) {
-                resultScoreDocs.add(new SimpleResult(tmpScore, docs.scoreDocs[i].doc));
-                maxDistance = Math.max(maxDistance, tmpScore);
-            } else if (tmpScore < maxDistance) {
-                // if it is nearer to the sample than at least one of the current set:
-                // remove the last one ...
-                resultScoreDocs.remove(resultScoreDocs.last());
-                // add the new one ...
-                resultScoreDocs.add(new SimpleResult(tmpScore, docs.scoreDocs[i].doc));
-                // and set our new distance border ...
-                maxDistance = resultScoreDocs.last().getDistance();
-            }
-        }
-        assert (resultScoreDocs.size() <= maximumHits);
-        return new SimpleImageSearchHits(resultScoreDocs, maxDistance);
+        return searcher.search(query, numCandidates);
     }
 
-    private ImageSearchHits searchWithDocValues(String hashes, GlobalFeature queryFeature, IndexReader reader) throws IOException {
-        // first search by text:
-        IndexSearcher searcher = new IndexSearcher(reader);
-        searcher.setSimilarity(new BaseSimilarity());
-        QueryParser qp = new QueryParser(hashesFieldName, new WhitespaceAnalyzer());
-        Query query = null;
-        try {
-            query = qp.parse(hashes);
-        } catch (ParseException e) {
-            e.printStackTrace();
-        }
-        if (query == null) return null;
-        TopDocs docs = searcher.search(query, maxResultsHashBased);
-//        System.out.println(docs.totalHits);
-        // then re-rank
-        TreeSet<SimpleResult> resultScoreDocs = new TreeSet<SimpleResult>();
-        double maxDistance = -1d;
-        double tmpScore;
-        // reset the iterator by getting the DocValueIterator again.
-        docValues = MultiDocValues.getBinaryValues(reader, featureFieldName);
-        for (int i = 0; i < docs.scoreDocs.length; i++) {
-            // WARNING: if the documents are not ordered by id, this might just not work
-            docValues.advanceExact(i);
-            feature.setByteArrayRepresentation(docValues.binaryValue().bytes, docValues.binaryValue().offset, docValues.binaryValue().length);
-            tmpScore = queryFeature.getDistance(feature);
-            assert (tmpScore >= 0);
-            if (resultScoreDocs.size() < maximumHits) {
-                resultScoreDocs.add(new SimpleResult(tmpScore, docs.scoreDocs[i].doc));
-                maxDistance = Math.max(maxDistance, tmpScore);
-            } else if (tmpScore < maxDistance) {
-                // if it is nearer to the sample than at least one of the current set:
-                // remove the last one ...
-                resultScoreDocs.remove(resultScoreDocs.last());
-                // add the new one ...
-                resultScoreDocs.add(new SimpleResult(tmpScore, docs.scoreDocs[i].doc));
-                // and set our new distance border ...
-                maxDistance = resultScoreDocs.last().getDistance();
-            }
-        }
-        assert (resultScoreDocs.size() <= maximumHits);
-        return new SimpleImageSearchHits(resultScoreDocs, maxDistance);
+    @Override
+    public TopDocs getCandidates(GlobalFeature queryFeature, IndexReader reader, int numCandidates, int queryLength) throws IOException {
+        String hashes = MetricSpaces.generateBoostedQuery(queryFeature, (queryLength > 0) ? queryLength : numHashesUsedForQuery);
+        TopDocs docs = getCandidates(hashes, reader, numCandidates);
+        if (docs == null) throw new IOException("Could not parse hash query " + hashes);
+        return docs;
+    }
+
+    @Override
+    public int getMaxQueryLength() {
+        return metricSpacesParameters.lengthOfPostingList;
+    }
+
+    @Override
+    public int getQueryLength() {
+        return numHashesUsedForQuery;
+    }
+
+    @Override
+    public void setQueryLength(int queryLength) {
+        this.numHashesUsedForQuery = queryLength;
+    }
+
+    @Override
+    public int getNumHashedResults() {
+        return maxResultsHashBased;
+    }
+
+    @Override
+    public void setNumHashedResults(int numHashedResults) {
+        this.maxResultsHashBased = numHashedResults;
+    }
+
+    @Override
+    public void setEarlyTerminationWindow(int window) {
+        this.earlyTerminationWindow = window;
+    }
+
+    @Override
+    public String getFeatureFieldName() {
+        return featureFieldName;
+    }
+
+    @Override
+    public Class<? extends GlobalFeature> getFeatureClass() {
+        return feature.getClass();
     }
 
     public ImageDuplicates findDuplicates(IndexReader reader) throws IOException {
@@ -39,26 +39,25 @@
 
 package net.semanticmetadata.lire.searchers;
 
-import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import net.semanticmetadata.lire.aggregators.SparseHistogram;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.FieldInvertState;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
-import org.apache.lucene.search.BooleanQuery;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
 import org.apache.lucene.search.similarities.ClassicSimilarity;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.util.BytesRef;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.LinkedList;
 
 /**
  * Provides a general searcher for visual words implementation. Can be used for SIFT, SURF and MSER.
+ * The query is built directly from the {@link SparseHistogram} of the query document, one clause per visual word
+ * boosted by its count. Documents indexed before the sparse histogram was stored are read from the visual word string.
  * Date: 28.09.2010
  * Time: 13:58:33
  * Mathias Lux, mathias@juggle.at
@@ -69,51 +68,88 @@ public class VisualWordsImageSearcher extends AbstractImageSearcher {
     private Similarity similarity = new ClassicSimilarity();
     //    private Similarity similarity = new MySimilarity();
 //    private Similarity similarity = new BM25Similarity();
-    QueryParser qp;
 
 
     public VisualWordsImageSearcher(int numMaxHits, Similarity similarity, String fieldName) {
         this.similarity = similarity;
         this.numMaxHits = numMaxHits;
         this.fieldName = fieldName;
-        qp = new QueryParser(fieldName, new WhitespaceAnalyzer());
-        BooleanQuery.setMaxClauseCount(10000);
     }
 
     public VisualWordsImageSearcher(int numMaxHits, String fieldName) {
         this.numMaxHits = numMaxHits;
         this.fieldName = fieldName;
-        qp = new QueryParser(fieldName, new WhitespaceAnalyzer());
-        BooleanQuery.setMaxClauseCount(10000);
     }
 
     public ImageSearchHits search(BufferedImage image, IndexReader reader) throws IOException {
         throw new UnsupportedOperationException("Not implemented!");
     }
 
+    /**
+     * Visual words are built from local features, which are extracted from the full resolution image.
+     */
+    @Override
+    protected int getDecodingSize() {
+        return -1;
+    }
+
     public ImageSearchHits search(Document doc, IndexReader reader) throws IOException {
-        SimpleImageSearchHits sh = null;
+        BytesRef stored = doc.getBinaryValue(fieldName);
+        if (stored != null)
+            return search(SparseHistogram.fromByteArray(stored.bytes, stored.offset, stored.length), reader);
+        String visualWords = doc.get(fieldName);
+        if (visualWords == null) throw new IllegalArgumentException("The document has no field " + fieldName + ".");
+        return search(SparseHistogram.fromVisualWordString(visualWords), reader);
+    }
+
+    /**
+     * Searches for the images with the most similar visual words.
+     *
+     * @param histogram the visual words of the query image.
+     * @param reader    the index.
+     * @return the hits.
+     */
+    public ImageSearchHits search(SparseHistogram histogram, IndexReader reader) throws IOException {
         IndexSearcher isearcher = new IndexSearcher(reader);
         isearcher.setSimilarity(similarity);
-        String queryString = doc.getValues(fieldName)[0];
-        Query tq = null;
-        try {
-            tq = qp.parse(queryString);
-            TopDocs docs = isearcher.search(tq, numMaxHits);
-            LinkedList<SimpleResult> res = new LinkedList<SimpleResult>();
-            double maxDistance = 0d;
-            for (int i = 0; i < docs.scoreDocs.length; i++) {
-                double d = 1d / docs.scoreDocs[i].score;
-                maxDistance = Math.max(d, maxDistance);
-                SimpleResult sr = new SimpleResult(d, docs.scoreDocs[i].doc);
-                res.add(sr);
-            }
-            sh = new SimpleImageSearchHits(res, maxDistance);
-        } catch (ParseException e) {
-            System.err.println(queryString);
-            e.printStackTrace();
+        TopDocs docs = isearcher.search(createQuery(histogram), numMaxHits);
+        LinkedList<SimpleResult> res = new LinkedList<SimpleResult>();
+        double maxDistance = 0d;
+        for (int i = 0; i < docs.scoreDocs.length; i++) {
+            double d = 1d / docs.scoreDocs[i].score;
+            maxDistance = Math.max(d, maxDistance);
+            SimpleResult sr = new SimpleResult(d, docs.scoreDocs[i].doc);
+            res.add(sr);
+        }
+        return new SimpleImageSearchHits(res, maxDistance);
+    }
+
+    /**
+     * Creates one clause per visual word, boosted by its count, which scores like repeating the word. If there are
+     * more words than {@link BooleanQuery#getMaxClauseCount()} allows, the most frequent ones are used.
+     *
+     * @param histogram the visual words of the query image.
+     * @return the query.
+     */
+    public Query createQuery(SparseHistogram histogram) {
+        final int[] words = histogram.getWords(), counts = histogram.getCounts();
+        Integer[] order = new Integer[words.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        if (order.length > BooleanQuery.getMaxClauseCount()) {
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return counts[b] - counts[a];
+                }
+            });
+            order = Arrays.copyOf(order, BooleanQuery.getMaxClauseCount());
+        }
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (int i : order) {
+            Query q = new TermQuery(new Term(fieldName, Integer.toHexString(words[i])));
+            if (counts[i] > 1) q = new BoostQuery(q, counts[i]);
+            builder.add(q, BooleanClause.Occur.SHOULD);
         }
-        return sh;
+        return builder.build();
     }
 
     public ImageDuplicates findDuplicates(IndexReader reader) throws IOException {
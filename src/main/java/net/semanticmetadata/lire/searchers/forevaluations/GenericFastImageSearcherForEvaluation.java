@@ -41,6 +41,8 @@
 package net.semanticmetadata.lire.searchers.forevaluations;
 
 import net.semanticmetadata.lire.aggregators.Aggregator;
+import net.semanticmetadata.lire.aggregators.CompactVLAD;
+import net.semanticmetadata.lire.aggregators.VLADProjection;
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.builders.GlobalDocumentBuilder;
 import net.semanticmetadata.lire.builders.LocalDocumentBuilder;
@@ -61,6 +63,7 @@ import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.util.Bits;
 
 import java.awt.image.BufferedImage;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -481,6 +484,14 @@ public class GenericFastImageSearcherForEvaluation extends AbstractImageSearcher
         return searchHits;
     }
 
+    /**
+     * Local features are extracted from the full image.
+     */
+    @Override
+    protected int getDecodingSize() {
+        return extractorItem.isGlobal() ? super.getDecodingSize() : -1;
+    }
+
     public ImageSearchHitsForEvaluation search(BufferedImage image, IndexReader reader) throws IOException {
         logger.finer("Starting extraction.");
         ImageSearchHitsForEvaluation searchHits = null;
@@ -498,7 +509,7 @@ public class GenericFastImageSearcherForEvaluation extends AbstractImageSearcher
         } else if (extractorItem.isLocal()){
             LocalDocumentBuilder localDocumentBuilder = new LocalDocumentBuilder();
             LocalFeatureExtractor localFeatureExtractor = localDocumentBuilder.extractLocalFeatures(image, (LocalFeatureExtractor) extractorItem.getExtractorInstance());
-            aggregator.createVectorRepresentation(localFeatureExtractor.getFeatures(), Cluster.readClusters(codebooksDir + "\\" + codebookName));
+            aggregator.createVectorRepresentation(localFeatureExtractor.getFeatures(), readCodebook(codebooksDir + "\\" + codebookName));
             extractorItem.getFeatureInstance().setByteArrayRepresentation(aggregator.getByteVectorRepresentation());
 
             double maxDistance = findSimilar(reader, extractorItem.getFeatureInstance());
@@ -510,7 +521,7 @@ public class GenericFastImageSearcherForEvaluation extends AbstractImageSearcher
         } else if (extractorItem.isSimple()){
             SimpleDocumentBuilder simpleDocumentBuilder = new SimpleDocumentBuilder();
             LocalFeatureExtractor localFeatureExtractor = simpleDocumentBuilder.extractLocalFeatures(image, (LocalFeatureExtractor) extractorItem.getExtractorInstance());
-            aggregator.createVectorRepresentation(localFeatureExtractor.getFeatures(), Cluster.readClusters(codebooksDir + "\\" + codebookName));
+            aggregator.createVectorRepresentation(localFeatureExtractor.getFeatures(), readCodebook(codebooksDir + "\\" + codebookName));
             extractorItem.getFeatureInstance().setByteArrayRepresentation(aggregator.getByteVectorRepresentation());
             double maxDistance = findSimilar(reader, extractorItem.getFeatureInstance());
             if (!useSimilarityScore) {
@@ -524,6 +535,19 @@ public class GenericFastImageSearcherForEvaluation extends AbstractImageSearcher
 
     }
 
+    /**
+     * Reads the codebook, and for {@link CompactVLAD} the projection stored next to it.
+     */
+    private Cluster[] readCodebook(String file) throws IOException {
+        Cluster[] codebook = Cluster.readClusters(file);
+        if (aggregator instanceof CompactVLAD) {
+            VLADProjection projection = VLADProjection.readForCodebook(file);
+            if (projection == null) throw new FileNotFoundException("No VLAD projection found for the codebook " + file + ".");
+            ((CompactVLAD) aggregator).setProjection(projection);
+        }
+        return codebook;
+    }
+
     public ImageDuplicates findDuplicates(IndexReader reader) throws IOException {
         // get the first document:
         SimpleImageDuplicates simpleImageDuplicates = null;
@@ -0,0 +1,191 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.searchers.sharding;
+
+import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.searchers.ImageSearchHits;
+import net.semanticmetadata.lire.searchers.ImageSearcher;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A shard backed by an index in the same JVM. As image searchers keep state per search, a searcher instance is only
+ * used by one query at a time. The instances are created by the factory on demand, up to the maximum number of
+ * searchers, and re-used afterwards. If all of them are busy, a query waits for the next one to become idle. Use a
+ * maximum of 1 for searchers holding large data, eg. a caching {@link net.semanticmetadata.lire.searchers.GenericFastImageSearcher},
+ * which keeps the features of the whole index in memory and searches with several threads anyway.
+ */
+public class LocalShard implements Shard {
+    /**
+     * Creates the searchers for a shard, eg. <code>reader -&gt; new GenericFastImageSearcher(100, CEDD.class, true, reader)</code>.
+     */
+    public interface SearcherFactory {
+        ImageSearcher createSearcher(IndexReader reader) throws IOException;
+    }
+
+    private static final Set<String> identifierField = Collections.singleton(DocumentBuilder.FIELD_NAME_IDENTIFIER);
+    private final String name;
+    private final IndexReader reader;
+    private final SearcherFactory factory;
+    private final boolean closeReader;
+    private final int maxSearchers;
+    private final AtomicInteger createdSearchers = new AtomicInteger(0);
+    private final LinkedBlockingQueue<ImageSearcher> idleSearchers = new LinkedBlockingQueue<ImageSearcher>();
+
+    /**
+     * Creates a shard for an already opened reader, the reader is not closed by {@link #close()}. At most
+     * {@link DocumentBuilder#NUM_OF_THREADS} searchers are created.
+     */
+    public LocalShard(String name, IndexReader reader, SearcherFactory factory) {
+        this(name, reader, factory, DocumentBuilder.NUM_OF_THREADS);
+    }
+
+    /**
+     * Creates a shard for an already opened reader, the reader is not closed by {@link #close()}.
+     *
+     * @param maxSearchers the maximum number of searchers created, ie. of queries run concurrently.
+     */
+    public LocalShard(String name, IndexReader reader, SearcherFactory factory, int maxSearchers) {
+        this(name, reader, factory, maxSearchers, false);
+    }
+
+    private LocalShard(String name, IndexReader reader, SearcherFactory factory, int maxSearchers, boolean closeReader) {
+        if (maxSearchers < 1) throw new IllegalArgumentException("At least one searcher is needed.");
+        this.name = name;
+        this.reader = reader;
+        this.factory = factory;
+        this.maxSearchers = maxSearchers;
+        this.closeReader = closeReader;
+    }
+
+    /**
+     * Opens the index in the given directory as a shard.
+     *
+     * @param indexPath the index directory.
+     * @param factory   creates the searchers.
+     * @return the shard, closing it closes the index.
+     * @throws IOException
+     */
+    public static LocalShard open(File indexPath, SearcherFactory factory) throws IOException {
+        return open(indexPath, factory, DocumentBuilder.NUM_OF_THREADS);
+    }
+
+    /**
+     * Opens the index in the given directory as a shard.
+     *
+     * @param indexPath    the index directory.
+     * @param factory      creates the searchers.
+     * @param maxSearchers the maximum number of searchers created, ie. of queries run concurrently.
+     * @return the shard, closing it closes the index.
+     * @throws IOException
+     */
+    public static LocalShard open(File indexPath, SearcherFactory factory, int maxSearchers) throws IOException {
+        return new LocalShard(indexPath.getPath(), DirectoryReader.open(FSDirectory.open(indexPath.toPath())), factory, maxSearchers, true);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public IndexReader getReader() {
+        return reader;
+    }
+
+    public List<ShardHit> search(Document query, int maximumHits) throws IOException {
+        ImageSearcher searcher = acquireSearcher();
+        ImageSearchHits hits;
+        try {
+            hits = searcher.search(query, reader);
+        } finally {
+            idleSearchers.offer(searcher);
+        }
+        // most searchers report errors on System.err and return null.
+        if (hits == null) throw new IOException("Search failed on shard " + name);
+        int length = Math.min(maximumHits, hits.length());
+        ArrayList<ShardHit> result = new ArrayList<ShardHit>(length);
+        for (int i = 0; i < length; i++) {
+            int docId = hits.documentID(i);
+            String identifier = reader.document(docId, identifierField).get(DocumentBuilder.FIELD_NAME_IDENTIFIER);
+            result.add(new ShardHit(0, docId, identifier, hits.score(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Takes an idle searcher, creates a new one if there is none and the maximum has not been reached, or waits for
+     * one otherwise.
+     */
+    private ImageSearcher acquireSearcher() throws IOException {
+        try {
+            while (true) {
+                ImageSearcher searcher = idleSearchers.poll();
+                if (searcher != null) return searcher;
+                if (createdSearchers.incrementAndGet() <= maxSearchers) {
+                    try {
+                        return factory.createSearcher(reader);
+                    } catch (IOException | RuntimeException e) {
+                        createdSearchers.decrementAndGet();
+                        throw e;
+                    }
+                }
+                createdSearchers.decrementAndGet();
+                // polling with a timeout, so a failed creation of another query does not leave us waiting forever.
+                searcher = idleSearchers.poll(100, TimeUnit.MILLISECONDS);
+                if (searcher != null) return searcher;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a searcher of shard " + name);
+        }
+    }
+
+    public void close() throws IOException {
+        idleSearchers.clear();
+        if (closeReader) reader.close();
+    }
+}
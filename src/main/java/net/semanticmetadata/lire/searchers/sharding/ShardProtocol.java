@@ -0,0 +1,185 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.searchers.sharding;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The wire format between {@link RemoteShard} and {@link ShardServer}. Each connection carries one query:
+ * <pre>
+ * request:  int magic, int version, int maximumHits, int numberOfFields,
+ *           per field: byte type (string or binary), string name, string or byte[] value
+ * response: byte status, for OK: int numberOfHits, per hit: int docId, double distance, string identifier
+ *                        for ERROR: string message
+ * </pre>
+ * Strings and byte arrays are written as int length followed by the (UTF-8) bytes, a length of -1 denotes null.
+ * Only stored values of the query document are transferred, which is what the searchers read from a query. Lengths
+ * and counts read from the stream are checked against upper limits before anything is allocated.
+ */
+final class ShardProtocol {
+    static final int MAGIC = 0x4C495253; // "LIRS"
+    static final int VERSION = 1;
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_BINARY = 1;
+    // limits for the values read, a query document has a few fields of some KB.
+    static final int MAX_FIELDS = 1024;
+    static final int MAX_VALUE_LENGTH = 16 * 1024 * 1024;
+    static final int MAX_HITS = 1000000;
+
+    private ShardProtocol() {
+    }
+
+    static void writeRequest(DataOutputStream out, Document query, int maximumHits) throws IOException {
+        List<IndexableField> fields = new ArrayList<IndexableField>();
+        for (IndexableField field : query.getFields()) {
+            if (field.binaryValue() != null || field.stringValue() != null) fields.add(field);
+        }
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(maximumHits);
+        out.writeInt(fields.size());
+        for (IndexableField field : fields) {
+            BytesRef binary = field.binaryValue();
+            if (binary != null) {
+                out.writeByte(TYPE_BINARY);
+                writeString(out, field.name());
+                out.writeInt(binary.length);
+                out.write(binary.bytes, binary.offset, binary.length);
+            } else {
+                out.writeByte(TYPE_STRING);
+                writeString(out, field.name());
+                writeString(out, field.stringValue());
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a request, the returned document contains the query fields as stored fields.
+     *
+     * @param maximumHits an array of length one for returning the maximum number of hits.
+     */
+    static Document readRequest(DataInputStream in, int[] maximumHits) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException("Not a LIRE shard request.");
+        int version = in.readInt();
+        if (version != VERSION) throw new IOException("Unsupported protocol version " + version);
+        maximumHits[0] = readCount(in, MAX_HITS, "number of hits");
+        int numberOfFields = readCount(in, MAX_FIELDS, "number of fields");
+        Document query = new Document();
+        for (int i = 0; i < numberOfFields; i++) {
+            byte type = in.readByte();
+            String name = readString(in);
+            if (type == TYPE_BINARY) {
+                byte[] value = new byte[readCount(in, MAX_VALUE_LENGTH, "field length")];
+                in.readFully(value);
+                query.add(new StoredField(name, value));
+            } else if (type == TYPE_STRING) {
+                query.add(new StoredField(name, readString(in)));
+            } else throw new IOException("Unknown field type " + type);
+        }
+        return query;
+    }
+
+    static void writeHits(DataOutputStream out, List<ShardHit> hits) throws IOException {
+        out.writeByte(STATUS_OK);
+        out.writeInt(hits.size());
+        for (ShardHit hit : hits) {
+            out.writeInt(hit.getDocId());
+            out.writeDouble(hit.getDistance());
+            writeString(out, hit.getIdentifier());
+        }
+        out.flush();
+    }
+
+    static void writeError(DataOutputStream out, String message) throws IOException {
+        out.writeByte(STATUS_ERROR);
+        writeString(out, message);
+        out.flush();
+    }
+
+    static List<ShardHit> readHits(DataInputStream in) throws IOException {
+        byte status = in.readByte();
+        if (status == STATUS_ERROR) throw new IOException("Remote shard failed: " + readString(in));
+        if (status != STATUS_OK) throw new IOException("Unknown response status " + status);
+        int numberOfHits = readCount(in, MAX_HITS, "number of hits");
+        ArrayList<ShardHit> hits = new ArrayList<ShardHit>(numberOfHits);
+        for (int i = 0; i < numberOfHits; i++) {
+            int docId = in.readInt();
+            double distance = in.readDouble();
+            hits.add(new ShardHit(0, docId, readString(in), distance));
+        }
+        return hits;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) return null;
+        if (length < 0 || length > MAX_VALUE_LENGTH) throw new IOException("Invalid string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a length or count and checks that it is in [0, max].
+     */
+    private static int readCount(DataInputStream in, int max, String what) throws IOException {
+        int value = in.readInt();
+        if (value < 0 || value > max) throw new IOException("Invalid " + what + " " + value);
+        return value;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.searchers.sharding;
+
+import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.searchers.BitSamplingImageSearcher;
+import net.semanticmetadata.lire.searchers.GenericFastImageSearcher;
+import net.semanticmetadata.lire.searchers.ImageSearcher;
+import net.semanticmetadata.lire.utils.CommandLineUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves a {@link LocalShard} for {@link RemoteShard} clients. There is one query per connection, see
+ * {@link ShardProtocol}. Connections are handled by a fixed pool of threads, further connections wait in the queue of
+ * the pool. A client that does not send or receive anything for the read timeout is disconnected.
+ * <p/>
+ * The server binds to the loopback address unless another address is given, as the protocol has no authentication.
+ * <p/>
+ * Run the main method to serve an index from the command line:
+ * <pre>
+ * $> ShardServer -i &lt;index&gt; -p &lt;port&gt; -c &lt;feature class&gt; [-b &lt;address&gt;] [-k &lt;hits&gt;] [-n &lt;candidates&gt;]
+ * </pre>
+ * Without -n a cached linear search with one shared {@link GenericFastImageSearcher} is done, with -n the
+ * {@link BitSamplingImageSearcher} re-ranks the given number of candidates.
+ */
+public class ShardServer implements Closeable {
+    private static String helpMessage = "$> ShardServer -i <index> -p <port> -c <feature class> [-b <address>] [-k <hits>] [-n <candidates>]\n\n" +
+            "-i ... the index to serve\n" +
+            "-p ... the TCP port to listen on\n" +
+            "-b ... the address to bind to, default is the loopback address, use 0.0.0.0 for all interfaces\n" +
+            "-c ... the global feature class, eg. net.semanticmetadata.lire.imageanalysis.features.global.CEDD\n" +
+            "-k ... maximum number of hits per query, default is 100\n" +
+            "-n ... use BitSampling hashes and re-rank the given number of candidates, linear search if omitted";
+    private final LocalShard shard;
+    private final ServerSocket serverSocket;
+    private final ExecutorService handlers;
+    private Thread acceptThread = null;
+    private volatile boolean running = false;
+    private int readTimeout = 30000;
+
+    /**
+     * Creates a server listening on the loopback address.
+     *
+     * @param shard the shard to serve, it's closed with the server.
+     * @param port  the port, 0 for any free port.
+     * @throws IOException
+     */
+    public ShardServer(LocalShard shard, int port) throws IOException {
+        this(shard, InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * @param shard       the shard to serve, it's closed with the server.
+     * @param bindAddress the local address to listen on, null for all interfaces.
+     * @param port        the port, 0 for any free port.
+     * @throws IOException
+     */
+    public ShardServer(LocalShard shard, InetAddress bindAddress, int port) throws IOException {
+        this(shard, bindAddress, port, DocumentBuilder.NUM_OF_THREADS);
+    }
+
+    /**
+     * @param shard       the shard to serve, it's closed with the server.
+     * @param bindAddress the local address to listen on, null for all interfaces.
+     * @param port        the port, 0 for any free port.
+     * @param numThreads  the number of connections handled at the same time.
+     * @throws IOException
+     */
+    public ShardServer(LocalShard shard, InetAddress bindAddress, int port, int numThreads) throws IOException {
+        this.shard = shard;
+        this.serverSocket = new ServerSocket(port, 0, bindAddress);
+        final int localPort = serverSocket.getLocalPort();
+        this.handlers = Executors.newFixedThreadPool(Math.max(1, numThreads), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ShardServer-" + localPort + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties p = CommandLineUtils.getProperties(args, helpMessage, new String[]{"-i", "-p", "-c"});
+        @SuppressWarnings("unchecked")
+        final Class<? extends GlobalFeature> featureClass = (Class<? extends GlobalFeature>) Class.forName(p.getProperty("-c"));
+        final int candidates = p.containsKey("-n") ? Integer.parseInt(p.getProperty("-n")) : -1;
+        final int hits = p.containsKey("-k") ? Integer.parseInt(p.getProperty("-k")) : 100;
+        InetAddress bindAddress = p.containsKey("-b") ? InetAddress.getByName(p.getProperty("-b")) : InetAddress.getLoopbackAddress();
+        // the caching searcher holds all features of the index and scans with several threads, so one is shared.
+        int maxSearchers = (candidates > 0) ? DocumentBuilder.NUM_OF_THREADS : 1;
+        LocalShard shard = LocalShard.open(new File(p.getProperty("-i")), new LocalShard.SearcherFactory() {
+            public ImageSearcher createSearcher(IndexReader reader) throws IOException {
+                try {
+                    if (candidates > 0)
+                        return new BitSamplingImageSearcher(hits, featureClass.newInstance(), candidates);
+                    return new GenericFastImageSearcher(hits, featureClass, true, reader);
+                } catch (InstantiationException | IllegalAccessException e) {
+                    throw new IOException("Could not create feature " + featureClass.getName(), e);
+                }
+            }
+        }, maxSearchers);
+        ShardServer server = new ShardServer(shard, bindAddress, Integer.parseInt(p.getProperty("-p")));
+        System.out.printf("Serving %s with %,d documents on %s:%d.\n", p.getProperty("-i"), shard.getReader().numDocs(), bindAddress.getHostAddress(), server.getPort());
+        server.run();
+    }
+
+    /**
+     * Accepts connections in a background thread.
+     */
+    public void start() {
+        acceptThread = new Thread(new Runnable() {
+            public void run() {
+                ShardServer.this.run();
+            }
+        }, "ShardServer-" + serverSocket.getLocalPort());
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Accepts connections in the calling thread until the server is closed.
+     */
+    public void run() {
+        running = true;
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                handlers.execute(new Runnable() {
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            } catch (SocketException e) {
+                // thrown by accept() if the server socket is closed.
+                if (running) e.printStackTrace();
+            } catch (RejectedExecutionException e) {
+                // the server has been closed in between.
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(readTimeout);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            int[] maximumHits = new int[1];
+            Document query;
+            try {
+                query = ShardProtocol.readRequest(in, maximumHits);
+            } catch (IOException e) {
+                ShardProtocol.writeError(out, e.getMessage());
+                return;
+            }
+            try {
+                ShardProtocol.writeHits(out, shard.search(query, maximumHits[0]));
+            } catch (Exception e) {
+                ShardProtocol.writeError(out, e.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+        } catch (IOException e) {
+            System.err.println("Error communicating with " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Sets the time a connection may block on reading the request, see {@link Socket#setSoTimeout(int)}. Default is
+     * 30 seconds.
+     *
+     * @param readTimeout the timeout in ms, 0 for no timeout.
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        handlers.shutdownNow();
+        shard.close();
+    }
+}
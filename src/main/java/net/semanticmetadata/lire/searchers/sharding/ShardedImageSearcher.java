@@ -0,0 +1,203 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.searchers.sharding;
+
+import net.semanticmetadata.lire.builders.DocumentBuilder;
+import org.apache.lucene.document.Document;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Searches an index split into several shards. The query document is created once, sent to all shards in parallel
+ * and the per shard top k lists are merged by distance. Each search waits at most for the configured timeout, so the
+ * latency is bounded by the slowest shard or the timeout, whichever comes first. Shards that fail or don't answer in
+ * time are left out and reported in the {@link ShardedSearchHits}. The shards are queried on a fixed pool of threads
+ * owned by the searcher, shard queries running into the timeout are cancelled.
+ * <p/>
+ * <pre>
+ * ShardedImageSearcher searcher = new ShardedImageSearcher(10, new GlobalDocumentBuilder(CEDD.class),
+ *         LocalShard.open(new File("index-0"), factory), new RemoteShard("localhost", 9001));
+ * ShardedSearchHits hits = searcher.search(ImageIO.read(new File("query.jpg")));
+ * for (int i = 0; i &lt; hits.length(); i++) {
+ *     System.out.println(hits.score(i) + ": " + hits.getIdentifier(i));
+ * }
+ * </pre>
+ * Note that distances are only comparable across shards if all shards use the same feature and searcher type.
+ */
+public class ShardedImageSearcher implements Closeable {
+    private final List<Shard> shards;
+    private final DocumentBuilder documentBuilder;
+    private int maximumHits;
+    private long timeout = 5000;
+    private final ExecutorService executor;
+
+    /**
+     * @param maximumHits     the number of hits to return.
+     * @param documentBuilder creates the query documents from images, has to be configured like the one used for
+     *                        indexing, eg. with hashing for hash based shard searchers.
+     * @param shards          the shards to search.
+     */
+    public ShardedImageSearcher(int maximumHits, DocumentBuilder documentBuilder, Shard... shards) {
+        this(maximumHits, documentBuilder, Arrays.asList(shards));
+    }
+
+    /**
+     * Creates a searcher with a pool of {@link DocumentBuilder#NUM_OF_THREADS} threads, but at least one per shard.
+     */
+    public ShardedImageSearcher(int maximumHits, DocumentBuilder documentBuilder, List<? extends Shard> shards) {
+        this(maximumHits, documentBuilder, shards, Math.max(shards.size(), DocumentBuilder.NUM_OF_THREADS));
+    }
+
+    /**
+     * @param maximumHits     the number of hits to return.
+     * @param documentBuilder creates the query documents from images.
+     * @param shards          the shards to search.
+     * @param numThreads      the number of threads querying the shards, shared by all concurrent searches.
+     */
+    public ShardedImageSearcher(int maximumHits, DocumentBuilder documentBuilder, List<? extends Shard> shards, int numThreads) {
+        this.maximumHits = maximumHits;
+        this.documentBuilder = documentBuilder;
+        this.shards = new ArrayList<Shard>(shards);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, numThreads), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ShardedSearch-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Extracts the query from the image and searches all shards.
+     *
+     * @param image the query image.
+     * @return the merged hits.
+     * @throws IOException if the query cannot be created.
+     */
+    public ShardedSearchHits search(BufferedImage image) throws IOException {
+        return search(documentBuilder.createDocument(image, "query"));
+    }
+
+    /**
+     * Searches all shards with the given query document, eg. a document from one of the shards.
+     *
+     * @param query the query document.
+     * @return the merged hits.
+     */
+    public ShardedSearchHits search(final Document query) {
+        final int numShards = shards.size();
+        List<Future<List<ShardHit>>> results = new ArrayList<Future<List<ShardHit>>>(numShards);
+        for (int s = 0; s < numShards; s++) {
+            final Shard shard = shards.get(s);
+            results.add(executor.submit(new Callable<List<ShardHit>>() {
+                public List<ShardHit> call() throws Exception {
+                    return shard.search(query, maximumHits);
+                }
+            }));
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        ArrayList<ShardHit> merged = new ArrayList<ShardHit>(maximumHits * numShards);
+        ArrayList<String> failedShards = new ArrayList<String>();
+        boolean interrupted = false;
+        for (int s = 0; s < numShards; s++) {
+            Future<List<ShardHit>> result = results.get(s);
+            try {
+                long remaining = interrupted ? 0 : Math.max(0, deadline - System.currentTimeMillis());
+                List<ShardHit> hits = result.get(remaining, TimeUnit.MILLISECONDS);
+                for (ShardHit hit : hits) {
+                    merged.add(new ShardHit(s, hit.getDocId(), hit.getIdentifier(), hit.getDistance()));
+                }
+            } catch (TimeoutException e) {
+                result.cancel(true);
+                failedShards.add(shards.get(s).getName() + (interrupted ? ": interrupted" : ": timeout after " + timeout + " ms"));
+            } catch (ExecutionException e) {
+                failedShards.add(shards.get(s).getName() + ": " + e.getCause());
+            } catch (InterruptedException e) {
+                // give up on the remaining shards, but keep the results we already have.
+                interrupted = true;
+                result.cancel(true);
+                failedShards.add(shards.get(s).getName() + ": interrupted");
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        Collections.sort(merged);
+        List<ShardHit> top = (merged.size() > maximumHits) ? new ArrayList<ShardHit>(merged.subList(0, maximumHits)) : merged;
+        return new ShardedSearchHits(top, failedShards);
+    }
+
+    public List<Shard> getShards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    public int getMaximumHits() {
+        return maximumHits;
+    }
+
+    public void setMaximumHits(int maximumHits) {
+        this.maximumHits = maximumHits;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the maximum time a search waits for the shards in milliseconds, default is 5 seconds.
+     *
+     * @param timeout the timeout in ms.
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Stops the threads and closes all shards.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        executor.shutdownNow();
+        for (Shard shard : shards) {
+            shard.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.searchers.sharding;
+
+import net.semanticmetadata.lire.searchers.ImageSearchHits;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The merged result of a {@link ShardedImageSearcher}. {@link #documentID(int)} returns the docId within the shard
+ * given by {@link #getShard(int)}. If a shard failed or did not answer in time the result is partial, see
+ * {@link #isPartial()} and {@link #getFailedShards()}.
+ */
+public class ShardedSearchHits implements ImageSearchHits {
+    private final List<ShardHit> hits;
+    private final List<String> failedShards;
+
+    public ShardedSearchHits(List<ShardHit> hits, List<String> failedShards) {
+        this.hits = hits;
+        this.failedShards = failedShards;
+    }
+
+    public int length() {
+        return hits.size();
+    }
+
+    public double score(int position) {
+        return hits.get(position).getDistance();
+    }
+
+    public int documentID(int position) {
+        return hits.get(position).getDocId();
+    }
+
+    public int getShard(int position) {
+        return hits.get(position).getShard();
+    }
+
+    public String getIdentifier(int position) {
+        return hits.get(position).getIdentifier();
+    }
+
+    public ShardHit getHit(int position) {
+        return hits.get(position);
+    }
+
+    /**
+     * @return true if not all shards contributed to the result.
+     */
+    public boolean isPartial() {
+        return !failedShards.isEmpty();
+    }
+
+    /**
+     * @return the names of the shards that failed or timed out, with the reason.
+     */
+    public List<String> getFailedShards() {
+        return Collections.unmodifiableList(failedShards);
+    }
+}
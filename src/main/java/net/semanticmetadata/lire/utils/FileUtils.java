@@ -58,10 +58,10 @@ import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -422,6 +422,132 @@ public class FileUtils {
         return resultList;
     }
 
+    /**
+     * Lazily walks the directory and returns the canonical paths of the images in it, with the same extensions as
+     * {@link #readFileLines(File, boolean)}. In contrast to the latter the list of images is never held in memory,
+     * only the open directories of the current path. Directories are closed as soon as they are exhausted, call
+     * {@link Closeable#close()} on the iterator if you stop early.
+     *
+     * @param directory                 the directory to start with.
+     * @param descendIntoSubDirectories set to true to include sub directories.
+     * @return an iterator over the paths, also implementing Closeable.
+     * @throws IOException
+     */
+    public static Iterator<String> iterateImageFiles(File directory, boolean descendIntoSubDirectories) throws IOException {
+        return new ImageFileIterator(directory.toPath(), descendIntoSubDirectories);
+    }
+
+    /**
+     * Lazily reads a list of images, one path per line. Lines shorter than 4 characters after trimming are skipped.
+     *
+     * @param imageList the file with the list of images.
+     * @return an iterator over the paths, also implementing Closeable.
+     * @throws IOException
+     */
+    public static Iterator<String> iterateImageList(File imageList) throws IOException {
+        return new ImageListIterator(new BufferedReader(new FileReader(imageList)));
+    }
+
+    private static boolean isImageFileName(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) return false;
+        String extension = name.substring(dot + 1).toLowerCase();
+        return extension.equals("jpg") || extension.equals("jpeg") || extension.equals("png") || extension.equals("gif")
+                || extension.equals("tif") || extension.equals("tiff");
+    }
+
+    private static abstract class LookAheadIterator implements Iterator<String>, Closeable {
+        private String next = null;
+
+        /**
+         * @return the next element or null if there is none.
+         */
+        protected abstract String fetchNext() throws IOException;
+
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = fetchNext();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return next != null;
+        }
+
+        public String next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            String result = next;
+            next = null;
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class ImageFileIterator extends LookAheadIterator {
+        private final boolean descend;
+        private final LinkedList<DirectoryStream<Path>> streams = new LinkedList<DirectoryStream<Path>>();
+        private final LinkedList<Iterator<Path>> iterators = new LinkedList<Iterator<Path>>();
+
+        ImageFileIterator(Path directory, boolean descend) throws IOException {
+            this.descend = descend;
+            open(directory);
+        }
+
+        private void open(Path directory) throws IOException {
+            DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+            streams.push(stream);
+            iterators.push(stream.iterator());
+        }
+
+        protected String fetchNext() throws IOException {
+            while (!iterators.isEmpty()) {
+                Iterator<Path> current = iterators.peek();
+                if (!current.hasNext()) {
+                    iterators.pop();
+                    streams.pop().close();
+                    continue;
+                }
+                Path path = current.next();
+                if (Files.isDirectory(path)) {
+                    if (descend) open(path);
+                } else if (isImageFileName(path.getFileName().toString())) {
+                    return path.toFile().getCanonicalPath();
+                }
+            }
+            return null;
+        }
+
+        public void close() throws IOException {
+            while (!streams.isEmpty()) streams.pop().close();
+            iterators.clear();
+        }
+    }
+
+    private static class ImageListIterator extends LookAheadIterator {
+        private final BufferedReader reader;
+
+        ImageListIterator(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        protected String fetchNext() throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() > 3) return line.trim();
+            }
+            reader.close();
+            return null;
+        }
+
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
     /**
      * Reads a whole file into a StringBuffer based on java.nio
      *
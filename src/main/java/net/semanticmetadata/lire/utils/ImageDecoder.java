@@ -0,0 +1,163 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.utils;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Decodes images like {@link ImageIO#read(InputStream)}, but only at the resolution needed. The size is read from the
+ * header first and the image is decoded with source subsampling, so the result is the smallest version with a side
+ * length still at or above the given maximum. The features are then computed on the image scaled down from there,
+ * ie. a 6000x4000 photo is decoded as 1200x800 instead of 24 megapixels for a maximum of 1024.
+ * <p/>
+ * Image readers are kept per thread and reused for the following images of the same format.
+ */
+public class ImageDecoder {
+    private static final ThreadLocal<HashMap<ImageReaderSpi, ImageReader>> readers = new ThreadLocal<HashMap<ImageReaderSpi, ImageReader>>() {
+        @Override
+        protected HashMap<ImageReaderSpi, ImageReader> initialValue() {
+            return new HashMap<ImageReaderSpi, ImageReader>();
+        }
+    };
+
+    /**
+     * Decodes an image with subsampling.
+     *
+     * @param data          the encoded image.
+     * @param maxSideLength the side length the image is going to be scaled to, values &lt; 1 decode the full image.
+     * @return the decoded image or null if no reader supports the format.
+     * @throws IOException in case the image cannot be decoded.
+     */
+    public static BufferedImage read(byte[] data, int maxSideLength) throws IOException {
+        return read(new ByteArrayInputStream(data), maxSideLength);
+    }
+
+    /**
+     * Decodes an image with subsampling.
+     *
+     * @param file          the image file.
+     * @param maxSideLength the side length the image is going to be scaled to, values &lt; 1 decode the full image.
+     * @return the decoded image or null if no reader supports the format.
+     * @throws IOException in case the image cannot be decoded.
+     */
+    public static BufferedImage read(File file, int maxSideLength) throws IOException {
+        if (!file.canRead()) throw new IOException("Can't read input file " + file.getPath() + ".");
+        return decode(ImageIO.createImageInputStream(file), maxSideLength);
+    }
+
+    /**
+     * Decodes an image with subsampling. The stream is not closed.
+     *
+     * @param in            the stream of the encoded image.
+     * @param maxSideLength the side length the image is going to be scaled to, values &lt; 1 decode the full image.
+     * @return the decoded image or null if no reader supports the format.
+     * @throws IOException in case the image cannot be decoded.
+     */
+    public static BufferedImage read(InputStream in, int maxSideLength) throws IOException {
+        if (in == null) throw new IllegalArgumentException("The input stream must not be null.");
+        return decode(ImageIO.createImageInputStream(in), maxSideLength);
+    }
+
+    /**
+     * Computes the subsampling factor leaving both sides at or above maxSideLength if they have been before.
+     *
+     * @param width         the width of the image.
+     * @param height        the height of the image.
+     * @param maxSideLength the target side length.
+     * @return the factor, 1 for no subsampling.
+     */
+    public static int getSubsampling(int width, int height, int maxSideLength) {
+        if (maxSideLength < 1) return 1;
+        return Math.max(1, Math.max(width, height) / maxSideLength);
+    }
+
+    private static BufferedImage decode(ImageInputStream iis, int maxSideLength) throws IOException {
+        if (iis == null) throw new IOException("Can't create an ImageInputStream.");
+        try {
+            ImageReaderSpi spi = findReader(iis);
+            if (spi == null) return null;
+            HashMap<ImageReaderSpi, ImageReader> cache = readers.get();
+            ImageReader reader = cache.get(spi);
+            if (reader == null) {
+                reader = spi.createReaderInstance();
+                cache.put(spi, reader);
+            }
+            boolean reusable = false;
+            try {
+                reader.setInput(iis, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = getSubsampling(reader.getWidth(0), reader.getHeight(0), maxSideLength);
+                if (subsampling > 1) param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage image = reader.read(0, param);
+                reusable = true;
+                return image;
+            } finally {
+                if (reusable) {
+                    reader.reset();
+                } else { // don't trust the state of a reader that failed.
+                    cache.remove(spi);
+                    reader.dispose();
+                }
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    private static ImageReaderSpi findReader(ImageInputStream iis) {
+        Iterator<ImageReaderSpi> spis = IIORegistry.getDefaultInstance().getServiceProviders(ImageReaderSpi.class, true);
+        while (spis.hasNext()) {
+            ImageReaderSpi spi = spis.next();
+            try {
+                if (spi.canDecodeInput(iis)) return spi;
+            } catch (IOException e) {
+                // not this one.
+            }
+        }
+        return null;
+    }
+}
@@ -45,6 +45,7 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.ConvolveOp;
 import java.awt.image.Kernel;
+import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.util.Arrays;
 
@@ -476,4 +477,71 @@ public class ImageUtils {
         return bufferedImage;
     }
 
+    /**
+     * Converts the pixels of a raster to HSV, with hue in [0,359] and saturation and value in [0,255].
+     *
+     * @param r the raster, the first three bands are taken as R, G and B.
+     * @return the HSV values indexed by [x][y][channel].
+     */
+    public static int[][][] getHsvPixels(Raster r) {
+        int[][][] pixels = new int[r.getWidth()][r.getHeight()][3];
+        int[] pixel = new int[Math.max(3, r.getNumBands())];
+        for (int x = 0; x < r.getWidth(); x++) {
+            for (int y = 0; y < r.getHeight(); y++) {
+                convertRgbToHsv(r.getPixel(x, y, pixel), pixels[x][y]);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * @param rgb RGB Values
+     * @param hsv HSV values to set.
+     */
+    private static void convertRgbToHsv(int[] rgb, int[] hsv) {
+        if (hsv.length < 3) {
+            throw new IndexOutOfBoundsException("HSV array too small, a minim of three elements is required.");
+        }
+        int R = rgb[0];
+        int G = rgb[1];
+        int B = rgb[2];
+        int max, min;
+        float hue = 0f;
+
+        max = Math.max(R, G);     //calculation of max(R,G,B)
+        max = Math.max(max, B);
+
+        min = Math.min(R, G);     //calculation of min(R,G,B)
+        min = Math.min(min, B);
+
+        if (max == 0)
+            hsv[1] = 0;
+        else {
+            // Saturation in [0,255]
+            hsv[1] = (int) (((max - min) / (float) max) * 255f);
+        }
+
+        if (max == min) {
+            hue = 0;     // (max - min) = 0
+        } else {
+            float maxMinusMin = (float) (max - min);
+            if (R == max)
+                hue = ((G - B) / maxMinusMin);
+
+            else if (G == max)
+                hue = (2 + (B - R) / maxMinusMin);
+
+            else if (B == max)
+                hue = (4 + (R - G) / maxMinusMin);
+
+            hue *= 60f;
+
+            if (hue < 0f)
+                hue += 360f;
+        }
+        // hue in [0,359]
+        hsv[0] = (int) (hue);
+        // value in [0,255]
+        hsv[2] = max;
+    }
 }
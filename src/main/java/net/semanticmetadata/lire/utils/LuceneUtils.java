@@ -178,7 +178,18 @@ public class LuceneUtils {
      * @throws IOException
      */
     public static void optimizeWriter(IndexWriter iw) throws IOException {
-        iw.forceMerge(1);
+        optimizeWriter(iw, 1);
+    }
+
+    /**
+     * Merges the segments of an index down to the given number.
+     *
+     * @param iw          the writer of the index.
+     * @param maxSegments the maximum number of segments, values &lt; 1 leave the segments as they are.
+     * @throws IOException
+     */
+    public static void optimizeWriter(IndexWriter iw, int maxSegments) throws IOException {
+        if (maxSegments > 0) iw.forceMerge(maxSegments);
     }
 
     public static void commitWriter(IndexWriter iw) throws IOException {
@@ -39,35 +39,40 @@
 
 package net.semanticmetadata.lire.utils.cv;
 
-import net.semanticmetadata.lire.utils.MetricsUtils;
+import net.semanticmetadata.lire.classifiers.FeatureMatrix;
 
 import java.util.*;
 
 /**
- * Simple, re-usable and straight k-means implementation based on double[] feature vectors and L2 distance.
+ * Simple k-means on a {@link FeatureMatrix}, the features are assigned to the cluster with the nearest center in L2
+ * distance.
  * User: mlux
  * Date: 20.09.13
  * Time: 10:56
  */
 public class KMeans {
-    List<double[]> features;
+    FeatureMatrix features;
     Cluster[] clusters;
+    // the cluster of each feature.
+    int[] assignments;
 
     public KMeans(List<double[]> featureList, int numberOfClusters) {
-        features = new ArrayList<double[]>(featureList);
+        this(toMatrix(featureList), numberOfClusters);
+    }
+
+    public KMeans(FeatureMatrix features, int numberOfClusters) {
+        this.features = features;
         clusters = new Cluster[numberOfClusters];
+        assignments = new int[features.size()];
 
-        HashSet<double[]> means = new HashSet<double[]>();
-        while (means.size() < Math.min(numberOfClusters, featureList.size() / 2)) {
-            double[] e = features.get((int) Math.floor(Math.random() * features.size()));
-            double[] tmp = new double[e.length];
-            System.arraycopy(e, 0, tmp, 0, e.length);
-            means.add(tmp);
+        HashSet<Integer> means = new HashSet<Integer>();
+        while (means.size() < Math.min(numberOfClusters, features.size() / 2)) {
+            means.add((int) Math.floor(Math.random() * features.size()));
         }
         // init cluster centers.
-        Iterator<double[]> iterator = means.iterator();
+        Iterator<Integer> iterator = means.iterator();
         for (int i = 0; i < clusters.length; i++) {
-            clusters[i] = new Cluster(iterator.next());
+            clusters[i] = new Cluster(features.getRow(iterator.next(), null));
         }
     }
 
@@ -75,33 +80,29 @@ public class KMeans {
         // init clusters:
         for (int i = 0; i < clusters.length; i++) {
             clusters[i].clearMembers();
-            assert (clusters[i].members.size() == 0);
         }
         // assign to new clusters:
         for (int id = 0; id < features.size(); id++) {
             double tmpDistance = Double.MAX_VALUE;
             int currentCluster = -1;
             for (int i = 0; i < clusters.length; i++) {
-                double distance = clusters[i].getDistance(features.get(id));
-                assert (distance >= 0);
+                double distance = features.squaredDistance(id, clusters[i].center);
                 if (distance < tmpDistance) {
                     tmpDistance = distance;
                     currentCluster = i;
                 }
             }
+            assignments[id] = currentCluster;
             clusters[currentCluster].addMember(id);
         }
         // recompute means:
         for (int i = 0; i < clusters.length; i++) {
-            clusters[i].recomputeMeans(features);
-//            System.out.println(Arrays.toString(clusters[i].center));
+            clusters[i].recomputeMeans();
         }
         // calculate stress
         double stress = 0d;
-        double num = 0;
-        for (int i = 0; i < clusters.length; i++) {
-            stress += clusters[i].calculateStress(features);
-            num += clusters[i].members.size();
+        for (int id = 0; id < features.size(); id++) {
+            stress += Math.sqrt(features.squaredDistance(id, clusters[assignments[id]].center));
         }
         return stress;
     }
@@ -114,57 +115,41 @@ public class KMeans {
         return r;
     }
 
+    private static FeatureMatrix toMatrix(List<double[]> featureList) {
+        FeatureMatrix matrix = new FeatureMatrix(featureList.isEmpty() ? 0 : featureList.get(0).length, featureList.size());
+        for (double[] feature : featureList) matrix.add(feature);
+        return matrix;
+    }
+
     /**
      * Cluster implementation used in this k-means implementation.
      */
     class Cluster {
         double[] center;
-        HashSet<Integer> members;
+        double[] sums;
+        int size = 0;
 
         public Cluster(double[] center) {
             this.center = center;
-            members = new HashSet<Integer>();
-        }
-
-        public double getDistance(double[] feature) {
-            return MetricsUtils.distL2(center, feature);
+            sums = new double[center.length];
         }
 
         public void clearMembers() {
-            members.clear();
+            Arrays.fill(sums, 0d);
+            size = 0;
         }
 
         public void addMember(int id) {
-            members.add(id);
+            features.addTo(id, sums, 0);
+            size++;
         }
 
-        public void recomputeMeans(List<double[]> features) {
-            if (members.size() > 0) {
-                Arrays.fill(center, 0d);
-                for (Iterator<Integer> iterator = members.iterator(); iterator.hasNext(); ) {
-                    int member = iterator.next();
-                    double[] feature = features.get(member);
-                    for (int i = 0; i < feature.length; i++) {
-//                        assert (feature[i] < 256);
-                        center[i] += feature[i];
-                    }
-                }
+        public void recomputeMeans() {
+            if (size > 0) {
                 for (int i = 0; i < center.length; i++) {
-                    center[i] = center[i] / ((double) members.size());
+                    center[i] = sums[i] / ((double) size);
                 }
             }
         }
-
-        public double calculateStress(List<double[]> features) {
-            double result = 0d;
-            for (Iterator<Integer> iterator = members.iterator(); iterator.hasNext(); ) {
-                int member = iterator.next();
-                double[] feature = features.get(member);
-                result += MetricsUtils.distL2(center, feature);
-            }
-            return result;
-        }
     }
-
-
 }
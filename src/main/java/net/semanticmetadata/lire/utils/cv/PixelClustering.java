@@ -39,6 +39,7 @@
 
 package net.semanticmetadata.lire.utils.cv;
 
+import net.semanticmetadata.lire.classifiers.FeatureMatrix;
 import net.semanticmetadata.lire.imageanalysis.filters.FastBilateralFilter;
 import net.semanticmetadata.lire.imageanalysis.filters.IndexedIntArray;
 import net.semanticmetadata.lire.utils.FileUtils;
@@ -81,18 +82,18 @@ public class PixelClustering {
         img.getGraphics().drawImage(b, 0, 0, null);
         WritableRaster r = img.getRaster();
         // quantize image colors with k-means:
-        ArrayList<double[]> pixels = new ArrayList<double[]>(r.getHeight()*r.getWidth());
+        FeatureMatrix pixels = new FeatureMatrix(3, r.getHeight()*r.getWidth());
+        double[] pixel = new double[3];
         for (int x = 0; x < r.getWidth(); x++) {
             for (int y = 0; y < r.getHeight(); y++) {
-                double[] tmpPixel = new double[3];
-//                double[] tmpPixel = new double[5]; // use this one if you want connected patches.
-                r.getPixel(x, y, tmpPixel);
-                assert(tmpPixel[0]<256);
-                assert(tmpPixel[1]<256);
-                assert(tmpPixel[2]<256);
-//                tmpPixel[3] = x*255f/(double)r.getWidth(); // use this one if you want connected patches.
-//                tmpPixel[4] = y*255f/(double)r.getHeight();
-                pixels.add(tmpPixel);
+//                double[] pixel = new double[5]; // use this one if you want connected patches.
+                r.getPixel(x, y, pixel);
+                assert(pixel[0]<256);
+                assert(pixel[1]<256);
+                assert(pixel[2]<256);
+//                pixel[3] = x*255f/(double)r.getWidth(); // use this one if you want connected patches.
+//                pixel[4] = y*255f/(double)r.getHeight();
+                pixels.add(pixel);
             }
         }
         // do the k-means
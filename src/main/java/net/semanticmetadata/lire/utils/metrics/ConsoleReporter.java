@@ -0,0 +1,74 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.utils.metrics;
+
+import java.io.PrintStream;
+import java.util.Map;
+
+/**
+ * Prints all metrics, one per line.
+ */
+public class ConsoleReporter implements MetricsReporter {
+    private final PrintStream out;
+
+    public ConsoleReporter() {
+        this(System.out);
+    }
+
+    public ConsoleReporter(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void report(MetricRegistry registry) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Object> entry : registry.getMetrics().entrySet()) {
+            Object metric = entry.getValue();
+            sb.append(entry.getKey()).append(": ");
+            if (metric instanceof Counter) {
+                sb.append(((Counter) metric).getCount());
+            } else if (metric instanceof Gauge) {
+                sb.append(String.format("%.3f", ((Gauge) metric).getValue()));
+            } else if (metric instanceof Histogram) {
+                Histogram h = (Histogram) metric;
+                sb.append(String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d", h.getCount(), h.getMean(),
+                        h.getValueAtPercentile(50), h.getValueAtPercentile(90), h.getValueAtPercentile(99), h.getMax()));
+            }
+            sb.append('\n');
+        }
+        out.print(sb);
+        out.flush();
+    }
+}
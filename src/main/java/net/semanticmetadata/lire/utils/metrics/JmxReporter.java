@@ -0,0 +1,185 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.utils.metrics;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Exposes the metrics as MBeans in the domain net.semanticmetadata.lire, eg. for JConsole or VisualVM. JMX reads the
+ * values when asked, so each report only registers the metrics added since the last one and unregisters those
+ * removed from the registry or replaced by another instance.
+ */
+public class JmxReporter implements MetricsReporter {
+    public static final String DOMAIN = "net.semanticmetadata.lire";
+    private final MBeanServer server;
+    // the metric instance each MBean reads from.
+    private final HashMap<ObjectName, Object> registered = new HashMap<ObjectName, Object>();
+
+    public interface CounterMBean {
+        long getCount();
+    }
+
+    public interface GaugeMBean {
+        double getValue();
+    }
+
+    public interface HistogramMBean {
+        long getCount();
+
+        double getMean();
+
+        long getMin();
+
+        long getMax();
+
+        long get50thPercentile();
+
+        long get90thPercentile();
+
+        long get99thPercentile();
+
+        long get999thPercentile();
+    }
+
+    public JmxReporter() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JmxReporter(MBeanServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public synchronized void report(MetricRegistry registry) {
+        HashMap<ObjectName, Object> metrics = new HashMap<ObjectName, Object>();
+        for (Map.Entry<String, Object> entry : registry.getMetrics().entrySet()) {
+            try {
+                metrics.put(new ObjectName(DOMAIN, "name", ObjectName.quote(entry.getKey())), entry.getValue());
+            } catch (MalformedObjectNameException e) {
+                e.printStackTrace();
+            }
+        }
+        for (Iterator<Map.Entry<ObjectName, Object>> iterator = registered.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<ObjectName, Object> entry = iterator.next();
+            if (metrics.get(entry.getKey()) == entry.getValue()) continue;
+            iterator.remove();
+            unregister(entry.getKey());
+        }
+        for (Map.Entry<ObjectName, Object> entry : metrics.entrySet()) {
+            if (registered.containsKey(entry.getKey())) continue;
+            try {
+                server.registerMBean(createMBean(entry.getValue()), entry.getKey());
+                registered.put(entry.getKey(), entry.getValue());
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Removes all MBeans registered by this reporter.
+     */
+    public synchronized void unregister() {
+        for (ObjectName name : registered.keySet()) {
+            unregister(name);
+        }
+        registered.clear();
+    }
+
+    private void unregister(ObjectName name) {
+        try {
+            server.unregisterMBean(name);
+        } catch (JMException e) {
+            // already gone.
+        }
+    }
+
+    private static StandardMBean createMBean(Object metric) throws NotCompliantMBeanException {
+        if (metric instanceof Counter) {
+            final Counter c = (Counter) metric;
+            return new StandardMBean(new CounterMBean() {
+                public long getCount() {
+                    return c.getCount();
+                }
+            }, CounterMBean.class);
+        } else if (metric instanceof Gauge) {
+            final Gauge g = (Gauge) metric;
+            return new StandardMBean(new GaugeMBean() {
+                public double getValue() {
+                    return g.getValue();
+                }
+            }, GaugeMBean.class);
+        } else {
+            final Histogram h = (Histogram) metric;
+            return new StandardMBean(new HistogramMBean() {
+                public long getCount() {
+                    return h.getCount();
+                }
+
+                public double getMean() {
+                    return h.getMean();
+                }
+
+                public long getMin() {
+                    return h.getMin();
+                }
+
+                public long getMax() {
+                    return h.getMax();
+                }
+
+                public long get50thPercentile() {
+                    return h.getValueAtPercentile(50);
+                }
+
+                public long get90thPercentile() {
+                    return h.getValueAtPercentile(90);
+                }
+
+                public long get99thPercentile() {
+                    return h.getValueAtPercentile(99);
+                }
+
+                public long get999thPercentile() {
+                    return h.getValueAtPercentile(99.9);
+                }
+            }, HistogramMBean.class);
+        }
+    }
+}
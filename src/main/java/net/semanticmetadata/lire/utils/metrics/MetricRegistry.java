@@ -0,0 +1,154 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval -
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ */
+
+package net.semanticmetadata.lire.utils.metrics;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Named counters, gauges and histograms. Indexers and searchers report to the {@link #getDefault() default
+ * registry}, which can be published with a {@link MetricsReporter}, eg. to JMX with the {@link JmxReporter}:
+ * <pre>
+ * MetricRegistry.getDefault().startReporting(new JmxReporter(), 10000);
+ * </pre>
+ * Metric names are dot separated, starting with "indexing" or "search". Times are recorded in microseconds unless
+ * the name says otherwise.
+ */
+public class MetricRegistry {
+    private static final MetricRegistry defaultRegistry = new MetricRegistry();
+    private final ConcurrentSkipListMap<String, Object> metrics = new ConcurrentSkipListMap<String, Object>();
+    private final LinkedList<Thread> reporters = new LinkedList<Thread>();
+
+    public static MetricRegistry getDefault() {
+        return defaultRegistry;
+    }
+
+    /**
+     * @return the counter of the given name, created if it does not exist yet.
+     */
+    public Counter counter(String name) {
+        return get(name, Counter.class);
+    }
+
+    /**
+     * @return the histogram of the given name, created if it does not exist yet.
+     */
+    public Histogram histogram(String name) {
+        return get(name, Histogram.class);
+    }
+
+    /**
+     * Registers a gauge, replacing a gauge of the same name.
+     */
+    public void gauge(String name, Gauge gauge) {
+        Object existing = metrics.put(name, gauge);
+        if (existing != null && !(existing instanceof Gauge)) {
+            metrics.put(name, existing);
+            throw new IllegalArgumentException(name + " is already used for a " + existing.getClass().getSimpleName() + ".");
+        }
+    }
+
+    public void remove(String name) {
+        metrics.remove(name);
+    }
+
+    /**
+     * Removes the metric only if it is still registered under the name, eg. a gauge that may have been replaced by
+     * another instance of the same class.
+     */
+    public void remove(String name, Object metric) {
+        metrics.remove(name, metric);
+    }
+
+    /**
+     * @return all metrics sorted by name, the values are instances of {@link Counter}, {@link Gauge} or
+     * {@link Histogram}.
+     */
+    public SortedMap<String, Object> getMetrics() {
+        return Collections.unmodifiableSortedMap(metrics);
+    }
+
+    /**
+     * Calls the reporter periodically in a daemon thread.
+     *
+     * @param reporter       the reporter.
+     * @param intervalMillis the time between two reports.
+     */
+    public synchronized void startReporting(final MetricsReporter reporter, final long intervalMillis) {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        reporter.report(MetricRegistry.this);
+                        Thread.sleep(intervalMillis);
+                    }
+                } catch (InterruptedException e) {
+                    // stopped.
+                }
+            }
+        }, "MetricsReporter-" + reporter.getClass().getSimpleName());
+        t.setDaemon(true);
+        t.start();
+        reporters.add(t);
+    }
+
+    /**
+     * Stops all reporters started with {@link #startReporting(MetricsReporter, long)}.
+     */
+    public synchronized void stopReporting() {
+        for (Thread t : reporters) {
+            t.interrupt();
+        }
+        reporters.clear();
+    }
+
+    private <T> T get(String name, Class<T> type) {
+        Object metric = metrics.get(name);
+        if (metric == null) {
+            try {
+                Object created = type.newInstance();
+                metric = metrics.putIfAbsent(name, created);
+                if (metric == null) metric = created;
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        if (!type.isInstance(metric))
+            throw new IllegalArgumentException(name + " is already used for a " + metric.getClass().getSimpleName() + ".");
+        return type.cast(metric);
+    }
+}